@@ -0,0 +1,299 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.descriptor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link DescriptorBuilder.Factory} that caches compiled files across builders.
+ *
+ * A compiled {@link FileDescriptorProto} is keyed by a fingerprint of the file's path and
+ * content and the fingerprints of everything it imports, transitively. Requested files whose
+ * fingerprint is cached are not compiled again; only the remaining ones are passed to a builder
+ * of the delegate factory, which is opened the first time it is needed.
+ *
+ * The imports of a file are only known once it has been compiled, so they are cached by the
+ * file's content as well. Both caches are bounded to {@code maximumSize} entries.
+ *
+ * As cached files are not compiled together with the others, a build that uses any of them is
+ * checked for symbols defined in more than one file (see {@link SymbolCollisions}).
+ */
+public class CachingDescriptorBuilderFactory implements DescriptorBuilder.Factory {
+
+  private static final HashFunction HASH_FUNCTION = Hashing.sha256();
+
+  private final DescriptorBuilder.Factory delegate;
+  // Imports of a file, by source hash
+  private final Cache<HashCode, ImmutableList<String>> imports;
+  // Compiled files, by fingerprint
+  private final Cache<HashCode, FileDescriptorProto> compiled;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  private CachingDescriptorBuilderFactory(final DescriptorBuilder.Factory delegate,
+                                          final long maximumSize) {
+    this.delegate = delegate;
+    this.imports = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .build();
+    this.compiled = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .recordStats()
+        .build();
+  }
+
+  public static CachingDescriptorBuilderFactory create(final DescriptorBuilder.Factory delegate,
+                                                       final long maximumSize) {
+    checkArgument(maximumSize > 0, "maximumSize must be positive");
+    return new CachingDescriptorBuilderFactory(delegate, maximumSize);
+  }
+
+  @Override
+  public DescriptorBuilder newDescriptorBuilder() {
+    return new CachingDescriptorBuilder();
+  }
+
+  public Stats stats() {
+    return Stats.create(
+        hits.sum(),
+        misses.sum(),
+        compiled.size(),
+        compiled.stats().evictionCount()
+    );
+  }
+
+  private static HashCode sourceHash(final Path path, final String content) {
+    return HASH_FUNCTION.newHasher()
+        .putString(path.toString(), StandardCharsets.UTF_8)
+        .putByte((byte) 0)
+        .putString(content, StandardCharsets.UTF_8)
+        .hash();
+  }
+
+  private class CachingDescriptorBuilder implements DescriptorBuilder {
+
+    private final Map<Path, HashCode> sourceHashes = new HashMap<>();
+    private final Map<Path, String> contents = new HashMap<>();
+    @Nullable private DescriptorBuilder compiler;
+
+    @Override
+    public DescriptorBuilder setProtoFile(final Path path, final String content)
+        throws DescriptorBuilderException {
+      contents.put(path, content);
+      sourceHashes.put(path, sourceHash(path, content));
+      if (compiler != null) {
+        compiler.setProtoFile(path, content);
+      }
+      return this;
+    }
+
+    @Override
+    public Result buildDescriptor(final Stream<Path> paths) throws DescriptorBuilderException {
+      final ImmutableList<Path> requested = paths.distinct().collect(toImmutableList());
+      final Lookup lookup = new Lookup();
+
+      final ImmutableList<Path> missing = requested.stream()
+          .filter(path -> lookup.find(path) == null)
+          .collect(toImmutableList());
+      hits.add(requested.size() - missing.size());
+      misses.add(missing.size());
+
+      final Map<String, FileDescriptorProto> files = new HashMap<>(lookup.found);
+      if (!missing.isEmpty()) {
+        final Result result = compiler().buildDescriptor(missing.stream());
+        if (result.compilationError() != null) {
+          return result;
+        }
+        // Dependencies come first, so their fingerprints are known when a file is stored
+        for (final FileDescriptorProto file : result.fileDescriptorSet().getFileList()) {
+          lookup.store(file);
+          files.put(file.getName(), file);
+        }
+      }
+
+      // Same order as protoc: each requested file preceded by its (not yet added) imports
+      final Set<String> ordered = new LinkedHashSet<>();
+      for (final Path path : requested) {
+        addTransitiveDependencies(path.toString(), files, ordered);
+      }
+      final FileDescriptorSet.Builder builder = FileDescriptorSet.newBuilder();
+      ordered.stream().map(files::get).forEach(builder::addFile);
+      final FileDescriptorSet fileDescriptorSet = builder.build();
+
+      // Cached files were not compiled together with the rest, so the compiler can't have
+      // rejected symbols they define more than once
+      final String collisions = lookup.found.isEmpty()
+                                ? null
+                                : SymbolCollisions.find(fileDescriptorSet);
+      if (collisions != null) {
+        return Result.error(collisions);
+      }
+      return Result.create(fileDescriptorSet);
+    }
+
+    private void addTransitiveDependencies(final String name,
+                                           final Map<String, FileDescriptorProto> files,
+                                           final Set<String> ordered) {
+      if (ordered.contains(name)) {
+        return;
+      }
+      for (final String dependency : files.get(name).getDependencyList()) {
+        addTransitiveDependencies(dependency, files, ordered);
+      }
+      ordered.add(name);
+    }
+
+    private DescriptorBuilder compiler() throws DescriptorBuilderException {
+      if (compiler == null) {
+        compiler = delegate.newDescriptorBuilder();
+        for (final Map.Entry<Path, String> file : contents.entrySet()) {
+          compiler.setProtoFile(file.getKey(), file.getValue());
+        }
+      }
+      return compiler;
+    }
+
+    @Override
+    public void close() {
+      if (compiler != null) {
+        compiler.close();
+      }
+    }
+
+    /**
+     * Fingerprints and cached files of a single build.
+     */
+    private class Lookup {
+
+      private final Map<Path, HashCode> fingerprints = new HashMap<>();
+      private final Map<String, FileDescriptorProto> found = new HashMap<>();
+      private final Set<Path> visited = new HashSet<>();
+
+      /**
+       * Returns the cached file for a path, if it and all its imports are cached.
+       */
+      @Nullable
+      FileDescriptorProto find(final Path path) {
+        final HashCode fingerprint = fingerprint(path);
+        return fingerprint != null ? found.get(path.toString()) : null;
+      }
+
+      @Nullable
+      private HashCode fingerprint(final Path path) {
+        // Also guards against import cycles, which don't compile anyway
+        if (!visited.add(path)) {
+          return fingerprints.get(path);
+        }
+
+        final HashCode sourceHash = sourceHashes.get(path);
+        final List<String> dependencies =
+            sourceHash != null ? imports.getIfPresent(sourceHash) : null;
+        if (dependencies == null) {
+          return null;
+        }
+
+        final Hasher hasher = HASH_FUNCTION.newHasher().putBytes(sourceHash.asBytes());
+        for (final String dependency : dependencies) {
+          final HashCode dependencyFingerprint = fingerprint(Paths.get(dependency));
+          if (dependencyFingerprint == null) {
+            return null;
+          }
+          hasher.putBytes(dependencyFingerprint.asBytes());
+        }
+
+        final HashCode fingerprint = hasher.hash();
+        final FileDescriptorProto file = compiled.getIfPresent(fingerprint);
+        if (file == null) {
+          return null;
+        }
+        fingerprints.put(path, fingerprint);
+        found.put(path.toString(), file);
+        return fingerprint;
+      }
+
+      void store(final FileDescriptorProto file) {
+        final Path path = Paths.get(file.getName());
+        final HashCode sourceHash = sourceHashes.get(path);
+        if (sourceHash == null) {
+          return;
+        }
+
+        final Hasher hasher = HASH_FUNCTION.newHasher().putBytes(sourceHash.asBytes());
+        for (final String dependency : file.getDependencyList()) {
+          final HashCode dependencyFingerprint = fingerprints.get(Paths.get(dependency));
+          if (dependencyFingerprint == null) {
+            return;
+          }
+          hasher.putBytes(dependencyFingerprint.asBytes());
+        }
+
+        final HashCode fingerprint = hasher.hash();
+        imports.put(sourceHash, ImmutableList.copyOf(file.getDependencyList()));
+        compiled.put(fingerprint, file);
+        fingerprints.put(path, fingerprint);
+      }
+    }
+  }
+
+  /**
+   * Point-in-time snapshot of cache usage. Hits and misses are counted per requested file.
+   */
+  @AutoValue
+  public abstract static class Stats {
+
+    public abstract long hits();
+
+    public abstract long misses();
+
+    public abstract long size();
+
+    public abstract long evictions();
+
+    static Stats create(final long hits, final long misses, final long size,
+                        final long evictions) {
+      return new AutoValue_CachingDescriptorBuilderFactory_Stats(hits, misses, size, evictions);
+    }
+  }
+}
@@ -20,6 +20,9 @@
 
 package com.spotify.protoman.descriptor;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.protobuf.Message;
 import java.util.Optional;
 
@@ -28,19 +31,21 @@ abstract class DescriptorBase<ProtoType extends Message> implements GenericDescr
   private final ProtoType proto;
   private FileDescriptor file;
   private int index;
-  private final SourceCodeInfo sourceCodeInfo;
-  private final String fullName;
+  private final PathNode path;
+  // Computed on first use. Eagerly hashing every descriptor would serialize each nested element
+  // once per enclosing element.
+  private volatile String fullName;
+  private volatile HashCode structuralFingerprint;
+  private volatile HashCode fingerprint;
 
   protected DescriptorBase(final ProtoType proto,
                            final FileDescriptor file,
                            final int index,
-                           final PathNode path,
-                           final String fullName) {
+                           final PathNode path) {
     this.proto = proto;
     this.file = file;
     this.index = index;
-    this.sourceCodeInfo = path.sourceCodeInfo(file).orElse(null);
-    this.fullName = fullName;
+    this.path = path;
   }
 
   @Override
@@ -50,20 +55,53 @@ abstract class DescriptorBase<ProtoType extends Message> implements GenericDescr
 
   @Override
   public Optional<SourceCodeInfo> sourceCodeInfo() {
-    return Optional.ofNullable(sourceCodeInfo);
+    return path.sourceCodeInfo(file);
   }
 
   @Override
   public String fullName() {
-    return fullName;
+    String result = fullName;
+    if (result == null) {
+      fullName = result = computeFullName();
+    }
+    return result;
   }
 
+  /**
+   * Computes the fully-qualified name, which is only done if it is asked for. Most members are
+   * only ever looked up by name or number.
+   */
+  protected abstract String computeFullName();
+
   @Override
   public FileDescriptor file() {
     return file;
   }
 
+  @Override
+  public HashCode fingerprint() {
+    HashCode result = fingerprint;
+    if (result == null) {
+      fingerprint = result = Hashing.combineOrdered(
+          ImmutableList.of(structuralFingerprint(), path.fingerprint()));
+    }
+    return result;
+  }
+
+  @Override
+  public HashCode structuralFingerprint() {
+    HashCode result = structuralFingerprint;
+    if (result == null) {
+      structuralFingerprint = result = Util.fingerprint(proto);
+    }
+    return result;
+  }
+
   public int index() {
     return index;
   }
+
+  PathNode path() {
+    return path;
+  }
 }
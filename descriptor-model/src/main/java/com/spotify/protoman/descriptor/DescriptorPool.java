@@ -20,101 +20,250 @@
 
 package com.spotify.protoman.descriptor;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
 
+/**
+ * Resolves type names to descriptors, as seen from one file: the types of the file itself and of
+ * everything it imports, transitively.
+ *
+ * <p>Names are resolved in a tree of scopes: packages, which contain subpackages and the
+ * top-level types of their files, and messages, which contain nested types. Resolving a name
+ * takes one step per scope it is looked up in and per component of the name, and materializes
+ * just the descriptors on the way.
+ *
+ * <p>Since a pool only sees the file's own dependency closure, a {@link FileDescriptor} can be
+ * shared by all descriptor sets that contain the same file with the same dependencies.
+ */
 class DescriptorPool {
 
-  // Fully-qualified (.<package>.<type>...) name -> MessageDescriptor
-  private final Map<String, MessageDescriptor> messageTypes = new HashMap<>();
-  private final Map<String, EnumDescriptor> enumTypes = new HashMap<>();
+  private final FileDescriptor file;
+  // Built on first lookup
+  private volatile Packages packages;
+  // Fully-qualified name -> MessageDescriptor or EnumDescriptor
+  private final Map<String, GenericDescriptor> resolved = new ConcurrentHashMap<>();
 
-  private DescriptorPool() {
+  private DescriptorPool(final FileDescriptor file) {
+    this.file = file;
   }
 
-  public static DescriptorPool create() {
-    return new DescriptorPool();
+  static DescriptorPool forFile(final FileDescriptor file) {
+    return new DescriptorPool(file);
   }
 
+  /**
+   * Finds a message by its fully-qualified name, with or without a leading ".".
+   */
   MessageDescriptor findMessageType(final String fullName) {
-    return messageTypes.get(fullyQualify(fullName));
+    final GenericDescriptor descriptor = find(fullName);
+    return descriptor instanceof MessageDescriptor ? (MessageDescriptor) descriptor : null;
   }
 
+  /**
+   * Finds an enum by its fully-qualified name, with or without a leading ".".
+   */
   EnumDescriptor findEnumType(final String fullName) {
-    return enumTypes.get(fullyQualify(fullName));
-  }
-
-  void put(final MessageDescriptor descriptor) {
-    messageTypes.put("." + descriptor.fullName(), descriptor);
-  }
-
-  void put(final EnumDescriptor descriptor) {
-    enumTypes.put("." + descriptor.fullName(), descriptor);
+    final GenericDescriptor descriptor = find(fullName);
+    return descriptor instanceof EnumDescriptor ? (EnumDescriptor) descriptor : null;
   }
 
+  /**
+   * Looks up a message the way protoc resolves a type name used in {@code relativeTo}: a name
+   * starting with "." is fully-qualified, any other name is looked up in {@code relativeTo},
+   * then in each enclosing message and package, innermost first.
+   */
   public MessageDescriptor lookupMessageDescriptor(final String name,
                                                    final MessageDescriptor relativeTo) {
-    return lookupDescriptor(name, relativeTo, this::findMessageType);
+    final Object symbol = lookup(name, relativeTo);
+    return symbol instanceof MessageDescriptor ? (MessageDescriptor) symbol : null;
   }
 
+  /**
+   * Like {@link #lookupMessageDescriptor(String, MessageDescriptor)}, for enums.
+   */
   public EnumDescriptor lookupEnumDescriptor(final String name,
                                              final MessageDescriptor relativeTo) {
-    return lookupDescriptor(name, relativeTo, this::findEnumType);
+    final Object symbol = lookup(name, relativeTo);
+    return symbol instanceof EnumDescriptor ? (EnumDescriptor) symbol : null;
   }
 
-  // TODO(staffan): This is probably buggy as hell. protoc seems to produce names that are
-  // fully-qualified so much of this code hasn't yet been exercised.
-  private static <DescriptorType extends GenericDescriptor>
-  DescriptorType lookupDescriptor(final String name, final MessageDescriptor relativeTo,
-                                  final Function<String, DescriptorType> lookupFn) {
+  // Cached under the name as given, with or without the leading ".", so that a lookup with a
+  // type name straight from a proto does not allocate
+  private GenericDescriptor find(final String fullName) {
+    final GenericDescriptor cached = resolved.get(fullName);
+    if (cached != null) {
+      return cached;
+    }
+    final Object symbol = resolve(
+        packages().root, fullName, isFullyQualifiedName(fullName) ? 1 : 0);
+    if (!isType(symbol)) {
+      return null;
+    }
+    final GenericDescriptor descriptor = (GenericDescriptor) symbol;
+    resolved.putIfAbsent(fullName, descriptor);
+    return descriptor;
+  }
+
+  private Object lookup(final String name, final MessageDescriptor relativeTo) {
     if (isFullyQualifiedName(name)) {
-      return lookupFn.apply(name);
+      return find(name);
     }
 
-    // Defined in nested type? E.g.
-    //
-    // message A {
-    //    B b = 1;
-    //    B.C c = 2;
-    //    message B {
-    //      message C {}
-    //    }
-    // }
-    final Deque<MessageDescriptor> q = new ArrayDeque<>();
-    q.push(relativeTo);
-
-    while (!q.isEmpty()) {
-      final MessageDescriptor d = q.pop();
-      final String scope = "." + d.fullName();
-      final DescriptorType maybeDesc = lookupFn.apply(scope + "." + name);
-      if (maybeDesc != null) {
-        return maybeDesc;
+    // Find the innermost scope that has a symbol named like the first component of the name.
+    // Like protoc, the rest of the name is then only looked up in that symbol.
+    final int end = name.indexOf('.');
+    final String first = end == -1 ? name : name.substring(0, end);
+    for (Object scope = relativeTo; scope != null; scope = enclosingScope(scope)) {
+      final Object symbol = member(scope, first);
+      if (symbol == null) {
+        continue;
+      }
+      if (end == -1) {
+        if (isType(symbol)) {
+          return symbol;
+        }
+        // A package, keep looking for a type
+      } else if (isScope(symbol)) {
+        return resolve(symbol, name, end + 1);
       }
-      d.nestedTypes().forEach(nestedType -> q.push(d));
     }
+    return null;
+  }
 
-    String s = "." + relativeTo.fullName();
+  @Nullable
+  private Object enclosingScope(final Object scope) {
+    if (scope instanceof MessageDescriptor) {
+      final MessageDescriptor message = (MessageDescriptor) scope;
+      return message.containingType() != null
+             ? message.containingType()
+             : packages().byName.get(message.file().protoPackage());
+    }
+    return ((PackageScope) scope).parent;
+  }
+
+  /**
+   * Resolves the components of {@code name}, from {@code start} on, in {@code scope}.
+   */
+  @Nullable
+  private static Object resolve(final Object scope, final String name, final int start) {
+    Object symbol = scope;
+    int from = start;
     while (true) {
-      final int i = s.lastIndexOf('.');
-      if (i == -1) {
+      if (!isScope(symbol)) {
         return null;
       }
-      s = s.substring(0, i);
-      final DescriptorType d = lookupFn.apply(s + "." + name);
-      if (d != null) {
-        return d;
+      final int end = name.indexOf('.', from);
+      symbol = member(symbol, end == -1 ? name.substring(from) : name.substring(from, end));
+      if (symbol == null || end == -1) {
+        return symbol;
       }
+      from = end + 1;
+    }
+  }
+
+  /**
+   * The type or subpackage named {@code name} directly in {@code scope}, a message or package.
+   */
+  @Nullable
+  private static Object member(final Object scope, final String name) {
+    if (scope instanceof MessageDescriptor) {
+      final MessageDescriptor message = (MessageDescriptor) scope;
+      final MessageDescriptor nested = message.findMessageByName(name);
+      return nested != null ? nested : message.findEnumByName(name);
     }
+    return ((PackageScope) scope).members().get(name);
+  }
+
+  private static boolean isScope(@Nullable final Object symbol) {
+    return symbol instanceof PackageScope || symbol instanceof MessageDescriptor;
+  }
+
+  private static boolean isType(@Nullable final Object symbol) {
+    return symbol instanceof MessageDescriptor || symbol instanceof EnumDescriptor;
   }
 
   private static boolean isFullyQualifiedName(final String name) {
     return name.startsWith(".");
   }
 
-  private static String fullyQualify(final String fullName) {
-    return isFullyQualifiedName(fullName) ? fullName : "." + fullName;
+  private Packages packages() {
+    Packages result = packages;
+    if (result == null) {
+      packages = result = new Packages(file);
+    }
+    return result;
+  }
+
+  /**
+   * The package scopes of the files visible from a file.
+   */
+  private static final class Packages {
+
+    final PackageScope root = new PackageScope(null);
+    // Full package name -> scope
+    final Map<String, PackageScope> byName = new HashMap<>();
+
+    Packages(final FileDescriptor file) {
+      byName.put("", root);
+      addWithDependencies(file, new HashSet<>());
+    }
+
+    private void addWithDependencies(final FileDescriptor file,
+                                     final Set<FileDescriptor> visited) {
+      if (!visited.add(file)) {
+        return;
+      }
+      packageScope(file.protoPackage()).files.add(file);
+      file.dependencies().forEach(dependency -> addWithDependencies(dependency, visited));
+    }
+
+    private PackageScope packageScope(final String protoPackage) {
+      PackageScope scope = byName.get(protoPackage);
+      if (scope == null) {
+        final int end = protoPackage.lastIndexOf('.');
+        final PackageScope parent = packageScope(end == -1 ? "" : protoPackage.substring(0, end));
+        scope = new PackageScope(parent);
+        parent.subpackages.put(protoPackage.substring(end + 1), scope);
+        byName.put(protoPackage, scope);
+      }
+      return scope;
+    }
+  }
+
+  private static final class PackageScope {
+
+    @Nullable final PackageScope parent;
+    final Map<String, PackageScope> subpackages = new HashMap<>();
+    final List<FileDescriptor> files = new ArrayList<>();
+    // Top-level types of all files in the package, and subpackages, built on first use
+    private volatile Map<String, Object> members;
+
+    PackageScope(@Nullable final PackageScope parent) {
+      this.parent = parent;
+    }
+
+    Map<String, Object> members() {
+      Map<String, Object> result = members;
+      if (result == null) {
+        result = new HashMap<>();
+        for (final FileDescriptor file : files) {
+          for (final MessageDescriptor message : file.messageTypes()) {
+            result.putIfAbsent(message.name(), message);
+          }
+          for (final EnumDescriptor enumType : file.enumTypes()) {
+            result.putIfAbsent(enumType.name(), enumType);
+          }
+        }
+        subpackages.forEach(result::putIfAbsent);
+        members = result;
+      }
+      return result;
+    }
   }
 }
@@ -21,45 +21,91 @@
 package com.spotify.protoman.descriptor;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static java.util.stream.Collectors.toMap;
 
 import com.google.auto.value.AutoValue;
+import com.google.auto.value.extension.memoized.Memoized;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Sets;
 import com.google.protobuf.DescriptorProtos;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import javax.annotation.Nullable;
 
 @AutoValue
 public abstract class DescriptorSet {
 
+  // Chunks of comparison tasks per pool thread, so that threads that finish early can steal
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private static final Comparator<GenericDescriptor> BY_FULL_NAME =
+      Comparator.comparing(GenericDescriptor::fullName);
+  private static final Comparator<FieldDescriptor> FIELDS_BY_NUMBER =
+      Comparator.comparingInt(FieldDescriptor::number);
+  private static final Comparator<EnumValueDescriptor> ENUM_VALUES_BY_NUMBER =
+      Comparator.comparingInt(EnumValueDescriptor::number);
+  private static final Comparator<EnumValueDescriptor> ENUM_VALUES_BY_NAME =
+      Comparator.comparing(EnumValueDescriptor::name);
+
   public abstract ImmutableList<FileDescriptor> fileDescriptors();
 
   public static DescriptorSet create(final DescriptorProtos.FileDescriptorSet fds,
                                      final Predicate<Path> predicate) {
-    final DescriptorPool pool = DescriptorPool.create();
+    return create(fds, predicate, null);
+  }
 
-    final ImmutableList<FileDescriptor> fileDescriptors =
-        buildFileDescriptors(fds, pool, fdp -> predicate.test(Paths.get(fdp.getName())))
-            .collect(ImmutableList.toImmutableList());
+  /**
+   * Like {@link #create(DescriptorProtos.FileDescriptorSet, Predicate)}, but files already in
+   * {@code cache}, with the same content and imports, are reused instead of built again.
+   */
+  public static DescriptorSet create(final DescriptorProtos.FileDescriptorSet fds,
+                                     final Predicate<Path> predicate,
+                                     @Nullable final FileDescriptorCache cache) {
+    try {
+      return create(fds, predicate, cache, null);
+    } catch (InterruptedException e) {
+      // Only thrown while waiting for a pool
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Like {@link #create(DescriptorProtos.FileDescriptorSet, Predicate, FileDescriptorCache)},
+   * but if {@code pool} is given, files that don't depend on each other are built in parallel on
+   * it: first all files without imports, then all files that only import those, and so on.
+   *
+   * @throws InterruptedException If the calling thread is interrupted while waiting.
+   */
+  public static DescriptorSet create(final DescriptorProtos.FileDescriptorSet fds,
+                                     final Predicate<Path> predicate,
+                                     @Nullable final FileDescriptorCache cache,
+                                     @Nullable final ForkJoinPool pool)
+      throws InterruptedException {
+    final ImmutableList<FileDescriptor> fileDescriptors = buildFileDescriptors(
+        fds, cache, pool, fdp -> predicate.test(NameTable.path(fdp.getName())))
+        .collect(ImmutableList.toImmutableList());
 
     return new AutoValue_DescriptorSet(fileDescriptors);
   }
@@ -80,104 +126,333 @@ public abstract class DescriptorSet {
   public static void compare(final ComparingVisitor visitor,
                              final DescriptorSet a,
                              final DescriptorSet b) {
-    group(a, b, d -> d.fileDescriptors().stream())
-        .forEach(grouping -> visitor.visit(grouping.a(), grouping.b()));
-    group(a, b, d -> d.fileDescriptors().stream().flatMap(x -> x.messageTypes().stream()))
-        .forEach(grouping -> compare(visitor, grouping.a(), grouping.b()));
-    group(a, b, d -> d.fileDescriptors().stream().flatMap(x -> x.enumTypes().stream()))
-        .forEach(grouping -> compare(visitor, grouping.a(), grouping.b()));
-    group(a, b, d -> d.fileDescriptors().stream().flatMap(x -> x.services().stream()))
-        .forEach(grouping -> compare(visitor, grouping.a(), grouping.b()));
+    compare(visitor, a, b, false);
+  }
+
+  /**
+   * Like {@link #compare(ComparingVisitor, DescriptorSet, DescriptorSet)}, but descriptors that
+   * are present in both descriptor sets with the same {@link
+   * GenericDescriptor#structuralFingerprint()} are not traversed. Instead {@link
+   * ComparingVisitor#visitUnchanged(GenericDescriptor, GenericDescriptor)} is called once for the
+   * root of each such subtree.
+   */
+  public static void compareChanges(final ComparingVisitor visitor,
+                                    final DescriptorSet a,
+                                    final DescriptorSet b) {
+    compare(visitor, a, b, true);
+  }
+
+  /**
+   * Like {@link #compareChanges(ComparingVisitor, DescriptorSet, DescriptorSet)}, but files and
+   * top-level types are compared in parallel on {@code pool}. They are split into a few
+   * contiguous chunks per pool thread, and each chunk is visited by its own visitor from {@code
+   * visitorFactory}, so visitors need not be thread-safe, but must not share mutable state. If a
+   * visitor throws, chunks that have not started are skipped and the exception is rethrown once
+   * the running ones are done.
+   *
+   * @return The visitors, in the order the sequential comparison visits what they visited.
+   * @throws InterruptedException If the calling thread is interrupted while waiting. Visitors
+   *                              that are running are not interrupted, but are done by the time
+   *                              this is thrown, and chunks that have not started are skipped.
+   */
+  public static <V extends ComparingVisitor> ImmutableList<V> compareChanges(
+      final Supplier<V> visitorFactory,
+      final DescriptorSet a,
+      final DescriptorSet b,
+      final ForkJoinPool pool) throws InterruptedException {
+    final ImmutableList<Consumer<ComparingVisitor>> tasks = compareTasks(a, b, true);
+    final int chunks = Math.min(tasks.size(), pool.getParallelism() * CHUNKS_PER_THREAD);
+    final ImmutableList<V> visitors = IntStream.range(0, chunks)
+        .mapToObj(i -> visitorFactory.get())
+        .collect(ImmutableList.toImmutableList());
+
+    if (chunks == 1) {
+      tasks.forEach(task -> task.accept(visitors.get(0)));
+      return visitors;
+    }
+
+    final List<Runnable> forks = new ArrayList<>(chunks);
+    for (int i = 0; i < chunks; i++) {
+      final List<Consumer<ComparingVisitor>> chunk =
+          tasks.subList(tasks.size() * i / chunks, tasks.size() * (i + 1) / chunks);
+      final V visitor = visitors.get(i);
+      forks.add(() -> chunk.forEach(task -> task.accept(visitor)));
+    }
+    invokeAll(pool, forks);
+    return visitors;
+  }
+
+  /**
+   * Runs {@code forks} on {@code pool} and waits for all of them to complete. If one of them
+   * throws, those that have not started yet are skipped, and the first exception is rethrown once
+   * the others are done. The same goes for interrupting the calling thread, nothing is running
+   * once this returns.
+   */
+  private static void invokeAll(final ForkJoinPool pool, final List<Runnable> forks)
+      throws InterruptedException {
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final List<ForkJoinTask<?>> tasks = new ArrayList<>(forks.size());
+    for (final Runnable fork : forks) {
+      tasks.add(ForkJoinTask.adapt(() -> {
+        if (failure.get() != null) {
+          return;
+        }
+        try {
+          fork.run();
+        } catch (Throwable t) {
+          failure.compareAndSet(null, t);
+        }
+      }));
+    }
+    final ForkJoinTask<?> all = pool.submit(() -> ForkJoinTask.invokeAll(tasks));
+    try {
+      all.get();
+    } catch (InterruptedException e) {
+      failure.compareAndSet(null, e);
+      // Joining from outside the pool can't be interrupted
+      all.quietlyJoin();
+      Thread.interrupted();
+      throw e;
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    }
+    if (failure.get() != null) {
+      Throwables.throwIfUnchecked(failure.get());
+      throw new RuntimeException(failure.get());
+    }
+  }
+
+  private static void compare(final ComparingVisitor visitor,
+                              final DescriptorSet a,
+                              final DescriptorSet b,
+                              final boolean prune) {
+    compareTasks(a, b, prune).forEach(task -> task.accept(visitor));
+  }
+
+  /**
+   * Splits a comparison into independent tasks: one per file, and one per top-level message,
+   * enum and service.
+   */
+  private static ImmutableList<Consumer<ComparingVisitor>> compareTasks(final DescriptorSet a,
+                                                                       final DescriptorSet b,
+                                                                       final boolean prune) {
+    final ImmutableList.Builder<Consumer<ComparingVisitor>> tasks = ImmutableList.builder();
+
+    // Type names are unique within a descriptor set, so types in an unchanged file can only be
+    // matched with themselves and need not be grouped at all
+    final Set<String> unchangedFiles = new HashSet<>();
+    merge(a.fileDescriptors(), b.fileDescriptors(), BY_FULL_NAME, (x, y) -> {
+      if (prune && x != null && y != null
+          && x.structuralFingerprint().equals(y.structuralFingerprint())) {
+        unchangedFiles.add(x.name());
+      }
+      tasks.add(visitor -> {
+        if (!unchanged(visitor, prune, x, y)) {
+          visitor.visit(x, y);
+        }
+      });
+    });
+    final List<FileDescriptor> aFiles = changedFiles(a, unchangedFiles);
+    final List<FileDescriptor> bFiles = changedFiles(b, unchangedFiles);
+
+    merge(flatten(aFiles, FileDescriptor::messageTypes),
+          flatten(bFiles, FileDescriptor::messageTypes),
+          BY_FULL_NAME, (x, y) -> tasks.add(visitor -> compare(visitor, x, y, prune)));
+    merge(flatten(aFiles, FileDescriptor::enumTypes),
+          flatten(bFiles, FileDescriptor::enumTypes),
+          BY_FULL_NAME, (x, y) -> tasks.add(visitor -> compare(visitor, x, y, prune)));
+    merge(flatten(aFiles, FileDescriptor::services),
+          flatten(bFiles, FileDescriptor::services),
+          BY_FULL_NAME, (x, y) -> tasks.add(visitor -> compare(visitor, x, y, prune)));
+    return tasks.build();
+  }
+
+  private static List<FileDescriptor> changedFiles(final DescriptorSet descriptorSet,
+                                                   final Set<String> unchangedFiles) {
+    if (unchangedFiles.isEmpty()) {
+      return descriptorSet.fileDescriptors();
+    }
+    final List<FileDescriptor> files = new ArrayList<>();
+    for (final FileDescriptor file : descriptorSet.fileDescriptors()) {
+      if (!unchangedFiles.contains(file.name())) {
+        files.add(file);
+      }
+    }
+    return files;
+  }
+
+  private static <T> List<T> flatten(final List<FileDescriptor> files,
+                                     final Function<FileDescriptor, List<T>> children) {
+    if (files.size() == 1) {
+      return children.apply(files.get(0));
+    }
+    final List<T> all = new ArrayList<>();
+    for (final FileDescriptor file : files) {
+      all.addAll(children.apply(file));
+    }
+    return all;
+  }
+
+  /**
+   * If pruning, checks whether {@code a} and {@code b} are structurally equal and if so reports
+   * them as unchanged to the visitor.
+   */
+  private static boolean unchanged(final ComparingVisitor visitor,
+                                   final boolean prune,
+                                   @Nullable final GenericDescriptor a,
+                                   @Nullable final GenericDescriptor b) {
+    if (prune && a != null && b != null
+        && a.structuralFingerprint().equals(b.structuralFingerprint())) {
+      visitor.visitUnchanged(a, b);
+      return true;
+    }
+    return false;
   }
 
   public Optional<FileDescriptor> findFileByPath(final Path path) {
-    return fileDescriptors().stream()
-        .filter(fileDescriptor -> Objects.equals(fileDescriptor.filePath(), path))
-        .findFirst();
+    return Optional.ofNullable(filesByPath().get(path));
+  }
+
+  @Memoized
+  ImmutableMap<Path, FileDescriptor> filesByPath() {
+    final Map<Path, FileDescriptor> index = new HashMap<>();
+    for (final FileDescriptor file : fileDescriptors()) {
+      index.putIfAbsent(file.filePath(), file);
+    }
+    return ImmutableMap.copyOf(index);
   }
 
   private static void compare(final ComparingVisitor visitor,
                               @Nullable final MessageDescriptor a,
-                              @Nullable final MessageDescriptor b) {
+                              @Nullable final MessageDescriptor b,
+                              final boolean prune) {
+    if (unchanged(visitor, prune, a, b)) {
+      return;
+    }
     visitor.visit(a, b);
 
     // Fields (are grouped by number, not name)
-    group(a, b, d -> d.fields().stream(), FieldDescriptor::number)
-        .forEach(grouping -> visitor.visit(grouping.a(), grouping.b(), a, b));
+    merge(children(a, MessageDescriptor::fields), children(b, MessageDescriptor::fields),
+          FIELDS_BY_NUMBER,
+          (x, y) -> {
+            if (!unchanged(visitor, prune, x, y)) {
+              visitor.visit(x, y, a, b);
+            }
+          });
     // Oneofs
-    group(a, b, d -> d.oneofs().stream())
-        .forEach(grouping -> visitor.visit(grouping.a(), grouping.b()));
+    merge(children(a, MessageDescriptor::oneofs), children(b, MessageDescriptor::oneofs),
+          BY_FULL_NAME,
+          (x, y) -> {
+            if (!unchanged(visitor, prune, x, y)) {
+              visitor.visit(x, y);
+            }
+          });
     // Nested enums
-    group(a, b, d -> d.enumTypes().stream())
-        .forEach(grouping -> compare(visitor, grouping.a(), grouping.b()));
+    merge(children(a, MessageDescriptor::enumTypes), children(b, MessageDescriptor::enumTypes),
+          BY_FULL_NAME, (x, y) -> compare(visitor, x, y, prune));
     // Nested messages
-    group(a, b, d -> d.nestedTypes().stream())
-        .forEach(grouping -> compare(visitor, grouping.a(), grouping.b()));
+    merge(children(a, MessageDescriptor::nestedTypes), children(b, MessageDescriptor::nestedTypes),
+          BY_FULL_NAME, (x, y) -> compare(visitor, x, y, prune));
   }
 
   private static void compare(final ComparingVisitor visitor,
                               @Nullable final ServiceDescriptor a,
-                              @Nullable final ServiceDescriptor b) {
+                              @Nullable final ServiceDescriptor b,
+                              final boolean prune) {
+    if (unchanged(visitor, prune, a, b)) {
+      return;
+    }
     visitor.visit(a, b);
 
-    group(a, b, d -> d.methods().stream())
-        .forEach(grouping -> visitor.visit(grouping.a(), grouping.b()));
+    merge(children(a, ServiceDescriptor::methods), children(b, ServiceDescriptor::methods),
+          BY_FULL_NAME,
+          (x, y) -> {
+            if (!unchanged(visitor, prune, x, y)) {
+              visitor.visit(x, y);
+            }
+          });
   }
 
   private static void compare(final ComparingVisitor visitor,
                               @Nullable final EnumDescriptor a,
-                              @Nullable final EnumDescriptor b) {
+                              @Nullable final EnumDescriptor b,
+                              final boolean prune) {
+    if (unchanged(visitor, prune, a, b)) {
+      return;
+    }
     visitor.visit(a, b);
 
     // NOTE(staffan): We probably want to group values by number rather than by name, but
     // "option allow_alias = true;" f's this up. When enabled several values can have
     // the same number :(
-    if ((a != null && a.options().hasAllowAlias()) || (b != null && b.options().hasAllowAlias())) {
-      group(a, b, d -> d.values().stream(), EnumValueDescriptor::name)
-          .forEach(grouping -> visitor.visit(grouping.a(), grouping.b(), a, b));
-    } else {
-      group(a, b, d -> d.values().stream(), EnumValueDescriptor::number)
-          .forEach(grouping -> visitor.visit(grouping.a(), grouping.b(), a, b));
-    }
+    final boolean allowAlias =
+        (a != null && a.options().hasAllowAlias()) || (b != null && b.options().hasAllowAlias());
+    merge(children(a, EnumDescriptor::values), children(b, EnumDescriptor::values),
+          allowAlias ? ENUM_VALUES_BY_NAME : ENUM_VALUES_BY_NUMBER,
+          (x, y) -> {
+            if (!unchanged(visitor, prune, x, y)) {
+              visitor.visit(x, y, a, b);
+            }
+          });
+  }
+
+  private static <Parent, Child> List<Child> children(
+      @Nullable final Parent parent,
+      final Function<Parent, ImmutableList<Child>> childMapper) {
+    return parent == null ? ImmutableList.of() : childMapper.apply(parent);
   }
 
   /**
-   * Given two descriptors, extract children of a specific type and group them by their identity.
+   * Matches the children of two descriptors by their identity and calls {@code action} with each
+   * pair, in identity order. If a child present in {@code a} is missing from {@code b} the second
+   * argument will be {@code null}, and vice versa.
    *
-   * For example, extract all fields for a message and group them by their number. If a child
-   * present in {@code a} is missing from {@code b} {@link Grouping#a()} will be set to {@code
-   * null}, and vice versa.
+   * <p>Children are merge-joined, which allocates nothing unless they aren't already in identity
+   * order (declaration order usually is for numbers).
    *
-   * @param childMapper Function used to extract children of {@code a} and {@code b}.
-   * @param keyMapper   Function used extract identifiers for children used to match which
-   *                    object in {@code a} corresponds to the same child in {@code b} (if any).
-   *                    For example, some types should be grouped by name and other by number
-   *                    (enum values).
+   * @param order Orders children by the identifier used to match which object in {@code a}
+   *              corresponds to the same child in {@code b} (if any). For example, some types
+   *              should be grouped by name and other by number (enum values).
    */
-  private static <Parent, Child, Key> Stream<Grouping<Child>> group(
-      @Nullable final Parent a,
-      @Nullable final Parent b,
-      final Function<Parent, Stream<Child>> childMapper,
-      final Function<Child, Key> keyMapper) {
-    final Map<Key, Child> aMap =
-        a == null ? Collections.emptyMap() : childMapper.apply(a).collect(toMap(keyMapper, d -> d));
-    final Map<Key, Child> bMap =
-        b == null ? Collections.emptyMap() : childMapper.apply(b).collect(toMap(keyMapper, d -> d));
-    return Sets.union(aMap.keySet(), bMap.keySet())
-        .stream()
-        .map(key -> Grouping.create(aMap.get(key), bMap.get(key)));
+  private static <T> void merge(final List<T> a,
+                                final List<T> b,
+                                final Comparator<? super T> order,
+                                final BiConsumer<T, T> action) {
+    final List<T> as = sorted(a, order);
+    final List<T> bs = sorted(b, order);
+    int i = 0;
+    int j = 0;
+    while (i < as.size() && j < bs.size()) {
+      final int c = order.compare(as.get(i), bs.get(j));
+      if (c < 0) {
+        action.accept(as.get(i++), null);
+      } else if (c > 0) {
+        action.accept(null, bs.get(j++));
+      } else {
+        action.accept(as.get(i++), bs.get(j++));
+      }
+    }
+    while (i < as.size()) {
+      action.accept(as.get(i++), null);
+    }
+    while (j < bs.size()) {
+      action.accept(null, bs.get(j++));
+    }
   }
 
-  /**
-   * Group children by name.
-   *
-   * @see #group(Object, Object, Function, Function)
-   */
-  private static <Parent, Child extends GenericDescriptor> Stream<Grouping<Child>> group(
-      @Nullable final Parent a,
-      @Nullable final Parent b,
-      final Function<Parent, Stream<Child>> childMapper) {
-    return group(a, b, childMapper, GenericDescriptor::fullName);
+  private static <T> List<T> sorted(final List<T> list, final Comparator<? super T> order) {
+    for (int i = 1; i < list.size(); i++) {
+      final int c = order.compare(list.get(i - 1), list.get(i));
+      if (c == 0) {
+        throw new IllegalStateException("Duplicate key: " + list.get(i));
+      } else if (c > 0) {
+        final List<T> copy = new ArrayList<>(list);
+        copy.sort(order);
+        return sorted(copy, order);
+      }
+    }
+    return list;
   }
 
 
@@ -189,8 +464,10 @@ public abstract class DescriptorSet {
    */
   private static Stream<FileDescriptor> buildFileDescriptors(
       final DescriptorProtos.FileDescriptorSet fileDescriptorSet,
-      final DescriptorPool pool,
-      final Predicate<DescriptorProtos.FileDescriptorProto> includePredicate) {
+      @Nullable final FileDescriptorCache cache,
+      @Nullable final ForkJoinPool pool,
+      final Predicate<DescriptorProtos.FileDescriptorProto> includePredicate)
+      throws InterruptedException {
     // Sanity check input - make sure all protos we depend on are included in the FDS
     final ImmutableSet<String> availableFiles = fileDescriptorSet.getFileList().stream()
         .map(DescriptorProtos.FileDescriptorProto::getName)
@@ -220,35 +497,74 @@ public abstract class DescriptorSet {
         }
     );
 
-    // Build FileDescriptor objects, starting with files with no dependents. Only FileDescriptors
-    // for objects that were matched by the given predicate or aree dependencies thereof will are
-    // built.
-    bfs(
-        // Start out at nodes that have no dependencies
-        processSet.stream().filter(node -> node.dependencies.isEmpty()),
-        node -> {
-          final Stream<FileDescriptor> dependencies = node.dependencies.stream()
-              .map(n -> checkNotNull(n.fileDescriptor));
-
-          node.fileDescriptor = FileDescriptor.create(node.fileDescriptorProto, pool, dependencies);
-
-          // Next visit all files that
-          // - depend on this file
-          // - has no unresolved dependencies
-          // - should be processed
-          return node.dependents.stream()
-              .filter(depedent ->
-                  processSet.contains(depedent)
-                  && depedent.dependencies.stream().noneMatch(n -> n.fileDescriptor == null)
-              );
-        }
-    );
+    // Build FileDescriptor objects, dependencies first. Only FileDescriptors for files that were
+    // matched by the given predicate or are dependencies thereof are built. No file in a level
+    // imports another file in the same level, so each level can be built in parallel.
+    for (final List<FileNode> level : levels(processSet)) {
+      if (pool == null || level.size() == 1) {
+        level.forEach(node -> build(node, cache));
+      } else {
+        final List<Runnable> forks = new ArrayList<>(level.size());
+        level.forEach(node -> forks.add(() -> build(node, cache)));
+        invokeAll(pool, forks);
+      }
+    }
 
     return dependencyGraph.stream()
         .filter(node -> includePredicate.test(node.fileDescriptorProto))
         .map(node -> checkNotNull(node.fileDescriptor));
   }
 
+  private static void build(final FileNode node, @Nullable final FileDescriptorCache cache) {
+    final ImmutableList<FileDescriptor> dependencies = node.dependencies.stream()
+        .map(n -> checkNotNull(n.fileDescriptor))
+        .collect(ImmutableList.toImmutableList());
+
+    node.fileDescriptor = cache != null
+        ? cache.get(node.fileDescriptorProto, dependencies)
+        : FileDescriptor.create(node.fileDescriptorProto, dependencies.stream());
+  }
+
+  /**
+   * Groups {@code nodes} by depth in the import graph: files without imports first, then files
+   * that only import files in the first level, and so on. {@code nodes} must contain all
+   * dependencies of every node in it.
+   */
+  private static List<List<FileNode>> levels(final Set<FileNode> nodes) {
+    final Map<FileNode, Integer> unbuiltDependencies = new HashMap<>();
+    List<FileNode> level = new ArrayList<>();
+    for (final FileNode node : nodes) {
+      if (node.dependencies.isEmpty()) {
+        level.add(node);
+      } else {
+        unbuiltDependencies.put(node, node.dependencies.size());
+      }
+    }
+
+    final List<List<FileNode>> levels = new ArrayList<>();
+    while (!level.isEmpty()) {
+      levels.add(level);
+      final List<FileNode> next = new ArrayList<>();
+      for (final FileNode node : level) {
+        for (final FileNode dependent : node.dependents) {
+          final Integer remaining = unbuiltDependencies.get(dependent);
+          if (remaining == null) {
+            // Not to be built
+            continue;
+          }
+          if (remaining == 1) {
+            unbuiltDependencies.remove(dependent);
+            next.add(dependent);
+          } else {
+            unbuiltDependencies.put(dependent, remaining - 1);
+          }
+        }
+      }
+      level = next;
+    }
+    return levels;
+  }
+
   private static ImmutableCollection<FileNode> buildDependencyGraph(
       final DescriptorProtos.FileDescriptorSet fileDescriptorSet) {
     final ImmutableMap<String, FileNode> nodes = fileDescriptorSet.getFileList().stream()
@@ -302,16 +618,6 @@ public abstract class DescriptorSet {
     }
   }
 
-  @AutoValue
-  static abstract class Grouping<T> {
-    @Nullable abstract T a();
-    @Nullable abstract T b();
-
-    private static <T> Grouping<T> create(@Nullable final T a, @Nullable final T b) {
-      return new AutoValue_DescriptorSet_Grouping<>(a, b);
-    }
-  }
-
   public interface ComparingVisitor {
 
     void visit(@Nullable FieldDescriptor a, @Nullable FieldDescriptor b,
@@ -331,5 +637,12 @@ public abstract class DescriptorSet {
     void visit(@Nullable OneofDescriptor a, @Nullable OneofDescriptor b);
 
     void visit(@Nullable FileDescriptor a, @Nullable FileDescriptor b);
+
+    /**
+     * Called by {@link #compareChanges(ComparingVisitor, DescriptorSet, DescriptorSet)} instead
+     * of visiting a structurally unchanged descriptor and its children.
+     */
+    default void visitUnchanged(GenericDescriptor a, GenericDescriptor b) {
+    }
   }
 }
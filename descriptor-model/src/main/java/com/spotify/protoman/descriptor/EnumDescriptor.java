@@ -21,8 +21,9 @@
 package com.spotify.protoman.descriptor;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.DescriptorProtos;
-import java.util.Objects;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import javax.annotation.Nullable;
@@ -30,57 +31,83 @@ import javax.annotation.Nullable;
 public class EnumDescriptor extends DescriptorBase<DescriptorProtos.EnumDescriptorProto> {
 
   @Nullable private final MessageDescriptor containingType;
-  private final ImmutableList<EnumValueDescriptor> values;
+
+  // Created on first access
+  private volatile ImmutableList<EnumValueDescriptor> values;
+
+  // Lookup indexes, built on first use
+  private volatile ImmutableMap<String, EnumValueDescriptor> valuesByName;
+  private volatile IntIndex<EnumValueDescriptor> valuesByNumber;
+  private volatile IntRanges reservedNumbers;
+  private volatile ImmutableSet<String> reservedNames;
 
   private EnumDescriptor(final DescriptorProtos.EnumDescriptorProto proto,
                          final FileDescriptor file,
                          final int index,
                          final PathNode path,
-                         final DescriptorPool pool,
                          @Nullable final MessageDescriptor containingType) {
-    super(proto, file, index, path, Util.computeFullName(file, containingType, proto.getName()));
+    super(proto, file, index, path);
 
     this.containingType = containingType;
-
-    pool.put(this);
-
-    this.values = IntStream.range(0, proto.getValueCount()).mapToObj(idx -> {
-      final DescriptorProtos.EnumValueDescriptorProto d = proto.getValue(idx);
-      return EnumValueDescriptor.create(d, file, idx, path.enumValue(idx), this);
-    }).collect(ImmutableList.toImmutableList());
   }
 
   static EnumDescriptor create(final DescriptorProtos.EnumDescriptorProto proto,
                                final FileDescriptor file,
                                final int index,
                                final PathNode path,
-                               final DescriptorPool pool,
                                @Nullable final MessageDescriptor containingType) {
-    return new EnumDescriptor(proto, file, index, path, pool, containingType);
+    return new EnumDescriptor(proto, file, index, path, containingType);
   }
 
   public ImmutableList<EnumValueDescriptor> values() {
-    return values;
+    ImmutableList<EnumValueDescriptor> result = values;
+    if (result == null) {
+      synchronized (this) {
+        result = values;
+        if (result == null) {
+          final DescriptorProtos.EnumDescriptorProto proto = toProto();
+          values = result = IntStream.range(0, proto.getValueCount()).mapToObj(idx -> {
+            final DescriptorProtos.EnumValueDescriptorProto d = proto.getValue(idx);
+            return EnumValueDescriptor.create(d, file(), idx, path().enumValue(idx), this);
+          }).collect(ImmutableList.toImmutableList());
+        }
+      }
+    }
+    return result;
   }
 
   @Nullable public MessageDescriptor containingType() {
     return containingType;
   }
 
+  @Override
+  protected String computeFullName() {
+    return Util.computeFullName(file(), containingType, name());
+  }
+
   @Override
   public String name() {
     return toProto().getName();
   }
 
   public EnumValueDescriptor findValueByName(final String name) {
-    return values().stream()
-        .filter(d -> Objects.equals(d.name(), name))
-        .findFirst()
-        .orElse(null);
+    ImmutableMap<String, EnumValueDescriptor> index = valuesByName;
+    if (index == null) {
+      valuesByName = index = Util.indexByName(values());
+    }
+    return index.get(name);
   }
 
+  /**
+   * Returns the values with the given number, in declaration order. There can be more than one
+   * if {@code allow_alias} is set.
+   */
   public Stream<EnumValueDescriptor> findValuesByNumber(final int number) {
-    return values().stream().filter(d -> d.number() == number);
+    IntIndex<EnumValueDescriptor> index = valuesByNumber;
+    if (index == null) {
+      valuesByNumber = index = IntIndex.create(values(), EnumValueDescriptor::number);
+    }
+    return index.getAll(number).stream();
   }
 
   public DescriptorProtos.EnumOptions options() {
@@ -88,18 +115,24 @@ public class EnumDescriptor extends DescriptorBase<DescriptorProtos.EnumDescript
   }
 
   public boolean isReservedNumber(final int number) {
-    for (final DescriptorProtos.EnumDescriptorProto.EnumReservedRange reservedRange :
-        toProto().getReservedRangeList()) {
+    IntRanges ranges = reservedNumbers;
+    if (ranges == null) {
       // NOTE(staffan): EnumReservedRange's end is inclusive. End for ReservedRange (for messages)
       // is exclusive. :(
-      if (number >= reservedRange.getStart() && number <= reservedRange.getEnd()) {
-        return true;
-      }
+      reservedNumbers = ranges = IntRanges.create(
+          toProto().getReservedRangeList(),
+          DescriptorProtos.EnumDescriptorProto.EnumReservedRange::getStart,
+          DescriptorProtos.EnumDescriptorProto.EnumReservedRange::getEnd
+      );
     }
-    return false;
+    return ranges.contains(number);
   }
 
   public boolean isReservedName(final String name) {
-    return toProto().getReservedNameList().contains(name);
+    ImmutableSet<String> names = reservedNames;
+    if (names == null) {
+      reservedNames = names = ImmutableSet.copyOf(toProto().getReservedNameList());
+    }
+    return names.contains(name);
   }
 }
@@ -31,7 +31,7 @@ public class EnumValueDescriptor extends DescriptorBase<DescriptorProtos.EnumVal
                               final int index,
                               final PathNode path,
                               final EnumDescriptor containingEnum) {
-    super(proto, file, index, path, containingEnum.fullName() + "." + proto.getName());
+    super(proto, file, index, path);
     this.containingEnum = containingEnum;
   }
 
@@ -43,6 +43,11 @@ public class EnumValueDescriptor extends DescriptorBase<DescriptorProtos.EnumVal
     return new EnumValueDescriptor(proto, file, index, path, containingEnum);
   }
 
+  @Override
+  protected String computeFullName() {
+    return containingEnum.fullName() + "." + name();
+  }
+
   @Override
   public String name() {
     return toProto().getName();
@@ -24,12 +24,12 @@ import com.google.protobuf.DescriptorProtos;
 
 public class FieldDescriptor extends DescriptorBase<DescriptorProtos.FieldDescriptorProto> {
 
-  private DescriptorPool pool;
+  private final DescriptorPool pool;
   private final MessageDescriptor containingType;
   private final FieldType type;
-  // Set during cross-linking
-  private MessageDescriptor messageType = null;
-  private EnumDescriptor enumType = null;
+  // Resolved on first access
+  private volatile MessageDescriptor messageType;
+  private volatile EnumDescriptor enumType;
   private final String jsonName;
 
   private FieldDescriptor(final DescriptorProtos.FieldDescriptorProto proto,
@@ -38,7 +38,7 @@ public class FieldDescriptor extends DescriptorBase<DescriptorProtos.FieldDescri
                           final PathNode path,
                           final DescriptorPool pool,
                           final MessageDescriptor containingType) {
-    super(proto, file, index, path, containingType.fullName() + "." + proto.getName());
+    super(proto, file, index, path);
     this.pool = pool;
     this.containingType = containingType;
     this.type = FieldType.fromProtoType(proto.getType());
@@ -55,13 +55,18 @@ public class FieldDescriptor extends DescriptorBase<DescriptorProtos.FieldDescri
     return new FieldDescriptor(proto, file, index, path, pool, containingType);
   }
 
+  @Override
+  protected String computeFullName() {
+    return containingType.fullName() + "." + name();
+  }
+
   @Override
   public String name() {
     return toProto().getName();
   }
 
   public MessageDescriptor containingType() {
-    return messageType;
+    return messageType();
   }
 
   public FieldType type() {
@@ -73,11 +78,25 @@ public class FieldDescriptor extends DescriptorBase<DescriptorProtos.FieldDescri
   }
 
   public MessageDescriptor messageType() {
-    return messageType;
+    if (type != FieldType.MESSAGE) {
+      return null;
+    }
+    MessageDescriptor result = messageType;
+    if (result == null) {
+      messageType = result = pool.findMessageType(typeName());
+    }
+    return result;
   }
 
   public EnumDescriptor enumType() {
-    return enumType;
+    if (type != FieldType.ENUM) {
+      return null;
+    }
+    EnumDescriptor result = enumType;
+    if (result == null) {
+      enumType = result = pool.findEnumType(typeName());
+    }
+    return result;
   }
 
   public int number() {
@@ -120,12 +139,4 @@ public class FieldDescriptor extends DescriptorBase<DescriptorProtos.FieldDescri
   public DescriptorProtos.FieldOptions options() {
     return toProto().getOptions();
   }
-
-  void crossLink() {
-    if (type() == FieldType.MESSAGE) {
-      this.messageType = pool.findMessageType(typeName());
-    } else if (type() == FieldType.ENUM) {
-      this.enumType = pool.findEnumType(typeName());
-    }
-  }
 }
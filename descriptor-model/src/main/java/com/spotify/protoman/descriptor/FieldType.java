@@ -20,8 +20,6 @@
 
 package com.spotify.protoman.descriptor;
 
-import com.google.auto.value.AutoValue;
-import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.DescriptorProtos;
 
 public enum FieldType {
@@ -52,13 +50,12 @@ public enum FieldType {
 
   public static FieldType fromProtoType(
       final DescriptorProtos.FieldDescriptorProto.Type protoType) {
-    for (final FieldType fieldType : FieldType.values()) {
-      if (fieldType.protoType == protoType) {
-        return fieldType;
-      }
+    final int number = protoType.getNumber();
+    final FieldType fieldType = number < BY_PROTO_TYPE.length ? BY_PROTO_TYPE[number] : null;
+    if (fieldType == null) {
+      throw new RuntimeException("Unknown field type " + protoType);
     }
-
-    throw new RuntimeException("Unknown field type " + protoType);
+    return fieldType;
   }
 
   public DescriptorProtos.FieldDescriptorProto.Type protoType() {
@@ -66,58 +63,54 @@ public enum FieldType {
   }
 
   public static boolean isWireCompatible(final FieldType a, final FieldType b) {
-    return WIRE_COMPATIBLE_TYPES.contains(FieldTypePair.create(a, b));
+    return (WIRE_COMPATIBLE_TYPES[a.ordinal()] & (1L << b.ordinal())) != 0;
   }
 
-  @AutoValue
-  static abstract class FieldTypePair {
-    abstract FieldType a();
+  // Field types indexed by the number of their proto type
+  private static final FieldType[] BY_PROTO_TYPE;
 
-    abstract FieldType b();
+  // Bit matrix of type pairs that are wire-compatible, indexed by ordinal. E.g. the uint32 bit
+  // being set in the int32 row means a field can be changed from int32 to uint32 and vice versa
+  // (the int32 bit will also be set in the uint32 row).
+  private static final long[] WIRE_COMPATIBLE_TYPES = new long[values().length];
 
-    static FieldTypePair create(final FieldType a, final FieldType b) {
-      return new AutoValue_FieldType_FieldTypePair(a, b);
+  static {
+    int maxNumber = 0;
+    for (final FieldType fieldType : values()) {
+      maxNumber = Math.max(maxNumber, fieldType.protoType.getNumber());
+    }
+    BY_PROTO_TYPE = new FieldType[maxNumber + 1];
+    for (final FieldType fieldType : values()) {
+      BY_PROTO_TYPE[fieldType.protoType.getNumber()] = fieldType;
     }
-  }
-
-  // Set of type pairs that are wire-compatible. E.g. (int32, uint32) being in the set means
-  // a field can be changed from int32 to uint32 and vice versa (it will also contain (uint32,
-  // int32)).
-  private static final ImmutableSet<FieldTypePair> WIRE_COMPATIBLE_TYPES;
 
-  static {
     // See https://developers.google.com/protocol-buffers/docs/proto#updating
     // for information on type wire compatibility.
-    final ImmutableSet.Builder<FieldTypePair> builder = ImmutableSet.builder();
     // "int32, uint32, int64, uint64, and bool are all compatible"
-    addWireCompatibleTypes(builder, INT32, UINT32, INT64, UINT64, BOOL);
+    addWireCompatibleTypes(INT32, UINT32, INT64, UINT64, BOOL);
     // "sint32 and sint64 are compatible with each other but are not compatible with the other
     // integer types."
-    addWireCompatibleTypes(builder, SINT32, SINT64);
+    addWireCompatibleTypes(SINT32, SINT64);
     // "fixed32 is compatible with sfixed32," ...
-    addWireCompatibleTypes(builder, FIXED32, SFIXED32);
+    addWireCompatibleTypes(FIXED32, SFIXED32);
     // ... "and fixed64 with sfixed64"
-    addWireCompatibleTypes(builder, FIXED64, SFIXED64);
+    addWireCompatibleTypes(FIXED64, SFIXED64);
     // "enum is compatible with int32, uint32, int64, and uint64 in terms of wire format (note that
     // values will be truncated if they don't fit), but be aware that client code may treat them
     // differently when the message is deserialized."
-    addWireCompatibleTypes(builder, INT32, UINT32, INT64, UINT64, ENUM);
+    addWireCompatibleTypes(INT32, UINT32, INT64, UINT64, ENUM);
     // "string and bytes are compatible as long as the bytes are valid UTF-8."
-    addWireCompatibleTypes(builder, STRING, BYTES);
+    addWireCompatibleTypes(STRING, BYTES);
     // "Embedded messages are compatible with bytes if the bytes contain an encoded version of
     // the message."
-    addWireCompatibleTypes(builder, MESSAGE, BYTES);
-    WIRE_COMPATIBLE_TYPES = builder.build();
+    addWireCompatibleTypes(MESSAGE, BYTES);
   }
 
-  private static void addWireCompatibleTypes(final ImmutableSet.Builder<FieldTypePair> builder,
-                                             final FieldType... types) {
+  private static void addWireCompatibleTypes(final FieldType... types) {
     for (final FieldType t1 : types) {
       for (final FieldType t2 : types) {
-        builder.add(FieldTypePair.create(t1, t2));
-        if (!t1.equals(t2)) {
-          builder.add(FieldTypePair.create(t2, t1));
-        }
+        WIRE_COMPATIBLE_TYPES[t1.ordinal()] |= 1L << t2.ordinal();
+        WIRE_COMPATIBLE_TYPES[t2.ordinal()] |= 1L << t1.ordinal();
       }
     }
   }
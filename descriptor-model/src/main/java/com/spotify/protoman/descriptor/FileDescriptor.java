@@ -21,12 +21,14 @@
 package com.spotify.protoman.descriptor;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.protobuf.DescriptorProtos;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -35,48 +37,51 @@ import javax.annotation.Nullable;
 public class FileDescriptor implements GenericDescriptor {
 
   private final DescriptorProtos.FileDescriptorProto proto;
-  @Nullable  private final SourceCodeInfo sourceCodeInfo;
+  private final Path filePath;
 
-  private final ImmutableList<MessageDescriptor> messageTypes;
-  private final ImmutableList<EnumDescriptor> enumTypes;
-  private final ImmutableList<ServiceDescriptor> services;
+  private final PathNode path;
+  private final DescriptorPool pool;
   private final ImmutableList<FileDescriptor> dependencies;
   private final ImmutableList<FileDescriptor> publicDependencies;
 
+  // Fingerprints, computed on first use
+  private volatile HashCode fingerprint;
+  private volatile HashCode structuralFingerprint;
+  // Fingerprint of this file and its dependencies
+  private volatile HashCode closureFingerprint;
+
+  // Top-level descriptors, created on first access
+  private volatile Children children;
+
+  // Lookup indexes, built on first use
+  private volatile ImmutableMap<String, MessageDescriptor> messageTypesByName;
+  private volatile ImmutableMap<String, EnumDescriptor> enumTypesByName;
+  private volatile ImmutableMap<String, ServiceDescriptor> servicesByName;
+
   private FileDescriptor(final DescriptorProtos.FileDescriptorProto proto,
                          final PathNode path,
-                         final DescriptorPool pool,
-                         final Stream<FileDescriptor> dependencies) {
+                         final Stream<FileDescriptor> dependencies,
+                         @Nullable final HashCode closureFingerprint) {
     this.proto = proto;
-    this.sourceCodeInfo = path.sourceCodeInfo(this).orElse(null);
+    this.closureFingerprint = closureFingerprint;
+    this.filePath = NameTable.path(proto.getName());
     this.dependencies = dependencies.collect(ImmutableList.toImmutableList());
     final List<FileDescriptor> publicDeps = new ArrayList<>();
     proto.getPublicDependencyList().forEach(i -> publicDeps.add(this.dependencies.get(i)));
     this.publicDependencies = ImmutableList.copyOf(publicDeps);
 
-    this.messageTypes = IntStream.range(0, proto.getMessageTypeCount()).mapToObj(idx -> {
-      final DescriptorProtos.DescriptorProto messageType = proto.getMessageType(idx);
-      return MessageDescriptor.create(messageType, this, idx, path.messageType(idx), pool, null);
-    }).collect(ImmutableList.toImmutableList());
-
-    this.enumTypes = IntStream.range(0, proto.getEnumTypeCount()).mapToObj(idx -> {
-      final DescriptorProtos.EnumDescriptorProto enumType = proto.getEnumType(idx);
-      return EnumDescriptor.create(enumType, this, idx, path.enumType(idx), pool, null);
-    }).collect(ImmutableList.toImmutableList());
-
-    // NOTE: services must be created after messages and enums!
-    this.services = IntStream.range(0, proto.getServiceCount()).mapToObj(idx -> {
-      final DescriptorProtos.ServiceDescriptorProto service = proto.getService(idx);
-      return ServiceDescriptor.create(service, this, idx, path.service(idx), pool);
-    }).collect(ImmutableList.toImmutableList());
-
-    // Cross-link to resolve types for enum and message fields
-    messageTypes.forEach(this::crossLink);
+    this.path = path;
+    this.pool = DescriptorPool.forFile(this);
   }
 
   static FileDescriptor create(final DescriptorProtos.FileDescriptorProto proto,
-                               final DescriptorPool pool,
                                final Stream<FileDescriptor> dependencies) {
+    return create(proto, dependencies, null);
+  }
+
+  static FileDescriptor create(final DescriptorProtos.FileDescriptorProto proto,
+                               final Stream<FileDescriptor> dependencies,
+                               @Nullable final HashCode closureFingerprint) {
     final PathNode root;
     if (proto.hasSourceCodeInfo()) {
       root = PathNode.buildPathTree(proto.getSourceCodeInfo());
@@ -84,19 +89,32 @@ public class FileDescriptor implements GenericDescriptor {
       root = PathNode.emptyTree();
     }
 
-    return new FileDescriptor(proto, root, pool, dependencies);
+    return new FileDescriptor(proto, root, dependencies, closureFingerprint);
   }
 
   public ImmutableList<MessageDescriptor> messageTypes() {
-    return messageTypes;
+    return children().messageTypes;
   }
 
   public ImmutableList<EnumDescriptor> enumTypes() {
-    return enumTypes;
+    return children().enumTypes;
   }
 
   public ImmutableList<ServiceDescriptor> services() {
-    return services;
+    return children().services;
+  }
+
+  private Children children() {
+    Children result = children;
+    if (result == null) {
+      synchronized (this) {
+        result = children;
+        if (result == null) {
+          children = result = new Children(this);
+        }
+      }
+    }
+    return result;
   }
 
   public ImmutableList<FileDescriptor> dependencies() {
@@ -123,7 +141,7 @@ public class FileDescriptor implements GenericDescriptor {
   }
 
   public Path filePath() {
-    return Paths.get(fullName());
+    return filePath;
   }
 
   @Override
@@ -133,7 +151,57 @@ public class FileDescriptor implements GenericDescriptor {
 
   @Override
   public Optional<SourceCodeInfo> sourceCodeInfo() {
-    return Optional.ofNullable(sourceCodeInfo);
+    return path.sourceCodeInfo(this);
+  }
+
+  /**
+   * Combines the structural fingerprint with one of the source code info, so that the file is
+   * only serialized once for both.
+   */
+  @Override
+  public HashCode fingerprint() {
+    HashCode result = fingerprint;
+    if (result == null) {
+      fingerprint = result = proto.hasSourceCodeInfo()
+          ? Hashing.combineOrdered(ImmutableList.of(
+              structuralFingerprint(), Util.fingerprint(proto.getSourceCodeInfo())))
+          : structuralFingerprint();
+    }
+    return result;
+  }
+
+  @Override
+  public HashCode structuralFingerprint() {
+    HashCode result = structuralFingerprint;
+    if (result == null) {
+      // Clearing only copies references to the other fields, it doesn't serialize them
+      structuralFingerprint = result = proto.hasSourceCodeInfo()
+          ? Util.fingerprint(proto.toBuilder().clearSourceCodeInfo().build())
+          : Util.fingerprint(proto);
+    }
+    return result;
+  }
+
+  /**
+   * Fingerprint of this file and, transitively, the files it imports. Two files with the same
+   * closure fingerprint describe the same types in the same context.
+   */
+  HashCode closureFingerprint() {
+    HashCode result = closureFingerprint;
+    if (result == null) {
+      closureFingerprint = result = closureFingerprint(proto, dependencies);
+    }
+    return result;
+  }
+
+  static HashCode closureFingerprint(final DescriptorProtos.FileDescriptorProto proto,
+                                     final List<FileDescriptor> dependencies) {
+    // A cryptographic hash, since files are shared between schemas based on it
+    final Hasher hasher = Hashing.sha256().newHasher()
+        .putBytes(proto.toByteArray());
+    dependencies.forEach(dependency -> hasher.putBytes(
+        dependency.closureFingerprint().asBytes()));
+    return hasher.hash();
   }
 
   public String protoPackage() {
@@ -141,24 +209,27 @@ public class FileDescriptor implements GenericDescriptor {
   }
 
   public MessageDescriptor findMessageByName(final String name) {
-    return messageTypes().stream()
-        .filter(messageDescriptor -> Objects.equals(messageDescriptor.name(), name))
-        .findFirst()
-        .orElse(null);
+    ImmutableMap<String, MessageDescriptor> index = messageTypesByName;
+    if (index == null) {
+      messageTypesByName = index = Util.indexByName(messageTypes());
+    }
+    return index.get(name);
   }
 
   public EnumDescriptor findEnumByName(final String name) {
-    return enumTypes().stream()
-        .filter(enumDescriptor -> Objects.equals(enumDescriptor.name(), name))
-        .findFirst()
-        .orElse(null);
+    ImmutableMap<String, EnumDescriptor> index = enumTypesByName;
+    if (index == null) {
+      enumTypesByName = index = Util.indexByName(enumTypes());
+    }
+    return index.get(name);
   }
 
   public ServiceDescriptor findServiceByName(final String name) {
-    return services().stream()
-        .filter(serviceDescriptor -> Objects.equals(serviceDescriptor.name(), name))
-        .findFirst()
-        .orElse(null);
+    ImmutableMap<String, ServiceDescriptor> index = servicesByName;
+    if (index == null) {
+      servicesByName = index = Util.indexByName(services());
+    }
+    return index.get(name);
   }
 
   //public abstract ImmutableList<EnumDescriptor> enumTypes();
@@ -177,8 +248,31 @@ public class FileDescriptor implements GenericDescriptor {
     return options().hasJavaPackage() ? options().getJavaPackage() : protoPackage();
   }
 
-  private void crossLink(final MessageDescriptor messageDescriptor) {
-    messageDescriptor.fields().forEach(FieldDescriptor::crossLink);
-    messageDescriptor.nestedTypes().forEach(this::crossLink);
+  private static final class Children {
+
+    final ImmutableList<MessageDescriptor> messageTypes;
+    final ImmutableList<EnumDescriptor> enumTypes;
+    final ImmutableList<ServiceDescriptor> services;
+
+    Children(final FileDescriptor file) {
+      final DescriptorProtos.FileDescriptorProto proto = file.proto;
+      final PathNode path = file.path;
+      final DescriptorPool pool = file.pool;
+
+      this.messageTypes = IntStream.range(0, proto.getMessageTypeCount()).mapToObj(idx -> {
+        final DescriptorProtos.DescriptorProto messageType = proto.getMessageType(idx);
+        return MessageDescriptor.create(messageType, file, idx, path.messageType(idx), pool, null);
+      }).collect(ImmutableList.toImmutableList());
+
+      this.enumTypes = IntStream.range(0, proto.getEnumTypeCount()).mapToObj(idx -> {
+        final DescriptorProtos.EnumDescriptorProto enumType = proto.getEnumType(idx);
+        return EnumDescriptor.create(enumType, file, idx, path.enumType(idx), null);
+      }).collect(ImmutableList.toImmutableList());
+
+      this.services = IntStream.range(0, proto.getServiceCount()).mapToObj(idx -> {
+        final DescriptorProtos.ServiceDescriptorProto service = proto.getService(idx);
+        return ServiceDescriptor.create(service, file, idx, path.service(idx), pool);
+      }).collect(ImmutableList.toImmutableList());
+    }
   }
 }
@@ -0,0 +1,72 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.protobuf.DescriptorProtos;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * {@link FileDescriptor}s shared between descriptor sets.
+ *
+ * A file is keyed by a fingerprint of its {@link DescriptorProtos.FileDescriptorProto} and,
+ * transitively, of everything it imports, so the same file compiled against the same imports is
+ * built once and reused, e.g. by the current and candidate descriptor sets of a publish, and by
+ * later publishes. Lazily built parts of a shared file (nested descriptors, resolved types) are
+ * shared with it.
+ */
+public class FileDescriptorCache {
+
+  private final Cache<HashCode, FileDescriptor> files;
+
+  private FileDescriptorCache(final long maximumSize) {
+    this.files = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .recordStats()
+        .build();
+  }
+
+  public static FileDescriptorCache create(final long maximumSize) {
+    checkArgument(maximumSize > 0, "maximumSize must be positive");
+    return new FileDescriptorCache(maximumSize);
+  }
+
+  public CacheStats stats() {
+    return files.stats();
+  }
+
+  FileDescriptor get(final DescriptorProtos.FileDescriptorProto proto,
+                     final ImmutableList<FileDescriptor> dependencies) {
+    final HashCode key = FileDescriptor.closureFingerprint(proto, dependencies);
+    try {
+      return files.get(key, () -> FileDescriptor.create(proto, dependencies.stream(), key));
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
@@ -20,6 +20,7 @@
 
 package com.spotify.protoman.descriptor;
 
+import com.google.common.hash.HashCode;
 import com.google.protobuf.Message;
 import java.util.Optional;
 
@@ -34,4 +35,17 @@ public interface GenericDescriptor {
   FileDescriptor file();
 
   Optional<SourceCodeInfo> sourceCodeInfo();
+
+  /**
+   * A 128-bit fingerprint of this descriptor and everything nested in it, including source code
+   * info (locations and comments). Descriptors with equal fingerprints are, barring collisions,
+   * identical.
+   */
+  HashCode fingerprint();
+
+  /**
+   * Like {@link #fingerprint()}, but ignoring source code info. Descriptors with equal structural
+   * fingerprints differ at most in formatting and comments.
+   */
+  HashCode structuralFingerprint();
 }
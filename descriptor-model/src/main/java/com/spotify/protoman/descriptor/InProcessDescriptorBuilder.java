@@ -0,0 +1,204 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.descriptor;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * A {@link DescriptorBuilder} that compiles .proto files in-process instead of running protoc.
+ *
+ * The produced descriptor sets, including source code info, and the compilation errors are the
+ * same as those of {@link ProtocDescriptorBuilder} (with protoc 3.5). Like when running protoc
+ * in a staging directory, imports are only resolved against files set on the builder; the
+ * well-known types are not implicitly available.
+ *
+ * Compilation stops with a {@link DescriptorBuilderException} if the calling thread is
+ * interrupted.
+ */
+public class InProcessDescriptorBuilder implements DescriptorBuilder {
+
+  private final Map<String, byte[]> files = new HashMap<>();
+
+  private InProcessDescriptorBuilder() {
+  }
+
+  public static InProcessDescriptorBuilder create() {
+    return new InProcessDescriptorBuilder();
+  }
+
+  public static Factory factory() {
+    return InProcessDescriptorBuilder::create;
+  }
+
+  @Override
+  public DescriptorBuilder setProtoFile(final Path path, final String content) {
+    files.put(path.toString(), content.getBytes(StandardCharsets.UTF_8));
+    return this;
+  }
+
+  @Override
+  public Result buildDescriptor(final Stream<Path> paths) throws DescriptorBuilderException {
+    final ImmutableList<String> names = paths.map(Path::toString).collect(toImmutableList());
+    if (names.isEmpty()) {
+      return Result.create(DescriptorProtos.FileDescriptorSet.getDefaultInstance());
+    }
+    return new Compilation().compile(names);
+  }
+
+  @Override
+  public void close() {
+    files.clear();
+  }
+
+  /**
+   * Loads files on demand, the same way protoc does: a file is parsed, then its imports are
+   * loaded (depth first), and then it's linked.
+   */
+  private class Compilation {
+
+    private final StringBuilder errors = new StringBuilder();
+    private final ProtoLinker linker = new ProtoLinker(this::addError);
+    private final Map<String, FileDescriptorProto> parsed = new HashMap<>();
+    private final Map<String, FileDescriptorProto> linked = new HashMap<>();
+    private final Set<String> badFiles = new HashSet<>();
+    private final List<String> pending = new ArrayList<>();
+
+    Result compile(final List<String> names) throws DescriptorBuilderException {
+      for (final String name : names) {
+        if (!files.containsKey(name)) {
+          errors.append(name).append(": No such file or directory\n");
+          return Result.error(errors.toString());
+        }
+      }
+
+      for (final String name : names) {
+        if (findFile(name) == null) {
+          return Result.error(errors.toString());
+        }
+      }
+
+      // Dependencies first, in import order
+      final Set<String> ordered = new LinkedHashSet<>();
+      for (final String name : names) {
+        addTransitiveDependencies(name, ordered);
+      }
+      final DescriptorProtos.FileDescriptorSet.Builder fileDescriptorSet =
+          DescriptorProtos.FileDescriptorSet.newBuilder();
+      ordered.stream().map(linked::get).forEach(fileDescriptorSet::addFile);
+      return Result.create(fileDescriptorSet.build());
+    }
+
+    private void addTransitiveDependencies(final String name, final Set<String> ordered) {
+      if (ordered.contains(name)) {
+        return;
+      }
+      for (final String dependency : linked.get(name).getDependencyList()) {
+        addTransitiveDependencies(dependency, ordered);
+      }
+      ordered.add(name);
+    }
+
+    private FileDescriptorProto findFile(final String name) throws DescriptorBuilderException {
+      final FileDescriptorProto file = linked.get(name);
+      if (file != null || badFiles.contains(name)) {
+        return file;
+      }
+
+      final FileDescriptorProto result = buildFile(name);
+      if (result == null) {
+        badFiles.add(name);
+      } else {
+        linked.put(name, result);
+      }
+      return result;
+    }
+
+    private FileDescriptorProto buildFile(final String name) throws DescriptorBuilderException {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new DescriptorBuilderException(new InterruptedException());
+      }
+
+      final FileDescriptorProto file = parse(name);
+      if (file == null) {
+        return null;
+      }
+
+      final int index = pending.indexOf(name);
+      if (index >= 0) {
+        linker.addRecursiveImportError(name, pending.subList(index, pending.size()));
+        return null;
+      }
+
+      pending.add(name);
+      for (final String dependency : file.getDependencyList()) {
+        findFile(dependency);
+      }
+      pending.remove(pending.size() - 1);
+
+      return linker.link(file);
+    }
+
+    private FileDescriptorProto parse(final String name) {
+      if (parsed.containsKey(name)) {
+        return parsed.get(name);
+      }
+
+      final byte[] content = files.get(name);
+      FileDescriptorProto file = null;
+      if (content == null) {
+        addError(name, -1, -1, "File not found.");
+      } else {
+        final int errorsBefore = errors.length();
+        file = ProtoParser.parse(
+            name, content, (line, column, message) -> addError(name, line, column, message));
+        if (errors.length() != errorsBefore) {
+          file = null;
+        }
+      }
+      parsed.put(name, file);
+      return file;
+    }
+
+    private void addError(final String filename, final int line, final int column,
+                          final String message) {
+      // Same format as protoc's --error_format=gcc
+      errors.append(filename);
+      if (line >= 0) {
+        errors.append(':').append(line + 1).append(':').append(column + 1);
+      }
+      errors.append(": ").append(message).append('\n');
+    }
+  }
+}
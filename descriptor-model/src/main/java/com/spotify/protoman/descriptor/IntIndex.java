@@ -0,0 +1,99 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+import javax.annotation.Nullable;
+
+/**
+ * Immutable open-addressing hash index from int keys (e.g. field numbers) to values, without
+ * boxing. Several values may have the same key; they are kept in insertion order.
+ */
+final class IntIndex<T> {
+
+  private final int[] keys;
+  private final Object[] values;
+  private final int mask;
+
+  private IntIndex(final int capacity) {
+    this.keys = new int[capacity];
+    this.values = new Object[capacity];
+    this.mask = capacity - 1;
+  }
+
+  static <T> IntIndex<T> create(final List<T> values, final ToIntFunction<T> keyMapper) {
+    // At most half full, so probe sequences stay short
+    final int capacity = Integer.highestOneBit(Math.max(1, values.size()) * 2 - 1) << 1;
+    final IntIndex<T> index = new IntIndex<>(capacity);
+    for (final T value : values) {
+      index.put(keyMapper.applyAsInt(value), value);
+    }
+    return index;
+  }
+
+  private void put(final int key, final T value) {
+    int slot = slot(key);
+    while (values[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+  }
+
+  /**
+   * Returns the first value with the given key, or {@code null}.
+   */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  T get(final int key) {
+    for (int slot = slot(key); values[slot] != null; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return (T) values[slot];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns all values with the given key.
+   */
+  @SuppressWarnings("unchecked")
+  ImmutableList<T> getAll(final int key) {
+    ImmutableList.Builder<T> matches = null;
+    for (int slot = slot(key); values[slot] != null; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        if (matches == null) {
+          matches = ImmutableList.builder();
+        }
+        matches.add((T) values[slot]);
+      }
+    }
+    return matches == null ? ImmutableList.of() : matches.build();
+  }
+
+  private int slot(final int key) {
+    // Fibonacci hashing spreads sequential numbers over the table
+    return (key * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask) & mask;
+  }
+}
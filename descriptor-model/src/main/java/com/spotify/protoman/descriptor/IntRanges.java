@@ -0,0 +1,87 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Immutable set of int ranges (e.g. reserved field numbers), with O(log n) lookup.
+ */
+final class IntRanges {
+
+  private static final IntRanges EMPTY = new IntRanges(new int[0], new int[0]);
+
+  // Disjoint ranges, sorted by start. Ends are inclusive.
+  private final int[] starts;
+  private final int[] ends;
+
+  private IntRanges(final int[] starts, final int[] ends) {
+    this.starts = starts;
+    this.ends = ends;
+  }
+
+  /**
+   * Creates the union of {@code ranges}, given functions for the start and (inclusive) end of
+   * each of them.
+   */
+  static <T> IntRanges create(final List<T> ranges,
+                              final ToIntFunction<T> start,
+                              final ToIntFunction<T> endInclusive) {
+    if (ranges.isEmpty()) {
+      return EMPTY;
+    }
+
+    final int[][] sorted = ranges.stream()
+        .map(range -> new int[]{start.applyAsInt(range), endInclusive.applyAsInt(range)})
+        .filter(range -> range[0] <= range[1])
+        .sorted(Comparator.comparingInt(range -> range[0]))
+        .toArray(int[][]::new);
+
+    // Merge overlapping ranges
+    final int[] starts = new int[sorted.length];
+    final int[] ends = new int[sorted.length];
+    int count = 0;
+    for (final int[] range : sorted) {
+      if (count > 0 && range[0] <= ends[count - 1]) {
+        ends[count - 1] = Math.max(ends[count - 1], range[1]);
+      } else {
+        starts[count] = range[0];
+        ends[count] = range[1];
+        count++;
+      }
+    }
+    return new IntRanges(Arrays.copyOf(starts, count), Arrays.copyOf(ends, count));
+  }
+
+  boolean contains(final int value) {
+    final int i = Arrays.binarySearch(starts, value);
+    if (i >= 0) {
+      return true;
+    }
+    // The range starting before value, if any
+    final int before = -i - 2;
+    return before >= 0 && value <= ends[before];
+  }
+}
@@ -0,0 +1,163 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.protobuf.DescriptorProtos;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * The locations of a {@link DescriptorProtos.SourceCodeInfo}, sorted by path. The locations of
+ * a descriptor and everything below it form a contiguous range, so a path can be navigated one
+ * step at a time with binary search, without building a tree.
+ */
+final class LocationIndex {
+
+  private static final LocationIndex EMPTY =
+      new LocationIndex(DescriptorProtos.SourceCodeInfo.getDefaultInstance().getLocationList(),
+                        new int[0]);
+
+  private static final Comparator<DescriptorProtos.SourceCodeInfo.Location> BY_PATH =
+      (a, b) -> {
+        final int n = Math.min(a.getPathCount(), b.getPathCount());
+        for (int i = 0; i < n; i++) {
+          final int c = Integer.compare(a.getPath(i), b.getPath(i));
+          if (c != 0) {
+            return c;
+          }
+        }
+        return Integer.compare(a.getPathCount(), b.getPathCount());
+      };
+
+  private final List<DescriptorProtos.SourceCodeInfo.Location> locations;
+  // Indexes into locations, sorted by path
+  private final int[] order;
+
+  private LocationIndex(final List<DescriptorProtos.SourceCodeInfo.Location> locations,
+                        final int[] order) {
+    this.locations = locations;
+    this.order = order;
+  }
+
+  static LocationIndex create(final DescriptorProtos.SourceCodeInfo sourceCodeInfo) {
+    final List<DescriptorProtos.SourceCodeInfo.Location> locations =
+        sourceCodeInfo.getLocationList();
+    // Stable sort, so that the last of several locations with the same path is the one kept
+    final Integer[] sorted = IntStream.range(0, locations.size()).boxed().toArray(Integer[]::new);
+    Arrays.sort(sorted, Comparator.comparing(locations::get, BY_PATH));
+
+    final int[] order = new int[sorted.length];
+    int size = 0;
+    for (final int i : sorted) {
+      if (size > 0 && BY_PATH.compare(locations.get(order[size - 1]), locations.get(i)) == 0) {
+        size--;
+      }
+      order[size++] = i;
+    }
+    return new LocationIndex(locations, Arrays.copyOf(order, size));
+  }
+
+  static LocationIndex empty() {
+    return EMPTY;
+  }
+
+  int size() {
+    return order.length;
+  }
+
+  DescriptorProtos.SourceCodeInfo.Location get(final int position) {
+    return locations.get(order[position]);
+  }
+
+  /**
+   * Returns the first position in [from, to) whose path, from {@code depth} on, is not less
+   * than {@code tag, index} (or not greater, if {@code upper}). All paths in the range must
+   * share their first {@code depth} elements.
+   */
+  int search(final int from, final int to, final int depth, final int tag, final int index,
+             final boolean upper) {
+    int lo = from;
+    int hi = to;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      final int c = compare(get(mid), depth, tag, index);
+      if (c < 0 || (upper && c == 0)) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private static int compare(final DescriptorProtos.SourceCodeInfo.Location location,
+                             final int depth, final int tag, final int index) {
+    if (location.getPathCount() <= depth) {
+      return -1;
+    }
+    final int c = Integer.compare(location.getPath(depth), tag);
+    if (c != 0) {
+      return c;
+    }
+    if (location.getPathCount() <= depth + 1) {
+      return -1;
+    }
+    final int d = Integer.compare(location.getPath(depth + 1), index);
+    if (d != 0) {
+      return d;
+    }
+    // Paths that continue below (tag, index) sort after it, but are in the same subtree
+    return 0;
+  }
+
+  /**
+   * Fingerprint of the locations in [from, to).
+   */
+  HashCode fingerprint(final int from, final int to) {
+    final Hasher hasher = Util.FINGERPRINT_FUNCTION.newHasher();
+    for (int i = from; i < to; i++) {
+      final DescriptorProtos.SourceCodeInfo.Location location = get(i);
+      hasher.putInt(location.getPathCount());
+      for (int j = 0; j < location.getPathCount(); j++) {
+        hasher.putInt(location.getPath(j));
+      }
+      hasher.putInt(location.getSpanCount());
+      for (int j = 0; j < location.getSpanCount(); j++) {
+        hasher.putInt(location.getSpan(j));
+      }
+      putString(hasher, location.getLeadingComments());
+      putString(hasher, location.getTrailingComments());
+      hasher.putInt(location.getLeadingDetachedCommentsCount());
+      location.getLeadingDetachedCommentsList().forEach(comment -> putString(hasher, comment));
+    }
+    return hasher.hash();
+  }
+
+  private static void putString(final Hasher hasher, final String s) {
+    hasher.putInt(s.length()).putString(s, StandardCharsets.UTF_8);
+  }
+}
@@ -21,19 +21,28 @@
 package com.spotify.protoman.descriptor;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.DescriptorProtos;
 
 import javax.annotation.Nullable;
-import java.util.Objects;
 import java.util.stream.IntStream;
 
 public class MessageDescriptor extends DescriptorBase<DescriptorProtos.DescriptorProto> {
 
   @Nullable private final MessageDescriptor containingType;
-  private final ImmutableList<MessageDescriptor> nestedTypes;
-  private final ImmutableList<EnumDescriptor> enumTypes;
-  private final ImmutableList<FieldDescriptor> fields;
-  private final ImmutableList<OneofDescriptor> oneofs;
+  private final DescriptorPool pool;
+
+  // Child descriptors, created on first access
+  private volatile Children children;
+
+  // Lookup indexes, built on first use
+  private volatile ImmutableMap<String, MessageDescriptor> nestedTypesByName;
+  private volatile ImmutableMap<String, EnumDescriptor> enumTypesByName;
+  private volatile ImmutableMap<String, FieldDescriptor> fieldsByName;
+  private volatile IntIndex<FieldDescriptor> fieldsByNumber;
+  private volatile IntRanges reservedNumbers;
+  private volatile ImmutableSet<String> reservedNames;
 
   private MessageDescriptor(final DescriptorProtos.DescriptorProto proto,
                             final FileDescriptor file,
@@ -41,31 +50,10 @@ public class MessageDescriptor extends DescriptorBase<DescriptorProtos.Descripto
                             final PathNode path,
                             final DescriptorPool pool,
                             @Nullable final MessageDescriptor containingType) {
-    super(proto, file, index, path, Util.computeFullName(file, containingType, proto.getName()));
+    super(proto, file, index, path);
 
     this.containingType = containingType;
-
-    pool.put(this);
-
-    this.nestedTypes = IntStream.range(0, proto.getNestedTypeCount()).mapToObj(idx -> {
-      final DescriptorProtos.DescriptorProto d = proto.getNestedType(idx);
-      return MessageDescriptor.create(d, file, idx, path.messageType(idx), pool, this);
-    }).collect(ImmutableList.toImmutableList());
-
-    this.enumTypes = IntStream.range(0, proto.getEnumTypeCount()).mapToObj(idx -> {
-      final DescriptorProtos.EnumDescriptorProto d = proto.getEnumType(idx);
-      return EnumDescriptor.create(d, file, idx, path.enumType(idx), pool, this);
-    }).collect(ImmutableList.toImmutableList());
-
-    this.fields = IntStream.range(0, proto.getFieldCount()).mapToObj(idx -> {
-      final DescriptorProtos.FieldDescriptorProto d = proto.getField(idx);
-      return FieldDescriptor.create(d, file, idx, path.field(idx), pool, this);
-    }).collect(ImmutableList.toImmutableList());
-
-    this.oneofs = IntStream.range(0, proto.getOneofDeclCount()).mapToObj(idx -> {
-      final DescriptorProtos.OneofDescriptorProto d = proto.getOneofDecl(idx);
-      return OneofDescriptor.create(d, file, idx, path.oneof(idx), this);
-    }).collect(ImmutableList.toImmutableList());
+    this.pool = pool;
   }
 
   static MessageDescriptor create(final DescriptorProtos.DescriptorProto proto,
@@ -78,19 +66,39 @@ public class MessageDescriptor extends DescriptorBase<DescriptorProtos.Descripto
   }
 
   public ImmutableList<MessageDescriptor> nestedTypes() {
-    return nestedTypes;
+    return children().nestedTypes;
   }
 
   public ImmutableList<EnumDescriptor> enumTypes() {
-    return enumTypes;
+    return children().enumTypes;
   }
 
   public ImmutableList<FieldDescriptor> fields() {
-    return fields;
+    return children().fields;
   }
 
   public ImmutableList<OneofDescriptor> oneofs() {
-    return oneofs;
+    return children().oneofs;
+  }
+
+  // Locked so that every child is created exactly once, even if the message is shared between
+  // threads. Descriptors are compared by identity in places.
+  private Children children() {
+    Children result = children;
+    if (result == null) {
+      synchronized (this) {
+        result = children;
+        if (result == null) {
+          children = result = new Children(this);
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  protected String computeFullName() {
+    return Util.computeFullName(file(), containingType, name());
   }
 
   @Override
@@ -103,31 +111,35 @@ public class MessageDescriptor extends DescriptorBase<DescriptorProtos.Descripto
   }
 
   public MessageDescriptor findMessageByName(final String name) {
-    return nestedTypes().stream()
-        .filter(d -> Objects.equals(d.name(), name))
-        .findFirst()
-        .orElse(null);
+    ImmutableMap<String, MessageDescriptor> index = nestedTypesByName;
+    if (index == null) {
+      nestedTypesByName = index = Util.indexByName(nestedTypes());
+    }
+    return index.get(name);
   }
 
   public EnumDescriptor findEnumByName(final String name) {
-    return enumTypes().stream()
-        .filter(d -> Objects.equals(d.name(), name))
-        .findFirst()
-        .orElse(null);
+    ImmutableMap<String, EnumDescriptor> index = enumTypesByName;
+    if (index == null) {
+      enumTypesByName = index = Util.indexByName(enumTypes());
+    }
+    return index.get(name);
   }
 
   public FieldDescriptor findFieldByName(final String name) {
-    return fields().stream()
-        .filter(d -> Objects.equals(d.name(), name))
-        .findFirst()
-        .orElse(null);
+    ImmutableMap<String, FieldDescriptor> index = fieldsByName;
+    if (index == null) {
+      fieldsByName = index = Util.indexByName(fields());
+    }
+    return index.get(name);
   }
 
   public FieldDescriptor findFieldByNumber(final int number) {
-    return fields().stream()
-        .filter(d -> d.number() == number)
-        .findFirst()
-        .orElse(null);
+    IntIndex<FieldDescriptor> index = fieldsByNumber;
+    if (index == null) {
+      fieldsByNumber = index = IntIndex.create(fields(), FieldDescriptor::number);
+    }
+    return index.get(number);
   }
 
   public DescriptorProtos.MessageOptions options() {
@@ -135,18 +147,60 @@ public class MessageDescriptor extends DescriptorBase<DescriptorProtos.Descripto
   }
 
   public boolean isReservedNumber(final int number) {
-    for (final DescriptorProtos.DescriptorProto.ReservedRange reservedRange :
-        toProto().getReservedRangeList()) {
-      if (number >= reservedRange.getStart() && number < reservedRange.getEnd()) {
-        return true;
-      }
+    IntRanges ranges = reservedNumbers;
+    if (ranges == null) {
+      // End is exclusive
+      reservedNumbers = ranges = IntRanges.create(
+          toProto().getReservedRangeList(),
+          DescriptorProtos.DescriptorProto.ReservedRange::getStart,
+          reservedRange -> reservedRange.getEnd() - 1
+      );
     }
-    return false;
+    return ranges.contains(number);
   }
 
   public boolean isReservedName(final String name) {
-    return toProto().getReservedNameList().contains(name);
+    ImmutableSet<String> names = reservedNames;
+    if (names == null) {
+      reservedNames = names = ImmutableSet.copyOf(toProto().getReservedNameList());
+    }
+    return names.contains(name);
   }
 
   // TODO: extensions/options
+
+  private static final class Children {
+
+    final ImmutableList<MessageDescriptor> nestedTypes;
+    final ImmutableList<EnumDescriptor> enumTypes;
+    final ImmutableList<FieldDescriptor> fields;
+    final ImmutableList<OneofDescriptor> oneofs;
+
+    Children(final MessageDescriptor parent) {
+      final DescriptorProtos.DescriptorProto proto = parent.toProto();
+      final FileDescriptor file = parent.file();
+      final PathNode path = parent.path();
+      final DescriptorPool pool = parent.pool;
+
+      this.nestedTypes = IntStream.range(0, proto.getNestedTypeCount()).mapToObj(idx -> {
+        final DescriptorProtos.DescriptorProto d = proto.getNestedType(idx);
+        return MessageDescriptor.create(d, file, idx, path.messageType(idx), pool, parent);
+      }).collect(ImmutableList.toImmutableList());
+
+      this.enumTypes = IntStream.range(0, proto.getEnumTypeCount()).mapToObj(idx -> {
+        final DescriptorProtos.EnumDescriptorProto d = proto.getEnumType(idx);
+        return EnumDescriptor.create(d, file, idx, path.enumType(idx), parent);
+      }).collect(ImmutableList.toImmutableList());
+
+      this.fields = IntStream.range(0, proto.getFieldCount()).mapToObj(idx -> {
+        final DescriptorProtos.FieldDescriptorProto d = proto.getField(idx);
+        return FieldDescriptor.create(d, file, idx, path.field(idx), pool, parent);
+      }).collect(ImmutableList.toImmutableList());
+
+      this.oneofs = IntStream.range(0, proto.getOneofDeclCount()).mapToObj(idx -> {
+        final DescriptorProtos.OneofDescriptorProto d = proto.getOneofDecl(idx);
+        return OneofDescriptor.create(d, file, idx, path.oneof(idx), parent);
+      }).collect(ImmutableList.toImmutableList());
+    }
+  }
 }
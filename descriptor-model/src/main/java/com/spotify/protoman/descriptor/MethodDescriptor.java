@@ -25,8 +25,10 @@ import com.google.protobuf.DescriptorProtos;
 public class MethodDescriptor extends DescriptorBase<DescriptorProtos.MethodDescriptorProto> {
 
   private final ServiceDescriptor service;
-  private final MessageDescriptor inputType;
-  private final MessageDescriptor outputType;
+  private final DescriptorPool pool;
+  // Resolved on first access
+  private volatile MessageDescriptor inputType;
+  private volatile MessageDescriptor outputType;
 
   private MethodDescriptor(final DescriptorProtos.MethodDescriptorProto proto,
                            final FileDescriptor file,
@@ -34,13 +36,9 @@ public class MethodDescriptor extends DescriptorBase<DescriptorProtos.MethodDesc
                            final PathNode path,
                            final DescriptorPool pool,
                            final ServiceDescriptor service) {
-    super(proto, file, index, path, service.fullName() + "." + proto.getName());
+    super(proto, file, index, path);
     this.service = service;
-    // Message are available when methods descriptors are created because
-    // 1) All dependencies of a file is created before we create descriptors from the current file
-    // 2) For a given file, message descriptors are created /before/ service and method descriptors
-    this.inputType = pool.findMessageType(proto.getInputType());
-    this.outputType = pool.findMessageType(proto.getOutputType());
+    this.pool = pool;
   }
 
   static MethodDescriptor create(final DescriptorProtos.MethodDescriptorProto proto,
@@ -52,6 +50,11 @@ public class MethodDescriptor extends DescriptorBase<DescriptorProtos.MethodDesc
     return new MethodDescriptor(proto, file, index, path, pool, service);
   }
 
+  @Override
+  protected String computeFullName() {
+    return service.fullName() + "." + name();
+  }
+
   @Override
   public String name() {
     return toProto().getName();
@@ -62,11 +65,19 @@ public class MethodDescriptor extends DescriptorBase<DescriptorProtos.MethodDesc
   }
 
   public MessageDescriptor inputType() {
-    return inputType;
+    MessageDescriptor result = inputType;
+    if (result == null) {
+      inputType = result = pool.findMessageType(toProto().getInputType());
+    }
+    return result;
   }
 
   public MessageDescriptor outputType() {
-    return outputType;
+    MessageDescriptor result = outputType;
+    if (result == null) {
+      outputType = result = pool.findMessageType(toProto().getOutputType());
+    }
+    return result;
   }
 
   public DescriptorProtos.MethodOptions options() {
@@ -0,0 +1,63 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Canonical instances of type names and file paths. The same names and paths come up in every
+ * descriptor set built for a schema, and in the index; sharing one instance of each keeps them
+ * from being duplicated per set, and lets equal keys compare by reference first.
+ *
+ * <p>Entries are weakly referenced, so names that are no longer used by any descriptor set are
+ * dropped.
+ */
+public final class NameTable {
+
+  private static final Interner<String> NAMES = Interners.newWeakInterner();
+  private static final LoadingCache<String, Path> PATHS = CacheBuilder.newBuilder()
+      .weakValues()
+      .build(CacheLoader.from(path -> Paths.get(path)));
+
+  private NameTable() {
+  }
+
+  /**
+   * Returns the canonical instance of a fully-qualified name.
+   */
+  public static String name(final String name) {
+    return NAMES.intern(name);
+  }
+
+  /**
+   * Returns the canonical path for {@code path}, without parsing it again if it is already known.
+   */
+  public static Path path(final String path) {
+    return PATHS.getUnchecked(path);
+  }
+}
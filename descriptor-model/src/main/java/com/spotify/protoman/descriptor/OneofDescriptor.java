@@ -31,7 +31,7 @@ public class OneofDescriptor extends DescriptorBase<DescriptorProtos.OneofDescri
                           final int index,
                           final PathNode path,
                           final MessageDescriptor containingType) {
-    super(proto, file, index, path, containingType.fullName() + "." + proto.getName());
+    super(proto, file, index, path);
     this.containingType = containingType;
   }
 
@@ -43,6 +43,11 @@ public class OneofDescriptor extends DescriptorBase<DescriptorProtos.OneofDescri
     return new OneofDescriptor(proto, file, index, path, containingType);
   }
 
+  @Override
+  protected String computeFullName() {
+    return containingType.fullName() + "." + name();
+  }
+
   @Override
   public String name() {
     return toProto().getName();
@@ -18,101 +18,96 @@
  * -/-/-
  */
 
+
 package com.spotify.protoman.descriptor;
 
+import com.google.common.hash.HashCode;
 import com.google.protobuf.DescriptorProtos;
-import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Optional;
-import javax.annotation.Nullable;
-
-class PathNode {
 
-  private static final PathNode DUMMY_NODE = new PathNode(null);
+/**
+ * The position of a descriptor in its file's {@link LocationIndex}: the range of locations at or
+ * below the descriptor's path.
+ */
+final class PathNode {
 
-  private final PathNode parent;
-  private final Map<Integer, PathNode> children = new HashMap<>();
-  @Nullable private DescriptorProtos.SourceCodeInfo.Location location;
+  private static final PathNode EMPTY_TREE = new PathNode(LocationIndex.empty(), 0, 0, 0);
 
-  static PathNode buildPathTree(final DescriptorProtos.SourceCodeInfo sourceCodeInfo) {
-    final PathNode root = new PathNode(null);
-    sourceCodeInfo.getLocationList().forEach(
-        location -> {
-          PathNode p = root;
-          for (final int segment : location.getPathList()) {
-            p = p.addChild(segment);
-          }
-          p.setLocation(location);
-        }
-    );
-    return root;
-  }
+  private final LocationIndex index;
+  private final int depth;
+  private final int from;
+  private final int to;
 
-  static PathNode emptyTree() {
-    return DUMMY_NODE;
+  private PathNode(final LocationIndex index, final int depth, final int from, final int to) {
+    this.index = index;
+    this.depth = depth;
+    this.from = from;
+    this.to = to;
   }
 
-  private PathNode(final PathNode parent) {
-    this.parent = parent;
-    this.location = null;
+  static PathNode buildPathTree(final DescriptorProtos.SourceCodeInfo sourceCodeInfo) {
+    final LocationIndex index = LocationIndex.create(sourceCodeInfo);
+    return new PathNode(index, 0, 0, index.size());
   }
 
-  private PathNode get(final int tag) {
-    final PathNode ret = children.get(tag);
-    return ret != null ? ret : DUMMY_NODE;
+  static PathNode emptyTree() {
+    return EMPTY_TREE;
   }
 
-  private PathNode addChild(final int tag) {
-    if (children.containsKey(tag)) {
-      return children.get(tag);
-    }
-    final PathNode pathNode = new PathNode(this);
-    children.put(tag, pathNode);
-    return pathNode;
+  private boolean isRoot() {
+    return depth == 0;
   }
 
-  private PathNode index(final int index) {
-    return get(index);
+  private PathNode child(final int tag, final int i) {
+    final int lo = index.search(from, to, depth, tag, i, false);
+    final int hi = index.search(lo, to, depth, tag, i, true);
+    return new PathNode(index, depth + 2, lo, hi);
   }
 
-  private void setLocation(final DescriptorProtos.SourceCodeInfo.Location location) {
-    this.location = location;
+  /**
+   * Fingerprint of the locations of this node and all nodes below it.
+   */
+  HashCode fingerprint() {
+    return index.fingerprint(from, to);
   }
 
   Optional<DescriptorProtos.SourceCodeInfo.Location> location() {
-    return Optional.ofNullable(location);
+    // A node's own location has the shortest path, so it sorts first in the range
+    if (from < to && index.get(from).getPathCount() == depth) {
+      return Optional.of(index.get(from));
+    }
+    return Optional.empty();
   }
 
   Optional<SourceCodeInfo> sourceCodeInfo(final FileDescriptor file) {
-    return location().map(location -> SourceCodeInfo.create(Paths.get(file.name()), location));
+    return location().map(location -> SourceCodeInfo.create(file.filePath(), location));
   }
 
   PathNode messageType(final int index) {
-    return get(parent == null ? 4 : 3).index(index);
+    return child(isRoot() ? 4 : 3, index);
   }
 
   PathNode field(final int index) {
-    return get(2).index(index);
+    return child(2, index);
   }
 
   PathNode enumType(final int index) {
-    return get(parent == null ? 5 : 4).index(index);
+    return child(isRoot() ? 5 : 4, index);
   }
 
   PathNode enumValue(final int index) {
-    return get(2).index(index);
+    return child(2, index);
   }
 
   PathNode service(final int index) {
-    return get(6).index(index);
+    return child(6, index);
   }
 
   PathNode method(final int index) {
-    return get(2).index(index);
+    return child(2, index);
   }
 
   PathNode oneof(final int index) {
-    return get(8).index(index);
+    return child(8, index);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,217 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.descriptor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.auto.value.AutoValue;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link DescriptorBuilder.Factory} creating {@link ProtocDescriptorBuilder}s that share a
+ * bounded set of staging directories.
+ *
+ * All staging directories are created up front. When a builder is closed its directory is reset
+ * (only the files written through it are deleted) and handed back to the pool. At most {@code
+ * maxPoolSize} builders can be open at the same time, {@link #newDescriptorBuilder()} blocks
+ * until a directory is available when the pool is saturated. Interrupting a thread waiting for a
+ * directory makes it throw, with the interrupt flag still set.
+ *
+ * The builders share {@code 2 * maxPoolSize} threads reading protoc's stdout and stderr, enough
+ * for every open builder to run protoc at once. Idle reader threads time out.
+ */
+public class PooledDescriptorBuilderFactory implements DescriptorBuilder.Factory, AutoCloseable {
+
+  private static final String STAGING_DIRECTORY_PREFIX = "descriptor-builder-";
+  private static final long PIPE_READER_KEEP_ALIVE_SECONDS = 60;
+
+  private final Path protocPath;
+  private final int maxPoolSize;
+  private final Semaphore permits;
+  private final BlockingQueue<TemporaryFileStorage> idle;
+  private final ThreadPoolExecutor pipeReaders;
+  private final AtomicInteger allocated = new AtomicInteger();
+  private final LongAdder acquisitions = new LongAdder();
+  private final LongAdder contendedAcquisitions = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+  private final LongAdder discarded = new LongAdder();
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  private PooledDescriptorBuilderFactory(final Path protocPath, final int maxPoolSize) {
+    this.protocPath = protocPath;
+    this.maxPoolSize = maxPoolSize;
+    this.permits = new Semaphore(maxPoolSize, true);
+    this.idle = new LinkedBlockingQueue<>(maxPoolSize);
+    this.pipeReaders = new ThreadPoolExecutor(
+        2 * maxPoolSize, 2 * maxPoolSize,
+        PIPE_READER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(),
+        ProtocDescriptorBuilder.pipeReaderThreadFactory()
+    );
+    pipeReaders.allowCoreThreadTimeOut(true);
+    for (int i = 0; i < maxPoolSize; ++i) {
+      idle.add(newStorage());
+    }
+  }
+
+  public static PooledDescriptorBuilderFactory create(final Path protocPath,
+                                                      final int maxPoolSize) {
+    checkArgument(maxPoolSize > 0, "maxPoolSize must be positive");
+    return new PooledDescriptorBuilderFactory(protocPath, maxPoolSize);
+  }
+
+  @Override
+  public DescriptorBuilder newDescriptorBuilder() {
+    acquisitions.increment();
+    if (!permits.tryAcquire()) {
+      contendedAcquisitions.increment();
+      final long start = System.nanoTime();
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } finally {
+        waitNanos.add(System.nanoTime() - start);
+      }
+    }
+
+    try {
+      TemporaryFileStorage storage = idle.poll();
+      if (storage == null) {
+        // A previously discarded directory is being replaced
+        storage = newStorage();
+      }
+      return ProtocDescriptorBuilder.create(protocPath, storage, this::release, pipeReaders);
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private void release(final TemporaryFileStorage storage) {
+    try {
+      if (closed.get()) {
+        discard(storage);
+        return;
+      }
+      storage.reset();
+      idle.add(storage);
+    } catch (IOException e) {
+      // Leftover files could leak into the next build, don't reuse the directory
+      discard(storage);
+    } finally {
+      permits.release();
+    }
+  }
+
+  private void discard(final TemporaryFileStorage storage) {
+    discarded.increment();
+    allocated.decrementAndGet();
+    try {
+      storage.close();
+    } catch (IOException e) {
+      // Nothing more we can do, it's in a temporary directory anyway
+    }
+  }
+
+  private TemporaryFileStorage newStorage() {
+    try {
+      final TemporaryFileStorage storage = TemporaryFileStorage.create(STAGING_DIRECTORY_PREFIX);
+      allocated.incrementAndGet();
+      return storage;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public Stats stats() {
+    return Stats.create(
+        maxPoolSize,
+        maxPoolSize - permits.availablePermits(),
+        idle.size(),
+        allocated.get(),
+        permits.getQueueLength(),
+        acquisitions.sum(),
+        contendedAcquisitions.sum(),
+        waitNanos.sum(),
+        discarded.sum()
+    );
+  }
+
+  /**
+   * Deletes all idle staging directories. Directories held by open builders are deleted when
+   * the builders are closed.
+   */
+  @Override
+  public void close() {
+    closed.set(true);
+    TemporaryFileStorage storage;
+    while ((storage = idle.poll()) != null) {
+      discard(storage);
+    }
+  }
+
+  /**
+   * Point-in-time snapshot of pool usage. {@link #contendedAcquisitions()} and {@link
+   * #waiting()} being non-zero means the pool is saturated.
+   */
+  @AutoValue
+  public abstract static class Stats {
+
+    public abstract int maxPoolSize();
+
+    public abstract int inUse();
+
+    public abstract int idle();
+
+    public abstract int allocated();
+
+    public abstract int waiting();
+
+    public abstract long acquisitions();
+
+    public abstract long contendedAcquisitions();
+
+    public abstract long totalWaitNanos();
+
+    public abstract long discarded();
+
+    static Stats create(final int maxPoolSize, final int inUse, final int idle,
+                        final int allocated, final int waiting, final long acquisitions,
+                        final long contendedAcquisitions, final long totalWaitNanos,
+                        final long discarded) {
+      return new AutoValue_PooledDescriptorBuilderFactory_Stats(
+          maxPoolSize, inUse, idle, allocated, waiting, acquisitions, contendedAcquisitions,
+          totalWaitNanos, discarded
+      );
+    }
+  }
+}
@@ -0,0 +1,2130 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.descriptor;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.DescriptorProtoOrBuilder;
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProtoOrBuilder;
+import com.google.protobuf.DescriptorProtos.EnumValueDescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumValueDescriptorProtoOrBuilder;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProtoOrBuilder;
+import com.google.protobuf.DescriptorProtos.FieldOptions;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileOptions;
+import com.google.protobuf.DescriptorProtos.MethodDescriptorProto;
+import com.google.protobuf.DescriptorProtos.OneofDescriptorProto;
+import com.google.protobuf.DescriptorProtos.ServiceDescriptorProto;
+import com.google.protobuf.DescriptorProtos.SourceCodeInfo;
+import com.google.protobuf.DescriptorProtos.UninterpretedOption;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.TextFormat;
+import com.google.protobuf.UninitializedMessageException;
+import com.google.protobuf.UnknownFieldSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Links parsed (see {@link ProtoParser}) files into complete {@link FileDescriptorProto}s, i.e.
+ * resolves type names, interprets options and validates the result.
+ *
+ * This is a port of protoc's descriptor builder. Files must be linked in dependency order using
+ * the same linker, which keeps the symbols of all successfully linked files. The output matches
+ * what protoc writes to a descriptor set, and errors are reported with the same messages and
+ * (where protoc has them) the same locations.
+ */
+class ProtoLinker {
+
+  /**
+   * Receives link errors. Line and column are zero-based, or -1 if the error has no location.
+   */
+  interface ErrorCollector {
+
+    void addError(String filename, int line, int column, String message);
+  }
+
+  private static final int MAX_FIELD_NUMBER = 536870911;
+  private static final int FIRST_RESERVED_NUMBER = 19000;
+  private static final int LAST_RESERVED_NUMBER = 19999;
+  private static final int UNINTERPRETED_OPTION_FIELD_NUMBER = 999;
+  private static final String PROTO3 = "proto3";
+
+  // Messages and enums of descriptor.proto, used to interpret options of files that don't
+  // import it
+  private static final ImmutableMap<String, Symbol> BUILTIN_SYMBOLS = builtinSymbols();
+
+  private static final ImmutableList<String> OPTIONS_MESSAGES = ImmutableList.of(
+      "FileOptions", "MessageOptions", "FieldOptions", "EnumOptions", "EnumValueOptions",
+      "ServiceOptions", "MethodOptions", "OneofOptions");
+
+  // The first unknown field reported by Java's TextFormat: "<line>:<column>:\t<type>.<field>",
+  // or "<type>.[<extension>]"
+  private static final Pattern UNKNOWN_TEXT_FORMAT_FIELD = Pattern.compile(
+      "(?:\\d+:\\d+: )?Input contains unknown fields and/or extensions:\n\\d+:\\d+:\t"
+      + "(?:(.*)\\.\\[(.*)\\]|(.*)\\.([^.\n]*))(?:\n|$)");
+
+  private final ErrorCollector errorCollector;
+  private final Map<String, Symbol> symbols = new HashMap<>();
+  private final Map<String, FileDescriptorProto> files = new HashMap<>();
+  private final Map<String, Descriptors.FileDescriptor> javaDescriptors = new HashMap<>();
+
+  ProtoLinker(final ErrorCollector errorCollector) {
+    this.errorCollector = errorCollector;
+  }
+
+  /**
+   * Link a parsed file. All its dependencies must already have been passed to this method.
+   *
+   * @return the linked file, or null if there were errors
+   */
+  FileDescriptorProto link(final FileDescriptorProto parsed) {
+    final FileDescriptorProto linked = new FileLinker(parsed).link();
+    if (linked != null) {
+      files.put(linked.getName(), linked);
+      collectSymbols(linked, symbols);
+    }
+    return linked;
+  }
+
+  /**
+   * Report that a file imports itself, {@code pending} being the chain of files that lead back to
+   * it.
+   */
+  void addRecursiveImportError(final String filename, final List<String> pending) {
+    final StringBuilder message = new StringBuilder("File recursively imports itself: ");
+    for (final String file : pending) {
+      message.append(file).append(" -> ");
+    }
+    message.append(filename);
+    errorCollector.addError(filename, -1, -1, message.toString());
+  }
+
+  // ===========================================================================================
+  // Symbols
+
+  private enum SymbolType {
+    PACKAGE, MESSAGE, FIELD, ONEOF, ENUM, ENUM_VALUE, SERVICE, METHOD
+  }
+
+  private enum LookupType {
+    ALL, TYPES
+  }
+
+  private static final class Symbol {
+
+    final SymbolType type;
+    final String fullName;
+    final String file;
+    // The proto (or builder) of the element, null for packages
+    final Object descriptor;
+    // Containing message of a field (null for extensions), or enum of an enum value
+    final String parent;
+
+    Symbol(final SymbolType type, final String fullName, final String file,
+           final Object descriptor, final String parent) {
+      this.type = type;
+      this.fullName = fullName;
+      this.file = file;
+      this.descriptor = descriptor;
+      this.parent = parent;
+    }
+
+    boolean isType() {
+      return type == SymbolType.MESSAGE || type == SymbolType.ENUM;
+    }
+
+    boolean isAggregate() {
+      return type == SymbolType.MESSAGE || type == SymbolType.PACKAGE
+             || type == SymbolType.ENUM || type == SymbolType.SERVICE;
+    }
+
+    String name() {
+      return fullName.substring(fullName.lastIndexOf('.') + 1);
+    }
+
+    DescriptorProtoOrBuilder message() {
+      return (DescriptorProtoOrBuilder) descriptor;
+    }
+
+    EnumDescriptorProtoOrBuilder enumType() {
+      return (EnumDescriptorProtoOrBuilder) descriptor;
+    }
+
+    FieldDescriptorProtoOrBuilder field() {
+      return (FieldDescriptorProtoOrBuilder) descriptor;
+    }
+
+    /**
+     * The message a field belongs to, i.e. the extendee for extensions.
+     */
+    String containingType() {
+      return parent != null ? parent : stripDot(field().getExtendee());
+    }
+  }
+
+  private static ImmutableMap<String, Symbol> builtinSymbols() {
+    final Map<String, Symbol> symbols = new HashMap<>();
+    collectSymbols(DescriptorProtos.getDescriptor().toProto(), symbols);
+    return ImmutableMap.copyOf(symbols);
+  }
+
+  /**
+   * Add the symbols of a linked file.
+   */
+  private static void collectSymbols(final FileDescriptorProto file,
+                                     final Map<String, Symbol> symbols) {
+    final String name = file.getName();
+    final String pkg = file.getPackage();
+    for (int i = pkg.indexOf('.'); ; i = pkg.indexOf('.', i + 1)) {
+      final String prefix = i < 0 ? pkg : pkg.substring(0, i);
+      if (!prefix.isEmpty()) {
+        symbols.putIfAbsent(prefix, new Symbol(SymbolType.PACKAGE, prefix, name, null, null));
+      }
+      if (i < 0) {
+        break;
+      }
+    }
+
+    for (final DescriptorProto message : file.getMessageTypeList()) {
+      collectSymbols(name, pkg, message, symbols);
+    }
+    for (final EnumDescriptorProto enumType : file.getEnumTypeList()) {
+      collectSymbols(name, pkg, enumType, symbols);
+    }
+    for (final FieldDescriptorProto extension : file.getExtensionList()) {
+      final String fullName = join(pkg, extension.getName());
+      symbols.put(fullName, new Symbol(SymbolType.FIELD, fullName, name, extension, null));
+    }
+    for (final ServiceDescriptorProto service : file.getServiceList()) {
+      final String fullName = join(pkg, service.getName());
+      symbols.put(fullName, new Symbol(SymbolType.SERVICE, fullName, name, service, null));
+      for (final MethodDescriptorProto method : service.getMethodList()) {
+        final String methodName = fullName + "." + method.getName();
+        symbols.put(methodName, new Symbol(SymbolType.METHOD, methodName, name, method, null));
+      }
+    }
+  }
+
+  private static void collectSymbols(final String file,
+                                     final String scope,
+                                     final DescriptorProto message,
+                                     final Map<String, Symbol> symbols) {
+    final String fullName = join(scope, message.getName());
+    symbols.put(fullName, new Symbol(SymbolType.MESSAGE, fullName, file, message, null));
+    for (final FieldDescriptorProto field : message.getFieldList()) {
+      final String fieldName = fullName + "." + field.getName();
+      symbols.put(fieldName, new Symbol(SymbolType.FIELD, fieldName, file, field, fullName));
+    }
+    for (final OneofDescriptorProto oneof : message.getOneofDeclList()) {
+      final String oneofName = fullName + "." + oneof.getName();
+      symbols.put(oneofName, new Symbol(SymbolType.ONEOF, oneofName, file, oneof, null));
+    }
+    for (final DescriptorProto nested : message.getNestedTypeList()) {
+      collectSymbols(file, fullName, nested, symbols);
+    }
+    for (final EnumDescriptorProto enumType : message.getEnumTypeList()) {
+      collectSymbols(file, fullName, enumType, symbols);
+    }
+    for (final FieldDescriptorProto extension : message.getExtensionList()) {
+      final String extensionName = fullName + "." + extension.getName();
+      symbols.put(extensionName,
+                  new Symbol(SymbolType.FIELD, extensionName, file, extension, null));
+    }
+  }
+
+  private static void collectSymbols(final String file,
+                                     final String scope,
+                                     final EnumDescriptorProto enumType,
+                                     final Map<String, Symbol> symbols) {
+    final String fullName = join(scope, enumType.getName());
+    symbols.put(fullName, new Symbol(SymbolType.ENUM, fullName, file, enumType, null));
+    for (final EnumValueDescriptorProto value : enumType.getValueList()) {
+      // Enum values are siblings of their enum, not children
+      final String valueName = join(scope, value.getName());
+      symbols.put(valueName, new Symbol(SymbolType.ENUM_VALUE, valueName, file, value, fullName));
+    }
+  }
+
+  private static String join(final String scope, final String name) {
+    return scope.isEmpty() ? name : scope + "." + name;
+  }
+
+  private static String stripDot(final String name) {
+    return name.startsWith(".") ? name.substring(1) : name;
+  }
+
+  private static List<Integer> path(final List<Integer> base, final int... components) {
+    final ImmutableList.Builder<Integer> builder = ImmutableList.builder();
+    builder.addAll(base);
+    for (final int component : components) {
+      builder.add(component);
+    }
+    return builder.build();
+  }
+
+  private static boolean isPackable(final FieldDescriptorProtoOrBuilder field) {
+    if (field.getLabel() != FieldDescriptorProto.Label.LABEL_REPEATED) {
+      return false;
+    }
+    switch (field.getType()) {
+      case TYPE_STRING:
+      case TYPE_GROUP:
+      case TYPE_MESSAGE:
+      case TYPE_BYTES:
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  private static boolean isMessage(final FieldDescriptorProtoOrBuilder field) {
+    return field.getType() == FieldDescriptorProto.Type.TYPE_MESSAGE
+           || field.getType() == FieldDescriptorProto.Type.TYPE_GROUP;
+  }
+
+  private static boolean isIdentifier(final String text) {
+    if (text.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < text.length(); ++i) {
+      final char c = text.charAt(i);
+      final boolean letter = ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z') || c == '_';
+      final boolean digit = '0' <= c && c <= '9';
+      if (!letter && !(digit && i > 0)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // ===========================================================================================
+  // Linking a single file
+
+  /**
+   * Options of an element, to be interpreted once the file has been cross-linked.
+   */
+  private static final class OptionsToInterpret {
+
+    final String nameScope;
+    final String elementName;
+    final Message.Builder owner;
+    final List<Integer> optionsPath;
+
+    OptionsToInterpret(final String nameScope, final String elementName,
+                       final Message.Builder owner, final List<Integer> optionsPath) {
+      this.nameScope = nameScope;
+      this.elementName = elementName;
+      this.owner = owner;
+      this.optionsPath = optionsPath;
+    }
+  }
+
+  private class FileLinker {
+
+    private final FileDescriptorProto.Builder file;
+    private final String filename;
+    private final String pkg;
+    private final Map<List<Integer>, SourceCodeInfo.Location> locations = new HashMap<>();
+
+    // Symbols of this file, only added to the linker's table if linking succeeds
+    private final Map<String, Symbol> fileSymbols = new LinkedHashMap<>();
+    private final Set<String> enumValueNames = new HashSet<>();
+    private final Map<String, Map<Integer, String>> fieldsByNumber = new HashMap<>();
+    private final Set<String> dependencies = new HashSet<>();
+    private final List<OptionsToInterpret> optionsToInterpret = new ArrayList<>();
+
+    private boolean hadErrors = false;
+    private String possibleUndeclaredDependency;
+    private String possibleUndeclaredDependencyName;
+    private String undefineResolvedName = "";
+    private Descriptors.FileDescriptor javaDescriptor;
+
+    FileLinker(final FileDescriptorProto parsed) {
+      this.file = parsed.toBuilder();
+      this.filename = parsed.getName();
+      this.pkg = parsed.getPackage();
+      for (final SourceCodeInfo.Location location : parsed.getSourceCodeInfo().getLocationList()) {
+        locations.putIfAbsent(location.getPathList(), location);
+      }
+    }
+
+    FileDescriptorProto link() {
+      if (!pkg.isEmpty()) {
+        addPackage(pkg);
+      }
+
+      final Set<String> seenDependencies = new HashSet<>();
+      for (final String dependency : file.getDependencyList()) {
+        if (!seenDependencies.add(dependency)) {
+          addError(null, "Import \"" + dependency + "\" was listed twice.");
+        }
+        if (!files.containsKey(dependency)) {
+          addError(null, "Import \"" + dependency + "\" was not found or had errors.");
+        }
+      }
+      for (final String dependency : file.getDependencyList()) {
+        recordPublicDependencies(dependency);
+      }
+
+      final List<Integer> root = ImmutableList.of();
+      for (int i = 0; i < file.getMessageTypeCount(); ++i) {
+        buildMessage(file.getMessageTypeBuilder(i), pkg,
+                     path(root, FileDescriptorProto.MESSAGE_TYPE_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < file.getEnumTypeCount(); ++i) {
+        buildEnum(file.getEnumTypeBuilder(i), pkg,
+                  path(root, FileDescriptorProto.ENUM_TYPE_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < file.getServiceCount(); ++i) {
+        buildService(file.getServiceBuilder(i),
+                     path(root, FileDescriptorProto.SERVICE_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < file.getExtensionCount(); ++i) {
+        buildField(file.getExtensionBuilder(i), pkg, null,
+                   path(root, FileDescriptorProto.EXTENSION_FIELD_NUMBER, i));
+      }
+      if (file.hasOptions()) {
+        optionsToInterpret.add(new OptionsToInterpret(
+            pkg + ".dummy", filename, file,
+            path(root, FileDescriptorProto.OPTIONS_FIELD_NUMBER)));
+      }
+
+      crossLinkFile();
+
+      if (!hadErrors) {
+        for (final OptionsToInterpret options : optionsToInterpret) {
+          interpretOptions(options);
+        }
+      }
+
+      if (!hadErrors) {
+        validateFile();
+      }
+
+      if (hadErrors) {
+        return null;
+      }
+
+      normalizeFile();
+      return file.build();
+    }
+
+    private void recordPublicDependencies(final String name) {
+      final FileDescriptorProto dependency = files.get(name);
+      if (dependency == null || !dependencies.add(name)) {
+        return;
+      }
+      for (final int index : dependency.getPublicDependencyList()) {
+        recordPublicDependencies(dependency.getDependency(index));
+      }
+    }
+
+    // =========================================================================================
+    // Errors
+
+    private void addError(final List<Integer> path, final String message) {
+      hadErrors = true;
+      final SourceCodeInfo.Location location = path != null ? locations.get(path) : null;
+      if (location == null) {
+        errorCollector.addError(filename, -1, -1, message);
+      } else {
+        errorCollector.addError(filename, location.getSpan(0), location.getSpan(1), message);
+      }
+    }
+
+    private List<Integer> at(final List<Integer> path, final int... suffix) {
+      return path(path, suffix);
+    }
+
+    private List<Integer> fieldType(final List<Integer> fieldPath) {
+      final List<Integer> type = path(fieldPath, FieldDescriptorProto.TYPE_FIELD_NUMBER);
+      return locations.containsKey(type)
+             ? type
+             : path(fieldPath, FieldDescriptorProto.TYPE_NAME_FIELD_NUMBER);
+    }
+
+    private List<Integer> optionValue(final List<Integer> optionPath) {
+      for (int number = UninterpretedOption.IDENTIFIER_VALUE_FIELD_NUMBER;
+           number <= UninterpretedOption.AGGREGATE_VALUE_FIELD_NUMBER; ++number) {
+        final List<Integer> valuePath = path(optionPath, number);
+        if (locations.containsKey(valuePath)) {
+          return valuePath;
+        }
+      }
+      return null;
+    }
+
+    private void addNotDefinedError(final List<Integer> path, final String undefinedSymbol) {
+      if (possibleUndeclaredDependency == null && undefineResolvedName.isEmpty()) {
+        addError(path, "\"" + undefinedSymbol + "\" is not defined.");
+        return;
+      }
+      if (possibleUndeclaredDependency != null) {
+        addError(path, "\"" + possibleUndeclaredDependencyName + "\" seems to be defined in \""
+                       + possibleUndeclaredDependency + "\", which is not imported by \""
+                       + filename + "\".  To use it here, please add the necessary import.");
+      }
+      if (!undefineResolvedName.isEmpty()) {
+        addError(path, "\"" + undefinedSymbol + "\" is resolved to \"" + undefineResolvedName
+                       + "\", which is not defined. The innermost scope is searched first in "
+                       + "name resolution. Consider using a leading '.'(i.e., \"."
+                       + undefinedSymbol + "\") to start from the outermost scope.");
+      }
+    }
+
+    // =========================================================================================
+    // Symbol table
+
+    private Symbol findSymbolNotEnforcingDeps(final String name) {
+      final Symbol symbol = fileSymbols.get(name);
+      return symbol != null ? symbol : symbols.get(name);
+    }
+
+    private Symbol findSymbol(final String name) {
+      final Symbol result = findSymbolNotEnforcingDeps(name);
+      if (result == null) {
+        return null;
+      }
+
+      // Only find symbols which were defined in this file or one of its dependencies
+      if (result.file.equals(filename) || dependencies.contains(result.file)) {
+        return result;
+      }
+
+      if (result.type == SymbolType.PACKAGE) {
+        // The package may have been defined by several files, of which a dependency may be one
+        if (isInPackage(pkg, name)) {
+          return result;
+        }
+        for (final String dependency : dependencies) {
+          if (isInPackage(files.get(dependency).getPackage(), name)) {
+            return result;
+          }
+        }
+      }
+
+      possibleUndeclaredDependency = result.file;
+      possibleUndeclaredDependencyName = name;
+      return null;
+    }
+
+    private boolean isInPackage(final String filePackage, final String packageName) {
+      return filePackage.startsWith(packageName)
+             && (filePackage.length() == packageName.length()
+                 || filePackage.charAt(packageName.length()) == '.');
+    }
+
+    private Symbol lookupSymbol(final String name, final String relativeTo) {
+      return lookupSymbol(name, relativeTo, LookupType.ALL);
+    }
+
+    /**
+     * Look up a (possibly relative) name the way C++ scoping works: the innermost scope
+     * containing the first component of the name wins.
+     */
+    private Symbol lookupSymbol(final String name, final String relativeTo,
+                                final LookupType lookupType) {
+      possibleUndeclaredDependency = null;
+      undefineResolvedName = "";
+
+      if (name.startsWith(".")) {
+        // Fully-qualified name
+        return findSymbol(name.substring(1));
+      }
+
+      // If name is something like "Foo.Bar.baz", and symbols named "Foo" are defined in multiple
+      // parent scopes, we only want to find "Bar.baz" in the innermost one. So, we look for just
+      // "Foo" first, then look for "Bar.baz" within it if found.
+      final int nameDotPos = name.indexOf('.');
+      final String firstPartOfName = nameDotPos < 0 ? name : name.substring(0, nameDotPos);
+
+      String scopeToTry = relativeTo;
+      while (true) {
+        // Chop off the last component of the scope
+        final int dotPos = scopeToTry.lastIndexOf('.');
+        if (dotPos < 0) {
+          return findSymbol(name);
+        }
+        scopeToTry = scopeToTry.substring(0, dotPos);
+
+        final String candidate = scopeToTry + "." + firstPartOfName;
+        Symbol result = findSymbol(candidate);
+        if (result != null) {
+          if (firstPartOfName.length() < name.length()) {
+            // name is a compound symbol, of which we only found the first part. Now try to look
+            // up the rest of it.
+            if (result.isAggregate()) {
+              final String fullName = candidate + name.substring(firstPartOfName.length());
+              result = findSymbol(fullName);
+              if (result == null) {
+                undefineResolvedName = fullName;
+              }
+              return result;
+            }
+            // We found a symbol but it's not an aggregate. Continue the loop.
+          } else if (lookupType != LookupType.TYPES || result.isType()) {
+            return result;
+          }
+          // We found a symbol but it's not a type. Continue the loop.
+        }
+      }
+    }
+
+    private boolean addSymbol(final Symbol symbol, final List<Integer> namePath) {
+      final Symbol existing = findSymbolNotEnforcingDeps(symbol.fullName);
+      if (existing == null) {
+        fileSymbols.put(symbol.fullName, symbol);
+        return true;
+      }
+
+      final String fullName = symbol.fullName;
+      if (existing.file.equals(filename)) {
+        final int dotPos = fullName.lastIndexOf('.');
+        if (dotPos < 0) {
+          addError(namePath, "\"" + fullName + "\" is already defined.");
+        } else {
+          addError(namePath, "\"" + fullName.substring(dotPos + 1) + "\" is already defined in \""
+                             + fullName.substring(0, dotPos) + "\".");
+        }
+      } else {
+        addError(namePath, "\"" + fullName + "\" is already defined in file \"" + existing.file
+                           + "\".");
+      }
+      return false;
+    }
+
+    private void addPackage(final String name) {
+      final Symbol existing = findSymbolNotEnforcingDeps(name);
+      if (existing == null) {
+        fileSymbols.put(name, new Symbol(SymbolType.PACKAGE, name, filename, null, null));
+        final int dotPos = name.lastIndexOf('.');
+        if (dotPos >= 0) {
+          addPackage(name.substring(0, dotPos));
+        }
+      } else if (existing.type != SymbolType.PACKAGE) {
+        addError(path(ImmutableList.of(), FileDescriptorProto.PACKAGE_FIELD_NUMBER),
+                 "\"" + name + "\" is already defined (as something other than a package) "
+                 + "in file \"" + existing.file + "\".");
+      }
+    }
+
+    // =========================================================================================
+    // Building: symbols and per-element checks
+
+    private void buildMessage(final DescriptorProto.Builder message,
+                              final String scope,
+                              final List<Integer> path) {
+      final String fullName = join(scope, message.getName());
+
+      for (int i = 0; i < message.getOneofDeclCount(); ++i) {
+        final OneofDescriptorProto.Builder oneof = message.getOneofDeclBuilder(i);
+        final String oneofName = fullName + "." + oneof.getName();
+        if (oneof.hasOptions()) {
+          optionsToInterpret.add(new OptionsToInterpret(
+              oneofName, oneofName, oneof,
+              path(path, DescriptorProto.ONEOF_DECL_FIELD_NUMBER, i,
+                   OneofDescriptorProto.OPTIONS_FIELD_NUMBER)));
+        }
+        addSymbol(new Symbol(SymbolType.ONEOF, oneofName, filename, oneof, null), null);
+      }
+      for (int i = 0; i < message.getFieldCount(); ++i) {
+        buildField(message.getFieldBuilder(i), fullName, fullName,
+                   path(path, DescriptorProto.FIELD_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < message.getNestedTypeCount(); ++i) {
+        buildMessage(message.getNestedTypeBuilder(i), fullName,
+                     path(path, DescriptorProto.NESTED_TYPE_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < message.getEnumTypeCount(); ++i) {
+        buildEnum(message.getEnumTypeBuilder(i), fullName,
+                  path(path, DescriptorProto.ENUM_TYPE_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < message.getExtensionRangeCount(); ++i) {
+        final DescriptorProto.ExtensionRange.Builder range = message.getExtensionRangeBuilder(i);
+        final List<Integer> rangePath =
+            path(path, DescriptorProto.EXTENSION_RANGE_FIELD_NUMBER, i);
+        if (range.getStart() <= 0) {
+          addError(rangePath, "Extension numbers must be positive integers.");
+        }
+        if (range.getStart() >= range.getEnd()) {
+          addError(rangePath, "Extension range end number must be greater than start number.");
+        }
+        if (range.hasOptions()) {
+          optionsToInterpret.add(new OptionsToInterpret(
+              fullName, fullName, range,
+              path(rangePath, DescriptorProto.ExtensionRange.OPTIONS_FIELD_NUMBER)));
+        }
+      }
+      for (int i = 0; i < message.getExtensionCount(); ++i) {
+        buildField(message.getExtensionBuilder(i), fullName, null,
+                   path(path, DescriptorProto.EXTENSION_FIELD_NUMBER, i));
+      }
+      for (final DescriptorProto.ReservedRange range : message.getReservedRangeList()) {
+        if (range.getStart() <= 0) {
+          addError(null, "Reserved numbers must be positive integers.");
+        }
+        if (range.getStart() >= range.getEnd()) {
+          addError(null, "Reserved range end number must be greater than start number.");
+        }
+      }
+
+      final List<Integer> namePath = path(path, DescriptorProto.NAME_FIELD_NUMBER);
+      final Set<String> reservedNames = new HashSet<>();
+      for (final String name : message.getReservedNameList()) {
+        if (!reservedNames.add(name)) {
+          addError(namePath, "Field name \"" + name + "\" is reserved multiple times.");
+        }
+      }
+
+      if (message.hasOptions()) {
+        optionsToInterpret.add(new OptionsToInterpret(
+            fullName, fullName, message,
+            path(path, DescriptorProto.OPTIONS_FIELD_NUMBER)));
+      }
+
+      addSymbol(new Symbol(SymbolType.MESSAGE, fullName, filename, message, null), namePath);
+
+      for (int i = 0; i < message.getFieldCount(); ++i) {
+        final FieldDescriptorProto.Builder field = message.getFieldBuilder(i);
+        for (int j = 0; j < message.getExtensionRangeCount(); ++j) {
+          final DescriptorProto.ExtensionRange range = message.getExtensionRange(j);
+          if (range.getStart() <= field.getNumber() && field.getNumber() < range.getEnd()) {
+            addError(path(path, DescriptorProto.EXTENSION_RANGE_FIELD_NUMBER, j),
+                     "Extension range " + range.getStart() + " to " + (range.getEnd() - 1)
+                     + " includes field \"" + field.getName() + "\" (" + field.getNumber()
+                     + ").");
+          }
+        }
+        for (final DescriptorProto.ReservedRange range : message.getReservedRangeList()) {
+          if (range.getStart() <= field.getNumber() && field.getNumber() < range.getEnd()) {
+            addError(null, "Field \"" + field.getName() + "\" uses reserved number "
+                           + field.getNumber() + ".");
+          }
+        }
+        if (reservedNames.contains(field.getName())) {
+          addError(path(path, DescriptorProto.FIELD_FIELD_NUMBER, i,
+                        FieldDescriptorProto.NAME_FIELD_NUMBER),
+                   "Field name \"" + field.getName() + "\" is reserved.");
+        }
+      }
+
+      // Check that extension ranges don't overlap and don't include reserved field numbers
+      for (int i = 0; i < message.getExtensionRangeCount(); ++i) {
+        final DescriptorProto.ExtensionRange range1 = message.getExtensionRange(i);
+        final List<Integer> rangePath =
+            path(path, DescriptorProto.EXTENSION_RANGE_FIELD_NUMBER, i);
+        for (final DescriptorProto.ReservedRange range2 : message.getReservedRangeList()) {
+          if (range1.getEnd() > range2.getStart() && range2.getEnd() > range1.getStart()) {
+            addError(rangePath, "Extension range " + range1.getStart() + " to "
+                                + (range1.getEnd() - 1) + " overlaps with reserved range "
+                                + range2.getStart() + " to " + (range2.getEnd() - 1) + ".");
+          }
+        }
+        for (int j = i + 1; j < message.getExtensionRangeCount(); ++j) {
+          final DescriptorProto.ExtensionRange range2 = message.getExtensionRange(j);
+          if (range1.getEnd() > range2.getStart() && range2.getEnd() > range1.getStart()) {
+            addError(rangePath, "Extension range " + range2.getStart() + " to "
+                                + (range2.getEnd() - 1) + " overlaps with already-defined range "
+                                + range1.getStart() + " to " + (range1.getEnd() - 1) + ".");
+          }
+        }
+      }
+      for (int i = 0; i < message.getReservedRangeCount(); ++i) {
+        final DescriptorProto.ReservedRange range1 = message.getReservedRange(i);
+        for (int j = i + 1; j < message.getReservedRangeCount(); ++j) {
+          final DescriptorProto.ReservedRange range2 = message.getReservedRange(j);
+          if (range1.getEnd() > range2.getStart() && range2.getEnd() > range1.getStart()) {
+            addError(null, "Reserved range " + range2.getStart() + " to " + (range2.getEnd() - 1)
+                           + " overlaps with already-defined range " + range1.getStart() + " to "
+                           + (range1.getEnd() - 1) + ".");
+          }
+        }
+      }
+    }
+
+    /**
+     * @param containingType the message a field belongs to, or null for extensions
+     */
+    private void buildField(final FieldDescriptorProto.Builder field,
+                            final String scope,
+                            final String containingType,
+                            final List<Integer> path) {
+      final String fullName = join(scope, field.getName());
+
+      if (field.hasDefaultValue()
+          && field.getLabel() == FieldDescriptorProto.Label.LABEL_REPEATED) {
+        addError(at(path, FieldDescriptorProto.DEFAULT_VALUE_FIELD_NUMBER),
+                 "Repeated fields can't have default values.");
+      }
+      if (field.hasType() && field.hasDefaultValue()) {
+        checkDefaultValue(field, path);
+      }
+
+      final List<Integer> numberPath = at(path, FieldDescriptorProto.NUMBER_FIELD_NUMBER);
+      if (field.getNumber() <= 0) {
+        addError(numberPath, "Field numbers must be positive integers.");
+      } else if (containingType != null && field.getNumber() > MAX_FIELD_NUMBER) {
+        // Extension numbers are checked against the extendee's extension ranges instead
+        addError(numberPath, "Field numbers cannot be greater than " + MAX_FIELD_NUMBER + ".");
+      } else if (field.getNumber() >= FIRST_RESERVED_NUMBER
+                 && field.getNumber() <= LAST_RESERVED_NUMBER) {
+        addError(numberPath, "Field numbers " + FIRST_RESERVED_NUMBER + " through "
+                             + LAST_RESERVED_NUMBER
+                             + " are reserved for the protocol buffer library implementation.");
+      }
+
+      if (field.hasOptions()) {
+        optionsToInterpret.add(new OptionsToInterpret(
+            fullName, fullName, field, path(path, FieldDescriptorProto.OPTIONS_FIELD_NUMBER)));
+      }
+
+      addSymbol(new Symbol(SymbolType.FIELD, fullName, filename, field, containingType),
+                at(path, FieldDescriptorProto.NAME_FIELD_NUMBER));
+    }
+
+    private void checkDefaultValue(final FieldDescriptorProto.Builder field,
+                                   final List<Integer> path) {
+      final String value = field.getDefaultValue();
+      final List<Integer> defaultPath = at(path, FieldDescriptorProto.DEFAULT_VALUE_FIELD_NUMBER);
+      switch (field.getType()) {
+        case TYPE_MESSAGE:
+        case TYPE_GROUP:
+          addError(defaultPath, "Messages can't have default values.");
+          field.clearDefaultValue();
+          break;
+        case TYPE_BOOL:
+          if (!value.equals("true") && !value.equals("false")) {
+            addError(defaultPath, "Boolean default must be true or false.");
+          }
+          break;
+        case TYPE_FLOAT:
+        case TYPE_DOUBLE:
+          if (!value.equals("inf") && !value.equals("-inf") && !value.equals("nan")) {
+            try {
+              Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+              addError(defaultPath, "Couldn't parse default value \"" + value + "\".");
+            }
+          }
+          break;
+        case TYPE_STRING:
+        case TYPE_BYTES:
+        case TYPE_ENUM:
+          break;
+        default:
+          try {
+            Long.parseLong(value);
+          } catch (NumberFormatException e) {
+            try {
+              Long.parseUnsignedLong(value);
+            } catch (NumberFormatException e2) {
+              addError(defaultPath, "Couldn't parse default value \"" + value + "\".");
+            }
+          }
+      }
+    }
+
+    private void buildEnum(final EnumDescriptorProto.Builder enumType,
+                           final String scope,
+                           final List<Integer> path) {
+      final String fullName = join(scope, enumType.getName());
+      final List<Integer> namePath = at(path, EnumDescriptorProto.NAME_FIELD_NUMBER);
+
+      if (enumType.getValueCount() == 0) {
+        // We cannot allow enums with no values because this would mean there would be no valid
+        // default value for fields of this type.
+        addError(namePath, "Enums must contain at least one value.");
+      }
+
+      for (int i = 0; i < enumType.getValueCount(); ++i) {
+        buildEnumValue(enumType.getValueBuilder(i), fullName, scope,
+                       path(path, EnumDescriptorProto.VALUE_FIELD_NUMBER, i));
+      }
+      for (final EnumDescriptorProto.EnumReservedRange range : enumType.getReservedRangeList()) {
+        if (range.getStart() > range.getEnd()) {
+          addError(null, "Reserved range end number must be greater than start number.");
+        }
+      }
+
+      if (enumType.hasOptions()) {
+        optionsToInterpret.add(new OptionsToInterpret(
+            fullName, fullName, enumType, at(path, EnumDescriptorProto.OPTIONS_FIELD_NUMBER)));
+      }
+
+      addSymbol(new Symbol(SymbolType.ENUM, fullName, filename, enumType, null), namePath);
+
+      final Set<String> reservedNames = new HashSet<>();
+      for (final String name : enumType.getReservedNameList()) {
+        if (!reservedNames.add(name)) {
+          addError(namePath, "Enum value \"" + name + "\" is reserved multiple times.");
+        }
+      }
+      for (int i = 0; i < enumType.getValueCount(); ++i) {
+        final EnumValueDescriptorProto.Builder value = enumType.getValueBuilder(i);
+        for (final EnumDescriptorProto.EnumReservedRange range :
+            enumType.getReservedRangeList()) {
+          if (range.getStart() <= value.getNumber() && value.getNumber() <= range.getEnd()) {
+            addError(null, "Enum value \"" + value.getName() + "\" uses reserved number "
+                           + value.getNumber() + ".");
+          }
+        }
+        if (reservedNames.contains(value.getName())) {
+          addError(path(path, EnumDescriptorProto.VALUE_FIELD_NUMBER, i,
+                        EnumValueDescriptorProto.NAME_FIELD_NUMBER),
+                   "Enum value \"" + value.getName() + "\" is reserved.");
+        }
+      }
+      for (int i = 0; i < enumType.getReservedRangeCount(); ++i) {
+        final EnumDescriptorProto.EnumReservedRange range1 = enumType.getReservedRange(i);
+        for (int j = i + 1; j < enumType.getReservedRangeCount(); ++j) {
+          final EnumDescriptorProto.EnumReservedRange range2 = enumType.getReservedRange(j);
+          if (range1.getEnd() >= range2.getStart() && range2.getEnd() >= range1.getStart()) {
+            addError(null, "Reserved range " + range2.getStart() + " to " + range2.getEnd()
+                           + " overlaps with already-defined range " + range1.getStart() + " to "
+                           + range1.getEnd() + ".");
+          }
+        }
+      }
+    }
+
+    private void buildEnumValue(final EnumValueDescriptorProto.Builder value,
+                                final String enumName,
+                                final String scope,
+                                final List<Integer> path) {
+      // Enum values are siblings of their enum, not children
+      final String fullName = join(scope, value.getName());
+
+      if (value.hasOptions()) {
+        optionsToInterpret.add(new OptionsToInterpret(
+            fullName, fullName, value,
+            at(path, EnumValueDescriptorProto.OPTIONS_FIELD_NUMBER)));
+      }
+
+      final List<Integer> namePath = at(path, EnumValueDescriptorProto.NAME_FIELD_NUMBER);
+      final boolean addedToOuterScope = addSymbol(
+          new Symbol(SymbolType.ENUM_VALUE, fullName, filename, value, enumName), namePath);
+      // Values must also be unique within the enum itself. If that holds but the outer scope
+      // already has the name, explain why.
+      final boolean addedToInnerScope = enumValueNames.add(enumName + " " + value.getName());
+
+      if (addedToInnerScope && !addedToOuterScope) {
+        final String outerScope = scope.isEmpty() ? "the global scope" : "\"" + scope + "\"";
+        final String enumSimpleName = enumName.substring(enumName.lastIndexOf('.') + 1);
+        addError(namePath, "Note that enum values use C++ scoping rules, meaning that enum "
+                           + "values are siblings of their type, not children of it.  Therefore, \""
+                           + value.getName() + "\" must be unique within " + outerScope
+                           + ", not just within \"" + enumSimpleName + "\".");
+      }
+    }
+
+    private void buildService(final ServiceDescriptorProto.Builder service,
+                              final List<Integer> path) {
+      final String fullName = join(pkg, service.getName());
+
+      for (int i = 0; i < service.getMethodCount(); ++i) {
+        final MethodDescriptorProto.Builder method = service.getMethodBuilder(i);
+        final String methodName = fullName + "." + method.getName();
+        final List<Integer> methodPath =
+            path(path, ServiceDescriptorProto.METHOD_FIELD_NUMBER, i);
+        if (method.hasOptions()) {
+          optionsToInterpret.add(new OptionsToInterpret(
+              methodName, methodName, method,
+              at(methodPath, MethodDescriptorProto.OPTIONS_FIELD_NUMBER)));
+        }
+        addSymbol(new Symbol(SymbolType.METHOD, methodName, filename, method, null),
+                  at(methodPath, MethodDescriptorProto.NAME_FIELD_NUMBER));
+      }
+
+      if (service.hasOptions()) {
+        optionsToInterpret.add(new OptionsToInterpret(
+            fullName, fullName, service, at(path, ServiceDescriptorProto.OPTIONS_FIELD_NUMBER)));
+      }
+      addSymbol(new Symbol(SymbolType.SERVICE, fullName, filename, service, null),
+                at(path, ServiceDescriptorProto.NAME_FIELD_NUMBER));
+    }
+
+    // =========================================================================================
+    // Cross-linking: resolving type names
+
+    private void crossLinkFile() {
+      final List<Integer> root = ImmutableList.of();
+      for (int i = 0; i < file.getMessageTypeCount(); ++i) {
+        crossLinkMessage(file.getMessageTypeBuilder(i), pkg,
+                         path(root, FileDescriptorProto.MESSAGE_TYPE_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < file.getExtensionCount(); ++i) {
+        crossLinkField(file.getExtensionBuilder(i), pkg, null,
+                       path(root, FileDescriptorProto.EXTENSION_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < file.getServiceCount(); ++i) {
+        crossLinkService(file.getServiceBuilder(i),
+                         path(root, FileDescriptorProto.SERVICE_FIELD_NUMBER, i));
+      }
+    }
+
+    private void crossLinkMessage(final DescriptorProto.Builder message,
+                                  final String scope,
+                                  final List<Integer> path) {
+      final String fullName = join(scope, message.getName());
+      for (int i = 0; i < message.getNestedTypeCount(); ++i) {
+        crossLinkMessage(message.getNestedTypeBuilder(i), fullName,
+                         path(path, DescriptorProto.NESTED_TYPE_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < message.getFieldCount(); ++i) {
+        crossLinkField(message.getFieldBuilder(i), fullName, fullName,
+                       path(path, DescriptorProto.FIELD_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < message.getExtensionCount(); ++i) {
+        crossLinkField(message.getExtensionBuilder(i), fullName, null,
+                       path(path, DescriptorProto.EXTENSION_FIELD_NUMBER, i));
+      }
+    }
+
+    private void crossLinkField(final FieldDescriptorProto.Builder field,
+                                final String scope,
+                                final String containingType,
+                                final List<Integer> path) {
+      final String fullName = join(scope, field.getName());
+      String containingTypeName = containingType;
+
+      if (field.hasExtendee()) {
+        final List<Integer> extendeePath = at(path, FieldDescriptorProto.EXTENDEE_FIELD_NUMBER);
+        final Symbol extendee = lookupSymbol(field.getExtendee(), fullName);
+        if (extendee == null) {
+          addNotDefinedError(extendeePath, field.getExtendee());
+          return;
+        } else if (extendee.type != SymbolType.MESSAGE) {
+          addError(extendeePath, "\"" + field.getExtendee() + "\" is not a message type.");
+          return;
+        }
+        containingTypeName = extendee.fullName;
+        field.setExtendee("." + extendee.fullName);
+
+        boolean inRange = false;
+        for (final DescriptorProto.ExtensionRange range :
+            extendee.message().getExtensionRangeList()) {
+          inRange |= range.getStart() <= field.getNumber() && field.getNumber() < range.getEnd();
+        }
+        if (!inRange) {
+          addError(at(path, FieldDescriptorProto.NUMBER_FIELD_NUMBER),
+                   "\"" + extendee.fullName + "\" does not declare " + field.getNumber()
+                   + " as an extension number.");
+        }
+      }
+
+      if (field.hasTypeName()) {
+        final String typeName = field.getTypeName();
+        final List<Integer> typePath = fieldType(path);
+        final Symbol type = lookupSymbol(typeName, fullName, LookupType.TYPES);
+        if (type == null) {
+          addNotDefinedError(typePath, typeName);
+          return;
+        }
+
+        if (!field.hasType()) {
+          if (type.type == SymbolType.MESSAGE) {
+            field.setType(FieldDescriptorProto.Type.TYPE_MESSAGE);
+          } else if (type.type == SymbolType.ENUM) {
+            field.setType(FieldDescriptorProto.Type.TYPE_ENUM);
+          } else {
+            addError(typePath, "\"" + typeName + "\" is not a type.");
+            return;
+          }
+        }
+
+        final List<Integer> defaultPath =
+            at(path, FieldDescriptorProto.DEFAULT_VALUE_FIELD_NUMBER);
+        if (isMessage(field)) {
+          if (type.type != SymbolType.MESSAGE) {
+            addError(typePath, "\"" + typeName + "\" is not a message type.");
+            return;
+          }
+          if (field.hasDefaultValue()) {
+            addError(defaultPath, "Messages can't have default values.");
+          }
+        } else if (field.getType() == FieldDescriptorProto.Type.TYPE_ENUM) {
+          if (type.type != SymbolType.ENUM) {
+            addError(typePath, "\"" + typeName + "\" is not an enum type.");
+            return;
+          }
+          if (field.hasDefaultValue()) {
+            final String defaultValue = field.getDefaultValue();
+            if (!isIdentifier(defaultValue)) {
+              addError(defaultPath, "Default value for an enum field must be an identifier.");
+            } else {
+              final Symbol value = lookupSymbol(defaultValue, type.fullName);
+              if (value == null || value.type != SymbolType.ENUM_VALUE
+                  || !value.parent.equals(type.fullName)) {
+                addError(defaultPath, "Enum type \"" + type.fullName + "\" has no value named \""
+                                      + defaultValue + "\".");
+              }
+            }
+          }
+        } else {
+          addError(typePath, "Field with primitive type has type_name.");
+        }
+        field.setTypeName("." + type.fullName);
+      } else if (isMessage(field) || field.getType() == FieldDescriptorProto.Type.TYPE_ENUM) {
+        addError(fieldType(path), "Field with message or enum type missing type_name.");
+      }
+
+      final String conflicting = fieldsByNumber
+          .computeIfAbsent(containingTypeName, key -> new HashMap<>())
+          .putIfAbsent(field.getNumber(), fullName);
+      if (conflicting != null) {
+        final List<Integer> numberPath = at(path, FieldDescriptorProto.NUMBER_FIELD_NUMBER);
+        if (containingType == null) {
+          addError(numberPath, "Extension number " + field.getNumber()
+                               + " has already been used in \"" + containingTypeName
+                               + "\" by extension \"" + conflicting + "\".");
+        } else {
+          addError(numberPath, "Field number " + field.getNumber()
+                               + " has already been used in \"" + containingTypeName
+                               + "\" by field \""
+                               + conflicting.substring(conflicting.lastIndexOf('.') + 1) + "\".");
+        }
+      }
+    }
+
+    private void crossLinkService(final ServiceDescriptorProto.Builder service,
+                                  final List<Integer> path) {
+      final String fullName = join(pkg, service.getName());
+      for (int i = 0; i < service.getMethodCount(); ++i) {
+        final MethodDescriptorProto.Builder method = service.getMethodBuilder(i);
+        final String methodName = fullName + "." + method.getName();
+        final List<Integer> methodPath =
+            path(path, ServiceDescriptorProto.METHOD_FIELD_NUMBER, i);
+
+        final List<Integer> inputPath =
+            at(methodPath, MethodDescriptorProto.INPUT_TYPE_FIELD_NUMBER);
+        final Symbol inputType = lookupSymbol(method.getInputType(), methodName);
+        if (inputType == null) {
+          addNotDefinedError(inputPath, method.getInputType());
+        } else if (inputType.type != SymbolType.MESSAGE) {
+          addError(inputPath, "\"" + method.getInputType() + "\" is not a message type.");
+        } else {
+          method.setInputType("." + inputType.fullName);
+        }
+
+        final List<Integer> outputPath =
+            at(methodPath, MethodDescriptorProto.OUTPUT_TYPE_FIELD_NUMBER);
+        final Symbol outputType = lookupSymbol(method.getOutputType(), methodName);
+        if (outputType == null) {
+          addNotDefinedError(outputPath, method.getOutputType());
+        } else if (outputType.type != SymbolType.MESSAGE) {
+          addError(outputPath, "\"" + method.getOutputType() + "\" is not a message type.");
+        } else {
+          method.setOutputType("." + outputType.fullName);
+        }
+      }
+    }
+
+    // =========================================================================================
+    // Option interpretation
+
+    private void interpretOptions(final OptionsToInterpret toInterpret) {
+      final Message.Builder owner = toInterpret.owner;
+      final Descriptors.FieldDescriptor optionsField =
+          owner.getDescriptorForType().findFieldByName("options");
+      final Message original = (Message) owner.getField(optionsField);
+      final Descriptors.FieldDescriptor uninterpretedField =
+          original.getDescriptorForType().findFieldByName("uninterpreted_option");
+
+      final Message.Builder options = original.toBuilder().clearField(uninterpretedField);
+      UnknownFieldSet unknownFields = UnknownFieldSet.getDefaultInstance();
+
+      final int count = original.getRepeatedFieldCount(uninterpretedField);
+      for (int i = 0; i < count; ++i) {
+        final UninterpretedOption option =
+            (UninterpretedOption) original.getRepeatedField(uninterpretedField, i);
+        final List<Integer> optionPath =
+            path(toInterpret.optionsPath, UNINTERPRETED_OPTION_FIELD_NUMBER, i);
+        final UnknownFieldSet interpreted = interpretSingleOption(
+            toInterpret, original.getDescriptorForType().getFullName(), option, optionPath,
+            unknownFields);
+        if (interpreted == null) {
+          // Error already added
+          return;
+        }
+        unknownFields = UnknownFieldSet.newBuilder(unknownFields).mergeFrom(interpreted).build();
+      }
+
+      // The interpreted options were added as unknown fields, in case the option isn't known to
+      // the options message. Serialize and parse the message so that those that are known end
+      // up in the real fields.
+      final ByteString serialized =
+          options.buildPartial().toByteString().concat(unknownFields.toByteString());
+      try {
+        owner.setField(optionsField, original.newBuilderForType()
+            .mergeFrom(serialized)
+            .buildPartial());
+      } catch (InvalidProtocolBufferException e) {
+        throw new IllegalStateException("Options serialized themselves in an invalid way", e);
+      }
+    }
+
+    /**
+     * @return the option as unknown fields of the options message, or null if there was an error
+     */
+    private UnknownFieldSet interpretSingleOption(final OptionsToInterpret toInterpret,
+                                                  final String optionsType,
+                                                  final UninterpretedOption option,
+                                                  final List<Integer> optionPath,
+                                                  final UnknownFieldSet unknownFields) {
+      final List<Integer> namePath = path(optionPath, UninterpretedOption.NAME_FIELD_NUMBER);
+      if (option.getNameCount() == 0) {
+        addError(namePath, "Option must have a name.");
+        return null;
+      }
+      if (option.getName(0).getNamePart().equals("uninterpreted_option")) {
+        addError(namePath, "Option must not use reserved name \"uninterpreted_option\".");
+        return null;
+      }
+
+      // Prefer the options message from the files being linked, so that it knows about any
+      // custom options
+      Symbol descriptor = findMessage(optionsType);
+      Symbol field = null;
+      final List<Symbol> intermediateFields = new ArrayList<>();
+      final StringBuilder debugName = new StringBuilder();
+
+      for (int i = 0; i < option.getNameCount(); ++i) {
+        final String namePart = option.getName(i).getNamePart();
+        if (debugName.length() > 0) {
+          debugName.append('.');
+        }
+        if (option.getName(i).getIsExtension()) {
+          debugName.append('(').append(namePart).append(')');
+          final Symbol symbol = lookupSymbol(namePart, toInterpret.nameScope);
+          if (symbol != null && symbol.type == SymbolType.FIELD) {
+            field = symbol;
+          }
+        } else {
+          debugName.append(namePart);
+          field = findField(descriptor, namePart);
+        }
+
+        if (field == null) {
+          if (!undefineResolvedName.isEmpty()) {
+            addError(namePath, "Option \"" + debugName + "\" is resolved to \"("
+                               + undefineResolvedName + ")\", which is not defined. The "
+                               + "innermost scope is searched first in name resolution. Consider "
+                               + "using a leading '.'(i.e., \"(." + debugName.substring(1)
+                               + "\") to start from the outermost scope.");
+          } else {
+            addError(namePath, "Option \"" + debugName + "\" unknown.");
+          }
+          return null;
+        } else if (!field.containingType().equals(descriptor.fullName)) {
+          addError(namePath, "Option field \"" + debugName
+                             + "\" is not a field or extension of message \""
+                             + descriptor.name() + "\".");
+          return null;
+        } else if (i < option.getNameCount() - 1) {
+          if (!isMessage(field.field())) {
+            addError(namePath, "Option \"" + debugName + "\" is an atomic type, not a message.");
+            return null;
+          } else if (field.field().getLabel() == FieldDescriptorProto.Label.LABEL_REPEATED) {
+            addError(namePath, "Option field \"" + debugName + "\" is a repeated message. "
+                               + "Repeated message options must be initialized using an "
+                               + "aggregate value.");
+            return null;
+          }
+          // Drill down into the submessage
+          intermediateFields.add(field);
+          descriptor = findMessage(stripDot(field.field().getTypeName()));
+        }
+      }
+
+      if (field.field().getLabel() != FieldDescriptorProto.Label.LABEL_REPEATED
+          && !examineIfOptionIsSet(intermediateFields, 0, field, debugName.toString(),
+                                   unknownFields, namePath)) {
+        return null;
+      }
+
+      UnknownFieldSet.Builder value = UnknownFieldSet.newBuilder();
+      if (!setOptionValue(field, option, optionPath, value)) {
+        return null;
+      }
+
+      // Wrap the value in the intermediate messages
+      for (int i = intermediateFields.size() - 1; i >= 0; --i) {
+        final FieldDescriptorProtoOrBuilder intermediate = intermediateFields.get(i).field();
+        final UnknownFieldSet.Field.Builder wrapped = UnknownFieldSet.Field.newBuilder();
+        if (intermediate.getType() == FieldDescriptorProto.Type.TYPE_GROUP) {
+          wrapped.addGroup(value.build());
+        } else {
+          wrapped.addLengthDelimited(value.build().toByteString());
+        }
+        value = UnknownFieldSet.newBuilder().addField(intermediate.getNumber(), wrapped.build());
+      }
+      return value.build();
+    }
+
+    private Symbol findMessage(final String fullName) {
+      final Symbol symbol = findSymbolNotEnforcingDeps(fullName);
+      if (symbol != null && symbol.type == SymbolType.MESSAGE) {
+        return symbol;
+      }
+      return BUILTIN_SYMBOLS.get(fullName);
+    }
+
+    private Symbol findEnum(final String fullName) {
+      final Symbol symbol = findSymbolNotEnforcingDeps(fullName);
+      if (symbol != null && symbol.type == SymbolType.ENUM) {
+        return symbol;
+      }
+      return BUILTIN_SYMBOLS.get(fullName);
+    }
+
+    private Symbol findField(final Symbol message, final String name) {
+      for (final FieldDescriptorProtoOrBuilder field : message.message().getFieldOrBuilderList()) {
+        if (field.getName().equals(name)) {
+          final String fullName = message.fullName + "." + name;
+          return new Symbol(SymbolType.FIELD, fullName, message.file, field, message.fullName);
+        }
+      }
+      return null;
+    }
+
+    private boolean examineIfOptionIsSet(final List<Symbol> intermediateFields,
+                                         final int index,
+                                         final Symbol innermostField,
+                                         final String debugName,
+                                         final UnknownFieldSet unknownFields,
+                                         final List<Integer> namePath) {
+      if (index == intermediateFields.size()) {
+        if (unknownFields.hasField(innermostField.field().getNumber())) {
+          addError(namePath, "Option \"" + debugName + "\" was already set.");
+          return false;
+        }
+        return true;
+      }
+
+      final FieldDescriptorProtoOrBuilder intermediate = intermediateFields.get(index).field();
+      if (!unknownFields.hasField(intermediate.getNumber())) {
+        return true;
+      }
+      final UnknownFieldSet.Field field = unknownFields.getField(intermediate.getNumber());
+      if (intermediate.getType() == FieldDescriptorProto.Type.TYPE_GROUP) {
+        for (final UnknownFieldSet group : field.getGroupList()) {
+          if (!examineIfOptionIsSet(intermediateFields, index + 1, innermostField, debugName,
+                                    group, namePath)) {
+            return false;
+          }
+        }
+      } else {
+        for (final ByteString bytes : field.getLengthDelimitedList()) {
+          final UnknownFieldSet nested;
+          try {
+            nested = UnknownFieldSet.parseFrom(bytes);
+          } catch (InvalidProtocolBufferException e) {
+            continue;
+          }
+          if (!examineIfOptionIsSet(intermediateFields, index + 1, innermostField, debugName,
+                                    nested, namePath)) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    private boolean setOptionValue(final Symbol optionField,
+                                   final UninterpretedOption option,
+                                   final List<Integer> optionPath,
+                                   final UnknownFieldSet.Builder unknownFields) {
+      final FieldDescriptorProtoOrBuilder field = optionField.field();
+      final String fullName = optionField.fullName;
+      final List<Integer> valuePath = optionValue(optionPath);
+      final UnknownFieldSet.Field.Builder value = UnknownFieldSet.Field.newBuilder();
+
+      switch (field.getType()) {
+        case TYPE_INT32:
+        case TYPE_SINT32:
+        case TYPE_SFIXED32: {
+          final long intValue;
+          if (option.hasPositiveIntValue()) {
+            if (Long.compareUnsigned(option.getPositiveIntValue(), Integer.MAX_VALUE) > 0) {
+              addError(valuePath, "Value out of range for int32 option \"" + fullName + "\".");
+              return false;
+            }
+            intValue = option.getPositiveIntValue();
+          } else if (option.hasNegativeIntValue()) {
+            if (option.getNegativeIntValue() < Integer.MIN_VALUE) {
+              addError(valuePath, "Value out of range for int32 option \"" + fullName + "\".");
+              return false;
+            }
+            intValue = option.getNegativeIntValue();
+          } else {
+            addError(valuePath, "Value must be integer for int32 option \"" + fullName + "\".");
+            return false;
+          }
+          if (field.getType() == FieldDescriptorProto.Type.TYPE_SFIXED32) {
+            value.addFixed32((int) intValue);
+          } else if (field.getType() == FieldDescriptorProto.Type.TYPE_SINT32) {
+            final int n = (int) intValue;
+            value.addVarint(((n << 1) ^ (n >> 31)) & 0xffffffffL);
+          } else {
+            value.addVarint(intValue);
+          }
+          break;
+        }
+
+        case TYPE_INT64:
+        case TYPE_SINT64:
+        case TYPE_SFIXED64: {
+          final long longValue;
+          if (option.hasPositiveIntValue()) {
+            if (option.getPositiveIntValue() < 0) {
+              addError(valuePath, "Value out of range for int64 option \"" + fullName + "\".");
+              return false;
+            }
+            longValue = option.getPositiveIntValue();
+          } else if (option.hasNegativeIntValue()) {
+            longValue = option.getNegativeIntValue();
+          } else {
+            addError(valuePath, "Value must be integer for int64 option \"" + fullName + "\".");
+            return false;
+          }
+          if (field.getType() == FieldDescriptorProto.Type.TYPE_SFIXED64) {
+            value.addFixed64(longValue);
+          } else if (field.getType() == FieldDescriptorProto.Type.TYPE_SINT64) {
+            value.addVarint((longValue << 1) ^ (longValue >> 63));
+          } else {
+            value.addVarint(longValue);
+          }
+          break;
+        }
+
+        case TYPE_UINT32:
+        case TYPE_FIXED32:
+          if (!option.hasPositiveIntValue()) {
+            addError(valuePath, "Value must be non-negative integer for uint32 option \""
+                                + fullName + "\".");
+            return false;
+          }
+          if (Long.compareUnsigned(option.getPositiveIntValue(), 0xffffffffL) > 0) {
+            addError(valuePath, "Value out of range for uint32 option \""
+                                + field.getName() + "\".");
+            return false;
+          }
+          if (field.getType() == FieldDescriptorProto.Type.TYPE_FIXED32) {
+            value.addFixed32((int) option.getPositiveIntValue());
+          } else {
+            value.addVarint(option.getPositiveIntValue());
+          }
+          break;
+
+        case TYPE_UINT64:
+        case TYPE_FIXED64:
+          if (!option.hasPositiveIntValue()) {
+            addError(valuePath, "Value must be non-negative integer for uint64 option \""
+                                + fullName + "\".");
+            return false;
+          }
+          if (field.getType() == FieldDescriptorProto.Type.TYPE_FIXED64) {
+            value.addFixed64(option.getPositiveIntValue());
+          } else {
+            value.addVarint(option.getPositiveIntValue());
+          }
+          break;
+
+        case TYPE_FLOAT:
+        case TYPE_DOUBLE: {
+          final boolean isFloat = field.getType() == FieldDescriptorProto.Type.TYPE_FLOAT;
+          final double doubleValue;
+          if (option.hasDoubleValue()) {
+            doubleValue = option.getDoubleValue();
+          } else if (option.hasPositiveIntValue()) {
+            doubleValue = unsignedToDouble(option.getPositiveIntValue());
+          } else if (option.hasNegativeIntValue()) {
+            doubleValue = option.getNegativeIntValue();
+          } else {
+            addError(valuePath, "Value must be number for " + (isFloat ? "float" : "double")
+                                + " option \"" + fullName + "\".");
+            return false;
+          }
+          if (isFloat) {
+            value.addFixed32(Float.floatToRawIntBits((float) doubleValue));
+          } else {
+            value.addFixed64(Double.doubleToRawLongBits(doubleValue));
+          }
+          break;
+        }
+
+        case TYPE_BOOL:
+          if (!option.hasIdentifierValue()) {
+            addError(valuePath, "Value must be identifier for boolean option \"" + fullName
+                                + "\".");
+            return false;
+          }
+          if (option.getIdentifierValue().equals("true")) {
+            value.addVarint(1);
+          } else if (option.getIdentifierValue().equals("false")) {
+            value.addVarint(0);
+          } else {
+            addError(valuePath, "Value must be \"true\" or \"false\" for boolean option \""
+                                + fullName + "\".");
+            return false;
+          }
+          break;
+
+        case TYPE_ENUM: {
+          if (!option.hasIdentifierValue()) {
+            addError(valuePath, "Value must be identifier for enum-valued option \"" + fullName
+                                + "\".");
+            return false;
+          }
+          final Symbol enumType = findEnum(stripDot(field.getTypeName()));
+          final String valueName = option.getIdentifierValue();
+          Integer number = null;
+          // The value's full name is a sibling of the enum's name, not a child of it
+          final String valueFullName = enumType.fullName.substring(
+              0, enumType.fullName.length() - enumType.name().length()) + valueName;
+          final Symbol symbol = findSymbolNotEnforcingDeps(valueFullName);
+          if (symbol != null && symbol.type == SymbolType.ENUM_VALUE) {
+            if (!symbol.parent.equals(enumType.fullName)) {
+              addError(valuePath, "Enum type \"" + enumType.fullName + "\" has no value named \""
+                                  + valueName + "\" for option \"" + fullName
+                                  + "\". This appears to be a value from a sibling type.");
+              return false;
+            }
+            number = ((EnumValueDescriptorProtoOrBuilder) symbol.descriptor).getNumber();
+          } else {
+            for (final EnumValueDescriptorProto enumValue : enumType.enumType().getValueList()) {
+              if (enumValue.getName().equals(valueName)) {
+                number = enumValue.getNumber();
+                break;
+              }
+            }
+          }
+          if (number == null) {
+            addError(valuePath, "Enum type \"" + enumType.fullName + "\" has no value named \""
+                                + valueName + "\" for option \"" + fullName + "\".");
+            return false;
+          }
+          value.addVarint(number);
+          break;
+        }
+
+        case TYPE_STRING:
+        case TYPE_BYTES:
+          if (!option.hasStringValue()) {
+            addError(valuePath, "Value must be quoted string for string option \"" + fullName
+                                + "\".");
+            return false;
+          }
+          value.addLengthDelimited(option.getStringValue());
+          break;
+
+        case TYPE_MESSAGE:
+        case TYPE_GROUP:
+          if (!setAggregateOption(optionField, option, valuePath, value)) {
+            return false;
+          }
+          break;
+
+        default:
+          throw new IllegalStateException("Unknown field type: " + field.getType());
+      }
+
+      unknownFields.addField(field.getNumber(), value.build());
+      return true;
+    }
+
+    /**
+     * Reword a Java TextFormat error like protoc's TextFormat reports it.
+     */
+    private String textFormatError(final String message) {
+      final Matcher unknown = UNKNOWN_TEXT_FORMAT_FIELD.matcher(message);
+      if (!unknown.lookingAt()) {
+        // Strip the position, protoc only reports the message
+        return message.replaceFirst("^-?\\d+:-?\\d+: ", "");
+      } else if (unknown.group(2) != null) {
+        return "Extension \"" + unknown.group(2) + "\" is not defined or is not an extension of \""
+               + unknown.group(1) + "\".";
+      } else {
+        return "Message type \"" + unknown.group(3) + "\" has no field named \""
+               + unknown.group(4) + "\".";
+      }
+    }
+
+    private double unsignedToDouble(final long value) {
+      final double result = (double) (value & Long.MAX_VALUE);
+      return value < 0 ? result + 0x1.0p63 : result;
+    }
+
+    private boolean setAggregateOption(final Symbol optionField,
+                                       final UninterpretedOption option,
+                                       final List<Integer> valuePath,
+                                       final UnknownFieldSet.Field.Builder value) {
+      final FieldDescriptorProtoOrBuilder field = optionField.field();
+      if (!option.hasAggregateValue()) {
+        addError(valuePath, "Option \"" + optionField.fullName + "\" is a message. To set the "
+                            + "entire message, use syntax like \"" + field.getName()
+                            + " = { <proto text format> }\". To set fields within it, use syntax "
+                            + "like \"" + field.getName() + ".foo = value\".");
+        return false;
+      }
+
+      final ByteString serialized;
+      try {
+        final ExtensionRegistry registry = ExtensionRegistry.newInstance();
+        final Descriptors.Descriptor type =
+            findJavaDescriptor(stripDot(field.getTypeName()), registry);
+        final DynamicMessage.Builder message = DynamicMessage.newBuilder(type);
+        TextFormat.merge(option.getAggregateValue(), registry, message);
+        serialized = message.build().toByteString();
+      } catch (TextFormat.ParseException e) {
+        final String message = textFormatError(e.getMessage());
+        addError(valuePath, "Error while parsing option value for \"" + field.getName() + "\": "
+                            + message);
+        return false;
+      } catch (UninitializedMessageException e) {
+        addError(valuePath, "Error while parsing option value for \"" + field.getName() + "\": "
+                            + e.getMessage());
+        return false;
+      }
+
+      if (field.getType() == FieldDescriptorProto.Type.TYPE_GROUP) {
+        try {
+          value.addGroup(UnknownFieldSet.parseFrom(serialized));
+        } catch (InvalidProtocolBufferException e) {
+          throw new IllegalStateException("Message serialized itself in an invalid way", e);
+        }
+      } else {
+        value.addLengthDelimited(serialized);
+      }
+      return true;
+    }
+
+    /**
+     * Find the Java descriptor of a message type, registering all extensions visible to it (so
+     * that they can be used in text format).
+     */
+    private Descriptors.Descriptor findJavaDescriptor(final String fullName,
+                                                      final ExtensionRegistry registry) {
+      final Symbol symbol = findMessage(fullName);
+      final Descriptors.FileDescriptor fileDescriptor;
+      if (symbol.file.equals(filename)) {
+        fileDescriptor = currentJavaDescriptor();
+      } else if (files.containsKey(symbol.file)) {
+        fileDescriptor = javaDescriptor(symbol.file);
+      } else {
+        fileDescriptor = DescriptorProtos.getDescriptor();
+      }
+
+      final Set<Descriptors.FileDescriptor> visited = new HashSet<>();
+      registerExtensions(fileDescriptor, registry, visited);
+      if (!fileDescriptor.equals(currentJavaDescriptor())) {
+        registerExtensions(currentJavaDescriptor(), registry, visited);
+      }
+
+      final String relativeName = fileDescriptor.getPackage().isEmpty()
+                                  ? fullName
+                                  : fullName.substring(fileDescriptor.getPackage().length() + 1);
+      final String[] parts = relativeName.split("\\.");
+      Descriptors.Descriptor descriptor = fileDescriptor.findMessageTypeByName(parts[0]);
+      for (int i = 1; i < parts.length; ++i) {
+        descriptor = descriptor.findNestedTypeByName(parts[i]);
+      }
+      return descriptor;
+    }
+
+    private void registerExtensions(final Descriptors.FileDescriptor fileDescriptor,
+                                    final ExtensionRegistry registry,
+                                    final Set<Descriptors.FileDescriptor> visited) {
+      if (!visited.add(fileDescriptor)) {
+        return;
+      }
+      for (final Descriptors.FieldDescriptor extension : fileDescriptor.getExtensions()) {
+        registerExtension(extension, registry);
+      }
+      for (final Descriptors.Descriptor message : fileDescriptor.getMessageTypes()) {
+        registerExtensions(message, registry);
+      }
+      for (final Descriptors.FileDescriptor dependency : fileDescriptor.getDependencies()) {
+        registerExtensions(dependency, registry, visited);
+      }
+    }
+
+    private void registerExtensions(final Descriptors.Descriptor message,
+                                    final ExtensionRegistry registry) {
+      for (final Descriptors.FieldDescriptor extension : message.getExtensions()) {
+        registerExtension(extension, registry);
+      }
+      for (final Descriptors.Descriptor nested : message.getNestedTypes()) {
+        registerExtensions(nested, registry);
+      }
+    }
+
+    private void registerExtension(final Descriptors.FieldDescriptor extension,
+                                   final ExtensionRegistry registry) {
+      if (extension.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+        registry.add(extension, DynamicMessage.getDefaultInstance(extension.getMessageType()));
+      } else {
+        registry.add(extension);
+      }
+    }
+
+    private Descriptors.FileDescriptor currentJavaDescriptor() {
+      if (javaDescriptor == null) {
+        javaDescriptor = buildJavaDescriptor(file.buildPartial());
+      }
+      return javaDescriptor;
+    }
+
+    private Descriptors.FileDescriptor javaDescriptor(final String name) {
+      final Descriptors.FileDescriptor cached = javaDescriptors.get(name);
+      if (cached != null) {
+        return cached;
+      }
+      final Descriptors.FileDescriptor built = buildJavaDescriptor(files.get(name));
+      javaDescriptors.put(name, built);
+      return built;
+    }
+
+    private Descriptors.FileDescriptor buildJavaDescriptor(final FileDescriptorProto proto) {
+      final Descriptors.FileDescriptor[] dependencies =
+          new Descriptors.FileDescriptor[proto.getDependencyCount()];
+      for (int i = 0; i < dependencies.length; ++i) {
+        dependencies[i] = javaDescriptor(proto.getDependency(i));
+      }
+      try {
+        return Descriptors.FileDescriptor.buildFrom(proto, dependencies);
+      } catch (Descriptors.DescriptorValidationException e) {
+        throw new IllegalStateException("Linked file is invalid: " + proto.getName(), e);
+      }
+    }
+
+    // =========================================================================================
+    // Validation that needs interpreted options
+
+    private void validateFile() {
+      final List<Integer> root = ImmutableList.of();
+      for (int i = 0; i < file.getMessageTypeCount(); ++i) {
+        validateMessage(file.getMessageTypeBuilder(i), pkg,
+                        path(root, FileDescriptorProto.MESSAGE_TYPE_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < file.getEnumTypeCount(); ++i) {
+        validateEnum(file.getEnumTypeBuilder(i), pkg);
+      }
+      for (int i = 0; i < file.getServiceCount(); ++i) {
+        if (isLite(file.getOptions()) && (file.getOptions().getCcGenericServices()
+                                          || file.getOptions().getJavaGenericServices())) {
+          addError(path(root, FileDescriptorProto.SERVICE_FIELD_NUMBER, i,
+                        ServiceDescriptorProto.NAME_FIELD_NUMBER),
+                   "Files with optimize_for = LITE_RUNTIME cannot define services unless you "
+                   + "set both options cc_generic_services and java_generic_services to false.");
+        }
+      }
+      for (int i = 0; i < file.getExtensionCount(); ++i) {
+        validateField(file.getExtensionBuilder(i), pkg, null,
+                      path(root, FileDescriptorProto.EXTENSION_FIELD_NUMBER, i));
+      }
+
+      // Lite files can only be imported by other Lite files
+      if (!isLite(file.getOptions())) {
+        for (final String dependency : file.getDependencyList()) {
+          if (isLite(files.get(dependency).getOptions())) {
+            addError(null, "Files that do not use optimize_for = LITE_RUNTIME cannot import "
+                           + "files which do use this option.  This file is not lite, but it "
+                           + "imports \"" + dependency + "\" which is.");
+            break;
+          }
+        }
+      }
+
+      if (PROTO3.equals(file.getSyntax())) {
+        validateProto3();
+      }
+    }
+
+    private boolean isLite(final FileOptions options) {
+      return options.getOptimizeFor() == FileOptions.OptimizeMode.LITE_RUNTIME;
+    }
+
+    private void validateMessage(final DescriptorProto.Builder message,
+                                 final String scope,
+                                 final List<Integer> path) {
+      final String fullName = join(scope, message.getName());
+      for (int i = 0; i < message.getFieldCount(); ++i) {
+        validateField(message.getFieldBuilder(i), fullName, fullName,
+                      path(path, DescriptorProto.FIELD_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < message.getNestedTypeCount(); ++i) {
+        validateMessage(message.getNestedTypeBuilder(i), fullName,
+                        path(path, DescriptorProto.NESTED_TYPE_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < message.getEnumTypeCount(); ++i) {
+        validateEnum(message.getEnumTypeBuilder(i), fullName);
+      }
+      for (int i = 0; i < message.getExtensionCount(); ++i) {
+        validateField(message.getExtensionBuilder(i), fullName, null,
+                      path(path, DescriptorProto.EXTENSION_FIELD_NUMBER, i));
+      }
+
+      final long maxExtensionNumber = message.getOptions().getMessageSetWireFormat()
+                                      ? Integer.MAX_VALUE
+                                      : MAX_FIELD_NUMBER;
+      for (int i = 0; i < message.getExtensionRangeCount(); ++i) {
+        if (message.getExtensionRange(i).getEnd() > maxExtensionNumber + 1) {
+          addError(path(path, DescriptorProto.EXTENSION_RANGE_FIELD_NUMBER, i),
+                   "Extension numbers cannot be greater than " + maxExtensionNumber + ".");
+        }
+      }
+    }
+
+    private void validateField(final FieldDescriptorProto.Builder field,
+                               final String scope,
+                               final String containingType,
+                               final List<Integer> path) {
+      final FieldOptions options = field.getOptions();
+      final List<Integer> typePath = fieldType(path);
+
+      // Only message type fields may be lazy
+      if (options.getLazy() && field.getType() != FieldDescriptorProto.Type.TYPE_MESSAGE) {
+        addError(typePath, "[lazy = true] can only be specified for submessage fields.");
+      }
+
+      // Only repeated primitive fields may be packed
+      if (options.getPacked() && !isPackable(field)) {
+        addError(typePath, "[packed = true] can only be specified for repeated primitive "
+                           + "fields.");
+      }
+
+      final Symbol container = findSymbolNotEnforcingDeps(
+          containingType != null ? containingType : stripDot(field.getExtendee()));
+      if (container.message().getOptions().getMessageSetWireFormat()) {
+        if (containingType == null) {
+          if (field.getLabel() != FieldDescriptorProto.Label.LABEL_OPTIONAL
+              || field.getType() != FieldDescriptorProto.Type.TYPE_MESSAGE) {
+            addError(typePath, "Extensions of MessageSets must be optional messages.");
+          }
+        } else {
+          addError(at(path, FieldDescriptorProto.NAME_FIELD_NUMBER),
+                   "MessageSets cannot have fields, only extensions.");
+        }
+      }
+
+      // Lite extensions can only be of Lite types
+      if (isLite(file.getOptions()) && !container.file.equals(filename)
+          && !isLite(files.get(container.file).getOptions())) {
+        addError(at(path, FieldDescriptorProto.EXTENDEE_FIELD_NUMBER),
+                 "Extensions to non-lite types can only be declared in non-lite files.  Note "
+                 + "that you cannot extend a non-lite type to contain a lite type, but the "
+                 + "reverse is allowed.");
+      }
+
+      // Validate map types
+      if (field.getType() == FieldDescriptorProto.Type.TYPE_MESSAGE) {
+        final Symbol type = findSymbolNotEnforcingDeps(stripDot(field.getTypeName()));
+        if (type.message().getOptions().getMapEntry()
+            && !validateMapEntry(field, scope, type, typePath)) {
+          addError(null, "map_entry should not be set explicitly. Use map<KeyType, ValueType> "
+                         + "instead.");
+        }
+      }
+
+      validateJsType(field, typePath);
+    }
+
+    private boolean validateMapEntry(final FieldDescriptorProto.Builder field,
+                                     final String scope,
+                                     final Symbol entry,
+                                     final List<Integer> typePath) {
+      final DescriptorProtoOrBuilder message = entry.message();
+      // Map entry messages are nested in the message containing the map field
+      final String entryScope = entry.fullName.substring(
+          0, Math.max(entry.fullName.lastIndexOf('.'), 0));
+      if (message.getExtensionCount() != 0
+          || message.getFieldCount() != 2
+          || message.getExtensionRangeCount() != 0
+          || message.getNestedTypeCount() != 0
+          || message.getEnumTypeCount() != 0
+          || field.getLabel() != FieldDescriptorProto.Label.LABEL_REPEATED
+          || !message.getName().equals(ProtoStrings.mapEntryName(field.getName()))
+          || !entryScope.equals(scope)) {
+        return false;
+      }
+
+      final FieldDescriptorProtoOrBuilder key = message.getFieldOrBuilder(0);
+      final FieldDescriptorProtoOrBuilder value = message.getFieldOrBuilder(1);
+      if (key.getLabel() != FieldDescriptorProto.Label.LABEL_OPTIONAL
+          || key.getNumber() != 1
+          || !key.getName().equals("key")) {
+        return false;
+      }
+      if (value.getLabel() != FieldDescriptorProto.Label.LABEL_OPTIONAL
+          || value.getNumber() != 2
+          || !value.getName().equals("value")) {
+        return false;
+      }
+
+      // Check key types are legal
+      switch (key.getType()) {
+        case TYPE_ENUM:
+          addError(typePath, "Key in map fields cannot be enum types.");
+          break;
+        case TYPE_FLOAT:
+        case TYPE_DOUBLE:
+        case TYPE_MESSAGE:
+        case TYPE_GROUP:
+        case TYPE_BYTES:
+          addError(typePath,
+                   "Key in map fields cannot be float/double, bytes or message types.");
+          break;
+        default:
+          break;
+      }
+
+      if (value.getType() == FieldDescriptorProto.Type.TYPE_ENUM) {
+        final Symbol enumType = findSymbolNotEnforcingDeps(stripDot(value.getTypeName()));
+        if (enumType.enumType().getValue(0).getNumber() != 0) {
+          addError(typePath, "Enum value in map must define 0 as the first value.");
+        }
+      }
+      return true;
+    }
+
+    private void validateJsType(final FieldDescriptorProto.Builder field,
+                                final List<Integer> typePath) {
+      final FieldOptions.JSType jsType = field.getOptions().getJstype();
+      // The default is always acceptable
+      if (jsType == FieldOptions.JSType.JS_NORMAL) {
+        return;
+      }
+      switch (field.getType()) {
+        // Integral 64-bit types may be represented as JavaScript numbers or strings
+        case TYPE_UINT64:
+        case TYPE_INT64:
+        case TYPE_SINT64:
+        case TYPE_FIXED64:
+        case TYPE_SFIXED64:
+          if (jsType == FieldOptions.JSType.JS_STRING
+              || jsType == FieldOptions.JSType.JS_NUMBER) {
+            return;
+          }
+          addError(typePath, "Illegal jstype for int64, uint64, sint64, fixed64 or sfixed64 "
+                             + "field: " + jsType.name());
+          break;
+        // No other types permit a jstype option
+        default:
+          addError(typePath, "jstype is only allowed on int64, uint64, sint64, fixed64 or "
+                             + "sfixed64 fields.");
+          break;
+      }
+    }
+
+    private void validateEnum(final EnumDescriptorProto.Builder enumType, final String scope) {
+      if (enumType.getOptions().getAllowAlias()) {
+        return;
+      }
+      final Map<Integer, String> usedValues = new HashMap<>();
+      for (final EnumValueDescriptorProto value : enumType.getValueList()) {
+        final String fullName = join(scope, value.getName());
+        final String previous = usedValues.putIfAbsent(value.getNumber(), fullName);
+        if (previous != null) {
+          addError(null, "\"" + fullName + "\" uses the same enum value as \"" + previous
+                         + "\". If this is intended, set 'option allow_alias = true;' to the "
+                         + "enum definition.");
+        }
+      }
+    }
+
+    private void validateProto3() {
+      final List<Integer> root = ImmutableList.of();
+      for (int i = 0; i < file.getExtensionCount(); ++i) {
+        validateProto3Field(file.getExtensionBuilder(i), null,
+                            path(root, FileDescriptorProto.EXTENSION_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < file.getMessageTypeCount(); ++i) {
+        validateProto3Message(file.getMessageTypeBuilder(i), pkg,
+                              path(root, FileDescriptorProto.MESSAGE_TYPE_FIELD_NUMBER, i));
+      }
+      for (final EnumDescriptorProto enumType : file.getEnumTypeList()) {
+        validateProto3Enum(enumType);
+      }
+    }
+
+    private void validateProto3Message(final DescriptorProto.Builder message,
+                                       final String scope,
+                                       final List<Integer> path) {
+      final String fullName = join(scope, message.getName());
+      for (int i = 0; i < message.getNestedTypeCount(); ++i) {
+        validateProto3Message(message.getNestedTypeBuilder(i), fullName,
+                              path(path, DescriptorProto.NESTED_TYPE_FIELD_NUMBER, i));
+      }
+      for (final EnumDescriptorProto enumType : message.getEnumTypeList()) {
+        validateProto3Enum(enumType);
+      }
+      for (int i = 0; i < message.getFieldCount(); ++i) {
+        validateProto3Field(message.getFieldBuilder(i), fullName,
+                            path(path, DescriptorProto.FIELD_FIELD_NUMBER, i));
+      }
+      for (int i = 0; i < message.getExtensionCount(); ++i) {
+        validateProto3Field(message.getExtensionBuilder(i), null,
+                            path(path, DescriptorProto.EXTENSION_FIELD_NUMBER, i));
+      }
+      if (message.getExtensionRangeCount() > 0) {
+        addError(null, "Extension ranges are not allowed in proto3.");
+      }
+      if (message.getOptions().getMessageSetWireFormat()) {
+        // Using MessageSet doesn't make sense since we disallow extensions
+        addError(null, "MessageSet is not supported in proto3.");
+      }
+
+      // In proto3, we reject field names if they conflict in camelCase. Note that we currently
+      // enforce a stricter rule: Field names must be unique after being converted to lowercase
+      // with underscores removed.
+      final Map<String, String> nameToField = new HashMap<>();
+      for (final FieldDescriptorProto field : message.getFieldList()) {
+        final String lowercaseName =
+            ProtoStrings.asciiToLowerCase(field.getName().replace("_", ""));
+        final String previous = nameToField.putIfAbsent(lowercaseName, field.getName());
+        if (previous != null) {
+          addError(null, "The JSON camel-case name of field \"" + field.getName()
+                         + "\" conflicts with field \"" + previous
+                         + "\". This is not allowed in proto3.");
+        }
+      }
+    }
+
+    private void validateProto3Field(final FieldDescriptorProto.Builder field,
+                                     final String containingType,
+                                     final List<Integer> path) {
+      if (containingType == null) {
+        final String extendee = stripDot(field.getExtendee());
+        final boolean allowed = OPTIONS_MESSAGES.stream()
+            .anyMatch(name -> extendee.equals("google.protobuf." + name));
+        if (!allowed) {
+          addError(null, "Extensions in proto3 are only allowed for defining options.");
+        }
+      }
+      if (field.getLabel() == FieldDescriptorProto.Label.LABEL_REQUIRED) {
+        addError(null, "Required fields are not allowed in proto3.");
+      }
+      if (field.hasDefaultValue()) {
+        addError(null, "Explicit default values are not allowed in proto3.");
+      }
+      if (field.getType() == FieldDescriptorProto.Type.TYPE_ENUM) {
+        final Symbol enumType = findSymbolNotEnforcingDeps(stripDot(field.getTypeName()));
+        final String enumSyntax = enumType.file.equals(filename)
+                                  ? file.getSyntax()
+                                  : files.get(enumType.file).getSyntax();
+        if (!PROTO3.equals(enumSyntax)) {
+          // Proto3 messages can only use Proto3 enum types; otherwise we can't guarantee that
+          // the default value is zero.
+          final String containing =
+              containingType != null ? containingType : stripDot(field.getExtendee());
+          addError(fieldType(path),
+                   "Enum type \"" + enumType.fullName + "\" is not a proto3 enum, but is "
+                   + "used in \"" + containing + "\" which is a proto3 message type.");
+        }
+      }
+      if (field.getType() == FieldDescriptorProto.Type.TYPE_GROUP) {
+        addError(null, "Groups are not supported in proto3 syntax.");
+      }
+    }
+
+    private void validateProto3Enum(final EnumDescriptorProto enumType) {
+      if (enumType.getValueCount() > 0 && enumType.getValue(0).getNumber() != 0) {
+        addError(null, "The first enum value must be zero in proto3.");
+      }
+    }
+
+    // =========================================================================================
+    // Output
+
+    /**
+     * Bring the file to the form protoc writes to descriptor sets: all fields have a JSON name,
+     * default values are formatted canonically, and the syntax is only set for proto3.
+     */
+    private void normalizeFile() {
+      if (!PROTO3.equals(file.getSyntax())) {
+        file.clearSyntax();
+      }
+      for (int i = 0; i < file.getMessageTypeCount(); ++i) {
+        normalizeMessage(file.getMessageTypeBuilder(i));
+      }
+      for (int i = 0; i < file.getExtensionCount(); ++i) {
+        normalizeField(file.getExtensionBuilder(i));
+      }
+    }
+
+    private void normalizeMessage(final DescriptorProto.Builder message) {
+      for (int i = 0; i < message.getFieldCount(); ++i) {
+        normalizeField(message.getFieldBuilder(i));
+      }
+      for (int i = 0; i < message.getExtensionCount(); ++i) {
+        normalizeField(message.getExtensionBuilder(i));
+      }
+      for (int i = 0; i < message.getNestedTypeCount(); ++i) {
+        normalizeMessage(message.getNestedTypeBuilder(i));
+      }
+    }
+
+    private void normalizeField(final FieldDescriptorProto.Builder field) {
+      if (!field.hasJsonName()) {
+        field.setJsonName(ProtoStrings.toJsonName(field.getName()));
+      }
+      if (!field.hasDefaultValue()) {
+        return;
+      }
+      final String value = field.getDefaultValue();
+      if (field.getType() == FieldDescriptorProto.Type.TYPE_FLOAT) {
+        field.setDefaultValue(ProtoStrings.simpleFtoa((float) parseDouble(value)));
+      } else if (field.getType() == FieldDescriptorProto.Type.TYPE_DOUBLE) {
+        field.setDefaultValue(ProtoStrings.simpleDtoa(parseDouble(value)));
+      }
+    }
+
+    private double parseDouble(final String value) {
+      switch (value) {
+        case "inf":
+          return Double.POSITIVE_INFINITY;
+        case "-inf":
+          return Double.NEGATIVE_INFINITY;
+        case "nan":
+          return Double.NaN;
+        default:
+          return Double.parseDouble(value);
+      }
+    }
+  }
+}
@@ -0,0 +1,2216 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.descriptor;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumValueDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.MethodDescriptorProto;
+import com.google.protobuf.DescriptorProtos.OneofDescriptorProto;
+import com.google.protobuf.DescriptorProtos.ServiceDescriptorProto;
+import com.google.protobuf.DescriptorProtos.SourceCodeInfo;
+import com.google.protobuf.DescriptorProtos.UninterpretedOption;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.spotify.protoman.descriptor.ProtoTokenizer.Token;
+import com.spotify.protoman.descriptor.ProtoTokenizer.TokenType;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Parses a single .proto file into an unlinked {@link FileDescriptorProto}, i.e. type names are
+ * kept as written and options are left uninterpreted.
+ *
+ * This is a port of protoc's parser. The source code info it records (location paths, spans
+ * and comments) matches protoc's, as do the error messages.
+ */
+class ProtoParser {
+
+  /**
+   * Receives parse errors. Line and column are zero-based.
+   */
+  interface ErrorCollector {
+
+    void addError(int line, int column, String message);
+  }
+
+  private static final int MAX_FIELD_NUMBER = 536870911;
+  private static final long INT32_MAX = Integer.MAX_VALUE;
+  private static final long INT64_MAX = Long.MAX_VALUE;
+  private static final long UINT32_MAX = 0xffffffffL;
+  private static final long UINT64_MAX = -1L;
+
+  // Sentinel used for "max" range ends until the actual maximum is known
+  private static final int MAX_RANGE_SENTINEL = -1;
+
+  private static final ImmutableMap<String, FieldDescriptorProto.Type> TYPE_NAMES =
+      ImmutableMap.<String, FieldDescriptorProto.Type>builder()
+          .put("double", FieldDescriptorProto.Type.TYPE_DOUBLE)
+          .put("float", FieldDescriptorProto.Type.TYPE_FLOAT)
+          .put("uint64", FieldDescriptorProto.Type.TYPE_UINT64)
+          .put("fixed64", FieldDescriptorProto.Type.TYPE_FIXED64)
+          .put("fixed32", FieldDescriptorProto.Type.TYPE_FIXED32)
+          .put("bool", FieldDescriptorProto.Type.TYPE_BOOL)
+          .put("string", FieldDescriptorProto.Type.TYPE_STRING)
+          .put("group", FieldDescriptorProto.Type.TYPE_GROUP)
+          .put("bytes", FieldDescriptorProto.Type.TYPE_BYTES)
+          .put("uint32", FieldDescriptorProto.Type.TYPE_UINT32)
+          .put("sfixed32", FieldDescriptorProto.Type.TYPE_SFIXED32)
+          .put("sfixed64", FieldDescriptorProto.Type.TYPE_SFIXED64)
+          .put("int32", FieldDescriptorProto.Type.TYPE_INT32)
+          .put("int64", FieldDescriptorProto.Type.TYPE_INT64)
+          .put("sint32", FieldDescriptorProto.Type.TYPE_SINT32)
+          .put("sint64", FieldDescriptorProto.Type.TYPE_SINT64)
+          .build();
+
+  private final ProtoTokenizer input;
+  private final ErrorCollector errorCollector;
+  private final List<SourceCodeInfo.Location.Builder> locations = new ArrayList<>();
+
+  private boolean hadErrors = false;
+  private String syntaxIdentifier = "";
+  private String upcomingDocComments = "";
+  private List<String> upcomingDetachedComments = new ArrayList<>();
+
+  private ProtoParser(final ProtoTokenizer input, final ErrorCollector errorCollector) {
+    this.input = input;
+    this.errorCollector = errorCollector;
+  }
+
+  /**
+   * Parse a file. Any problems are reported to {@code errorCollector}, in which case the
+   * returned proto is incomplete and should not be used.
+   */
+  static FileDescriptorProto parse(final String name,
+                                   final byte[] content,
+                                   final ErrorCollector errorCollector) {
+    final ProtoTokenizer tokenizer = new ProtoTokenizer(content, errorCollector);
+    final ProtoParser parser = new ProtoParser(tokenizer, errorCollector);
+    final FileDescriptorProto.Builder file = FileDescriptorProto.newBuilder().setName(name);
+    parser.parse(file);
+    // Required fields may be missing if there were errors
+    return file.buildPartial();
+  }
+
+  private boolean parse(final FileDescriptorProto.Builder file) {
+    if (lookingAtType(TokenType.START)) {
+      // Advance to first token
+      nextWithUpcomingComments();
+    }
+
+    try (final LocationRecorder rootLocation = new LocationRecorder()) {
+      if (lookingAt("syntax")) {
+        if (!parseSyntaxIdentifier(rootLocation)) {
+          // Don't attempt to parse the file if we didn't recognize the syntax identifier
+          return false;
+        }
+        file.setSyntax(syntaxIdentifier);
+      } else {
+        syntaxIdentifier = "proto2";
+      }
+
+      // Repeatedly parse statements until we reach the end of the file
+      while (!atEnd()) {
+        if (!parseTopLevelStatement(file, rootLocation)) {
+          // This statement failed to parse. Skip it, but keep looping to parse other statements.
+          skipStatement();
+
+          if (lookingAt("}")) {
+            addError("Unmatched \"}\".");
+            nextWithUpcomingComments();
+          }
+        }
+      }
+    }
+
+    final SourceCodeInfo.Builder sourceCodeInfo = file.getSourceCodeInfoBuilder();
+    locations.forEach(sourceCodeInfo::addLocation);
+    return !hadErrors;
+  }
+
+  // ===========================================================================================
+  // Token helpers
+
+  private boolean atEnd() {
+    return lookingAtType(TokenType.END);
+  }
+
+  private boolean lookingAt(final String text) {
+    return input.current().text.equals(text);
+  }
+
+  private boolean lookingAtType(final TokenType type) {
+    return input.current().type == type;
+  }
+
+  private boolean tryConsume(final String text) {
+    if (lookingAt(text)) {
+      input.next();
+      return true;
+    }
+    return false;
+  }
+
+  private boolean consume(final String text, final String error) {
+    if (tryConsume(text)) {
+      return true;
+    }
+    addError(error);
+    return false;
+  }
+
+  private boolean consume(final String text) {
+    return consume(text, "Expected \"" + text + "\".");
+  }
+
+  private String consumeIdentifier(final String error) {
+    if (lookingAtType(TokenType.IDENTIFIER)) {
+      final String identifier = input.current().text;
+      input.next();
+      return identifier;
+    }
+    addError(error);
+    return null;
+  }
+
+  private Integer consumeInteger(final String error) {
+    if (lookingAtType(TokenType.INTEGER)) {
+      Long value = ProtoTokenizer.parseInteger(input.current().text, INT32_MAX);
+      if (value == null) {
+        addError("Integer out of range.");
+        // We still return a value because we did, in fact, parse an integer
+        value = 0L;
+      }
+      input.next();
+      return value.intValue();
+    }
+    addError(error);
+    return null;
+  }
+
+  private Integer consumeSignedInteger(final String error) {
+    boolean negative = false;
+    long maxValue = INT32_MAX;
+    if (tryConsume("-")) {
+      negative = true;
+      maxValue += 1;
+    }
+    final Long value = consumeInteger64(maxValue, error);
+    if (value == null) {
+      return null;
+    }
+    return (int) (negative ? -value : value);
+  }
+
+  private Long consumeInteger64(final long maxValue, final String error) {
+    if (lookingAtType(TokenType.INTEGER)) {
+      Long value = ProtoTokenizer.parseInteger(input.current().text, maxValue);
+      if (value == null) {
+        addError("Integer out of range.");
+        value = 0L;
+      }
+      input.next();
+      return value;
+    }
+    addError(error);
+    return null;
+  }
+
+  private Double consumeNumber(final String error) {
+    if (lookingAtType(TokenType.FLOAT)) {
+      final double value = ProtoTokenizer.parseFloat(input.current().text);
+      input.next();
+      return value;
+    } else if (lookingAtType(TokenType.INTEGER)) {
+      // Also accept integers
+      Long value = ProtoTokenizer.parseInteger(input.current().text, UINT64_MAX);
+      if (value == null) {
+        addError("Integer out of range.");
+        value = 0L;
+      }
+      input.next();
+      return unsignedToDouble(value);
+    } else if (lookingAt("inf")) {
+      input.next();
+      return Double.POSITIVE_INFINITY;
+    } else if (lookingAt("nan")) {
+      input.next();
+      return Double.NaN;
+    }
+    addError(error);
+    return null;
+  }
+
+  private static double unsignedToDouble(final long value) {
+    final double result = (double) (value & Long.MAX_VALUE);
+    return value < 0 ? result + 0x1.0p63 : result;
+  }
+
+  /**
+   * Consume one or more adjacent string literals and return their concatenated, unescaped
+   * bytes.
+   */
+  private ByteString consumeString(final String error) {
+    if (lookingAtType(TokenType.STRING)) {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      ProtoTokenizer.parseStringAppend(input.current().text, output);
+      input.next();
+      // Allow C++ like concatenation of adjacent string tokens
+      while (lookingAtType(TokenType.STRING)) {
+        ProtoTokenizer.parseStringAppend(input.current().text, output);
+        input.next();
+      }
+      return ByteString.copyFrom(output.toByteArray());
+    }
+    addError(error);
+    return null;
+  }
+
+  private void nextWithUpcomingComments() {
+    final StringBuilder leading = new StringBuilder(upcomingDocComments);
+    input.nextWithComments(null, upcomingDetachedComments, leading);
+    upcomingDocComments = leading.toString();
+  }
+
+  private boolean tryConsumeEndOfDeclaration(final String text,
+                                             final LocationRecorder location) {
+    if (!lookingAt(text)) {
+      return false;
+    }
+
+    final StringBuilder leading = new StringBuilder();
+    final StringBuilder trailing = new StringBuilder();
+    final List<String> detached = new ArrayList<>();
+    input.nextWithComments(trailing, detached, leading);
+
+    // Save the leading comments for next time, and recall the leading comments from last time
+    final String recalledLeading = upcomingDocComments;
+    upcomingDocComments = leading.toString();
+
+    if (location != null) {
+      final List<String> recalledDetached = upcomingDetachedComments;
+      upcomingDetachedComments = detached;
+      location.attachComments(recalledLeading, trailing.toString(), recalledDetached);
+    } else if (text.equals("}")) {
+      // Finishing the current scope, drop pending detached comments
+      upcomingDetachedComments = detached;
+    } else {
+      upcomingDetachedComments.addAll(detached);
+    }
+
+    return true;
+  }
+
+  private boolean consumeEndOfDeclaration(final String text, final LocationRecorder location) {
+    if (tryConsumeEndOfDeclaration(text, location)) {
+      return true;
+    }
+    addError("Expected \"" + text + "\".");
+    return false;
+  }
+
+  private void addError(final String message) {
+    addError(input.current().line, input.current().column, message);
+  }
+
+  private void addError(final int line, final int column, final String message) {
+    errorCollector.addError(line, column, message);
+    hadErrors = true;
+  }
+
+  private void skipStatement() {
+    while (true) {
+      if (atEnd()) {
+        return;
+      } else if (lookingAtType(TokenType.SYMBOL)) {
+        if (tryConsumeEndOfDeclaration(";", null)) {
+          return;
+        } else if (tryConsume("{")) {
+          skipRestOfBlock();
+          return;
+        } else if (lookingAt("}")) {
+          return;
+        }
+      }
+      input.next();
+    }
+  }
+
+  private void skipRestOfBlock() {
+    while (true) {
+      if (atEnd()) {
+        return;
+      } else if (lookingAtType(TokenType.SYMBOL)) {
+        if (tryConsumeEndOfDeclaration("}", null)) {
+          return;
+        } else if (tryConsume("{")) {
+          skipRestOfBlock();
+        }
+      }
+      input.next();
+    }
+  }
+
+  // ===========================================================================================
+  // Top level
+
+  private boolean parseSyntaxIdentifier(final LocationRecorder parent) {
+    try (final LocationRecorder syntaxLocation =
+             new LocationRecorder(parent, FileDescriptorProto.SYNTAX_FIELD_NUMBER)) {
+      if (!consume("syntax", "File must begin with a syntax statement, e.g. "
+                             + "'syntax = \"proto2\";'.")) {
+        return false;
+      }
+      if (!consume("=")) {
+        return false;
+      }
+      final Token syntaxToken = input.current().copy();
+      final ByteString syntax = consumeString("Expected syntax identifier.");
+      if (syntax == null || !consumeEndOfDeclaration(";", syntaxLocation)) {
+        return false;
+      }
+
+      syntaxIdentifier = syntax.toStringUtf8();
+
+      if (!syntaxIdentifier.equals("proto2") && !syntaxIdentifier.equals("proto3")) {
+        addError(syntaxToken.line, syntaxToken.column,
+                 "Unrecognized syntax identifier \"" + syntaxIdentifier + "\".  This parser "
+                 + "only recognizes \"proto2\" and \"proto3\".");
+        return false;
+      }
+      return true;
+    }
+  }
+
+  private boolean parseTopLevelStatement(final FileDescriptorProto.Builder file,
+                                         final LocationRecorder rootLocation) {
+    if (tryConsumeEndOfDeclaration(";", null)) {
+      // empty statement; ignore
+      return true;
+    } else if (lookingAt("message")) {
+      try (final LocationRecorder location = new LocationRecorder(
+          rootLocation, FileDescriptorProto.MESSAGE_TYPE_FIELD_NUMBER,
+          file.getMessageTypeCount())) {
+        return parseMessageDefinition(file.addMessageTypeBuilder(), location);
+      }
+    } else if (lookingAt("enum")) {
+      try (final LocationRecorder location = new LocationRecorder(
+          rootLocation, FileDescriptorProto.ENUM_TYPE_FIELD_NUMBER, file.getEnumTypeCount())) {
+        return parseEnumDefinition(file.addEnumTypeBuilder(), location);
+      }
+    } else if (lookingAt("service")) {
+      try (final LocationRecorder location = new LocationRecorder(
+          rootLocation, FileDescriptorProto.SERVICE_FIELD_NUMBER, file.getServiceCount())) {
+        return parseServiceDefinition(file.addServiceBuilder(), location);
+      }
+    } else if (lookingAt("extend")) {
+      try (final LocationRecorder location = new LocationRecorder(
+          rootLocation, FileDescriptorProto.EXTENSION_FIELD_NUMBER)) {
+        return parseExtend(
+            Container.of(file::getExtensionCount, file::addExtensionBuilder),
+            Container.of(file::getMessageTypeCount, file::addMessageTypeBuilder),
+            rootLocation, FileDescriptorProto.MESSAGE_TYPE_FIELD_NUMBER, location);
+      }
+    } else if (lookingAt("import")) {
+      return parseImport(file, rootLocation);
+    } else if (lookingAt("package")) {
+      return parsePackage(file, rootLocation);
+    } else if (lookingAt("option")) {
+      try (final LocationRecorder location = new LocationRecorder(
+          rootLocation, FileDescriptorProto.OPTIONS_FIELD_NUMBER)) {
+        return parseOption(file.getOptionsBuilder(), location, true);
+      }
+    } else {
+      addError("Expected top-level statement (e.g. \"message\").");
+      return false;
+    }
+  }
+
+  private boolean parseImport(final FileDescriptorProto.Builder file,
+                              final LocationRecorder rootLocation) {
+    if (!consume("import")) {
+      return false;
+    }
+    if (lookingAt("public")) {
+      final LocationRecorder publicLocation = new LocationRecorder(
+          rootLocation, FileDescriptorProto.PUBLIC_DEPENDENCY_FIELD_NUMBER,
+          file.getPublicDependencyCount());
+      try {
+        if (!consume("public")) {
+          return false;
+        }
+        file.addPublicDependency(file.getDependencyCount());
+      } finally {
+        publicLocation.end();
+      }
+    } else if (lookingAt("weak")) {
+      final LocationRecorder weakLocation = new LocationRecorder(
+          rootLocation, FileDescriptorProto.WEAK_DEPENDENCY_FIELD_NUMBER,
+          file.getWeakDependencyCount());
+      try {
+        if (!consume("weak")) {
+          return false;
+        }
+        file.addWeakDependency(file.getDependencyCount());
+      } finally {
+        weakLocation.end();
+      }
+    }
+
+    try (final LocationRecorder location = new LocationRecorder(
+        rootLocation, FileDescriptorProto.DEPENDENCY_FIELD_NUMBER, file.getDependencyCount())) {
+      final ByteString dependency =
+          consumeString("Expected a string naming the file to import.");
+      if (dependency == null) {
+        return false;
+      }
+      file.addDependency(dependency.toStringUtf8());
+      location.endAt(input.previous());
+
+      return consumeEndOfDeclaration(";", location);
+    }
+  }
+
+  private boolean parsePackage(final FileDescriptorProto.Builder file,
+                               final LocationRecorder rootLocation) {
+    if (file.hasPackage()) {
+      addError("Multiple package definitions.");
+      // Don't append the new package to the old one, just replace it
+      file.clearPackage();
+    }
+
+    if (!consume("package")) {
+      return false;
+    }
+
+    try (final LocationRecorder location = new LocationRecorder(
+        rootLocation, FileDescriptorProto.PACKAGE_FIELD_NUMBER)) {
+      final StringBuilder pkg = new StringBuilder();
+      while (true) {
+        final String identifier = consumeIdentifier("Expected identifier.");
+        if (identifier == null) {
+          return false;
+        }
+        pkg.append(identifier);
+        file.setPackage(pkg.toString());
+        if (!tryConsume(".")) {
+          break;
+        }
+        pkg.append(".");
+      }
+
+      location.endAt(input.previous());
+
+      return consumeEndOfDeclaration(";", location);
+    }
+  }
+
+  // ===========================================================================================
+  // Messages
+
+  private boolean parseMessageDefinition(final DescriptorProto.Builder message,
+                                         final LocationRecorder messageLocation) {
+    if (!consume("message")) {
+      return false;
+    }
+    final LocationRecorder nameLocation =
+        new LocationRecorder(messageLocation, DescriptorProto.NAME_FIELD_NUMBER);
+    try {
+      final String name = consumeIdentifier("Expected message name.");
+      if (name == null) {
+        return false;
+      }
+      message.setName(name);
+    } finally {
+      nameLocation.end();
+    }
+    return parseMessageBlock(message, messageLocation);
+  }
+
+  private boolean parseMessageBlock(final DescriptorProto.Builder message,
+                                    final LocationRecorder messageLocation) {
+    if (!consumeEndOfDeclaration("{", messageLocation)) {
+      return false;
+    }
+
+    while (!tryConsumeEndOfDeclaration("}", null)) {
+      if (atEnd()) {
+        addError("Reached end of input in message definition (missing '}').");
+        return false;
+      }
+
+      if (!parseMessageStatement(message, messageLocation)) {
+        // This statement failed to parse. Skip it, but keep looping to parse other statements.
+        skipStatement();
+      }
+    }
+
+    adjustRangesWithMaxEndNumber(message);
+    return true;
+  }
+
+  private static void adjustRangesWithMaxEndNumber(final DescriptorProto.Builder message) {
+    for (final DescriptorProto.ExtensionRange.Builder range :
+        message.getExtensionRangeBuilderList()) {
+      if (range.getEnd() == MAX_RANGE_SENTINEL) {
+        range.setEnd(MAX_FIELD_NUMBER + 1);
+      }
+    }
+    for (final DescriptorProto.ReservedRange.Builder range :
+        message.getReservedRangeBuilderList()) {
+      if (range.getEnd() == MAX_RANGE_SENTINEL) {
+        range.setEnd(MAX_FIELD_NUMBER + 1);
+      }
+    }
+  }
+
+  private boolean parseMessageStatement(final DescriptorProto.Builder message,
+                                        final LocationRecorder messageLocation) {
+    if (tryConsumeEndOfDeclaration(";", null)) {
+      // empty statement; ignore
+      return true;
+    } else if (lookingAt("message")) {
+      try (final LocationRecorder location = new LocationRecorder(
+          messageLocation, DescriptorProto.NESTED_TYPE_FIELD_NUMBER,
+          message.getNestedTypeCount())) {
+        return parseMessageDefinition(message.addNestedTypeBuilder(), location);
+      }
+    } else if (lookingAt("enum")) {
+      try (final LocationRecorder location = new LocationRecorder(
+          messageLocation, DescriptorProto.ENUM_TYPE_FIELD_NUMBER, message.getEnumTypeCount())) {
+        return parseEnumDefinition(message.addEnumTypeBuilder(), location);
+      }
+    } else if (lookingAt("extensions")) {
+      try (final LocationRecorder location = new LocationRecorder(
+          messageLocation, DescriptorProto.EXTENSION_RANGE_FIELD_NUMBER)) {
+        return parseExtensions(message, location);
+      }
+    } else if (lookingAt("reserved")) {
+      return parseReserved(message, messageLocation);
+    } else if (lookingAt("extend")) {
+      try (final LocationRecorder location = new LocationRecorder(
+          messageLocation, DescriptorProto.EXTENSION_FIELD_NUMBER)) {
+        return parseExtend(
+            Container.of(message::getExtensionCount, message::addExtensionBuilder),
+            Container.of(message::getNestedTypeCount, message::addNestedTypeBuilder),
+            messageLocation, DescriptorProto.NESTED_TYPE_FIELD_NUMBER, location);
+      }
+    } else if (lookingAt("option")) {
+      try (final LocationRecorder location = new LocationRecorder(
+          messageLocation, DescriptorProto.OPTIONS_FIELD_NUMBER)) {
+        return parseOption(message.getOptionsBuilder(), location, true);
+      }
+    } else if (lookingAt("oneof")) {
+      final int oneofIndex = message.getOneofDeclCount();
+      try (final LocationRecorder oneofLocation = new LocationRecorder(
+          messageLocation, DescriptorProto.ONEOF_DECL_FIELD_NUMBER, oneofIndex)) {
+        return parseOneof(message.addOneofDeclBuilder(), message, oneofIndex, oneofLocation,
+                          messageLocation);
+      }
+    } else {
+      try (final LocationRecorder location = new LocationRecorder(
+          messageLocation, DescriptorProto.FIELD_FIELD_NUMBER, message.getFieldCount())) {
+        return parseMessageField(
+            message.addFieldBuilder(),
+            Container.of(message::getNestedTypeCount, message::addNestedTypeBuilder),
+            messageLocation, DescriptorProto.NESTED_TYPE_FIELD_NUMBER, location);
+      }
+    }
+  }
+
+  private boolean parseMessageField(final FieldDescriptorProto.Builder field,
+                                    final Container<DescriptorProto.Builder> messages,
+                                    final LocationRecorder parentLocation,
+                                    final int locationFieldNumberForNestedType,
+                                    final LocationRecorder fieldLocation) {
+    final LocationRecorder labelLocation =
+        new LocationRecorder(fieldLocation, FieldDescriptorProto.LABEL_FIELD_NUMBER);
+    try {
+      final FieldDescriptorProto.Label label = parseLabel();
+      if (label != null) {
+        field.setLabel(label);
+        if (label == FieldDescriptorProto.Label.LABEL_OPTIONAL
+            && syntaxIdentifier.equals("proto3")) {
+          addError("Explicit 'optional' labels are disallowed in the Proto3 syntax. "
+                   + "To define 'optional' fields in Proto3, simply remove the "
+                   + "'optional' label, as fields are 'optional' by default.");
+        }
+      }
+    } finally {
+      labelLocation.end();
+    }
+
+    return parseMessageFieldNoLabel(field, messages, parentLocation,
+                                    locationFieldNumberForNestedType, fieldLocation);
+  }
+
+  private FieldDescriptorProto.Label parseLabel() {
+    if (tryConsume("optional")) {
+      return FieldDescriptorProto.Label.LABEL_OPTIONAL;
+    } else if (tryConsume("repeated")) {
+      return FieldDescriptorProto.Label.LABEL_REPEATED;
+    } else if (tryConsume("required")) {
+      return FieldDescriptorProto.Label.LABEL_REQUIRED;
+    }
+    return null;
+  }
+
+  private boolean parseMessageFieldNoLabel(final FieldDescriptorProto.Builder field,
+                                           final Container<DescriptorProto.Builder> messages,
+                                           final LocationRecorder parentLocation,
+                                           final int locationFieldNumberForNestedType,
+                                           final LocationRecorder fieldLocation) {
+    final MapField mapField = new MapField();
+
+    // Parse type
+    try (final LocationRecorder location = new LocationRecorder(fieldLocation)) {
+      boolean typeParsed = false;
+      TypeOrName type = null;
+
+      // Special case map field. We only treat the field as a map field if the field type name
+      // starts with the word "map" with a following "<".
+      if (tryConsume("map")) {
+        if (lookingAt("<")) {
+          mapField.isMapField = true;
+        } else {
+          // False positive
+          typeParsed = true;
+          type = TypeOrName.name("map");
+        }
+      }
+
+      if (mapField.isMapField) {
+        if (field.hasOneofIndex()) {
+          addError("Map fields are not allowed in oneofs.");
+          return false;
+        }
+        if (field.hasLabel()) {
+          addError("Field labels (required/optional/repeated) are not allowed on map fields.");
+          return false;
+        }
+        if (field.hasExtendee()) {
+          addError("Map fields are not allowed to be extensions.");
+          return false;
+        }
+        field.setLabel(FieldDescriptorProto.Label.LABEL_REPEATED);
+        if (!consume("<")) {
+          return false;
+        }
+        mapField.keyType = parseType();
+        if (mapField.keyType == null || !consume(",")) {
+          return false;
+        }
+        mapField.valueType = parseType();
+        if (mapField.valueType == null || !consume(">")) {
+          return false;
+        }
+        // The type name of the map field is set once the field name is known
+        location.addPath(FieldDescriptorProto.TYPE_NAME_FIELD_NUMBER);
+      } else {
+        // Handle the case where no explicit label is given for a non-map field
+        if (!field.hasLabel() && syntaxIdentifier.equals("proto3")) {
+          field.setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL);
+        }
+        if (!field.hasLabel()) {
+          addError("Expected \"required\", \"optional\", or \"repeated\".");
+          // We can reasonably recover by assuming the user forgot the label altogether
+          field.setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL);
+        }
+
+        // Handle the case where the actual type is a message or enum named "map", which was
+        // already consumed above
+        if (!typeParsed) {
+          type = parseType();
+          if (type == null) {
+            return false;
+          }
+        }
+        if (type.typeName == null) {
+          location.addPath(FieldDescriptorProto.TYPE_FIELD_NUMBER);
+          field.setType(type.type);
+        } else {
+          location.addPath(FieldDescriptorProto.TYPE_NAME_FIELD_NUMBER);
+          field.setTypeName(type.typeName);
+        }
+      }
+    }
+
+    // Parse name and '='
+    final Token nameToken = input.current().copy();
+    final LocationRecorder nameLocation =
+        new LocationRecorder(fieldLocation, FieldDescriptorProto.NAME_FIELD_NUMBER);
+    try {
+      final String name = consumeIdentifier("Expected field name.");
+      if (name == null) {
+        return false;
+      }
+      field.setName(name);
+    } finally {
+      nameLocation.end();
+    }
+    if (!consume("=", "Missing field number.")) {
+      return false;
+    }
+
+    // Parse field number
+    final LocationRecorder numberLocation =
+        new LocationRecorder(fieldLocation, FieldDescriptorProto.NUMBER_FIELD_NUMBER);
+    try {
+      final Integer number = consumeInteger("Expected field number.");
+      if (number == null) {
+        return false;
+      }
+      field.setNumber(number);
+    } finally {
+      numberLocation.end();
+    }
+
+    // Parse options
+    if (!parseFieldOptions(field, fieldLocation)) {
+      return false;
+    }
+
+    // Deal with groups
+    if (field.hasType() && field.getType() == FieldDescriptorProto.Type.TYPE_GROUP) {
+      // Since a group declares both a message type and a field, we have to create overlapping
+      // locations
+      try (final LocationRecorder groupLocation = new LocationRecorder(parentLocation)) {
+        groupLocation.startAt(fieldLocation);
+        groupLocation.addPath(locationFieldNumberForNestedType);
+        groupLocation.addPath(messages.size());
+
+        final DescriptorProto.Builder group = messages.add();
+        group.setName(field.getName());
+
+        // Record name location to match the field name's location
+        try (final LocationRecorder location =
+                 new LocationRecorder(groupLocation, DescriptorProto.NAME_FIELD_NUMBER)) {
+          location.startAt(nameToken);
+          location.endAt(nameToken);
+        }
+
+        // The field's type_name also comes from the name
+        try (final LocationRecorder location = new LocationRecorder(
+            fieldLocation, FieldDescriptorProto.TYPE_NAME_FIELD_NUMBER)) {
+          location.startAt(nameToken);
+          location.endAt(nameToken);
+        }
+
+        // As a hack for backwards-compatibility, the group name must start with a capital
+        // letter and the field name is lower-cased
+        final char first = group.getName().charAt(0);
+        if (first < 'A' || 'Z' < first) {
+          addError(nameToken.line, nameToken.column,
+                   "Group names must start with a capital letter.");
+        }
+        field.setName(ProtoStrings.asciiToLowerCase(field.getName()));
+
+        field.setTypeName(group.getName());
+        if (lookingAt("{")) {
+          if (!parseMessageBlock(group, groupLocation)) {
+            return false;
+          }
+        } else {
+          addError("Missing group body.");
+          return false;
+        }
+      }
+    } else {
+      if (!consumeEndOfDeclaration(";", fieldLocation)) {
+        return false;
+      }
+    }
+
+    // Create a map entry type if this is a map field
+    if (mapField.isMapField) {
+      generateMapEntry(mapField, field, messages);
+    }
+
+    return true;
+  }
+
+  private static void generateMapEntry(final MapField mapField,
+                                       final FieldDescriptorProto.Builder field,
+                                       final Container<DescriptorProto.Builder> messages) {
+    final DescriptorProto.Builder entry = messages.add();
+    final String entryName = ProtoStrings.mapEntryName(field.getName());
+    field.setTypeName(entryName);
+    entry.setName(entryName);
+    entry.getOptionsBuilder().setMapEntry(true);
+
+    final FieldDescriptorProto.Builder keyField = entry.addFieldBuilder()
+        .setName("key")
+        .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+        .setNumber(1);
+    mapField.keyType.applyTo(keyField);
+
+    final FieldDescriptorProto.Builder valueField = entry.addFieldBuilder()
+        .setName("value")
+        .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+        .setNumber(2);
+    mapField.valueType.applyTo(valueField);
+  }
+
+  private boolean parseFieldOptions(final FieldDescriptorProto.Builder field,
+                                    final LocationRecorder fieldLocation) {
+    if (!lookingAt("[")) {
+      return true;
+    }
+
+    try (final LocationRecorder location =
+             new LocationRecorder(fieldLocation, FieldDescriptorProto.OPTIONS_FIELD_NUMBER)) {
+      if (!consume("[")) {
+        return false;
+      }
+
+      do {
+        if (lookingAt("default")) {
+          // The default value is not actually an option, so it gets the field's location as
+          // parent
+          if (!parseDefaultAssignment(field, fieldLocation)) {
+            return false;
+          }
+        } else if (lookingAt("json_name")) {
+          // Like default value, "json_name" is not an actual option
+          if (!parseJsonName(field, fieldLocation)) {
+            return false;
+          }
+        } else {
+          if (!parseOption(field.getOptionsBuilder(), location, false)) {
+            return false;
+          }
+        }
+      } while (tryConsume(","));
+
+      return consume("]");
+    }
+  }
+
+  private boolean parseDefaultAssignment(final FieldDescriptorProto.Builder field,
+                                         final LocationRecorder fieldLocation) {
+    if (field.hasDefaultValue()) {
+      addError("Already set option \"default\".");
+      field.clearDefaultValue();
+    }
+
+    if (!consume("default") || !consume("=")) {
+      return false;
+    }
+
+    final LocationRecorder defaultValueLocation = new LocationRecorder(
+        fieldLocation, FieldDescriptorProto.DEFAULT_VALUE_FIELD_NUMBER);
+    try {
+      if (!field.hasType()) {
+        // The field has a type name, but it's not yet known if it's a message or an enum.
+        // Simply take the current token as the default value, the linker reports an error if
+        // it is not a valid enum value.
+        field.setDefaultValue(input.current().text);
+        input.next();
+        return true;
+      }
+
+      final StringBuilder defaultValue = new StringBuilder();
+      switch (field.getType()) {
+        case TYPE_INT32:
+        case TYPE_INT64:
+        case TYPE_SINT32:
+        case TYPE_SINT64:
+        case TYPE_SFIXED32:
+        case TYPE_SFIXED64: {
+          long maxValue = INT64_MAX;
+          if (field.getType() == FieldDescriptorProto.Type.TYPE_INT32
+              || field.getType() == FieldDescriptorProto.Type.TYPE_SINT32
+              || field.getType() == FieldDescriptorProto.Type.TYPE_SFIXED32) {
+            maxValue = INT32_MAX;
+          }
+
+          // These types can be negative
+          if (tryConsume("-")) {
+            defaultValue.append("-");
+            // Two's complement always has one more negative value than positive
+            ++maxValue;
+          }
+          // Parse the integer to verify that it is not out-of-range
+          final Long value =
+              consumeInteger64(maxValue, "Expected integer for field default value.");
+          if (value == null) {
+            return false;
+          }
+          defaultValue.append(Long.toUnsignedString(value));
+          break;
+        }
+
+        case TYPE_UINT32:
+        case TYPE_UINT64:
+        case TYPE_FIXED32:
+        case TYPE_FIXED64: {
+          long maxValue = UINT64_MAX;
+          if (field.getType() == FieldDescriptorProto.Type.TYPE_UINT32
+              || field.getType() == FieldDescriptorProto.Type.TYPE_FIXED32) {
+            maxValue = UINT32_MAX;
+          }
+
+          if (tryConsume("-")) {
+            addError("Unsigned field can't have negative default value.");
+          }
+          final Long value =
+              consumeInteger64(maxValue, "Expected integer for field default value.");
+          if (value == null) {
+            return false;
+          }
+          defaultValue.append(Long.toUnsignedString(value));
+          break;
+        }
+
+        case TYPE_FLOAT:
+        case TYPE_DOUBLE: {
+          // These types can be negative
+          if (tryConsume("-")) {
+            defaultValue.append("-");
+          }
+          // Parse the number because hex integers have to be converted to decimal floats
+          final Double value = consumeNumber("Expected number.");
+          if (value == null) {
+            return false;
+          }
+          defaultValue.append(ProtoStrings.simpleDtoa(value));
+          break;
+        }
+
+        case TYPE_BOOL:
+          if (tryConsume("true")) {
+            defaultValue.append("true");
+          } else if (tryConsume("false")) {
+            defaultValue.append("false");
+          } else {
+            addError("Expected \"true\" or \"false\".");
+            return false;
+          }
+          break;
+
+        case TYPE_STRING: {
+          final ByteString value = consumeString("Expected string for field default value.");
+          if (value == null) {
+            return false;
+          }
+          defaultValue.append(value.toStringUtf8());
+          break;
+        }
+
+        case TYPE_BYTES: {
+          final ByteString value = consumeString("Expected string.");
+          if (value == null) {
+            return false;
+          }
+          defaultValue.append(ProtoStrings.cEscape(value));
+          break;
+        }
+
+        case TYPE_ENUM: {
+          final String value =
+              consumeIdentifier("Expected enum identifier for field default value.");
+          if (value == null) {
+            return false;
+          }
+          defaultValue.append(value);
+          break;
+        }
+
+        case TYPE_MESSAGE:
+        case TYPE_GROUP:
+          addError("Messages can't have default values.");
+          return false;
+      }
+
+      field.setDefaultValue(defaultValue.toString());
+      return true;
+    } finally {
+      defaultValueLocation.end();
+    }
+  }
+
+  private boolean parseJsonName(final FieldDescriptorProto.Builder field,
+                                final LocationRecorder fieldLocation) {
+    if (field.hasJsonName()) {
+      addError("Already set option \"json_name\".");
+      field.clearJsonName();
+    }
+
+    if (!consume("json_name") || !consume("=")) {
+      return false;
+    }
+
+    final LocationRecorder jsonNameLocation = new LocationRecorder(
+        fieldLocation, FieldDescriptorProto.JSON_NAME_FIELD_NUMBER);
+    try {
+      final ByteString jsonName = consumeString("Expected string for JSON name.");
+      if (jsonName == null) {
+        return false;
+      }
+      field.setJsonName(jsonName.toStringUtf8());
+      return true;
+    } finally {
+      jsonNameLocation.end();
+    }
+  }
+
+  private boolean parseOneof(final OneofDescriptorProto.Builder oneofDecl,
+                             final DescriptorProto.Builder containingType,
+                             final int oneofIndex,
+                             final LocationRecorder oneofLocation,
+                             final LocationRecorder containingTypeLocation) {
+    if (!consume("oneof")) {
+      return false;
+    }
+
+    final LocationRecorder nameLocation =
+        new LocationRecorder(oneofLocation, OneofDescriptorProto.NAME_FIELD_NUMBER);
+    try {
+      final String name = consumeIdentifier("Expected oneof name.");
+      if (name == null) {
+        return false;
+      }
+      oneofDecl.setName(name);
+    } finally {
+      nameLocation.end();
+    }
+
+    if (!consumeEndOfDeclaration("{", oneofLocation)) {
+      return false;
+    }
+
+    do {
+      if (atEnd()) {
+        addError("Reached end of input in oneof definition (missing '}').");
+        return false;
+      }
+
+      if (lookingAt("option")) {
+        try (final LocationRecorder optionLocation = new LocationRecorder(
+            oneofLocation, OneofDescriptorProto.OPTIONS_FIELD_NUMBER)) {
+          if (!parseOption(oneofDecl.getOptionsBuilder(), optionLocation, true)) {
+            return false;
+          }
+        }
+        continue;
+      }
+
+      // Print a nice error if the user accidentally tries to place a label on an individual
+      // member of a oneof
+      if (lookingAt("required") || lookingAt("optional") || lookingAt("repeated")) {
+        addError("Fields in oneofs must not have labels (required / optional / repeated).");
+        // We can continue parsing here because we understand what the user meant
+        input.next();
+      }
+
+      try (final LocationRecorder fieldLocation = new LocationRecorder(
+          containingTypeLocation, DescriptorProto.FIELD_FIELD_NUMBER,
+          containingType.getFieldCount())) {
+        final FieldDescriptorProto.Builder field = containingType.addFieldBuilder()
+            .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+            .setOneofIndex(oneofIndex);
+
+        if (!parseMessageFieldNoLabel(
+            field,
+            Container.of(containingType::getNestedTypeCount,
+                         containingType::addNestedTypeBuilder),
+            containingTypeLocation, DescriptorProto.NESTED_TYPE_FIELD_NUMBER, fieldLocation)) {
+          // This statement failed to parse. Skip it, but keep looping to parse other
+          // statements.
+          skipStatement();
+        }
+      }
+    } while (!tryConsumeEndOfDeclaration("}", null));
+
+    return true;
+  }
+
+  private boolean parseExtensions(final DescriptorProto.Builder message,
+                                  final LocationRecorder extensionsLocation) {
+    if (!consume("extensions")) {
+      return false;
+    }
+
+    final int oldRangeSize = message.getExtensionRangeCount();
+
+    do {
+      // Note that EXTENSION_RANGE_FIELD_NUMBER was already pushed by the parent
+      try (final LocationRecorder location =
+               new LocationRecorder(extensionsLocation, message.getExtensionRangeCount())) {
+        final DescriptorProto.ExtensionRange.Builder range = message.addExtensionRangeBuilder();
+
+        final Token startToken;
+        final Integer start;
+        final LocationRecorder startLocation = new LocationRecorder(
+            location, DescriptorProto.ExtensionRange.START_FIELD_NUMBER);
+        try {
+          startToken = input.current().copy();
+          start = consumeInteger("Expected field number range.");
+          if (start == null) {
+            return false;
+          }
+        } finally {
+          startLocation.end();
+        }
+
+        int end;
+        if (tryConsume("to")) {
+          final LocationRecorder endLocation = new LocationRecorder(
+              location, DescriptorProto.ExtensionRange.END_FIELD_NUMBER);
+          try {
+            if (tryConsume("max")) {
+              // Set to the sentinel value - 1 since the value is incremented below
+              end = MAX_RANGE_SENTINEL - 1;
+            } else {
+              final Integer value = consumeInteger("Expected integer.");
+              if (value == null) {
+                return false;
+              }
+              end = value;
+            }
+          } finally {
+            endLocation.end();
+          }
+        } else {
+          try (final LocationRecorder endLocation = new LocationRecorder(
+              location, DescriptorProto.ExtensionRange.END_FIELD_NUMBER)) {
+            endLocation.startAt(startToken);
+            endLocation.endAt(startToken);
+          }
+          end = start;
+        }
+
+        // Users like to specify inclusive ranges, but in code the end number is exclusive
+        ++end;
+
+        range.setStart(start);
+        range.setEnd(end);
+      }
+    } while (tryConsume(","));
+
+    if (lookingAt("[")) {
+      // Like protoc 3.5, the option locations lack the extension range index
+      try (final LocationRecorder location = new LocationRecorder(
+          extensionsLocation, DescriptorProto.ExtensionRange.OPTIONS_FIELD_NUMBER)) {
+        if (!consume("[")) {
+          return false;
+        }
+
+        // Parse extension range options in the first range
+        final DescriptorProto.ExtensionRange.Builder firstRange =
+            message.getExtensionRangeBuilder(oldRangeSize);
+        do {
+          if (!parseOption(firstRange.getOptionsBuilder(), location, false)) {
+            return false;
+          }
+        } while (tryConsume(","));
+
+        if (!consume("]")) {
+          return false;
+        }
+
+        // Then copy the extension range options to all of the other ranges we've parsed
+        for (int i = oldRangeSize + 1; i < message.getExtensionRangeCount(); i++) {
+          message.getExtensionRangeBuilder(i).setOptions(firstRange.getOptions());
+        }
+      }
+    }
+
+    return consumeEndOfDeclaration(";", extensionsLocation);
+  }
+
+  private boolean parseReserved(final DescriptorProto.Builder message,
+                                final LocationRecorder messageLocation) {
+    if (!consume("reserved")) {
+      return false;
+    }
+    if (lookingAtType(TokenType.STRING)) {
+      try (final LocationRecorder location = new LocationRecorder(
+          messageLocation, DescriptorProto.RESERVED_NAME_FIELD_NUMBER)) {
+        return parseReservedNames(message::getReservedNameCount, message::addReservedName,
+                                  location);
+      }
+    } else {
+      try (final LocationRecorder location = new LocationRecorder(
+          messageLocation, DescriptorProto.RESERVED_RANGE_FIELD_NUMBER)) {
+        return parseReservedNumbers(message, location);
+      }
+    }
+  }
+
+  private boolean parseReservedNames(final IntSupplier count,
+                                     final Consumer<String> add,
+                                     final LocationRecorder parentLocation) {
+    do {
+      final LocationRecorder location =
+          new LocationRecorder(parentLocation, count.getAsInt());
+      try {
+        final ByteString name = consumeString("Expected field name.");
+        if (name == null) {
+          return false;
+        }
+        add.accept(name.toStringUtf8());
+      } finally {
+        location.end();
+      }
+    } while (tryConsume(","));
+    return consumeEndOfDeclaration(";", parentLocation);
+  }
+
+  private boolean parseReservedNumbers(final DescriptorProto.Builder message,
+                                       final LocationRecorder parentLocation) {
+    boolean first = true;
+    do {
+      try (final LocationRecorder location =
+               new LocationRecorder(parentLocation, message.getReservedRangeCount())) {
+        final DescriptorProto.ReservedRange.Builder range = message.addReservedRangeBuilder();
+
+        final Token startToken;
+        final Integer start;
+        final LocationRecorder startLocation = new LocationRecorder(
+            location, DescriptorProto.ReservedRange.START_FIELD_NUMBER);
+        try {
+          startToken = input.current().copy();
+          start = consumeInteger(first
+                                 ? "Expected field name or number range."
+                                 : "Expected field number range.");
+          if (start == null) {
+            return false;
+          }
+        } finally {
+          startLocation.end();
+        }
+
+        int end;
+        if (tryConsume("to")) {
+          final LocationRecorder endLocation = new LocationRecorder(
+              location, DescriptorProto.ReservedRange.END_FIELD_NUMBER);
+          try {
+            if (tryConsume("max")) {
+              end = MAX_RANGE_SENTINEL - 1;
+            } else {
+              final Integer value = consumeInteger("Expected integer.");
+              if (value == null) {
+                return false;
+              }
+              end = value;
+            }
+          } finally {
+            endLocation.end();
+          }
+        } else {
+          try (final LocationRecorder endLocation = new LocationRecorder(
+              location, DescriptorProto.ReservedRange.END_FIELD_NUMBER)) {
+            endLocation.startAt(startToken);
+            endLocation.endAt(startToken);
+          }
+          end = start;
+        }
+
+        // Users like to specify inclusive ranges, but in code the end number is exclusive
+        ++end;
+
+        range.setStart(start);
+        range.setEnd(end);
+        first = false;
+      }
+    } while (tryConsume(","));
+
+    return consumeEndOfDeclaration(";", parentLocation);
+  }
+
+  private boolean parseExtend(final Container<FieldDescriptorProto.Builder> extensions,
+                              final Container<DescriptorProto.Builder> messages,
+                              final LocationRecorder parentLocation,
+                              final int locationFieldNumberForNestedType,
+                              final LocationRecorder extendLocation) {
+    if (!consume("extend")) {
+      return false;
+    }
+
+    // Parse the extendee type
+    final Token extendeeStart = input.current().copy();
+    final String extendee = parseUserDefinedType();
+    if (extendee == null) {
+      return false;
+    }
+    final Token extendeeEnd = input.previous();
+
+    // Parse the block
+    if (!consumeEndOfDeclaration("{", extendLocation)) {
+      return false;
+    }
+
+    do {
+      if (atEnd()) {
+        addError("Reached end of input in extend definition (missing '}').");
+        return false;
+      }
+
+      // Note that EXTENSION_FIELD_NUMBER was already pushed by the parent
+      try (final LocationRecorder location =
+               new LocationRecorder(extendLocation, extensions.size())) {
+        final FieldDescriptorProto.Builder field = extensions.add();
+
+        try (final LocationRecorder extendeeLocation =
+                 new LocationRecorder(location, FieldDescriptorProto.EXTENDEE_FIELD_NUMBER)) {
+          extendeeLocation.startAt(extendeeStart);
+          extendeeLocation.endAt(extendeeEnd);
+        }
+
+        field.setExtendee(extendee);
+
+        if (!parseMessageField(field, messages, parentLocation,
+                               locationFieldNumberForNestedType, location)) {
+          // This statement failed to parse. Skip it, but keep looping to parse other
+          // statements.
+          skipStatement();
+        }
+      }
+    } while (!tryConsumeEndOfDeclaration("}", null));
+
+    return true;
+  }
+
+  // ===========================================================================================
+  // Enums
+
+  private boolean parseEnumDefinition(final EnumDescriptorProto.Builder enumType,
+                                      final LocationRecorder enumLocation) {
+    if (!consume("enum")) {
+      return false;
+    }
+
+    final LocationRecorder nameLocation =
+        new LocationRecorder(enumLocation, EnumDescriptorProto.NAME_FIELD_NUMBER);
+    try {
+      final String name = consumeIdentifier("Expected enum name.");
+      if (name == null) {
+        return false;
+      }
+      enumType.setName(name);
+    } finally {
+      nameLocation.end();
+    }
+
+    return parseEnumBlock(enumType, enumLocation);
+  }
+
+  private boolean parseEnumBlock(final EnumDescriptorProto.Builder enumType,
+                                 final LocationRecorder enumLocation) {
+    if (!consumeEndOfDeclaration("{", enumLocation)) {
+      return false;
+    }
+
+    while (!tryConsumeEndOfDeclaration("}", null)) {
+      if (atEnd()) {
+        addError("Reached end of input in enum definition (missing '}').");
+        return false;
+      }
+
+      if (!parseEnumStatement(enumType, enumLocation)) {
+        // This statement failed to parse. Skip it, but keep looping to parse other statements.
+        skipStatement();
+      }
+    }
+
+    return true;
+  }
+
+  private boolean parseEnumStatement(final EnumDescriptorProto.Builder enumType,
+                                     final LocationRecorder enumLocation) {
+    if (tryConsumeEndOfDeclaration(";", null)) {
+      // empty statement; ignore
+      return true;
+    } else if (lookingAt("option")) {
+      try (final LocationRecorder location =
+               new LocationRecorder(enumLocation, EnumDescriptorProto.OPTIONS_FIELD_NUMBER)) {
+        return parseOption(enumType.getOptionsBuilder(), location, true);
+      }
+    } else if (lookingAt("reserved")) {
+      return parseReserved(enumType, enumLocation);
+    } else {
+      try (final LocationRecorder location = new LocationRecorder(
+          enumLocation, EnumDescriptorProto.VALUE_FIELD_NUMBER, enumType.getValueCount())) {
+        return parseEnumConstant(enumType.addValueBuilder(), location);
+      }
+    }
+  }
+
+  private boolean parseEnumConstant(final EnumValueDescriptorProto.Builder enumValue,
+                                    final LocationRecorder enumValueLocation) {
+    // Parse name
+    final LocationRecorder nameLocation = new LocationRecorder(
+        enumValueLocation, EnumValueDescriptorProto.NAME_FIELD_NUMBER);
+    try {
+      final String name = consumeIdentifier("Expected enum constant name.");
+      if (name == null) {
+        return false;
+      }
+      enumValue.setName(name);
+    } finally {
+      nameLocation.end();
+    }
+
+    if (!consume("=", "Missing numeric value for enum constant.")) {
+      return false;
+    }
+
+    // Parse value
+    final LocationRecorder numberLocation = new LocationRecorder(
+        enumValueLocation, EnumValueDescriptorProto.NUMBER_FIELD_NUMBER);
+    try {
+      final Integer number = consumeSignedInteger("Expected integer.");
+      if (number == null) {
+        return false;
+      }
+      enumValue.setNumber(number);
+    } finally {
+      numberLocation.end();
+    }
+
+    if (!parseEnumConstantOptions(enumValue, enumValueLocation)) {
+      return false;
+    }
+
+    return consumeEndOfDeclaration(";", enumValueLocation);
+  }
+
+  private boolean parseEnumConstantOptions(final EnumValueDescriptorProto.Builder value,
+                                           final LocationRecorder enumValueLocation) {
+    if (!lookingAt("[")) {
+      return true;
+    }
+
+    try (final LocationRecorder location = new LocationRecorder(
+        enumValueLocation, EnumValueDescriptorProto.OPTIONS_FIELD_NUMBER)) {
+      if (!consume("[")) {
+        return false;
+      }
+
+      do {
+        if (!parseOption(value.getOptionsBuilder(), location, false)) {
+          return false;
+        }
+      } while (tryConsume(","));
+
+      return consume("]");
+    }
+  }
+
+  private boolean parseReserved(final EnumDescriptorProto.Builder enumType,
+                                final LocationRecorder enumLocation) {
+    if (!consume("reserved")) {
+      return false;
+    }
+    // protoc records these with the field numbers of the corresponding DescriptorProto fields
+    if (lookingAtType(TokenType.STRING)) {
+      try (final LocationRecorder location = new LocationRecorder(
+          enumLocation, DescriptorProto.RESERVED_NAME_FIELD_NUMBER)) {
+        return parseReservedNames(enumType::getReservedNameCount, enumType::addReservedName,
+                                  location);
+      }
+    } else {
+      try (final LocationRecorder location = new LocationRecorder(
+          enumLocation, DescriptorProto.RESERVED_RANGE_FIELD_NUMBER)) {
+        return parseReservedNumbers(enumType, location);
+      }
+    }
+  }
+
+  private boolean parseReservedNumbers(final EnumDescriptorProto.Builder enumType,
+                                       final LocationRecorder parentLocation) {
+    boolean first = true;
+    do {
+      try (final LocationRecorder location =
+               new LocationRecorder(parentLocation, enumType.getReservedRangeCount())) {
+        final EnumDescriptorProto.EnumReservedRange.Builder range =
+            enumType.addReservedRangeBuilder();
+
+        final Token startToken;
+        final Integer start;
+        final LocationRecorder startLocation = new LocationRecorder(
+            location, EnumDescriptorProto.EnumReservedRange.START_FIELD_NUMBER);
+        try {
+          startToken = input.current().copy();
+          start = consumeSignedInteger(first
+                                       ? "Expected enum value or number range."
+                                       : "Expected enum number range.");
+          if (start == null) {
+            return false;
+          }
+        } finally {
+          startLocation.end();
+        }
+
+        final int end;
+        if (tryConsume("to")) {
+          final LocationRecorder endLocation = new LocationRecorder(
+              location, EnumDescriptorProto.EnumReservedRange.END_FIELD_NUMBER);
+          try {
+            if (tryConsume("max")) {
+              end = Integer.MAX_VALUE;
+            } else {
+              final Integer value = consumeSignedInteger("Expected integer.");
+              if (value == null) {
+                return false;
+              }
+              end = value;
+            }
+          } finally {
+            endLocation.end();
+          }
+        } else {
+          try (final LocationRecorder endLocation = new LocationRecorder(
+              location, EnumDescriptorProto.EnumReservedRange.END_FIELD_NUMBER)) {
+            endLocation.startAt(startToken);
+            endLocation.endAt(startToken);
+          }
+          end = start;
+        }
+
+        range.setStart(start);
+        range.setEnd(end);
+        first = false;
+      }
+    } while (tryConsume(","));
+
+    return consumeEndOfDeclaration(";", parentLocation);
+  }
+
+  // ===========================================================================================
+  // Services
+
+  private boolean parseServiceDefinition(final ServiceDescriptorProto.Builder service,
+                                         final LocationRecorder serviceLocation) {
+    if (!consume("service")) {
+      return false;
+    }
+
+    final LocationRecorder nameLocation =
+        new LocationRecorder(serviceLocation, ServiceDescriptorProto.NAME_FIELD_NUMBER);
+    try {
+      final String name = consumeIdentifier("Expected service name.");
+      if (name == null) {
+        return false;
+      }
+      service.setName(name);
+    } finally {
+      nameLocation.end();
+    }
+
+    return parseServiceBlock(service, serviceLocation);
+  }
+
+  private boolean parseServiceBlock(final ServiceDescriptorProto.Builder service,
+                                    final LocationRecorder serviceLocation) {
+    if (!consumeEndOfDeclaration("{", serviceLocation)) {
+      return false;
+    }
+
+    while (!tryConsumeEndOfDeclaration("}", null)) {
+      if (atEnd()) {
+        addError("Reached end of input in service definition (missing '}').");
+        return false;
+      }
+
+      if (!parseServiceStatement(service, serviceLocation)) {
+        // This statement failed to parse. Skip it, but keep looping to parse other statements.
+        skipStatement();
+      }
+    }
+
+    return true;
+  }
+
+  private boolean parseServiceStatement(final ServiceDescriptorProto.Builder service,
+                                        final LocationRecorder serviceLocation) {
+    if (tryConsumeEndOfDeclaration(";", null)) {
+      // empty statement; ignore
+      return true;
+    } else if (lookingAt("option")) {
+      try (final LocationRecorder location = new LocationRecorder(
+          serviceLocation, ServiceDescriptorProto.OPTIONS_FIELD_NUMBER)) {
+        return parseOption(service.getOptionsBuilder(), location, true);
+      }
+    } else {
+      try (final LocationRecorder location = new LocationRecorder(
+          serviceLocation, ServiceDescriptorProto.METHOD_FIELD_NUMBER,
+          service.getMethodCount())) {
+        return parseServiceMethod(service.addMethodBuilder(), location);
+      }
+    }
+  }
+
+  private boolean parseServiceMethod(final MethodDescriptorProto.Builder method,
+                                     final LocationRecorder methodLocation) {
+    if (!consume("rpc")) {
+      return false;
+    }
+
+    final LocationRecorder nameLocation =
+        new LocationRecorder(methodLocation, MethodDescriptorProto.NAME_FIELD_NUMBER);
+    try {
+      final String name = consumeIdentifier("Expected method name.");
+      if (name == null) {
+        return false;
+      }
+      method.setName(name);
+    } finally {
+      nameLocation.end();
+    }
+
+    // Parse input type
+    if (!consume("(")) {
+      return false;
+    }
+    if (lookingAt("stream")) {
+      final LocationRecorder clientStreamingLocation = new LocationRecorder(
+          methodLocation, MethodDescriptorProto.CLIENT_STREAMING_FIELD_NUMBER);
+      try {
+        method.setClientStreaming(true);
+        if (!consume("stream")) {
+          return false;
+        }
+      } finally {
+        clientStreamingLocation.end();
+      }
+    }
+    final LocationRecorder inputTypeLocation = new LocationRecorder(
+        methodLocation, MethodDescriptorProto.INPUT_TYPE_FIELD_NUMBER);
+    try {
+      final String inputType = parseUserDefinedType();
+      if (inputType == null) {
+        return false;
+      }
+      method.setInputType(inputType);
+    } finally {
+      inputTypeLocation.end();
+    }
+    if (!consume(")")) {
+      return false;
+    }
+
+    // Parse output type
+    if (!consume("returns") || !consume("(")) {
+      return false;
+    }
+    if (lookingAt("stream")) {
+      final LocationRecorder serverStreamingLocation = new LocationRecorder(
+          methodLocation, MethodDescriptorProto.SERVER_STREAMING_FIELD_NUMBER);
+      try {
+        if (!consume("stream")) {
+          return false;
+        }
+        method.setServerStreaming(true);
+      } finally {
+        serverStreamingLocation.end();
+      }
+    }
+    final LocationRecorder outputTypeLocation = new LocationRecorder(
+        methodLocation, MethodDescriptorProto.OUTPUT_TYPE_FIELD_NUMBER);
+    try {
+      final String outputType = parseUserDefinedType();
+      if (outputType == null) {
+        return false;
+      }
+      method.setOutputType(outputType);
+    } finally {
+      outputTypeLocation.end();
+    }
+    if (!consume(")")) {
+      return false;
+    }
+
+    if (lookingAt("{")) {
+      // Options!
+      return parseMethodOptions(method, methodLocation);
+    } else {
+      return consumeEndOfDeclaration(";", methodLocation);
+    }
+  }
+
+  private boolean parseMethodOptions(final MethodDescriptorProto.Builder method,
+                                     final LocationRecorder parentLocation) {
+    consumeEndOfDeclaration("{", parentLocation);
+    // protoc sets the options as soon as there's a block, even if it's empty
+    method.getOptionsBuilder();
+    while (!tryConsumeEndOfDeclaration("}", null)) {
+      if (atEnd()) {
+        addError("Reached end of input in method options (missing '}').");
+        return false;
+      }
+
+      if (tryConsumeEndOfDeclaration(";", null)) {
+        // empty statement; ignore
+      } else {
+        try (final LocationRecorder location = new LocationRecorder(
+            parentLocation, MethodDescriptorProto.OPTIONS_FIELD_NUMBER)) {
+          if (!parseOption(method.getOptionsBuilder(), location, true)) {
+            // This statement failed to parse. Skip it, but keep looping to parse other
+            // statements.
+            skipStatement();
+          }
+        }
+      }
+    }
+
+    return true;
+  }
+
+  // ===========================================================================================
+  // Options
+
+  /**
+   * Parse a single option into an {@link UninterpretedOption} added to {@code options}. Option
+   * statements ({@code option foo = 1;}) have {@code statement} set, while options within
+   * brackets ({@code [foo = 1]}) don't.
+   */
+  private boolean parseOption(final Message.Builder options,
+                              final LocationRecorder optionsLocation,
+                              final boolean statement) {
+    final Descriptors.FieldDescriptor uninterpretedOptionField =
+        options.getDescriptorForType().findFieldByName("uninterpreted_option");
+    final UninterpretedOption.Builder uninterpretedOption = UninterpretedOption.newBuilder();
+
+    try (final LocationRecorder location = new LocationRecorder(
+        optionsLocation, uninterpretedOptionField.getNumber(),
+        options.getRepeatedFieldCount(uninterpretedOptionField))) {
+      try {
+        if (statement && !consume("option")) {
+          return false;
+        }
+        if (!parseOptionName(uninterpretedOption, location) || !consume("=")) {
+          return false;
+        }
+        if (!parseOptionValue(uninterpretedOption, location)) {
+          return false;
+        }
+        return !statement || consumeEndOfDeclaration(";", location);
+      } finally {
+        options.addRepeatedField(uninterpretedOptionField, uninterpretedOption.buildPartial());
+      }
+    }
+  }
+
+  private boolean parseOptionName(final UninterpretedOption.Builder uninterpretedOption,
+                                  final LocationRecorder location) {
+    try (final LocationRecorder nameLocation =
+             new LocationRecorder(location, UninterpretedOption.NAME_FIELD_NUMBER)) {
+      try (final LocationRecorder partLocation =
+               new LocationRecorder(nameLocation, uninterpretedOption.getNameCount())) {
+        if (!parseOptionNamePart(uninterpretedOption, partLocation)) {
+          return false;
+        }
+      }
+
+      while (lookingAt(".")) {
+        if (!consume(".")) {
+          return false;
+        }
+        try (final LocationRecorder partLocation =
+                 new LocationRecorder(nameLocation, uninterpretedOption.getNameCount())) {
+          if (!parseOptionNamePart(uninterpretedOption, partLocation)) {
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean parseOptionNamePart(final UninterpretedOption.Builder uninterpretedOption,
+                                      final LocationRecorder partLocation) {
+    final UninterpretedOption.NamePart.Builder name = uninterpretedOption.addNameBuilder();
+    if (lookingAt("(")) {
+      // This is an extension
+      if (!consume("(")) {
+        return false;
+      }
+
+      final LocationRecorder namePartLocation = new LocationRecorder(
+          partLocation, UninterpretedOption.NamePart.NAME_PART_FIELD_NUMBER);
+      try {
+        // An extension name consists of dot-separated identifiers, and may begin with a dot
+        final StringBuilder namePart = new StringBuilder();
+        name.setNamePart("");
+        if (lookingAtType(TokenType.IDENTIFIER)) {
+          final String identifier = consumeIdentifier("Expected identifier.");
+          namePart.append(identifier);
+          name.setNamePart(namePart.toString());
+        }
+        while (lookingAt(".")) {
+          if (!consume(".")) {
+            return false;
+          }
+          namePart.append(".");
+          final String identifier = consumeIdentifier("Expected identifier.");
+          if (identifier == null) {
+            name.setNamePart(namePart.toString());
+            return false;
+          }
+          namePart.append(identifier);
+        }
+        name.setNamePart(namePart.toString());
+      } finally {
+        namePartLocation.end();
+      }
+
+      if (!consume(")")) {
+        return false;
+      }
+      name.setIsExtension(true);
+    } else {
+      // This is a regular field
+      final LocationRecorder namePartLocation = new LocationRecorder(
+          partLocation, UninterpretedOption.NamePart.NAME_PART_FIELD_NUMBER);
+      try {
+        final String identifier = consumeIdentifier("Expected identifier.");
+        if (identifier == null) {
+          return false;
+        }
+        name.setNamePart(identifier);
+        name.setIsExtension(false);
+      } finally {
+        namePartLocation.end();
+      }
+    }
+    return true;
+  }
+
+  private boolean parseOptionValue(final UninterpretedOption.Builder uninterpretedOption,
+                                   final LocationRecorder location) {
+    try (final LocationRecorder valueLocation = new LocationRecorder(location)) {
+      // All values are a single token, except for negative numbers, which consist of a single
+      // '-' symbol, followed by a positive number
+      final boolean negative = tryConsume("-");
+
+      switch (input.current().type) {
+        case START:
+          throw new IllegalStateException("Trying to read value before any tokens were read");
+
+        case END:
+          addError("Unexpected end of stream while parsing option value.");
+          return false;
+
+        case IDENTIFIER: {
+          valueLocation.addPath(UninterpretedOption.IDENTIFIER_VALUE_FIELD_NUMBER);
+          if (negative) {
+            addError("Invalid '-' symbol before identifier.");
+            return false;
+          }
+          final String value = consumeIdentifier("Expected identifier.");
+          if (value == null) {
+            return false;
+          }
+          uninterpretedOption.setIdentifierValue(value);
+          break;
+        }
+
+        case INTEGER: {
+          final long maxValue = negative ? INT64_MAX + 1 : UINT64_MAX;
+          final Long value = consumeInteger64(maxValue, "Expected integer.");
+          if (value == null) {
+            return false;
+          }
+          if (negative) {
+            valueLocation.addPath(UninterpretedOption.NEGATIVE_INT_VALUE_FIELD_NUMBER);
+            uninterpretedOption.setNegativeIntValue(-value);
+          } else {
+            valueLocation.addPath(UninterpretedOption.POSITIVE_INT_VALUE_FIELD_NUMBER);
+            uninterpretedOption.setPositiveIntValue(value);
+          }
+          break;
+        }
+
+        case FLOAT: {
+          valueLocation.addPath(UninterpretedOption.DOUBLE_VALUE_FIELD_NUMBER);
+          final Double value = consumeNumber("Expected number.");
+          if (value == null) {
+            return false;
+          }
+          uninterpretedOption.setDoubleValue(negative ? -value : value);
+          break;
+        }
+
+        case STRING: {
+          valueLocation.addPath(UninterpretedOption.STRING_VALUE_FIELD_NUMBER);
+          if (negative) {
+            addError("Invalid '-' symbol before string.");
+            return false;
+          }
+          final ByteString value = consumeString("Expected string.");
+          if (value == null) {
+            return false;
+          }
+          uninterpretedOption.setStringValue(value);
+          break;
+        }
+
+        case SYMBOL:
+          if (lookingAt("{")) {
+            valueLocation.addPath(UninterpretedOption.AGGREGATE_VALUE_FIELD_NUMBER);
+            final String aggregate = parseUninterpretedBlock();
+            if (aggregate == null) {
+              return false;
+            }
+            uninterpretedOption.setAggregateValue(aggregate);
+            break;
+          }
+          addError("Expected option value.");
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Collect the tokens of a brace-delimited aggregate option value, separated by spaces and
+   * without the enclosing braces.
+   */
+  private String parseUninterpretedBlock() {
+    if (!consume("{")) {
+      return null;
+    }
+    final StringBuilder value = new StringBuilder();
+    int braceDepth = 1;
+    while (!atEnd()) {
+      if (lookingAt("{")) {
+        braceDepth++;
+      } else if (lookingAt("}")) {
+        braceDepth--;
+        if (braceDepth == 0) {
+          input.next();
+          return ProtoTokenizer.toUtf8(value.toString());
+        }
+      }
+      if (value.length() > 0) {
+        value.append(' ');
+      }
+      value.append(input.current().text);
+      input.next();
+    }
+    addError("Unexpected end of stream while parsing aggregate value.");
+    return null;
+  }
+
+  // ===========================================================================================
+  // Types
+
+  private TypeOrName parseType() {
+    final FieldDescriptorProto.Type type = TYPE_NAMES.get(input.current().text);
+    if (type != null) {
+      input.next();
+      return TypeOrName.type(type);
+    }
+    final String typeName = parseUserDefinedType();
+    return typeName == null ? null : TypeOrName.name(typeName);
+  }
+
+  private String parseUserDefinedType() {
+    if (TYPE_NAMES.containsKey(input.current().text)) {
+      // The only place enum types are allowed is for field types, but primitives are allowed
+      // there as well, so this error message doesn't need to account for enums
+      addError("Expected message type.");
+
+      // Pretend to accept this type so that we can go on parsing
+      final String typeName = input.current().text;
+      input.next();
+      return typeName;
+    }
+
+    final StringBuilder typeName = new StringBuilder();
+    // A leading "." means the name is fully-qualified
+    if (tryConsume(".")) {
+      typeName.append(".");
+    }
+
+    // Consume the first part of the name
+    String identifier = consumeIdentifier("Expected type name.");
+    if (identifier == null) {
+      return null;
+    }
+    typeName.append(identifier);
+
+    // Consume more parts
+    while (tryConsume(".")) {
+      typeName.append(".");
+      identifier = consumeIdentifier("Expected identifier.");
+      if (identifier == null) {
+        return null;
+      }
+      typeName.append(identifier);
+    }
+
+    return typeName.toString();
+  }
+
+  /**
+   * Either a scalar type or the name of a message or enum type.
+   */
+  private static class TypeOrName {
+
+    final FieldDescriptorProto.Type type;
+    final String typeName;
+
+    private TypeOrName(final FieldDescriptorProto.Type type, final String typeName) {
+      this.type = type;
+      this.typeName = typeName;
+    }
+
+    static TypeOrName type(final FieldDescriptorProto.Type type) {
+      return new TypeOrName(type, null);
+    }
+
+    static TypeOrName name(final String typeName) {
+      return new TypeOrName(null, typeName);
+    }
+
+    void applyTo(final FieldDescriptorProto.Builder field) {
+      if (typeName == null) {
+        field.setType(type);
+      } else {
+        field.setTypeName(typeName);
+      }
+    }
+  }
+
+  private static class MapField {
+
+    boolean isMapField;
+    TypeOrName keyType;
+    TypeOrName valueType;
+  }
+
+  /**
+   * A repeated field of a message being built, to which nested messages or extensions can be
+   * added.
+   */
+  private static class Container<T> {
+
+    private final IntSupplier size;
+    private final Supplier<T> add;
+
+    private Container(final IntSupplier size, final Supplier<T> add) {
+      this.size = size;
+      this.add = add;
+    }
+
+    static <T> Container<T> of(final IntSupplier size, final Supplier<T> add) {
+      return new Container<>(size, add);
+    }
+
+    int size() {
+      return size.getAsInt();
+    }
+
+    T add() {
+      return add.get();
+    }
+  }
+
+  /**
+   * Records the source location of a declaration. The span starts at the current token when the
+   * recorder is created and, unless ended explicitly, ends at the previous token when the
+   * recorder is closed.
+   */
+  private class LocationRecorder implements AutoCloseable {
+
+    private final SourceCodeInfo.Location.Builder location;
+
+    // Root location
+    LocationRecorder() {
+      this.location = SourceCodeInfo.Location.newBuilder();
+      locations.add(location);
+      addSpanAtCurrent();
+    }
+
+    LocationRecorder(final LocationRecorder parent, final int... path) {
+      this.location = SourceCodeInfo.Location.newBuilder()
+          .addAllPath(parent.location.getPathList());
+      locations.add(location);
+      addSpanAtCurrent();
+      for (final int component : path) {
+        addPath(component);
+      }
+    }
+
+    private void addSpanAtCurrent() {
+      location.addSpan(input.current().line);
+      location.addSpan(input.current().column);
+    }
+
+    void addPath(final int component) {
+      location.addPath(component);
+    }
+
+    void startAt(final Token token) {
+      location.setSpan(0, token.line);
+      location.setSpan(1, token.column);
+    }
+
+    void startAt(final LocationRecorder other) {
+      location.setSpan(0, other.location.getSpan(0));
+      location.setSpan(1, other.location.getSpan(1));
+    }
+
+    void endAt(final Token token) {
+      if (token.line != location.getSpan(0)) {
+        location.addSpan(token.line);
+      }
+      location.addSpan(token.endColumn);
+    }
+
+    void attachComments(final String leading,
+                        final String trailing,
+                        final List<String> detached) {
+      if (!leading.isEmpty()) {
+        location.setLeadingComments(leading);
+      }
+      if (!trailing.isEmpty()) {
+        location.setTrailingComments(trailing);
+      }
+      location.addAllLeadingDetachedComments(detached);
+    }
+
+    /**
+     * Ends the location at the previous token, unless it was already ended explicitly.
+     */
+    void end() {
+      if (location.getSpanCount() <= 2) {
+        endAt(input.previous());
+      }
+    }
+
+    @Override
+    public void close() {
+      end();
+    }
+  }
+}
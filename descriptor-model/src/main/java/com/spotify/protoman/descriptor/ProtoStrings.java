@@ -0,0 +1,211 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.descriptor;
+
+import com.google.protobuf.ByteString;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+/**
+ * String conversions used when building descriptors, formatting values the same way protoc
+ * does.
+ */
+final class ProtoStrings {
+
+  // DBL_DIG and FLT_DIG
+  private static final int DOUBLE_DIGITS = 15;
+  private static final int FLOAT_DIGITS = 6;
+
+  private ProtoStrings() {
+    // Prevent instantiation
+  }
+
+  /**
+   * Shortest of {@code %.15g} and {@code %.17g} that round-trips, like protoc's SimpleDtoa.
+   */
+  static String simpleDtoa(final double value) {
+    if (Double.isNaN(value)) {
+      return "nan";
+    } else if (Double.isInfinite(value)) {
+      return value > 0 ? "inf" : "-inf";
+    }
+    final String formatted = formatG(value, DOUBLE_DIGITS);
+    if (Double.parseDouble(formatted) == value) {
+      return formatted;
+    }
+    return formatG(value, DOUBLE_DIGITS + 2);
+  }
+
+  /**
+   * Shortest of {@code %.6g} and {@code %.9g} that round-trips, like protoc's SimpleFtoa.
+   */
+  static String simpleFtoa(final float value) {
+    if (Float.isNaN(value)) {
+      return "nan";
+    } else if (Float.isInfinite(value)) {
+      return value > 0 ? "inf" : "-inf";
+    }
+    final String formatted = formatG(value, FLOAT_DIGITS);
+    if (Float.parseFloat(formatted) == value) {
+      return formatted;
+    }
+    return formatG(value, FLOAT_DIGITS + 3);
+  }
+
+  /**
+   * Format a finite value like C's {@code printf("%.<precision>g", value)}.
+   */
+  private static String formatG(final double value, final int precision) {
+    if (value == 0.0) {
+      return 1.0 / value < 0 ? "-0" : "0";
+    }
+
+    final BigDecimal rounded = new BigDecimal(value)
+        .round(new MathContext(precision, RoundingMode.HALF_EVEN));
+    final int exponent = rounded.precision() - rounded.scale() - 1;
+
+    if (exponent < -4 || exponent >= precision) {
+      final String digits = stripTrailingZeros(rounded.unscaledValue().abs().toString());
+      final StringBuilder result = new StringBuilder();
+      if (rounded.signum() < 0) {
+        result.append('-');
+      }
+      result.append(digits.charAt(0));
+      if (digits.length() > 1) {
+        result.append('.').append(digits, 1, digits.length());
+      }
+      result.append('e').append(exponent < 0 ? '-' : '+');
+      final int absExponent = Math.abs(exponent);
+      if (absExponent < 10) {
+        result.append('0');
+      }
+      result.append(absExponent);
+      return result.toString();
+    }
+
+    final BigDecimal fixed = rounded.setScale(Math.max(precision - 1 - exponent, 0),
+                                              RoundingMode.HALF_EVEN);
+    return fixed.stripTrailingZeros().toPlainString();
+  }
+
+  private static String stripTrailingZeros(final String digits) {
+    int end = digits.length();
+    while (end > 1 && digits.charAt(end - 1) == '0') {
+      --end;
+    }
+    return digits.substring(0, end);
+  }
+
+  /**
+   * Escape bytes like protoc's CEscape, using octal escapes for non-printable characters.
+   */
+  static String cEscape(final ByteString value) {
+    final StringBuilder result = new StringBuilder(value.size());
+    for (int i = 0; i < value.size(); ++i) {
+      final int c = value.byteAt(i) & 0xff;
+      switch (c) {
+        case '\n':
+          result.append("\\n");
+          break;
+        case '\r':
+          result.append("\\r");
+          break;
+        case '\t':
+          result.append("\\t");
+          break;
+        case '"':
+          result.append("\\\"");
+          break;
+        case '\'':
+          result.append("\\'");
+          break;
+        case '\\':
+          result.append("\\\\");
+          break;
+        default:
+          if (c < 0x20 || c >= 0x7f) {
+            result.append('\\')
+                .append((char) ('0' + (c >> 6)))
+                .append((char) ('0' + ((c >> 3) & 7)))
+                .append((char) ('0' + (c & 7)));
+          } else {
+            result.append((char) c);
+          }
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * The default JSON name of a field, i.e. its name in lowerCamelCase.
+   */
+  static String toJsonName(final String name) {
+    final StringBuilder result = new StringBuilder(name.length());
+    boolean capitalizeNext = false;
+    for (int i = 0; i < name.length(); ++i) {
+      final char c = name.charAt(i);
+      if (c == '_') {
+        capitalizeNext = true;
+      } else if (capitalizeNext) {
+        result.append(asciiToUpperCase(c));
+        capitalizeNext = false;
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * The name of the entry message generated for a map field, e.g. {@code FooBarEntry} for
+   * {@code foo_bar}.
+   */
+  static String mapEntryName(final String fieldName) {
+    final StringBuilder result = new StringBuilder(fieldName.length() + 5);
+    boolean capitalizeNext = true;
+    for (int i = 0; i < fieldName.length(); ++i) {
+      final char c = fieldName.charAt(i);
+      if (c == '_') {
+        capitalizeNext = true;
+      } else if (capitalizeNext) {
+        result.append(asciiToUpperCase(c));
+        capitalizeNext = false;
+      } else {
+        result.append(c);
+      }
+    }
+    return result.append("Entry").toString();
+  }
+
+  static String asciiToLowerCase(final String value) {
+    final StringBuilder result = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); ++i) {
+      final char c = value.charAt(i);
+      result.append('A' <= c && c <= 'Z' ? (char) (c - 'A' + 'a') : c);
+    }
+    return result.toString();
+  }
+
+  private static char asciiToUpperCase(final char c) {
+    return 'a' <= c && c <= 'z' ? (char) (c - 'a' + 'A') : c;
+  }
+}
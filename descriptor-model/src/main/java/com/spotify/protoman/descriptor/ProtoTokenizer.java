@@ -0,0 +1,864 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.descriptor;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+/**
+ * Splits .proto source into tokens, following the rules of protoc's tokenizer (including how
+ * line and column numbers are counted and how comments are attributed to declarations), so that
+ * source locations and comments come out the same as when compiling with protoc.
+ *
+ * The input is processed as bytes. Token text is stored with one char per byte, use {@link
+ * #toUtf8(String)} to get the actual string for text that may contain non-ASCII characters.
+ */
+class ProtoTokenizer {
+
+  private static final int TAB_WIDTH = 8;
+
+  enum TokenType {
+    START,
+    END,
+    IDENTIFIER,
+    INTEGER,
+    FLOAT,
+    STRING,
+    SYMBOL
+  }
+
+  static class Token {
+
+    TokenType type = TokenType.START;
+    String text = "";
+    int line;
+    int column;
+    int endColumn;
+
+    Token copy() {
+      final Token token = new Token();
+      token.type = type;
+      token.text = text;
+      token.line = line;
+      token.column = column;
+      token.endColumn = endColumn;
+      return token;
+    }
+  }
+
+  private enum CommentStart {
+    LINE_COMMENT,
+    BLOCK_COMMENT,
+    SLASH_NOT_COMMENT,
+    NO_COMMENT
+  }
+
+  private final byte[] input;
+  private final ProtoParser.ErrorCollector errorCollector;
+
+  private int pos = 0;
+  private char currentChar;
+  private int line = 0;
+  private int column = 0;
+
+  private Token current = new Token();
+  private Token previous = new Token();
+
+  // Start of the text being recorded into a token or comment, -1 if not recording
+  private int recordStart = -1;
+
+  ProtoTokenizer(final byte[] input, final ProtoParser.ErrorCollector errorCollector) {
+    this.input = input;
+    this.errorCollector = errorCollector;
+    this.currentChar = input.length > 0 ? (char) (input[0] & 0xff) : '\0';
+  }
+
+  Token current() {
+    return current;
+  }
+
+  Token previous() {
+    return previous;
+  }
+
+  // -------------------------------------------------------------------------------------------
+  // Character classes
+
+  private static boolean isWhitespace(final char c) {
+    return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == 0x0b || c == '\f';
+  }
+
+  private static boolean isWhitespaceNoNewline(final char c) {
+    return c == ' ' || c == '\t' || c == '\r' || c == 0x0b || c == '\f';
+  }
+
+  private static boolean isUnprintable(final char c) {
+    return c < ' ' && c > '\0';
+  }
+
+  private static boolean isDigit(final char c) {
+    return '0' <= c && c <= '9';
+  }
+
+  private static boolean isOctalDigit(final char c) {
+    return '0' <= c && c <= '7';
+  }
+
+  private static boolean isHexDigit(final char c) {
+    return ('0' <= c && c <= '9') || ('a' <= c && c <= 'f') || ('A' <= c && c <= 'F');
+  }
+
+  private static boolean isLetter(final char c) {
+    return ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z') || c == '_';
+  }
+
+  private static boolean isAlphanumeric(final char c) {
+    return isLetter(c) || isDigit(c);
+  }
+
+  private static boolean isEscape(final char c) {
+    return "abfnrtv\\?'\"".indexOf(c) != -1;
+  }
+
+  private static int digitValue(final char c) {
+    if ('0' <= c && c <= '9') {
+      return c - '0';
+    }
+    if ('a' <= c && c <= 'z') {
+      return c - 'a' + 10;
+    }
+    if ('A' <= c && c <= 'Z') {
+      return c - 'A' + 10;
+    }
+    return -1;
+  }
+
+  // -------------------------------------------------------------------------------------------
+  // Low-level reading
+
+  private boolean atEof() {
+    return pos >= input.length;
+  }
+
+  private void nextChar() {
+    if (currentChar == '\n') {
+      ++line;
+      column = 0;
+    } else if (currentChar == '\t') {
+      column += TAB_WIDTH - column % TAB_WIDTH;
+    } else {
+      ++column;
+    }
+    ++pos;
+    currentChar = atEof() ? '\0' : (char) (input[pos] & 0xff);
+  }
+
+  private boolean tryConsume(final char c) {
+    if (currentChar == c && !atEof()) {
+      nextChar();
+      return true;
+    }
+    return false;
+  }
+
+  private void addError(final String message) {
+    errorCollector.addError(line, column, message);
+  }
+
+  private void recordTo() {
+    recordStart = pos;
+  }
+
+  private String stopRecording() {
+    final String recorded = new String(input, recordStart, pos - recordStart, ISO_8859_1);
+    recordStart = -1;
+    return recorded;
+  }
+
+  private void consumeZeroOrMoreWhitespace() {
+    while (!atEof() && isWhitespace(currentChar)) {
+      nextChar();
+    }
+  }
+
+  private void consumeZeroOrMoreWhitespaceNoNewline() {
+    while (!atEof() && isWhitespaceNoNewline(currentChar)) {
+      nextChar();
+    }
+  }
+
+  private void consumeZeroOrMoreDigits() {
+    while (isDigit(currentChar)) {
+      nextChar();
+    }
+  }
+
+  private void consumeOneOrMoreDigits(final String error) {
+    if (!isDigit(currentChar)) {
+      addError(error);
+    } else {
+      consumeZeroOrMoreDigits();
+    }
+  }
+
+  // -------------------------------------------------------------------------------------------
+  // Token reading
+
+  private void startToken() {
+    current.type = TokenType.START;
+    current.text = "";
+    current.line = line;
+    current.column = column;
+    recordTo();
+  }
+
+  private void endToken() {
+    current.text = stopRecording();
+    current.endColumn = column;
+  }
+
+  /**
+   * Read the next token, skipping whitespace and comments.
+   *
+   * @return false at end of input
+   */
+  boolean next() {
+    previous = current.copy();
+
+    while (!atEof()) {
+      consumeZeroOrMoreWhitespace();
+
+      switch (tryConsumeCommentStart()) {
+        case LINE_COMMENT:
+          consumeLineComment(false);
+          continue;
+        case BLOCK_COMMENT:
+          consumeBlockComment(false);
+          continue;
+        case SLASH_NOT_COMMENT:
+          return true;
+        case NO_COMMENT:
+          break;
+      }
+
+      if (atEof()) {
+        break;
+      }
+
+      if (isUnprintable(currentChar) || currentChar == '\0') {
+        addError("Invalid control characters encountered in text.");
+        nextChar();
+        while (!atEof() && (isUnprintable(currentChar) || currentChar == '\0')) {
+          nextChar();
+        }
+      } else {
+        startToken();
+
+        if (isLetter(currentChar)) {
+          nextChar();
+          while (isAlphanumeric(currentChar)) {
+            nextChar();
+          }
+          current.type = TokenType.IDENTIFIER;
+        } else if (tryConsume('0')) {
+          current.type = consumeNumber(true, false);
+        } else if (tryConsume('.')) {
+          if (isDigit(currentChar)) {
+            nextChar();
+            if (previous.type == TokenType.IDENTIFIER
+                && current.line == previous.line
+                && current.column == previous.endColumn) {
+              errorCollector.addError(
+                  line, column - 2, "Need space between identifier and decimal point.");
+            }
+            current.type = consumeNumber(false, true);
+          } else {
+            current.type = TokenType.SYMBOL;
+          }
+        } else if (isDigit(currentChar)) {
+          nextChar();
+          current.type = consumeNumber(false, false);
+        } else if (tryConsume('"')) {
+          consumeString('"');
+          current.type = TokenType.STRING;
+        } else if (tryConsume('\'')) {
+          consumeString('\'');
+          current.type = TokenType.STRING;
+        } else {
+          if ((currentChar & 0x80) != 0) {
+            errorCollector.addError(
+                line, column,
+                String.format("Interpreting non ascii codepoint %d.", (int) currentChar));
+          }
+          nextChar();
+          current.type = TokenType.SYMBOL;
+        }
+
+        endToken();
+        return true;
+      }
+    }
+
+    current.type = TokenType.END;
+    current.text = "";
+    current.line = line;
+    current.column = column;
+    current.endColumn = column;
+    return false;
+  }
+
+  /**
+   * Like {@link #next()}, but also collects the comments between the previous token and the
+   * next one, split into comments trailing the previous token, detached comments and comments
+   * leading the next token.
+   */
+  boolean nextWithComments(final StringBuilder prevTrailingComments,
+                           final List<String> detachedComments,
+                           final StringBuilder nextLeadingComments) {
+    final CommentCollector collector =
+        new CommentCollector(prevTrailingComments, detachedComments, nextLeadingComments);
+
+    if (current.type == TokenType.START) {
+      // Skip a UTF-8 byte order mark at the start of the file
+      if (currentChar == 0xef && input.length >= 3
+          && (input[1] & 0xff) == 0xbb && (input[2] & 0xff) == 0xbf) {
+        nextChar();
+        nextChar();
+        nextChar();
+      }
+      collector.detachFromPrev();
+    } else {
+      // A comment appearing on the same line must be attached to the previous declaration
+      consumeZeroOrMoreWhitespaceNoNewline();
+      switch (tryConsumeCommentStart()) {
+        case LINE_COMMENT:
+          collector.prepareForLineComment();
+          collector.append(consumeLineComment(true));
+          // Don't allow comments on subsequent lines to be attached to a trailing comment
+          collector.flush();
+          break;
+        case BLOCK_COMMENT:
+          collector.prepareForBlockComment();
+          collector.append(consumeBlockComment(true));
+          consumeZeroOrMoreWhitespaceNoNewline();
+          if (!tryConsume('\n')) {
+            // The next token is on the same line, there's no telling which token the comment
+            // belongs to
+            collector.clearBuffer();
+            return collector.finish(next());
+          }
+          collector.flush();
+          break;
+        case SLASH_NOT_COMMENT:
+          return collector.finish(true);
+        case NO_COMMENT:
+          if (!tryConsume('\n')) {
+            // The next token is on the same line, there are no comments
+            return collector.finish(next());
+          }
+          break;
+      }
+    }
+
+    // We are now on the line after the previous token
+    while (true) {
+      consumeZeroOrMoreWhitespaceNoNewline();
+
+      switch (tryConsumeCommentStart()) {
+        case LINE_COMMENT:
+          collector.prepareForLineComment();
+          collector.append(consumeLineComment(true));
+          break;
+        case BLOCK_COMMENT:
+          collector.prepareForBlockComment();
+          collector.append(consumeBlockComment(true));
+          // Consume the rest of the line so that it's not interpreted as a blank line
+          consumeZeroOrMoreWhitespaceNoNewline();
+          tryConsume('\n');
+          break;
+        case SLASH_NOT_COMMENT:
+          return collector.finish(true);
+        case NO_COMMENT:
+          if (tryConsume('\n')) {
+            // Completely blank line
+            collector.flush();
+            collector.detachFromPrev();
+          } else {
+            final boolean result = next();
+            if (!result
+                || current.text.equals("}")
+                || current.text.equals("]")
+                || current.text.equals(")")) {
+              // At the end of a scope, it makes no sense to attach a comment to the following
+              // token
+              collector.flush();
+            }
+            return collector.finish(result);
+          }
+          break;
+      }
+    }
+  }
+
+  private CommentStart tryConsumeCommentStart() {
+    if (tryConsume('/')) {
+      if (tryConsume('/')) {
+        return CommentStart.LINE_COMMENT;
+      } else if (tryConsume('*')) {
+        return CommentStart.BLOCK_COMMENT;
+      } else {
+        // It was just a slash, return it as a token
+        current.type = TokenType.SYMBOL;
+        current.text = "/";
+        current.line = line;
+        current.column = column - 1;
+        current.endColumn = column;
+        return CommentStart.SLASH_NOT_COMMENT;
+      }
+    }
+    return CommentStart.NO_COMMENT;
+  }
+
+  private String consumeLineComment(final boolean record) {
+    if (record) {
+      recordTo();
+    }
+    while (!atEof() && currentChar != '\n') {
+      nextChar();
+    }
+    tryConsume('\n');
+    return record ? stopRecording() : null;
+  }
+
+  private String consumeBlockComment(final boolean record) {
+    final int startLine = line;
+    final int startColumn = column - 2;
+    final StringBuilder content = new StringBuilder();
+
+    if (record) {
+      recordTo();
+    }
+
+    while (true) {
+      while (!atEof() && currentChar != '*' && currentChar != '/' && currentChar != '\n') {
+        nextChar();
+      }
+
+      if (tryConsume('\n')) {
+        if (record) {
+          content.append(stopRecording());
+        }
+        // Consume leading whitespace and asterisk
+        consumeZeroOrMoreWhitespaceNoNewline();
+        if (tryConsume('*')) {
+          if (tryConsume('/')) {
+            // End of comment
+            break;
+          }
+        }
+        if (record) {
+          recordTo();
+        }
+      } else if (tryConsume('*') && tryConsume('/')) {
+        if (record) {
+          final String recorded = stopRecording();
+          // Strip trailing "*/"
+          content.append(recorded, 0, recorded.length() - 2);
+        }
+        break;
+      } else if (tryConsume('/') && currentChar == '*') {
+        addError("\"/*\" inside block comment.  Block comments cannot be nested.");
+      } else if (atEof()) {
+        addError("End-of-file inside block comment.");
+        errorCollector.addError(startLine, startColumn, "  Comment started here.");
+        if (record) {
+          content.append(stopRecording());
+        }
+        break;
+      }
+    }
+
+    return record ? content.toString() : null;
+  }
+
+  private TokenType consumeNumber(final boolean startedWithZero, final boolean startedWithDot) {
+    boolean isFloat = false;
+
+    if (startedWithZero && (tryConsume('x') || tryConsume('X'))) {
+      if (!isHexDigit(currentChar)) {
+        addError("\"0x\" must be followed by hex digits.");
+      }
+      while (isHexDigit(currentChar)) {
+        nextChar();
+      }
+    } else if (startedWithZero && isDigit(currentChar)) {
+      while (isOctalDigit(currentChar)) {
+        nextChar();
+      }
+      if (isDigit(currentChar)) {
+        addError("Numbers starting with leading zero must be in octal.");
+        consumeZeroOrMoreDigits();
+      }
+    } else {
+      if (startedWithDot) {
+        isFloat = true;
+        consumeZeroOrMoreDigits();
+      } else {
+        consumeZeroOrMoreDigits();
+        if (tryConsume('.')) {
+          isFloat = true;
+          consumeZeroOrMoreDigits();
+        }
+      }
+
+      if (tryConsume('e') || tryConsume('E')) {
+        isFloat = true;
+        if (!tryConsume('-')) {
+          tryConsume('+');
+        }
+        consumeOneOrMoreDigits("\"e\" must be followed by exponent.");
+      }
+    }
+
+    if (isLetter(currentChar)) {
+      addError("Need space between number and identifier.");
+    } else if (currentChar == '.') {
+      if (isFloat) {
+        addError("Already saw decimal point or exponent; can't have another one.");
+      } else {
+        addError("Hex and octal numbers must be integers.");
+      }
+    }
+
+    return isFloat ? TokenType.FLOAT : TokenType.INTEGER;
+  }
+
+  private void consumeString(final char delimiter) {
+    while (true) {
+      if (atEof()) {
+        addError("Unexpected end of string.");
+        return;
+      }
+      switch (currentChar) {
+        case '\n':
+          addError("String literals cannot cross line boundaries.");
+          return;
+
+        case '\\':
+          nextChar();
+          if (isEscape(currentChar) || isOctalDigit(currentChar)) {
+            nextChar();
+          } else if (tryConsume('x')) {
+            if (isHexDigit(currentChar)) {
+              nextChar();
+            } else {
+              addError("Expected hex digits for escape sequence.");
+            }
+          } else if (tryConsume('u')) {
+            if (!consumeHexDigits(4)) {
+              addError("Expected four hex digits for \\u escape sequence.");
+            }
+          } else if (tryConsume('U')) {
+            if (!tryConsume('0') || !tryConsume('0') || !(tryConsume('0') || tryConsume('1'))
+                || !consumeHexDigits(5)) {
+              addError("Expected eight hex digits up to 10ffff for \\U escape sequence");
+            }
+          } else {
+            addError("Invalid escape sequence in string literal.");
+          }
+          break;
+
+        default:
+          if (currentChar == delimiter) {
+            nextChar();
+            return;
+          }
+          nextChar();
+          break;
+      }
+    }
+  }
+
+  private boolean consumeHexDigits(final int count) {
+    for (int i = 0; i < count; ++i) {
+      if (!isHexDigit(currentChar)) {
+        return false;
+      }
+      nextChar();
+    }
+    return true;
+  }
+
+  // -------------------------------------------------------------------------------------------
+  // Token text parsing
+
+  /**
+   * Parse the text of an INTEGER token. {@code maxValue} and the result are unsigned.
+   *
+   * @return the value, or null if it is larger than {@code maxValue}
+   */
+  static Long parseInteger(final String text, final long maxValue) {
+    int i = 0;
+    int base = 10;
+    if (text.length() >= 2 && text.charAt(0) == '0'
+        && (text.charAt(1) == 'x' || text.charAt(1) == 'X')) {
+      base = 16;
+      i = 2;
+    } else if (text.length() >= 1 && text.charAt(0) == '0') {
+      base = 8;
+    }
+
+    long result = 0;
+    for (; i < text.length(); ++i) {
+      final int digit = digitValue(text.charAt(i));
+      if (digit < 0 || digit >= base) {
+        // The token provided by the tokenizer is invalid, i.e. 099 is an invalid token
+        return null;
+      }
+      // result * base + digit > maxValue, with unsigned arithmetic
+      if (Long.compareUnsigned(digit, maxValue) > 0
+          || Long.compareUnsigned(result, Long.divideUnsigned(maxValue - digit, base)) > 0) {
+        return null;
+      }
+      result = result * base + digit;
+    }
+
+    return result;
+  }
+
+  /**
+   * Parse the text of a FLOAT (or INTEGER) token.
+   */
+  static double parseFloat(final String text) {
+    // The tokenizer allows a trailing exponent marker without digits, which the JDK doesn't
+    int end = text.length();
+    if (end > 0 && (text.charAt(end - 1) == 'f' || text.charAt(end - 1) == 'F')) {
+      --end;
+    }
+    if (end > 0 && (text.charAt(end - 1) == 'e' || text.charAt(end - 1) == 'E')) {
+      --end;
+    } else if (end > 1 && (text.charAt(end - 1) == '-' || text.charAt(end - 1) == '+')
+               && (text.charAt(end - 2) == 'e' || text.charAt(end - 2) == 'E')) {
+      end -= 2;
+    }
+    final String number = text.substring(0, end);
+    if (number.startsWith("0x") || number.startsWith("0X")) {
+      return (double) Long.parseUnsignedLong(number.substring(2), 16);
+    }
+    try {
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      return 0.0;
+    }
+  }
+
+  /**
+   * Parse the text of a STRING token, appending the unescaped bytes to {@code output}.
+   */
+  static void parseStringAppend(final String text, final ByteArrayOutputStream output) {
+    if (text.isEmpty()) {
+      return;
+    }
+    final char quote = text.charAt(0);
+    final int length = text.length();
+
+    for (int i = 1; i < length; ++i) {
+      final char c = text.charAt(i);
+      if (c == '\\' && i + 1 < length) {
+        final char e = text.charAt(++i);
+        if (isOctalDigit(e)) {
+          int code = digitValue(e);
+          if (i + 1 < length && isOctalDigit(text.charAt(i + 1))) {
+            code = code * 8 + digitValue(text.charAt(++i));
+          }
+          if (i + 1 < length && isOctalDigit(text.charAt(i + 1))) {
+            code = code * 8 + digitValue(text.charAt(++i));
+          }
+          output.write(code);
+        } else if (e == 'x') {
+          int code = 0;
+          if (i + 1 < length && isHexDigit(text.charAt(i + 1))) {
+            code = digitValue(text.charAt(++i));
+          }
+          if (i + 1 < length && isHexDigit(text.charAt(i + 1))) {
+            code = code * 16 + digitValue(text.charAt(++i));
+          }
+          output.write(code);
+        } else if (e == 'u' || e == 'U') {
+          final int digits = e == 'u' ? 4 : 8;
+          if (i + digits < length && isHexRun(text, i + 1, digits)) {
+            int codePoint = Integer.parseInt(text.substring(i + 1, i + 1 + digits), 16);
+            i += digits;
+            // A high surrogate followed by an escaped low surrogate is combined
+            if (Character.isHighSurrogate((char) codePoint) && i + 6 < length
+                && text.charAt(i + 1) == '\\' && text.charAt(i + 2) == 'u'
+                && isHexRun(text, i + 3, 4)) {
+              final int low = Integer.parseInt(text.substring(i + 3, i + 7), 16);
+              if (Character.isLowSurrogate((char) low)) {
+                codePoint = Character.toCodePoint((char) codePoint, (char) low);
+                i += 6;
+              }
+            }
+            final byte[] utf8 = new String(Character.toChars(codePoint)).getBytes(UTF_8);
+            output.write(utf8, 0, utf8.length);
+          } else {
+            output.write(e);
+          }
+        } else {
+          output.write(translateEscape(e));
+        }
+      } else if (c == quote && i + 1 == length) {
+        // Ignore the final quote matching the starting quote
+      } else {
+        output.write(c);
+      }
+    }
+  }
+
+  private static boolean isHexRun(final String text, final int start, final int count) {
+    for (int i = start; i < start + count; ++i) {
+      if (!isHexDigit(text.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static char translateEscape(final char c) {
+    switch (c) {
+      case 'a':
+        return 0x07;
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'v':
+        return 0x0b;
+      case '\\':
+        return '\\';
+      case '?':
+        return '?';
+      case '\'':
+        return '\'';
+      case '"':
+        return '"';
+      default:
+        // Invalid escapes were already reported by the tokenizer
+        return '?';
+    }
+  }
+
+  /**
+   * Convert text extracted from the input (one char per byte) to a proper string.
+   */
+  static String toUtf8(final String text) {
+    return new String(text.getBytes(ISO_8859_1), UTF_8);
+  }
+
+  /**
+   * Collects comments between two tokens, see protoc's Tokenizer::NextWithComments for the
+   * rules.
+   */
+  private static class CommentCollector {
+
+    private final StringBuilder prevTrailingComments;
+    private final List<String> detachedComments;
+    private final StringBuilder nextLeadingComments;
+
+    private final StringBuilder buffer = new StringBuilder();
+    private boolean hasComment = false;
+    private boolean isLineComment = false;
+    private boolean canAttachToPrev = true;
+
+    private CommentCollector(final StringBuilder prevTrailingComments,
+                             final List<String> detachedComments,
+                             final StringBuilder nextLeadingComments) {
+      this.prevTrailingComments = prevTrailingComments;
+      this.detachedComments = detachedComments;
+      this.nextLeadingComments = nextLeadingComments;
+    }
+
+    void prepareForLineComment() {
+      // Line comments are combined with previous line comments, but not block comments
+      if (hasComment && !isLineComment) {
+        flush();
+      }
+      hasComment = true;
+      isLineComment = true;
+    }
+
+    void prepareForBlockComment() {
+      if (hasComment) {
+        flush();
+      }
+      hasComment = true;
+      isLineComment = false;
+    }
+
+    void append(final String comment) {
+      buffer.append(comment);
+    }
+
+    void clearBuffer() {
+      buffer.setLength(0);
+      hasComment = false;
+    }
+
+    // Called once the buffered comment is known to not be attached to the next token
+    void flush() {
+      if (hasComment) {
+        if (canAttachToPrev) {
+          if (prevTrailingComments != null) {
+            prevTrailingComments.append(toUtf8(buffer.toString()));
+          }
+          canAttachToPrev = false;
+        } else {
+          if (detachedComments != null) {
+            detachedComments.add(toUtf8(buffer.toString()));
+          }
+        }
+        clearBuffer();
+      }
+    }
+
+    void detachFromPrev() {
+      canAttachToPrev = false;
+    }
+
+    // Whatever is left in the buffer is a leading comment
+    boolean finish(final boolean result) {
+      if (nextLeadingComments != null && hasComment) {
+        nextLeadingComments.setLength(0);
+        nextLeadingComments.append(toUtf8(buffer.toString()));
+      }
+      return result;
+    }
+  }
+}
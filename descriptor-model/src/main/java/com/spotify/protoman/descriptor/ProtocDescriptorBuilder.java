@@ -22,35 +22,68 @@ package com.spotify.protoman.descriptor;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import com.google.common.io.CharStreams;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.DescriptorProtos;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
+import javax.annotation.Nullable;
 
 public class ProtocDescriptorBuilder implements DescriptorBuilder {
 
+  private static final int MAX_DESCRIPTOR_SET_SIZE = 512 * 1024 * 1024;
+  private static final int MAX_ERROR_LENGTH = 1024 * 1024;
+  private static final Path STDOUT = Paths.get("/dev/stdout");
+  // The descriptor set is streamed from protoc's stdout where the platform has /dev/stdout, and
+  // written to this file in the staging directory elsewhere
+  private static final String DESCRIPTOR_SET_FILE = ".descriptor_set.pb";
+  private static final boolean STREAM_DESCRIPTOR_SET = Files.exists(STDOUT);
+
+  // Pipe readers of builders that are not pooled, whose number is only bounded by the callers
+  private static final ExecutorService UNPOOLED_PIPE_READERS = Executors.newCachedThreadPool(
+      pipeReaderThreadFactory());
+
   private final Path protocPath;
   private final TemporaryFileStorage fileStorage;
+  private final Consumer<TemporaryFileStorage> release;
+  private final ExecutorService pipeReaders;
+  private final AtomicBoolean closed = new AtomicBoolean();
 
   private ProtocDescriptorBuilder(final Path protocPath,
-                                  final TemporaryFileStorage fileStorage) {
+                                  final TemporaryFileStorage fileStorage,
+                                  final Consumer<TemporaryFileStorage> release,
+                                  final ExecutorService pipeReaders) {
     this.protocPath = protocPath;
     this.fileStorage = fileStorage;
+    this.release = release;
+    this.pipeReaders = pipeReaders;
   }
 
   public static ProtocDescriptorBuilder create(final Path protocPath) {
     try {
-      return new ProtocDescriptorBuilder(
+      return create(
           protocPath,
-          TemporaryFileStorage.create("descriptor-builder-")
+          TemporaryFileStorage.create("descriptor-builder-"),
+          ProtocDescriptorBuilder::deleteStorage,
+          UNPOOLED_PIPE_READERS
       );
     } catch (IOException e) {
       // TODO(staffan):
@@ -58,6 +91,25 @@ public class ProtocDescriptorBuilder implements DescriptorBuilder {
     }
   }
 
+  /**
+   * Create a builder that stages files in an existing storage. {@code release} is called with
+   * the storage when the builder is closed, instead of deleting it. Each build reads protoc's
+   * output on two tasks of {@code pipeReaders}, which must not be queued behind other builds.
+   */
+  static ProtocDescriptorBuilder create(final Path protocPath,
+                                        final TemporaryFileStorage fileStorage,
+                                        final Consumer<TemporaryFileStorage> release,
+                                        final ExecutorService pipeReaders) {
+    return new ProtocDescriptorBuilder(protocPath, fileStorage, release, pipeReaders);
+  }
+
+  static ThreadFactory pipeReaderThreadFactory() {
+    return new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("protoc-pipe-%d")
+        .build();
+  }
+
   public static Factory factory(final Path protocPath) {
     return () -> create(protocPath);
   }
@@ -86,48 +138,140 @@ public class ProtocDescriptorBuilder implements DescriptorBuilder {
 
     try {
       return buildFileDescriptorSet(pathsList);
-    } catch (InterruptedException | IOException e) {
+    } catch (InterruptedException e) {
+      // protoc has been killed, let the caller see that it was interrupted too
+      Thread.currentThread().interrupt();
+      throw new DescriptorBuilderException(e);
+    } catch (IOException e) {
       throw new DescriptorBuilderException(e);
     }
   }
 
+  /**
+   * Runs protoc. Interrupting the calling thread kills the protoc process.
+   */
   private Result buildFileDescriptorSet(final ImmutableList<Path> paths)
       throws IOException, InterruptedException {
-    final Path descriptorFilePath = Files.createTempFile("schema-registry-descriptor-", ".pb");
-    try {
-      final List<String> command = Lists.newArrayList();
+    // Process.waitFor() and Future.get() don't check the interrupt flag if they are already done
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
 
-      command.add(protocPath.toString());
-      command.add("-o");
-      command.add(descriptorFilePath.toAbsolutePath().toString());
-      command.add("--include_source_info");
-      command.add("--include_imports");
-      command.add("--error_format=gcc");
+    final List<String> command = Lists.newArrayList();
 
-      paths.stream().map(Path::toString).forEach(command::add);
+    command.add(protocPath.toString());
+    command.add("--descriptor_set_out="
+                + (STREAM_DESCRIPTOR_SET ? STDOUT.toString() : DESCRIPTOR_SET_FILE));
+    command.add("--include_source_info");
+    command.add("--include_imports");
+    command.add("--error_format=gcc");
 
-      final Process process = new ProcessBuilder(command)
-          .directory(fileStorage.root().toFile())
-          .start();
+    paths.stream().map(Path::toString).forEach(command::add);
 
-      final int exitCode = process.waitFor();
+    final Path descriptorSetFile = fileStorage.root().resolve(DESCRIPTOR_SET_FILE);
+    final Process process = new ProcessBuilder(command)
+        .directory(fileStorage.root().toFile())
+        .start();
+
+    try {
+      process.getOutputStream().close();
 
+      // Drain stdout and stderr, protoc blocks if either pipe fills up. Both are read on other
+      // threads so that waiting for them can be interrupted.
+      final Future<DescriptorProtos.FileDescriptorSet> output =
+          pipeReaders.submit(() -> readOutput(process.getInputStream()));
+      final Future<String> errors =
+          pipeReaders.submit(() -> readErrors(process.getErrorStream()));
+
+      final int exitCode = process.waitFor();
       if (exitCode == 0) {
-        try (final InputStream is = Files.newInputStream(descriptorFilePath)) {
-          final DescriptorProtos.FileDescriptorSet fileDescriptorSet =
-              DescriptorProtos.FileDescriptorSet.parseFrom(is);
-          return Result.create(fileDescriptorSet);
+        final DescriptorProtos.FileDescriptorSet streamed = getResult(output);
+        if (STREAM_DESCRIPTOR_SET) {
+          return Result.create(streamed);
+        }
+        try (final InputStream is = Files.newInputStream(descriptorSetFile)) {
+          return Result.create(readDescriptorSet(is));
         }
       } else {
-        return Result.error(CharStreams.toString(new InputStreamReader(process.getErrorStream())));
+        return Result.error(getResult(errors));
       }
     } finally {
-      Files.deleteIfExists(descriptorFilePath);
+      process.destroyForcibly();
+      if (!STREAM_DESCRIPTOR_SET) {
+        // Not written through the storage, so a reset would not remove it
+        Files.deleteIfExists(descriptorSetFile);
+      }
     }
   }
 
+  private static <T> T getResult(final Future<T> future)
+      throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Reads protoc's stdout, which is the descriptor set when it is streamed. Whatever is left
+   * after a parse error is still drained, so that protoc does not block writing it.
+   */
+  @Nullable
+  private static DescriptorProtos.FileDescriptorSet readOutput(final InputStream outputStream)
+      throws IOException {
+    try (final InputStream is = outputStream) {
+      if (!STREAM_DESCRIPTOR_SET) {
+        ByteStreams.exhaust(is);
+        return null;
+      }
+      try {
+        return readDescriptorSet(is);
+      } finally {
+        ByteStreams.exhaust(is);
+      }
+    }
+  }
+
+  private static DescriptorProtos.FileDescriptorSet readDescriptorSet(final InputStream is)
+      throws IOException {
+    final CodedInputStream input = CodedInputStream.newInstance(is);
+    input.setSizeLimit(MAX_DESCRIPTOR_SET_SIZE);
+    return DescriptorProtos.FileDescriptorSet.parseFrom(input);
+  }
+
+  /**
+   * Reads all of protoc's error output, but keeps at most {@link #MAX_ERROR_LENGTH} characters.
+   */
+  private static String readErrors(final InputStream errorStream) throws IOException {
+    final StringBuilder errors = new StringBuilder();
+    final char[] buffer = new char[8192];
+    boolean truncated = false;
+    try (final Reader reader = new InputStreamReader(errorStream)) {
+      int read;
+      while ((read = reader.read(buffer)) != -1) {
+        final int kept = Math.min(read, MAX_ERROR_LENGTH - errors.length());
+        errors.append(buffer, 0, kept);
+        truncated |= kept < read;
+      }
+    }
+    if (truncated) {
+      errors.append("\n[error output truncated]\n");
+    }
+    return errors.toString();
+  }
+
   @Override
   public void close() {
+    // The storage may already be staging files for another builder once it has been released
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    release.accept(fileStorage);
+  }
+
+  private static void deleteStorage(final TemporaryFileStorage fileStorage) {
     try {
       fileStorage.close();
     } catch (IOException e) {
@@ -147,5 +291,13 @@ public class ProtocDescriptorBuilder implements DescriptorBuilder {
     public Factory build() {
       return factory(protocPath);
     }
+
+    /**
+     * Build a factory that reuses up to {@code maxPoolSize} staging directories between
+     * builders, rather than creating and deleting one per builder.
+     */
+    public PooledDescriptorBuilderFactory buildPooled(final int maxPoolSize) {
+      return PooledDescriptorBuilderFactory.create(protocPath, maxPoolSize);
+    }
   }
 }
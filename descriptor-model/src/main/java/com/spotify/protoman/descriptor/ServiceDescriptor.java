@@ -26,21 +26,18 @@ import java.util.stream.IntStream;
 
 public class ServiceDescriptor extends DescriptorBase<DescriptorProtos.ServiceDescriptorProto> {
 
-  private final ImmutableList<MethodDescriptor> methods;
+  private final DescriptorPool pool;
+
+  // Created on first access
+  private volatile ImmutableList<MethodDescriptor> methods;
 
   private ServiceDescriptor(final DescriptorProtos.ServiceDescriptorProto proto,
                             final FileDescriptor file,
                             final int index,
                             final PathNode path,
                             final DescriptorPool pool) {
-    super(proto, file, index, path, Util.computeFullName(file, null, proto.getName()));
-
-    this.methods = IntStream.range(0, proto.getMethodCount()).mapToObj(
-        idx -> {
-          final DescriptorProtos.MethodDescriptorProto d = proto.getMethod(idx);
-          return MethodDescriptor.create(d, file, idx, path.method(idx), pool, this);
-        }
-    ).collect(ImmutableList.toImmutableList());
+    super(proto, file, index, path);
+    this.pool = pool;
   }
 
   static ServiceDescriptor create(final DescriptorProtos.ServiceDescriptorProto proto,
@@ -52,7 +49,25 @@ public class ServiceDescriptor extends DescriptorBase<DescriptorProtos.ServiceDe
   }
 
   public ImmutableList<MethodDescriptor> methods() {
-    return methods;
+    ImmutableList<MethodDescriptor> result = methods;
+    if (result == null) {
+      synchronized (this) {
+        result = methods;
+        if (result == null) {
+          final DescriptorProtos.ServiceDescriptorProto proto = toProto();
+          methods = result = IntStream.range(0, proto.getMethodCount()).mapToObj(idx -> {
+            final DescriptorProtos.MethodDescriptorProto d = proto.getMethod(idx);
+            return MethodDescriptor.create(d, file(), idx, path().method(idx), pool, this);
+          }).collect(ImmutableList.toImmutableList());
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  protected String computeFullName() {
+    return Util.computeFullName(file(), null, name());
   }
 
   @Override
@@ -0,0 +1,114 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.descriptor;
+
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumValueDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Finds symbols defined by more than one file of a descriptor set.
+ *
+ * The compiler rejects such files when they are compiled together, but files that were compiled
+ * separately (e.g. some taken from a cache, or compiled in different shards) can still collide
+ * once put together. Only symbols at file scope are checked, everything nested in them belongs
+ * to the same file.
+ */
+public final class SymbolCollisions {
+
+  private SymbolCollisions() {
+  }
+
+  /**
+   * Returns the collisions in protoc's error format, or null if there are none.
+   */
+  @Nullable
+  public static String find(final FileDescriptorSet fileDescriptorSet) {
+    final Map<String, String> packages = new LinkedHashMap<>();
+    final Map<String, String> symbols = new HashMap<>();
+    final Set<String> seen = new HashSet<>();
+    final StringBuilder errors = new StringBuilder();
+
+    for (final FileDescriptorProto file : fileDescriptorSet.getFileList()) {
+      if (!seen.add(file.getName())) {
+        continue;
+      }
+      final String pkg = file.getPackage();
+      for (int i = pkg.indexOf('.'); ; i = pkg.indexOf('.', i + 1)) {
+        final String prefix = i < 0 ? pkg : pkg.substring(0, i);
+        if (!prefix.isEmpty()) {
+          packages.putIfAbsent(prefix, file.getName());
+        }
+        if (i < 0) {
+          break;
+        }
+      }
+
+      for (final String name : fileScopeSymbols(file)) {
+        final String fullName = pkg.isEmpty() ? name : pkg + "." + name;
+        final String existing = symbols.putIfAbsent(fullName, file.getName());
+        if (existing != null) {
+          addError(errors, file.getName(),
+                   "\"" + fullName + "\" is already defined in file \"" + existing + "\".");
+        }
+      }
+    }
+
+    for (final Map.Entry<String, String> pkg : packages.entrySet()) {
+      final String existing = symbols.get(pkg.getKey());
+      if (existing != null) {
+        addError(errors, pkg.getValue(),
+                 "\"" + pkg.getKey() + "\" is already defined (as something other than a "
+                 + "package) in file \"" + existing + "\".");
+      }
+    }
+
+    return errors.length() > 0 ? errors.toString() : null;
+  }
+
+  private static Set<String> fileScopeSymbols(final FileDescriptorProto file) {
+    final Set<String> names = new LinkedHashSet<>();
+    file.getMessageTypeList().forEach(message -> names.add(message.getName()));
+    for (final EnumDescriptorProto enumType : file.getEnumTypeList()) {
+      names.add(enumType.getName());
+      // Enum values are scoped like siblings of their enum
+      for (final EnumValueDescriptorProto value : enumType.getValueList()) {
+        names.add(value.getName());
+      }
+    }
+    file.getExtensionList().forEach(extension -> names.add(extension.getName()));
+    file.getServiceList().forEach(service -> names.add(service.getName()));
+    return names;
+  }
+
+  private static void addError(final StringBuilder errors, final String filename,
+                               final String message) {
+    errors.append(filename).append(": ").append(message).append('\n');
+  }
+}
@@ -25,10 +25,16 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
 
 class TemporaryFileStorage implements AutoCloseable {
 
   private final Path root;
+  // Files written since the last reset, and directories known to exist below the root. The
+  // directories are kept across resets so a reused root does not have to recreate them.
+  private final Set<Path> storedFiles = new HashSet<>();
+  private final Set<Path> directories = new HashSet<>();
 
   private TemporaryFileStorage(final Path root) {
     this.root = root.toAbsolutePath();
@@ -41,8 +47,23 @@ class TemporaryFileStorage implements AutoCloseable {
 
   void storeFile(final String fileName, final byte[] contents) throws IOException {
     Path filePath = root.resolve(fileName);
-    Files.createDirectories(filePath.getParent());
+    if (directories.add(filePath.getParent())) {
+      Files.createDirectories(filePath.getParent());
+    }
     Files.write(filePath, contents);
+    storedFiles.add(filePath);
+  }
+
+  /**
+   * Delete all files stored since the last reset, but keep the root and any directories below
+   * it. This is a lot cheaper than deleting and recreating the whole tree when the storage is
+   * reused.
+   */
+  void reset() throws IOException {
+    for (final Path filePath : storedFiles) {
+      Files.deleteIfExists(filePath);
+    }
+    storedFiles.clear();
   }
 
   Path root() {
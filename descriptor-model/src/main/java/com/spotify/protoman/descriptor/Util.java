@@ -20,10 +20,20 @@
 
 package com.spotify.protoman.descriptor;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.Message;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.annotation.Nullable;
 
 class Util {
 
+  static final HashFunction FINGERPRINT_FUNCTION = Hashing.murmur3_128();
+
   private Util() {
   }
 
@@ -31,11 +41,27 @@ class Util {
                                 @Nullable final MessageDescriptor parent,
                                 final String name) {
     if (parent != null) {
-      return parent.fullName() + '.' + name;
+      return NameTable.name(parent.fullName() + '.' + name);
     } else if (file.protoPackage().length() > 0) {
-      return file.protoPackage() + '.' + name;
+      return NameTable.name(file.protoPackage() + '.' + name);
     } else {
-      return name;
+      return NameTable.name(name);
+    }
+  }
+
+  /**
+   * Index descriptors by name. If several have the same name the first one wins, like a linear
+   * search would.
+   */
+  static <T extends GenericDescriptor> ImmutableMap<String, T> indexByName(final List<T> values) {
+    final Map<String, T> index = new LinkedHashMap<>();
+    for (final T value : values) {
+      index.putIfAbsent(value.name(), value);
     }
+    return ImmutableMap.copyOf(index);
+  }
+
+  static HashCode fingerprint(final Message proto) {
+    return FINGERPRINT_FUNCTION.hashBytes(proto.toByteArray());
   }
 }
@@ -0,0 +1,144 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.descriptor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Test;
+
+public class CachingDescriptorBuilderFactoryTest {
+
+  private static final Path BASE = Paths.get("foo/base.proto");
+  private static final Path USER = Paths.get("foo/user.proto");
+  private static final String BASE_CONTENT = "syntax = 'proto3'; package foo; message Base {}";
+  private static final String USER_CONTENT =
+      "syntax = 'proto3'; package foo; import 'foo/base.proto'; message User { Base base = 1; }";
+
+  private final AtomicInteger compilers = new AtomicInteger();
+  private final CachingDescriptorBuilderFactory sut = CachingDescriptorBuilderFactory.create(
+      () -> {
+        compilers.incrementAndGet();
+        return InProcessDescriptorBuilder.create();
+      },
+      100
+  );
+
+  @Test
+  public void testCachedFilesAreNotCompiled() throws Exception {
+    final DescriptorBuilder.Result first = build(BASE_CONTENT, USER_CONTENT, USER, BASE);
+    final DescriptorBuilder.Result second = build(BASE_CONTENT, USER_CONTENT, USER, BASE);
+
+    assertThat(second.compilationError(), is(nullValue()));
+    assertThat(second.fileDescriptorSet(), equalTo(first.fileDescriptorSet()));
+    assertThat(compilers.get(), equalTo(1));
+    assertThat(sut.stats().hits(), equalTo(2L));
+    assertThat(sut.stats().misses(), equalTo(2L));
+  }
+
+  @Test
+  public void testOrderMatchesCompiler() throws Exception {
+    build(BASE_CONTENT, USER_CONTENT, BASE);
+
+    final DescriptorBuilder.Result result = build(BASE_CONTENT, USER_CONTENT, USER);
+
+    assertThat(names(result), contains("foo/base.proto", "foo/user.proto"));
+    assertThat(compilers.get(), equalTo(2));
+  }
+
+  @Test
+  public void testChangedImportInvalidatesDependents() throws Exception {
+    build(BASE_CONTENT, USER_CONTENT, USER, BASE);
+
+    final DescriptorBuilder.Result result = build(
+        "syntax = 'proto3'; package foo; message Base { int32 x = 1; }", USER_CONTENT,
+        USER, BASE
+    );
+
+    assertThat(result.compilationError(), is(nullValue()));
+    assertThat(result.fileDescriptorSet().getFile(0).getMessageType(0).getFieldCount(),
+               equalTo(1));
+    assertThat(compilers.get(), equalTo(2));
+    assertThat(sut.stats().hits(), equalTo(0L));
+  }
+
+  @Test
+  public void testErrorsAreNotCached() throws Exception {
+    final String broken = "syntax = 'proto3'; package foo; message Base { Missing m = 1; }";
+    build(broken, USER_CONTENT, USER, BASE);
+
+    final DescriptorBuilder.Result result = build(broken, USER_CONTENT, USER, BASE);
+
+    assertThat(result.compilationError(), is(notNullValue()));
+    assertThat(compilers.get(), equalTo(2));
+  }
+
+  @Test
+  public void testNewFileRedefiningCachedSymbolIsRejected() throws Exception {
+    build(BASE_CONTENT, USER_CONTENT, BASE);
+
+    final DescriptorBuilder.Result result = build(
+        BASE_CONTENT, "syntax = 'proto3'; package foo; message Base {}", BASE, USER);
+
+    assertThat(result.fileDescriptorSet(), is(nullValue()));
+    assertThat(result.compilationError(), equalTo(
+        "foo/user.proto: \"foo.Base\" is already defined in file \"foo/base.proto\".\n"));
+  }
+
+  @Test
+  public void testPackageCollidingWithCachedSymbolIsRejected() throws Exception {
+    build(BASE_CONTENT, USER_CONTENT, BASE);
+
+    final DescriptorBuilder.Result result = build(
+        BASE_CONTENT, "syntax = 'proto3'; package foo.Base; message User {}", BASE, USER);
+
+    assertThat(result.fileDescriptorSet(), is(nullValue()));
+    assertThat(result.compilationError(), equalTo(
+        "foo/user.proto: \"foo.Base\" is already defined (as something other than a package) "
+        + "in file \"foo/base.proto\".\n"));
+  }
+
+  private DescriptorBuilder.Result build(final String baseContent,
+                                         final String userContent,
+                                         final Path... paths) throws Exception {
+    try (final DescriptorBuilder builder = sut.newDescriptorBuilder()) {
+      builder.setProtoFile(BASE, baseContent);
+      builder.setProtoFile(USER, userContent);
+      return builder.buildDescriptor(Stream.of(paths));
+    }
+  }
+
+  private static Iterable<String> names(final DescriptorBuilder.Result result) {
+    return result.fileDescriptorSet().getFileList().stream()
+        .map(FileDescriptorProto::getName)
+        .collect(Collectors.toList());
+  }
+}
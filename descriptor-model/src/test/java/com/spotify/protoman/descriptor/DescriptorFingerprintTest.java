@@ -0,0 +1,102 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+import org.junit.Test;
+
+public class DescriptorFingerprintTest {
+
+  private static final Path PATH = Paths.get("foo/bar.proto");
+
+  private static final String ORIGINAL = "syntax = \"proto3\";\n"
+                                         + "package foo;\n"
+                                         + "message Bar {\n"
+                                         + "  string a = 1;\n"
+                                         + "}\n"
+                                         + "message Baz {\n"
+                                         + "  int32 b = 1;\n"
+                                         + "}\n";
+
+  @Test
+  public void testSameSource() throws Exception {
+    final FileDescriptor current = build(ORIGINAL);
+    final FileDescriptor candidate = build(ORIGINAL);
+
+    assertThat(candidate.fingerprint(), equalTo(current.fingerprint()));
+    assertThat(candidate.structuralFingerprint(), equalTo(current.structuralFingerprint()));
+  }
+
+  @Test
+  public void testCommentChange() throws Exception {
+    final FileDescriptor current = build(ORIGINAL);
+    final FileDescriptor candidate = build(ORIGINAL.replace(
+        "message Baz {", "// A comment\nmessage Baz {"));
+
+    assertThat(candidate.fingerprint(), not(equalTo(current.fingerprint())));
+    assertThat(candidate.structuralFingerprint(), equalTo(current.structuralFingerprint()));
+
+    final MessageDescriptor currentBaz = current.findMessageByName("Baz");
+    final MessageDescriptor candidateBaz = candidate.findMessageByName("Baz");
+    assertThat(candidateBaz.fingerprint(), not(equalTo(currentBaz.fingerprint())));
+    assertThat(candidateBaz.structuralFingerprint(),
+               equalTo(currentBaz.structuralFingerprint()));
+
+    // Bar comes before the comment, so its locations are the same
+    assertThat(candidate.findMessageByName("Bar").fingerprint(),
+               equalTo(current.findMessageByName("Bar").fingerprint()));
+  }
+
+  @Test
+  public void testStructuralChange() throws Exception {
+    final FileDescriptor current = build(ORIGINAL);
+    final FileDescriptor candidate = build(ORIGINAL.replace("int32 b = 1;", "int64 b = 1;"));
+
+    assertThat(candidate.structuralFingerprint(), not(equalTo(current.structuralFingerprint())));
+
+    final MessageDescriptor currentBaz = current.findMessageByName("Baz");
+    final MessageDescriptor candidateBaz = candidate.findMessageByName("Baz");
+    assertThat(candidateBaz.structuralFingerprint(),
+               not(equalTo(currentBaz.structuralFingerprint())));
+    assertThat(candidateBaz.findFieldByName("b").structuralFingerprint(),
+               not(equalTo(currentBaz.findFieldByName("b").structuralFingerprint())));
+
+    assertThat(candidate.findMessageByName("Bar").structuralFingerprint(),
+               equalTo(current.findMessageByName("Bar").structuralFingerprint()));
+  }
+
+  private static FileDescriptor build(final String source) throws Exception {
+    try (final DescriptorBuilder builder = InProcessDescriptorBuilder.create()) {
+      builder.setProtoFile(PATH, source);
+      final DescriptorBuilder.Result result = builder.buildDescriptor(Stream.of(PATH));
+      return DescriptorSet.create(result.fileDescriptorSet(), path -> true)
+          .findFileByPath(PATH)
+          .get();
+    }
+  }
+}
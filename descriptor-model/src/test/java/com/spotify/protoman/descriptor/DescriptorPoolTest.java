@@ -0,0 +1,120 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DescriptorPoolTest {
+
+  private static final Path BASE = Paths.get("foo/bar/base.proto");
+  private static final Path USER = Paths.get("baz/qux/user.proto");
+
+  private MessageDescriptor base;
+  private MessageDescriptor user;
+  private DescriptorPool sut;
+
+  @Before
+  public void setUp() throws Exception {
+    try (final DescriptorBuilder builder = InProcessDescriptorBuilder.create()) {
+      builder.setProtoFile(BASE, "syntax = \"proto3\";\n"
+                                 + "package foo.bar;\n"
+                                 + "message Base {\n"
+                                 + "  message Nested {}\n"
+                                 + "  enum Kind { A = 0; }\n"
+                                 + "}\n"
+                                 + "enum TopKind { T = 0; }\n");
+      builder.setProtoFile(USER, "syntax = \"proto3\";\n"
+                                 + "package baz.qux;\n"
+                                 + "import \"foo/bar/base.proto\";\n"
+                                 + "message User {\n"
+                                 + "  message Base {}\n"
+                                 + "  message Holder {\n"
+                                 + "    message Leaf {}\n"
+                                 + "  }\n"
+                                 + "}\n");
+      final DescriptorSet descriptorSet = DescriptorSet.create(
+          builder.buildDescriptor(Stream.of(USER)).fileDescriptorSet(), path -> true);
+      final FileDescriptor userFile = descriptorSet.findFileByPath(USER).get();
+      base = descriptorSet.findFileByPath(BASE).get().findMessageByName("Base");
+      user = userFile.findMessageByName("User");
+      sut = DescriptorPool.forFile(userFile);
+    }
+  }
+
+  @Test
+  public void testInnermostScopeFirst() {
+    assertThat(sut.lookupMessageDescriptor("Base", user),
+               is(sameInstance(user.findMessageByName("Base"))));
+  }
+
+  @Test
+  public void testEnclosingScopes() {
+    final MessageDescriptor leaf =
+        user.findMessageByName("Holder").findMessageByName("Leaf");
+
+    assertThat(sut.lookupMessageDescriptor("Holder.Leaf", leaf), is(sameInstance(leaf)));
+    assertThat(sut.lookupMessageDescriptor("User", leaf), is(sameInstance(user)));
+    assertThat(sut.lookupMessageDescriptor("qux.User.Base", leaf),
+               is(sameInstance(user.findMessageByName("Base"))));
+    assertThat(sut.lookupMessageDescriptor("foo.bar.Base", leaf), is(sameInstance(base)));
+  }
+
+  @Test
+  public void testFullyQualified() {
+    assertThat(sut.lookupMessageDescriptor(".foo.bar.Base.Nested", user),
+               is(sameInstance(base.findMessageByName("Nested"))));
+    assertThat(sut.lookupEnumDescriptor(".foo.bar.TopKind", user),
+               is(sameInstance(base.file().findEnumByName("TopKind"))));
+    assertThat(sut.findMessageType("foo.bar.Base"), is(sameInstance(base)));
+  }
+
+  @Test
+  public void testEnum() {
+    assertThat(sut.lookupEnumDescriptor("Kind", base),
+               is(sameInstance(base.findEnumByName("Kind"))));
+    assertThat(sut.lookupMessageDescriptor("Kind", base), is(nullValue()));
+  }
+
+  @Test
+  public void testRestOnlyLookedUpInFirstMatch() {
+    // "Base" resolves to User.Base, which has no Nested
+    assertThat(sut.lookupMessageDescriptor("Base.Nested", user), is(nullValue()));
+  }
+
+  @Test
+  public void testNotFound() {
+    assertThat(sut.lookupMessageDescriptor("Missing", user), is(nullValue()));
+    assertThat(sut.lookupMessageDescriptor("Holder.Missing", user), is(nullValue()));
+    // Packages are not types
+    assertThat(sut.lookupMessageDescriptor("foo", user), is(nullValue()));
+    assertThat(sut.lookupMessageDescriptor(".foo.bar", user), is(nullValue()));
+  }
+}
@@ -0,0 +1,123 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import com.google.protobuf.DescriptorProtos;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DescriptorResolutionTest {
+
+  private static final Path COMMON = Paths.get("foo/common.proto");
+  private static final Path SERVICE = Paths.get("foo/bar/service.proto");
+  private static final Path OTHER = Paths.get("foo/bar/other.proto");
+
+  private DescriptorProtos.FileDescriptorSet fileDescriptorSet;
+  private DescriptorSet descriptorSet;
+
+  @Before
+  public void setUp() throws Exception {
+    try (final DescriptorBuilder builder = InProcessDescriptorBuilder.create()) {
+      builder.setProtoFile(COMMON, "syntax = \"proto3\";\n"
+                                   + "package foo;\n"
+                                   + "message Outer {\n"
+                                   + "  message Inner {\n"
+                                   + "    enum Kind { A = 0; }\n"
+                                   + "  }\n"
+                                   + "}\n");
+      builder.setProtoFile(SERVICE, "syntax = \"proto3\";\n"
+                                    + "package foo.bar;\n"
+                                    + "import \"foo/common.proto\";\n"
+                                    + "message Request {\n"
+                                    + "  foo.Outer.Inner inner = 1;\n"
+                                    + "  foo.Outer.Inner.Kind kind = 2;\n"
+                                    + "  int32 number = 3;\n"
+                                    + "}\n"
+                                    + "service Service {\n"
+                                    + "  rpc Get (Request) returns (foo.Outer);\n"
+                                    + "}\n");
+      builder.setProtoFile(OTHER, "syntax = \"proto3\";\n"
+                                  + "package foo.bar;\n"
+                                  + "import \"foo/common.proto\";\n"
+                                  + "message Other {\n"
+                                  + "  foo.Outer outer = 1;\n"
+                                  + "}\n");
+      fileDescriptorSet =
+          builder.buildDescriptor(Stream.of(SERVICE, OTHER)).fileDescriptorSet();
+      descriptorSet = DescriptorSet.create(fileDescriptorSet, path -> true);
+    }
+  }
+
+  @Test
+  public void testFieldTypes() {
+    final FileDescriptor common = descriptorSet.findFileByPath(COMMON).get();
+    final MessageDescriptor request = descriptorSet.findFileByPath(SERVICE).get()
+        .findMessageByName("Request");
+
+    final MessageDescriptor inner = common.findMessageByName("Outer").findMessageByName("Inner");
+    assertThat(request.findFieldByName("inner").messageType(), is(sameInstance(inner)));
+    assertThat(request.findFieldByName("kind").enumType(),
+               is(sameInstance(inner.findEnumByName("Kind"))));
+    assertThat(request.findFieldByName("number").messageType(), is(nullValue()));
+    assertThat(request.findFieldByName("number").enumType(), is(nullValue()));
+  }
+
+  @Test
+  public void testParallelCreate() throws Exception {
+    final DescriptorSet parallel = DescriptorSet.create(
+        fileDescriptorSet, path -> true, null, ForkJoinPool.commonPool());
+
+    assertThat(parallel.fileDescriptors().stream().map(FileDescriptor::toProto).collect(toList()),
+               equalTo(fileDescriptorSet.getFileList()));
+    final FileDescriptor common = parallel.findFileByPath(COMMON).get();
+    final FileDescriptor service = parallel.findFileByPath(SERVICE).get();
+    assertThat(service.dependencies(), contains(sameInstance(common)));
+    assertThat(service.findMessageByName("Request").findFieldByName("inner").messageType(),
+               is(sameInstance(common.findMessageByName("Outer").findMessageByName("Inner"))));
+    final FileDescriptor other = parallel.findFileByPath(OTHER).get();
+    assertThat(other.dependencies(), contains(sameInstance(common)));
+    assertThat(other.findMessageByName("Other").findFieldByName("outer").messageType(),
+               is(sameInstance(common.findMessageByName("Outer"))));
+  }
+
+  @Test
+  public void testMethodTypes() {
+    final FileDescriptor file = descriptorSet.findFileByPath(SERVICE).get();
+    final MethodDescriptor method = file.findServiceByName("Service").methods().get(0);
+
+    assertThat(method.inputType(), is(sameInstance(file.findMessageByName("Request"))));
+    assertThat(method.outputType(), is(sameInstance(
+        descriptorSet.findFileByPath(COMMON).get().findMessageByName("Outer"))));
+  }
+}
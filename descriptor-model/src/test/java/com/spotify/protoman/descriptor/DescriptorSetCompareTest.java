@@ -0,0 +1,290 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import org.junit.Test;
+
+public class DescriptorSetCompareTest {
+
+  private static final String UNCHANGED = "syntax = \"proto3\";\n"
+                                          + "package foo;\n"
+                                          + "message Same {\n"
+                                          + "  string a = 1;\n"
+                                          + "  message Nested { int32 b = 1; }\n"
+                                          + "}\n"
+                                          + "enum Kind { A = 0; }\n"
+                                          + "service Svc { rpc Get (Same) returns (Same); }\n";
+
+  private static final String CHANGED = "syntax = \"proto3\";\n"
+                                        + "package foo;\n"
+                                        + "message Changed {\n"
+                                        + "  string a = 1;\n"
+                                        + "  int32 b = 2;\n"
+                                        + "}\n";
+
+  @Test
+  public void testCompareChanges_prunesUnchanged() throws Exception {
+    final DescriptorSet current = build(ImmutableMap.of(
+        "foo/same.proto", UNCHANGED,
+        "foo/changed.proto", CHANGED));
+    final DescriptorSet candidate = build(ImmutableMap.of(
+        "foo/same.proto", UNCHANGED.replace("message Same", "// Comment\nmessage Same"),
+        "foo/changed.proto", CHANGED.replace("int32 b = 2;", "int64 b = 2;")));
+
+    final RecordingVisitor visitor = new RecordingVisitor();
+    DescriptorSet.compareChanges(visitor, current, candidate);
+
+    assertThat(visitor.visited, containsInAnyOrder(
+        "foo/changed.proto", "foo.Changed", "foo.Changed.b"));
+    assertThat(visitor.unchanged, containsInAnyOrder("foo/same.proto", "foo.Changed.a"));
+  }
+
+  @Test
+  public void testCompare_visitsAll() throws Exception {
+    final DescriptorSet current = build(ImmutableMap.of("foo/same.proto", UNCHANGED));
+    final DescriptorSet candidate = build(ImmutableMap.of("foo/same.proto", UNCHANGED));
+
+    final RecordingVisitor visitor = new RecordingVisitor();
+    DescriptorSet.compare(visitor, current, candidate);
+
+    assertThat(visitor.visited, containsInAnyOrder(
+        "foo/same.proto", "foo.Same", "foo.Same.a", "foo.Same.Nested", "foo.Same.Nested.b",
+        "foo.Kind", "foo.Kind.A", "foo.Svc", "foo.Svc.Get"));
+    assertThat(visitor.unchanged, is(empty()));
+  }
+
+  @Test
+  public void testCompareChanges_parallel() throws Exception {
+    final DescriptorSet current = build(ImmutableMap.of(
+        "foo/same.proto", UNCHANGED.replace("message Same {", "message Same {\n  int32 c = 2;"),
+        "foo/changed.proto", CHANGED));
+    final DescriptorSet candidate = build(ImmutableMap.of(
+        "foo/same.proto", UNCHANGED,
+        "foo/changed.proto", CHANGED.replace("int32 b = 2;", "int64 b = 2;")));
+
+    final RecordingVisitor sequential = new RecordingVisitor();
+    DescriptorSet.compareChanges(sequential, current, candidate);
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final List<RecordingVisitor> visitors = DescriptorSet.compareChanges(
+          RecordingVisitor::new, current, candidate, pool);
+
+      assertThat(visitors.stream().flatMap(v -> v.visited.stream()).collect(Collectors.toList()),
+                 equalTo(sequential.visited));
+      assertThat(visitors.stream().flatMap(v -> v.unchanged.stream()).collect(Collectors.toList()),
+                 equalTo(sequential.unchanged));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testCompareChanges_parallelChunks() throws Exception {
+    final StringBuilder current = new StringBuilder("syntax = \"proto3\";\npackage foo;\n");
+    final StringBuilder candidate = new StringBuilder(current);
+    for (int i = 0; i < 20; i++) {
+      current.append(String.format("message M%d {\n  int32 a = 1;\n}\n", i));
+      candidate.append(String.format("message M%d {\n  int64 a = 1;\n}\n", i));
+    }
+    final DescriptorSet a = build(ImmutableMap.of("foo/many.proto", current.toString()));
+    final DescriptorSet b = build(ImmutableMap.of("foo/many.proto", candidate.toString()));
+
+    final RecordingVisitor sequential = new RecordingVisitor();
+    DescriptorSet.compareChanges(sequential, a, b);
+
+    final ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      final List<RecordingVisitor> visitors = DescriptorSet.compareChanges(
+          RecordingVisitor::new, a, b, pool);
+
+      assertThat(visitors, hasSize(8));
+      assertThat(visitors.stream().flatMap(v -> v.visited.stream()).collect(Collectors.toList()),
+                 equalTo(sequential.visited));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testCompareChanges_interruptWaitsForRunningChunks() throws Exception {
+    final StringBuilder current = new StringBuilder("syntax = \"proto3\";\npackage foo;\n");
+    final StringBuilder candidate = new StringBuilder(current);
+    for (int i = 0; i < 20; i++) {
+      current.append(String.format("message M%d {\n  int32 a = 1;\n}\n", i));
+      candidate.append(String.format("message M%d {\n  int64 a = 1;\n}\n", i));
+    }
+    final DescriptorSet a = build(ImmutableMap.of("foo/many.proto", current.toString()));
+    final DescriptorSet b = build(ImmutableMap.of("foo/many.proto", candidate.toString()));
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicBoolean first = new AtomicBoolean(true);
+    final AtomicInteger running = new AtomicInteger();
+    final Thread caller = Thread.currentThread();
+    new Thread(() -> {
+      Uninterruptibles.awaitUninterruptibly(started);
+      caller.interrupt();
+      Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+      release.countDown();
+    }).start();
+
+    final ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      DescriptorSet.compareChanges(() -> new RecordingVisitor() {
+        @Override
+        public void visit(@Nullable final MessageDescriptor a,
+                          @Nullable final MessageDescriptor b) {
+          running.incrementAndGet();
+          try {
+            if (first.compareAndSet(true, false)) {
+              started.countDown();
+              Uninterruptibles.awaitUninterruptibly(release);
+            }
+          } finally {
+            running.decrementAndGet();
+          }
+        }
+      }, a, b, pool);
+      throw new AssertionError("Expected compareChanges to be interrupted");
+    } catch (InterruptedException e) {
+      // The blocked chunk was done before compareChanges threw
+      assertThat(release.getCount(), is(0L));
+      assertThat(running.get(), is(0));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testCompare_aliasedEnumValuesMatchedByName() throws Exception {
+    final String aliased = "syntax = \"proto3\";\n"
+                           + "package foo;\n"
+                           + "enum Kind {\n"
+                           + "  option allow_alias = true;\n"
+                           + "  A = 0;\n"
+                           + "  B = 1;\n"
+                           + "  C = 1;\n"
+                           + "}\n";
+    final DescriptorSet current = build(ImmutableMap.of("foo/kind.proto", aliased));
+    final DescriptorSet candidate = build(ImmutableMap.of(
+        "foo/kind.proto", aliased.replace("C = 1;", "D = 1;")));
+
+    final RecordingVisitor visitor = new RecordingVisitor();
+    DescriptorSet.compareChanges(visitor, current, candidate);
+
+    assertThat(visitor.visited, contains(
+        "foo/kind.proto", "foo.Kind", "foo.Kind.C", "foo.Kind.D"));
+    assertThat(visitor.unchanged, contains("foo.Kind.A", "foo.Kind.B"));
+  }
+
+  private static DescriptorSet build(final Map<String, String> files) throws Exception {
+    try (final DescriptorBuilder builder = InProcessDescriptorBuilder.create()) {
+      for (final Map.Entry<String, String> file : files.entrySet()) {
+        builder.setProtoFile(Paths.get(file.getKey()), file.getValue());
+      }
+      final DescriptorBuilder.Result result =
+          builder.buildDescriptor(files.keySet().stream().map(Paths::get));
+      return DescriptorSet.create(result.fileDescriptorSet(), path -> true);
+    }
+  }
+
+  private static class RecordingVisitor implements DescriptorSet.ComparingVisitor {
+
+    private final List<String> visited = new ArrayList<>();
+    private final List<String> unchanged = new ArrayList<>();
+
+    private void record(@Nullable final GenericDescriptor a, @Nullable final GenericDescriptor b) {
+      visited.add(a != null ? a.fullName() : b.fullName());
+    }
+
+    @Override
+    public void visit(@Nullable final FieldDescriptor a, @Nullable final FieldDescriptor b,
+                      @Nullable final MessageDescriptor aMessage,
+                      @Nullable final MessageDescriptor bMessage) {
+      record(a, b);
+    }
+
+    @Override
+    public void visit(@Nullable final MessageDescriptor a, @Nullable final MessageDescriptor b) {
+      record(a, b);
+    }
+
+    @Override
+    public void visit(@Nullable final EnumDescriptor a, @Nullable final EnumDescriptor b) {
+      record(a, b);
+    }
+
+    @Override
+    public void visit(@Nullable final EnumValueDescriptor a, @Nullable final EnumValueDescriptor b,
+                      @Nullable final EnumDescriptor aEnum, @Nullable final EnumDescriptor bEnum) {
+      record(a, b);
+    }
+
+    @Override
+    public void visit(@Nullable final ServiceDescriptor a, @Nullable final ServiceDescriptor b) {
+      record(a, b);
+    }
+
+    @Override
+    public void visit(@Nullable final MethodDescriptor a, @Nullable final MethodDescriptor b) {
+      record(a, b);
+    }
+
+    @Override
+    public void visit(@Nullable final OneofDescriptor a, @Nullable final OneofDescriptor b) {
+      record(a, b);
+    }
+
+    @Override
+    public void visit(@Nullable final FileDescriptor a, @Nullable final FileDescriptor b) {
+      record(a, b);
+    }
+
+    @Override
+    public void visitUnchanged(final GenericDescriptor a, final GenericDescriptor b) {
+      unchanged.add(a.fullName());
+    }
+  }
+}
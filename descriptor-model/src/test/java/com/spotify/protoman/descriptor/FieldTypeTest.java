@@ -0,0 +1,159 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import org.junit.Test;
+
+public class FieldTypeTest {
+
+  // Pairs of wire-compatible types, as they were listed before the lookup became a bit matrix
+  private static final ImmutableSet<List<FieldType>> WIRE_COMPATIBLE_TYPES = wireCompatibleTypes(
+      ImmutableList.of(FieldType.INT32, FieldType.UINT32, FieldType.INT64, FieldType.UINT64,
+          FieldType.BOOL),
+      ImmutableList.of(FieldType.SINT32, FieldType.SINT64),
+      ImmutableList.of(FieldType.FIXED32, FieldType.SFIXED32),
+      ImmutableList.of(FieldType.FIXED64, FieldType.SFIXED64),
+      ImmutableList.of(FieldType.INT32, FieldType.UINT32, FieldType.INT64, FieldType.UINT64,
+          FieldType.ENUM),
+      ImmutableList.of(FieldType.STRING, FieldType.BYTES),
+      ImmutableList.of(FieldType.MESSAGE, FieldType.BYTES)
+  );
+
+  @Test
+  public void testFromProtoType() {
+    for (final FieldType fieldType : FieldType.values()) {
+      assertThat(FieldType.fromProtoType(fieldType.protoType()), is(fieldType));
+    }
+    for (final FieldDescriptorProto.Type protoType : FieldDescriptorProto.Type.values()) {
+      assertThat(FieldType.fromProtoType(protoType).protoType(), is(protoType));
+    }
+  }
+
+  @Test
+  public void testIsWireCompatible() {
+    assertThat(FieldType.isWireCompatible(FieldType.INT32, FieldType.UINT64), is(true));
+    assertThat(FieldType.isWireCompatible(FieldType.ENUM, FieldType.INT64), is(true));
+    assertThat(FieldType.isWireCompatible(FieldType.SINT32, FieldType.SINT64), is(true));
+    assertThat(FieldType.isWireCompatible(FieldType.MESSAGE, FieldType.BYTES), is(true));
+    assertThat(FieldType.isWireCompatible(FieldType.BYTES, FieldType.STRING), is(true));
+    assertThat(FieldType.isWireCompatible(FieldType.SINT32, FieldType.INT32), is(false));
+    assertThat(FieldType.isWireCompatible(FieldType.ENUM, FieldType.BOOL), is(false));
+    assertThat(FieldType.isWireCompatible(FieldType.MESSAGE, FieldType.STRING), is(false));
+    assertThat(FieldType.isWireCompatible(FieldType.GROUP, FieldType.GROUP), is(false));
+    assertThat(FieldType.isWireCompatible(FieldType.BOOL, FieldType.ENUM), is(false));
+    assertThat(FieldType.isWireCompatible(FieldType.DOUBLE, FieldType.DOUBLE), is(false));
+    assertThat(FieldType.isWireCompatible(FieldType.FIXED32, FieldType.FIXED64), is(false));
+  }
+
+  @Test
+  public void testIsWireCompatible_allPairs() {
+    for (final FieldType a : FieldType.values()) {
+      for (final FieldType b : FieldType.values()) {
+        assertThat(a + " -> " + b,
+                   FieldType.isWireCompatible(a, b),
+                   equalTo(WIRE_COMPATIBLE_TYPES.contains(ImmutableList.of(a, b))));
+      }
+    }
+  }
+
+  @Test
+  public void testIsWireCompatible_symmetric() {
+    for (final FieldType a : FieldType.values()) {
+      for (final FieldType b : FieldType.values()) {
+        assertThat(a + " -> " + b,
+                   FieldType.isWireCompatible(a, b), equalTo(FieldType.isWireCompatible(b, a)));
+      }
+    }
+  }
+
+  @Test
+  public void testDoesNotAllocate() {
+    // Allocation counters are only available through the HotSpot extension of the bean
+    final Object bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof ThreadMXBean);
+    final ThreadMXBean threads = (ThreadMXBean) bean;
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+    final FieldType[] types = FieldType.values();
+    final long threadId = Thread.currentThread().getId();
+
+    int compatible = lookups(types);
+    final long before = threads.getThreadAllocatedBytes(threadId);
+    compatible += lookups(types);
+    final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+    // Allocating even a single object per lookup would amount to megabytes
+    assertThat(allocated, is(lessThan(64L * 1024)));
+
+    // Each type is looked up once per round, and is compatible with itself iff it's in a pair
+    final long selfCompatible = WIRE_COMPATIBLE_TYPES.stream()
+        .filter(pair -> pair.get(0) == pair.get(1))
+        .count();
+    assertThat((long) compatible,
+               equalTo(2 * ROUNDS * (WIRE_COMPATIBLE_TYPES.size() + selfCompatible)));
+  }
+
+  private static final int ROUNDS = 1000;
+
+  private static int lookups(final FieldType[] types) {
+    int compatible = 0;
+    for (int i = 0; i < ROUNDS; i++) {
+      for (final FieldType a : types) {
+        if (FieldType.isWireCompatible(a, FieldType.fromProtoType(a.protoType()))) {
+          compatible++;
+        }
+        for (final FieldType b : types) {
+          if (FieldType.isWireCompatible(a, b)) {
+            compatible++;
+          }
+        }
+      }
+    }
+    return compatible;
+  }
+
+  @SafeVarargs
+  private static ImmutableSet<List<FieldType>> wireCompatibleTypes(
+      final List<FieldType>... groups) {
+    final ImmutableSet.Builder<List<FieldType>> builder = ImmutableSet.builder();
+    for (final List<FieldType> group : groups) {
+      for (final FieldType a : group) {
+        for (final FieldType b : group) {
+          builder.add(ImmutableList.of(a, b));
+        }
+      }
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,103 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import com.google.protobuf.DescriptorProtos;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+import org.junit.Test;
+
+public class FileDescriptorCacheTest {
+
+  private static final Path COMMON = Paths.get("foo/common.proto");
+  private static final Path SERVICE = Paths.get("foo/service.proto");
+  private static final Path OTHER = Paths.get("foo/other.proto");
+
+  private static final String COMMON_SOURCE = "syntax = \"proto3\";\n"
+                                              + "package foo;\n"
+                                              + "message Common {\n"
+                                              + "  int32 a = 1;\n"
+                                              + "}\n";
+  private static final String SERVICE_SOURCE = "syntax = \"proto3\";\n"
+                                               + "package foo;\n"
+                                               + "import \"foo/common.proto\";\n"
+                                               + "message Request {\n"
+                                               + "  Common common = 1;\n"
+                                               + "}\n";
+  private static final String OTHER_SOURCE = "syntax = \"proto3\";\n"
+                                             + "package foo;\n"
+                                             + "message Other {\n"
+                                             + "}\n";
+
+  private final FileDescriptorCache sut = FileDescriptorCache.create(100);
+
+  @Test
+  public void testSameFilesAreShared() throws Exception {
+    final DescriptorSet a = create(build(COMMON_SOURCE, SERVICE_SOURCE, OTHER_SOURCE));
+    final DescriptorSet b = create(build(COMMON_SOURCE, SERVICE_SOURCE, OTHER_SOURCE));
+
+    assertThat(file(b, SERVICE), is(sameInstance(file(a, SERVICE))));
+    assertThat(file(b, COMMON), is(sameInstance(file(a, COMMON))));
+    assertThat(file(b, SERVICE).findMessageByName("Request").fields().get(0).messageType(),
+               is(sameInstance(file(a, COMMON).findMessageByName("Common"))));
+  }
+
+  @Test
+  public void testChangedDependencyIsNotShared() throws Exception {
+    final DescriptorSet a = create(build(COMMON_SOURCE, SERVICE_SOURCE, OTHER_SOURCE));
+    final DescriptorSet b = create(build(
+        COMMON_SOURCE.replace("int32 a = 1;", "int64 a = 1;"), SERVICE_SOURCE, OTHER_SOURCE));
+
+    assertThat(file(b, COMMON), is(not(sameInstance(file(a, COMMON)))));
+    // Same content, but it imports a different file
+    assertThat(file(b, SERVICE), is(not(sameInstance(file(a, SERVICE)))));
+    assertThat(file(b, SERVICE).findMessageByName("Request").fields().get(0).messageType(),
+               is(sameInstance(file(b, COMMON).findMessageByName("Common"))));
+    assertThat(file(b, OTHER), is(sameInstance(file(a, OTHER))));
+  }
+
+  private DescriptorSet create(final DescriptorProtos.FileDescriptorSet fds) {
+    return DescriptorSet.create(fds, path -> true, sut);
+  }
+
+  private static FileDescriptor file(final DescriptorSet descriptorSet, final Path path) {
+    return descriptorSet.findFileByPath(path).get();
+  }
+
+  private static DescriptorProtos.FileDescriptorSet build(final String common,
+                                                          final String service,
+                                                          final String other)
+      throws Exception {
+    try (final DescriptorBuilder builder = InProcessDescriptorBuilder.create()) {
+      builder.setProtoFile(COMMON, common);
+      builder.setProtoFile(SERVICE, service);
+      builder.setProtoFile(OTHER, other);
+      return builder.buildDescriptor(Stream.of(SERVICE, OTHER)).fileDescriptorSet();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.descriptor;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.TextFormat;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compiles each directory under {@code compiler/} with both protoc and the in-process builder,
+ * and expects the exact same descriptor set or errors. Files under {@code compiler-common/} are
+ * available for all of them to import.
+ */
+@RunWith(JUnitParamsRunner.class)
+public class InProcessDescriptorBuilderTest {
+
+  private static final Path CORPUS = resource("/compiler");
+  private static final Path COMMON = resource("/compiler-common");
+
+  private static Path resource(final String name) {
+    try {
+      return Paths.get(InProcessDescriptorBuilderTest.class.getResource(name).toURI());
+    } catch (URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static boolean protocAvailable() {
+    try {
+      return new ProcessBuilder("protoc", "--version").start().waitFor() == 0;
+    } catch (IOException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private static Object[] corpusCases() throws IOException {
+    try (final Stream<Path> cases = Files.list(CORPUS)) {
+      return cases.map(path -> path.getFileName().toString()).sorted().toArray();
+    }
+  }
+
+  @Parameters(method = "corpusCases")
+  @Test
+  public void testSameResultAsProtoc(final String corpusCase) throws Exception {
+    assumeTrue("protoc is not on PATH", protocAvailable());
+    final Path root = CORPUS.resolve(corpusCase);
+    final ImmutableList<Path> paths = protoFiles(root);
+
+    final DescriptorBuilder.Result expected;
+    try (final DescriptorBuilder protoc = ProtocDescriptorBuilder.factoryBuilder()
+        .build()
+        .newDescriptorBuilder()) {
+      expected = build(protoc, root, paths);
+    }
+    final DescriptorBuilder.Result actual;
+    try (final DescriptorBuilder sut = InProcessDescriptorBuilder.create()) {
+      actual = build(sut, root, paths);
+    }
+
+    if (expected.compilationError() != null) {
+      assertThat(actual.compilationError(), is(notNullValue()));
+      assertThat(actual.compilationError(), equalTo(withoutWarnings(expected.compilationError())));
+    } else {
+      assertThat(actual.compilationError(), is(nullValue()));
+      // Compare text first for a readable diff
+      assertThat(TextFormat.printToString(actual.fileDescriptorSet()),
+                 equalTo(TextFormat.printToString(expected.fileDescriptorSet())));
+      assertThat(actual.fileDescriptorSet(), equalTo(expected.fileDescriptorSet()));
+    }
+  }
+
+  @Test
+  public void testBuildDescriptor_noPaths() throws Exception {
+    final DescriptorBuilder sut = InProcessDescriptorBuilder.factory().newDescriptorBuilder();
+
+    final DescriptorBuilder.Result result = sut.buildDescriptor(Stream.empty());
+
+    assertThat(result.compilationError(), is(nullValue()));
+    assertThat(result.fileDescriptorSet().getFileList(), hasSize(0));
+  }
+
+  @Test
+  public void testBuildDescriptor_fileNotSet() throws Exception {
+    final DescriptorBuilder sut = InProcessDescriptorBuilder.create();
+
+    final DescriptorBuilder.Result result = sut.buildDescriptor(
+        Stream.of(Paths.get("foo/bar/1.proto")));
+
+    assertThat(result.compilationError(),
+               equalTo("foo/bar/1.proto: No such file or directory\n"));
+  }
+
+  private static ImmutableList<Path> protoFiles(final Path root) throws IOException {
+    try (final Stream<Path> files = Files.walk(root)) {
+      return files
+          .filter(path -> path.toString().endsWith(".proto"))
+          .map(root::relativize)
+          .sorted()
+          .collect(toImmutableList());
+    }
+  }
+
+  private static DescriptorBuilder.Result build(final DescriptorBuilder builder,
+                                                final Path root,
+                                                final ImmutableList<Path> paths)
+      throws IOException, DescriptorBuilderException {
+    for (final Path path : protoFiles(COMMON)) {
+      setProtoFile(builder, COMMON, path);
+    }
+    for (final Path path : paths) {
+      setProtoFile(builder, root, path);
+    }
+    return builder.buildDescriptor(paths.stream());
+  }
+
+  private static void setProtoFile(final DescriptorBuilder builder,
+                                   final Path root,
+                                   final Path path)
+      throws IOException, DescriptorBuilderException {
+    builder.setProtoFile(
+        path, new String(Files.readAllBytes(root.resolve(path)), StandardCharsets.UTF_8));
+  }
+
+  private static String withoutWarnings(final String errors) {
+    return Arrays.stream(errors.split("\n"))
+        .filter(line -> !line.startsWith("[libprotobuf WARNING"))
+        .map(line -> line + "\n")
+        .collect(Collectors.joining());
+  }
+}
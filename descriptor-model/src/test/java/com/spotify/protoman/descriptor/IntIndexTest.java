@@ -0,0 +1,79 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import com.google.common.collect.ImmutableList;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Test;
+
+public class IntIndexTest {
+
+  @Test
+  public void testGet() {
+    final ImmutableList<Integer> values = IntStream.rangeClosed(-100, 1000).boxed()
+        .collect(ImmutableList.toImmutableList());
+    final IntIndex<Integer> index = IntIndex.create(values, Integer::intValue);
+
+    for (final int value : values) {
+      assertThat(index.get(value), equalTo(value));
+    }
+    assertThat(index.get(1001), is(nullValue()));
+    assertThat(index.get(Integer.MIN_VALUE), is(nullValue()));
+  }
+
+  @Test
+  public void testGet_empty() {
+    final IntIndex<String> index = IntIndex.create(ImmutableList.of(), String::length);
+
+    assertThat(index.get(0), is(nullValue()));
+    assertThat(index.getAll(0), is(empty()));
+  }
+
+  @Test
+  public void testGetAll_duplicateKeysInInsertionOrder() {
+    final IntIndex<String> index = IntIndex.create(
+        ImmutableList.of("a", "bb", "c", "dd", "e"), String::length);
+
+    assertThat(index.get(1), equalTo("a"));
+    assertThat(index.getAll(1), contains("a", "c", "e"));
+    assertThat(index.getAll(2), contains("bb", "dd"));
+    assertThat(index.getAll(3), is(empty()));
+  }
+
+  @Test
+  public void testGet_collidingKeys() {
+    // Multiples of a power of two tend to collide with naive hashing
+    final ImmutableList<Integer> values = IntStream.range(0, 64).map(i -> i << 16).boxed()
+        .collect(ImmutableList.toImmutableList());
+    final IntIndex<Integer> index = IntIndex.create(values, Integer::intValue);
+
+    assertThat(values.stream().map(index::get).collect(Collectors.toList()), equalTo(values));
+  }
+}
@@ -0,0 +1,75 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+public class IntRangesTest {
+
+  private static IntRanges ranges(final int[]... ranges) {
+    return IntRanges.create(ImmutableList.copyOf(ranges), range -> range[0], range -> range[1]);
+  }
+
+  @Test
+  public void testContains() {
+    final IntRanges ranges = ranges(new int[]{20, 30}, new int[]{1, 1}, new int[]{5, 9});
+
+    assertThat(ranges.contains(0), is(false));
+    assertThat(ranges.contains(1), is(true));
+    assertThat(ranges.contains(2), is(false));
+    assertThat(ranges.contains(5), is(true));
+    assertThat(ranges.contains(7), is(true));
+    assertThat(ranges.contains(9), is(true));
+    assertThat(ranges.contains(10), is(false));
+    assertThat(ranges.contains(19), is(false));
+    assertThat(ranges.contains(30), is(true));
+    assertThat(ranges.contains(31), is(false));
+  }
+
+  @Test
+  public void testContains_overlapping() {
+    final IntRanges ranges = ranges(new int[]{1, 10}, new int[]{5, 6}, new int[]{8, 15});
+
+    assertThat(ranges.contains(7), is(true));
+    assertThat(ranges.contains(15), is(true));
+    assertThat(ranges.contains(16), is(false));
+  }
+
+  @Test
+  public void testContains_extremes() {
+    final IntRanges ranges = ranges(
+        new int[]{Integer.MIN_VALUE, -1}, new int[]{100, Integer.MAX_VALUE});
+
+    assertThat(ranges.contains(Integer.MIN_VALUE), is(true));
+    assertThat(ranges.contains(0), is(false));
+    assertThat(ranges.contains(Integer.MAX_VALUE), is(true));
+  }
+
+  @Test
+  public void testContains_empty() {
+    assertThat(ranges().contains(0), is(false));
+  }
+}
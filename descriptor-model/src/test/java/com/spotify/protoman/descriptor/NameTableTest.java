@@ -0,0 +1,50 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.Test;
+
+public class NameTableTest {
+
+  @Test
+  public void testName() {
+    final String name = NameTable.name(new String("foo.Bar"));
+
+    assertThat(name, equalTo("foo.Bar"));
+    assertThat(NameTable.name(new String("foo.Bar")), is(sameInstance(name)));
+  }
+
+  @Test
+  public void testPath() {
+    final Path path = NameTable.path(new String("foo/bar.proto"));
+
+    assertThat(path, equalTo(Paths.get("foo/bar.proto")));
+    assertThat(NameTable.path(new String("foo/bar.proto")), is(sameInstance(path)));
+  }
+}
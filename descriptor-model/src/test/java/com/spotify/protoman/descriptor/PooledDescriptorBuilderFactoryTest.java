@@ -0,0 +1,149 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.descriptor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Test;
+
+public class PooledDescriptorBuilderFactoryTest {
+
+  private final PooledDescriptorBuilderFactory sut =
+      ProtocDescriptorBuilder.factoryBuilder().buildPooled(1);
+
+  @After
+  public void tearDown() {
+    sut.close();
+  }
+
+  @Test
+  public void testBuildDescriptor() throws Exception {
+    final Path path = Paths.get("foo/bar/1.proto");
+    try (final DescriptorBuilder builder = sut.newDescriptorBuilder()) {
+      builder.setProtoFile(path, "syntax = 'proto3'; message One {}");
+
+      final DescriptorBuilder.Result result = builder.buildDescriptor(Stream.of(path));
+
+      assertThat(result.compilationError(), is(nullValue()));
+      assertThat(result.fileDescriptorSet().getFileList(), hasSize(1));
+    }
+  }
+
+  // Files staged by a previous builder must not be visible to the next one using the same
+  // staging directory
+  @Test
+  public void testReusedDirectoryIsReset() throws Exception {
+    final Path path1 = Paths.get("foo/bar/1.proto");
+    final Path path2 = Paths.get("foo/bar/2.proto");
+    try (final DescriptorBuilder builder = sut.newDescriptorBuilder()) {
+      builder.setProtoFile(path2, "syntax = 'proto3'; message Two {}");
+      builder.buildDescriptor(Stream.of(path2));
+    }
+
+    try (final DescriptorBuilder builder = sut.newDescriptorBuilder()) {
+      builder.setProtoFile(
+          path1,
+          "syntax = 'proto3'; import 'foo/bar/2.proto'; message One { Two two = 1; }"
+      );
+
+      final DescriptorBuilder.Result result = builder.buildDescriptor(Stream.of(path1));
+
+      assertThat(result.compilationError(), containsString("foo/bar/2.proto"));
+    }
+  }
+
+  @Test
+  public void testStats() throws Exception {
+    assertThat(sut.stats().idle(), equalTo(1));
+
+    try (final DescriptorBuilder builder = sut.newDescriptorBuilder()) {
+      assertThat(sut.stats().inUse(), equalTo(1));
+      assertThat(sut.stats().idle(), equalTo(0));
+    }
+
+    final PooledDescriptorBuilderFactory.Stats stats = sut.stats();
+    assertThat(stats.inUse(), equalTo(0));
+    assertThat(stats.idle(), equalTo(1));
+    assertThat(stats.allocated(), equalTo(1));
+    assertThat(stats.acquisitions(), equalTo(1L));
+    assertThat(stats.contendedAcquisitions(), equalTo(0L));
+  }
+
+  @Test
+  public void testCloseIsIdempotent() throws Exception {
+    final DescriptorBuilder builder = sut.newDescriptorBuilder();
+    builder.close();
+    builder.close();
+
+    final PooledDescriptorBuilderFactory.Stats stats = sut.stats();
+    assertThat(stats.inUse(), equalTo(0));
+    assertThat(stats.idle(), equalTo(1));
+    assertThat(stats.allocated(), equalTo(1));
+
+    // Closing twice must not hand out more builders than the pool size
+    try (final DescriptorBuilder first = sut.newDescriptorBuilder()) {
+      assertThat(sut.stats().inUse(), equalTo(1));
+      assertThat(sut.stats().idle(), equalTo(0));
+    }
+  }
+
+  @Test
+  public void testInterruptWhileWaiting() throws Exception {
+    try (final DescriptorBuilder builder = sut.newDescriptorBuilder()) {
+      final AtomicReference<Thread> waiter = new AtomicReference<>();
+      final CompletableFuture<Boolean> interrupted = CompletableFuture.supplyAsync(() -> {
+        waiter.set(Thread.currentThread());
+        try {
+          sut.newDescriptorBuilder().close();
+          return false;
+        } catch (RuntimeException e) {
+          assertThat(e.getCause(), instanceOf(InterruptedException.class));
+          return Thread.currentThread().isInterrupted();
+        }
+      }, runnable -> new Thread(runnable).start());
+
+      while (sut.stats().waiting() == 0) {
+        Thread.sleep(10);
+      }
+      waiter.get().interrupt();
+
+      assertThat(interrupted.get(), is(true));
+    }
+
+    // The interrupted waiter didn't take the permit
+    final PooledDescriptorBuilderFactory.Stats stats = sut.stats();
+    assertThat(stats.inUse(), equalTo(0));
+    assertThat(stats.idle(), equalTo(1));
+    assertThat(stats.waiting(), equalTo(0));
+  }
+}
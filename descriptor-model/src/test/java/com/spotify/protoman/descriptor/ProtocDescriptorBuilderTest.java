@@ -158,6 +158,46 @@ public class ProtocDescriptorBuilderTest {
     );
   }
 
+  // More error output than fits in a pipe buffer must not block protoc
+  @Test
+  public void testBuildDescriptor_largeErrorOutput() throws Exception {
+    final DescriptorBuilder sut = ProtocDescriptorBuilder.factoryBuilder()
+        .build()
+        .newDescriptorBuilder();
+    final StringBuilder content = new StringBuilder("syntax = 'proto3'; message M {");
+    for (int i = 1; i <= 5000; ++i) {
+      content.append(" Undefined").append(i).append(" f").append(i).append(" = ").append(i)
+          .append(';');
+    }
+    content.append(" }");
+    sut.setProtoFile(Paths.get("foo/bar/qux.proto"), content.toString());
+
+    final DescriptorBuilder.Result result = sut.buildDescriptor(
+        Stream.of(Paths.get("foo/bar/qux.proto"))
+    );
+
+    assertThat(
+        result.compilationError(),
+        containsString("\"Undefined5000\" is not defined.")
+    );
+  }
+
+  @Test
+  public void testBuildDescriptor_interrupted() throws Exception {
+    final DescriptorBuilder sut = ProtocDescriptorBuilder.factoryBuilder()
+        .build()
+        .newDescriptorBuilder();
+    sut.setProtoFile(Paths.get("foo/bar/qux.proto"), "syntax = 'proto3';");
+
+    Thread.currentThread().interrupt();
+    try {
+      exception.expect(DescriptorBuilderException.class);
+      sut.buildDescriptor(Stream.of(Paths.get("foo/bar/qux.proto")));
+    } finally {
+      assertThat(Thread.interrupted(), is(true));
+    }
+  }
+
   @Test
   public void testBuildDescriptor_protocNotFound() throws Exception {
     final DescriptorBuilder sut = ProtocDescriptorBuilder.factoryBuilder()
@@ -0,0 +1,102 @@
+/*-
+ * -\-\-
+ * protoman-descriptor-model
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.descriptor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import com.google.protobuf.DescriptorProtos;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.stream.Stream;
+import org.junit.Test;
+
+public class SourceCodeInfoTest {
+
+  private static final Path PATH = Paths.get("foo/bar.proto");
+
+  @Test
+  public void testPositions() throws Exception {
+    final FileDescriptor file = build("syntax = \"proto3\";\n"
+                                      + "package foo;\n"
+                                      + "message Outer {\n"
+                                      + "  // Leading\n"
+                                      + "  int32 a = 1;\n"
+                                      + "  message Inner {\n"
+                                      + "    string b = 1; // Trailing\n"
+                                      + "  }\n"
+                                      + "  enum Kind {\n"
+                                      + "    A = 0;\n"
+                                      + "  }\n"
+                                      + "}\n");
+
+    final MessageDescriptor outer = file.findMessageByName("Outer");
+    final SourceCodeInfo a = outer.findFieldByName("a").sourceCodeInfo().get();
+    assertThat(a.filePath(), equalTo(PATH));
+    assertThat(a.start(), equalTo(SourceCodeInfo.FilePosition.create(5, 3)));
+    assertThat(a.end(), equalTo(SourceCodeInfo.FilePosition.create(5, 15)));
+    assertThat(a.leadingComments(), equalTo(" Leading\n"));
+
+    final SourceCodeInfo b =
+        outer.findMessageByName("Inner").findFieldByName("b").sourceCodeInfo().get();
+    assertThat(b.start(), equalTo(SourceCodeInfo.FilePosition.create(7, 5)));
+    assertThat(b.trailingComments(), equalTo(" Trailing\n"));
+
+    final SourceCodeInfo value =
+        outer.findEnumByName("Kind").findValueByName("A").sourceCodeInfo().get();
+    assertThat(value.start(), equalTo(SourceCodeInfo.FilePosition.create(10, 5)));
+
+    assertThat(outer.sourceCodeInfo().get().start(),
+               equalTo(SourceCodeInfo.FilePosition.create(3, 1)));
+    assertThat(file.sourceCodeInfo().get().start(),
+               equalTo(SourceCodeInfo.FilePosition.create(1, 1)));
+  }
+
+  @Test
+  public void testNoSourceCodeInfo() throws Exception {
+    final FileDescriptor file = DescriptorSet.create(
+        DescriptorProtos.FileDescriptorSet.newBuilder()
+            .addFile(build("syntax = \"proto3\";\n"
+                           + "message Foo {\n"
+                           + "  int32 a = 1;\n"
+                           + "}\n").toProto().toBuilder().clearSourceCodeInfo())
+            .build(),
+        path -> true
+    ).findFileByPath(PATH).get();
+
+    final MessageDescriptor foo = file.findMessageByName("Foo");
+    assertThat(foo.sourceCodeInfo(), is(Optional.empty()));
+    assertThat(foo.findFieldByName("a").sourceCodeInfo(), is(Optional.empty()));
+  }
+
+  private static FileDescriptor build(final String source) throws Exception {
+    try (final DescriptorBuilder builder = InProcessDescriptorBuilder.create()) {
+      builder.setProtoFile(PATH, source);
+      final DescriptorBuilder.Result result = builder.buildDescriptor(Stream.of(PATH));
+      return DescriptorSet.create(result.fileDescriptorSet(), path -> true)
+          .findFileByPath(PATH)
+          .get();
+    }
+  }
+}
@@ -24,6 +24,10 @@ import static com.google.common.base.MoreObjects.firstNonNull;
 
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.spotify.protoman.descriptor.CachingDescriptorBuilderFactory;
+import com.spotify.protoman.descriptor.FileDescriptorCache;
+import com.spotify.protoman.descriptor.PooledDescriptorBuilderFactory;
 import com.spotify.protoman.descriptor.ProtocDescriptorBuilder;
 import com.spotify.protoman.registry.storage.GcsSchemaStorage;
 import com.spotify.protoman.registry.storage.SchemaStorage;
@@ -31,9 +35,18 @@ import com.spotify.protoman.validation.DefaultSchemaValidator;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class Main {
 
+  private static final Logger logger = LoggerFactory.getLogger(Main.class);
+
   public static final String DEFAULT_BUCKET_NAME = "protoman";
 
   private static final int GRPC_PORT = 8080;
@@ -41,6 +54,17 @@ public class Main {
       System.getenv("PROTOMAN_BUCKET"),
       DEFAULT_BUCKET_NAME
   );
+  private static final int DESCRIPTOR_BUILDER_POOL_SIZE =
+      Runtime.getRuntime().availableProcessors();
+  private static final long COMPILE_CACHE_SIZE = 100_000;
+  private static final long FILE_DESCRIPTOR_CACHE_SIZE = 10_000;
+  private static final long POOL_STATS_INTERVAL_SECONDS = 60;
+  private static final ScheduledExecutorService STATS_EXECUTOR =
+      Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "stats-reporter");
+        thread.setDaemon(true);
+        return thread;
+      });
 
   public static void main(final String... args) throws IOException {
     final SchemaRegistry schemaRegistry = createSchemaRegistry();
@@ -52,6 +76,7 @@ public class Main {
     final SchemaProtodocService protodocService = SchemaProtodocService.create(
         schemaRegistry
     );
+    reportServiceStats(registryService);
 
     final Server grpcServer = ServerBuilder
         .forPort(GRPC_PORT)
@@ -76,11 +101,56 @@ public class Main {
 
     final SchemaStorage schemaStorage = GcsSchemaStorage.create(gcsStorage, BUCKET_NAME);
 
+    final PooledDescriptorBuilderFactory pooledFactory =
+        ProtocDescriptorBuilder.factoryBuilder().buildPooled(DESCRIPTOR_BUILDER_POOL_SIZE);
+    final CachingDescriptorBuilderFactory descriptorBuilderFactory =
+        CachingDescriptorBuilderFactory.create(pooledFactory, COMPILE_CACHE_SIZE);
+    final FileDescriptorCache fileDescriptorCache =
+        FileDescriptorCache.create(FILE_DESCRIPTOR_CACHE_SIZE);
+    reportStats(pooledFactory, descriptorBuilderFactory, fileDescriptorCache);
+
+    final ExecutorService compileExecutor = Executors.newFixedThreadPool(
+        DESCRIPTOR_BUILDER_POOL_SIZE,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("compile-%d").build()
+    );
+
     return SchemaRegistry.create(
         schemaStorage,
-        DefaultSchemaValidator.withDefaultRules(),
+        DefaultSchemaValidator.builder()
+            .addDefaultRules()
+            .forkJoinPool(ForkJoinPool.commonPool())
+            .build(),
         SemverSchemaVersioner.create(),
-        ProtocDescriptorBuilder.factoryBuilder().build()
+        descriptorBuilderFactory,
+        compileExecutor,
+        DESCRIPTOR_BUILDER_POOL_SIZE,
+        fileDescriptorCache,
+        ForkJoinPool.commonPool()
+    );
+  }
+
+  private static void reportStats(final PooledDescriptorBuilderFactory factory,
+                                  final CachingDescriptorBuilderFactory cache,
+                                  final FileDescriptorCache fileDescriptorCache) {
+    STATS_EXECUTOR.scheduleAtFixedRate(
+        () -> {
+          final PooledDescriptorBuilderFactory.Stats stats = factory.stats();
+          if (stats.waiting() > 0) {
+            logger.warn("Descriptor builder pool saturated: {}", stats);
+          } else {
+            logger.info("Descriptor builder pool: {}", stats);
+          }
+          logger.info("Compile cache: {}", cache.stats());
+          logger.info("File descriptor cache: {}", fileDescriptorCache.stats());
+        },
+        POOL_STATS_INTERVAL_SECONDS, POOL_STATS_INTERVAL_SECONDS, TimeUnit.SECONDS
+    );
+  }
+
+  private static void reportServiceStats(final SchemaRegistryService service) {
+    STATS_EXECUTOR.scheduleAtFixedRate(
+        () -> logger.info("Schema registry service: {}", service.stats()),
+        POOL_STATS_INTERVAL_SECONDS, POOL_STATS_INTERVAL_SECONDS, TimeUnit.SECONDS
     );
   }
 
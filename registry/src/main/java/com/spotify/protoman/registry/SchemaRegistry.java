@@ -20,24 +20,37 @@
 
 package com.spotify.protoman.registry;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableMap.toImmutableMap;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
 import com.google.auto.value.AutoValue;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.DescriptorProtos;
 import com.spotify.protoman.descriptor.DescriptorBuilder;
 import com.spotify.protoman.descriptor.DescriptorBuilderException;
 import com.spotify.protoman.descriptor.DescriptorSet;
 import com.spotify.protoman.descriptor.FileDescriptor;
+import com.spotify.protoman.descriptor.FileDescriptorCache;
+import com.spotify.protoman.descriptor.NameTable;
+import com.spotify.protoman.descriptor.SymbolCollisions;
 import com.spotify.protoman.registry.storage.SchemaStorage;
 import com.spotify.protoman.validation.SchemaValidator;
 import com.spotify.protoman.validation.ValidationViolation;
+import io.grpc.Context;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -45,6 +58,12 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -56,19 +75,33 @@ public class SchemaRegistry implements SchemaPublisher, SchemaGetter {
 
   private static final Logger logger = LoggerFactory.getLogger(SchemaRegistry.class);
 
+  private static final long DEFAULT_FILE_DESCRIPTOR_CACHE_SIZE = 10_000;
+
   private final SchemaStorage schemaStorage;
   private final SchemaValidator schemaValidator;
   private final SchemaVersioner schemaVersioner;
   private final DescriptorBuilder.Factory descriptorBuilderFactory;
+  private final ExecutorService compileExecutor;
+  private final int maxCompileShards;
+  private final FileDescriptorCache fileDescriptorCache;
+  @Nullable private final ForkJoinPool forkJoinPool;
 
   private SchemaRegistry(final SchemaStorage schemaStorage,
                          final SchemaValidator schemaValidator,
                          final SchemaVersioner schemaVersioner,
-                         final DescriptorBuilder.Factory descriptorBuilderFactory) {
+                         final DescriptorBuilder.Factory descriptorBuilderFactory,
+                         final ExecutorService compileExecutor,
+                         final int maxCompileShards,
+                         final FileDescriptorCache fileDescriptorCache,
+                         @Nullable final ForkJoinPool forkJoinPool) {
     this.schemaStorage = schemaStorage;
     this.schemaValidator = schemaValidator;
     this.schemaVersioner = schemaVersioner;
     this.descriptorBuilderFactory = descriptorBuilderFactory;
+    this.compileExecutor = compileExecutor;
+    this.maxCompileShards = maxCompileShards;
+    this.fileDescriptorCache = fileDescriptorCache;
+    this.forkJoinPool = forkJoinPool;
   }
 
   public static SchemaRegistry create(final SchemaStorage schemaStorage,
@@ -76,14 +109,87 @@ public class SchemaRegistry implements SchemaPublisher, SchemaGetter {
                                       final SchemaVersioner schemaVersioner,
                                       final DescriptorBuilder.Factory descriptorBuilderFactory) {
     return new SchemaRegistry(
-        schemaStorage, schemaValidator, schemaVersioner, descriptorBuilderFactory
+        schemaStorage, schemaValidator, schemaVersioner, descriptorBuilderFactory,
+        MoreExecutors.newDirectExecutorService(), 1,
+        FileDescriptorCache.create(DEFAULT_FILE_DESCRIPTOR_CACHE_SIZE), null
+    );
+  }
+
+  /**
+   * Create a registry that splits compilation of a publish into up to {@code maxCompileShards}
+   * shards of independent files (files that don't import each other, directly or indirectly),
+   * compiled concurrently on {@code compileExecutor}.
+   */
+  public static SchemaRegistry create(final SchemaStorage schemaStorage,
+                                      final SchemaValidator schemaValidator,
+                                      final SchemaVersioner schemaVersioner,
+                                      final DescriptorBuilder.Factory descriptorBuilderFactory,
+                                      final ExecutorService compileExecutor,
+                                      final int maxCompileShards) {
+    return create(
+        schemaStorage, schemaValidator, schemaVersioner, descriptorBuilderFactory,
+        compileExecutor, maxCompileShards,
+        FileDescriptorCache.create(DEFAULT_FILE_DESCRIPTOR_CACHE_SIZE)
+    );
+  }
+
+  /**
+   * Like {@link #create(SchemaStorage, SchemaValidator, SchemaVersioner,
+   * DescriptorBuilder.Factory, ExecutorService, int)}, but files with the same content and
+   * imports are built into descriptors once and shared through {@code fileDescriptorCache}, both
+   * between the current and candidate schema of a publish and across publishes.
+   */
+  public static SchemaRegistry create(final SchemaStorage schemaStorage,
+                                      final SchemaValidator schemaValidator,
+                                      final SchemaVersioner schemaVersioner,
+                                      final DescriptorBuilder.Factory descriptorBuilderFactory,
+                                      final ExecutorService compileExecutor,
+                                      final int maxCompileShards,
+                                      final FileDescriptorCache fileDescriptorCache) {
+    checkArgument(maxCompileShards > 0, "maxCompileShards must be positive");
+    return new SchemaRegistry(
+        schemaStorage, schemaValidator, schemaVersioner, descriptorBuilderFactory,
+        compileExecutor, maxCompileShards, fileDescriptorCache, null
+    );
+  }
+
+  /**
+   * Like {@link #create(SchemaStorage, SchemaValidator, SchemaVersioner,
+   * DescriptorBuilder.Factory, ExecutorService, int, FileDescriptorCache)}, but independent files
+   * are built into descriptors in parallel on {@code forkJoinPool}.
+   */
+  public static SchemaRegistry create(final SchemaStorage schemaStorage,
+                                      final SchemaValidator schemaValidator,
+                                      final SchemaVersioner schemaVersioner,
+                                      final DescriptorBuilder.Factory descriptorBuilderFactory,
+                                      final ExecutorService compileExecutor,
+                                      final int maxCompileShards,
+                                      final FileDescriptorCache fileDescriptorCache,
+                                      final ForkJoinPool forkJoinPool) {
+    checkArgument(maxCompileShards > 0, "maxCompileShards must be positive");
+    return new SchemaRegistry(
+        schemaStorage, schemaValidator, schemaVersioner, descriptorBuilderFactory,
+        compileExecutor, maxCompileShards, fileDescriptorCache,
+        Objects.requireNonNull(forkJoinPool)
     );
   }
 
+  /**
+   * Publishes schemata. If the calling gRPC {@link Context} is cancelled, e.g. because the client
+   * went away or its deadline passed, compilation and validation are interrupted, nothing is
+   * stored, and a {@link CancellationException} is thrown.
+   */
   @Override
   public PublishResult publishSchemata(final ImmutableList<SchemaFile> schemaFiles) {
+    // Interrupting this thread kills protoc and aborts validation
+    final Context context = Context.current();
+    final Thread thread = Thread.currentThread();
+    final Context.CancellationListener interrupter = cancelled -> thread.interrupt();
+    context.addListener(interrupter, MoreExecutors.directExecutor());
+
     try (final SchemaStorage.Transaction tx = schemaStorage.open()) {
       final BuildDescriptorsResult buildDescriptorsResult = buildDescriptorSets(tx, schemaFiles);
+      checkNotCancelled(context);
 
       if (buildDescriptorsResult.currentCompilationError() != null) {
         // Compilation of what's currently in the registry failed. This should not happen!
@@ -106,50 +212,91 @@ public class SchemaRegistry implements SchemaPublisher, SchemaGetter {
         return PublishResult.error("Validation failed", violations);
       }
 
+      // Nobody is waiting for the result, don't store anything
+      checkNotCancelled(context);
+
       // Store files, but only for protos that changed
-      updatedFiles(schemaFiles.stream(), currentDs, candidateDs)
-          .forEach(file -> {
-            final ImmutableSet<Path> dependencies =
-                candidateDs.findFileByPath(file.path()).get().dependencies().stream()
+      final ImmutableList<FileDescriptor> updatedFileDescriptors =
+          updatedFiles(schemaFiles.stream(), currentDs, candidateDs)
+              .map(file -> {
+                final FileDescriptor fileDescriptor =
+                    candidateDs.findFileByPath(file.path()).get();
+                final ImmutableSet<Path> dependencies = fileDescriptor.dependencies().stream()
                     .map(FileDescriptor::filePath)
                     .collect(toImmutableSet());
-            logger.debug("proto: {}, deps: {}", file.path(), dependencies);
-            tx.storeFile(file);
-            tx.storeProtoDependencies(file.path(), dependencies);
-          });
+                logger.debug("proto: {}, deps: {}", file.path(), dependencies);
+                tx.storeFile(file);
+                tx.storeProtoDependencies(file.path(), dependencies);
+                return fileDescriptor;
+              })
+              .collect(toImmutableList());
+
+      // Storing a file drops the descriptors of files depending on it, so store the descriptors
+      // once all files are stored
+      updatedFileDescriptors.forEach(fileDescriptor ->
+          tx.storeFileDescriptor(fileDescriptor.filePath(), fileDescriptor.toProto()));
 
       // Update package versions (only for packages that have changed)
       final ImmutableMap<String, SchemaVersionPair> publishedPackages =
           updatePackageVersions(tx, currentDs, candidateDs);
 
+      checkNotCancelled(context);
       tx.commit();
 
       return PublishResult.create(violations, publishedPackages);
     } catch (Exception e) {
+      if (context.isCancelled()) {
+        final CancellationException cancellation =
+            new CancellationException("Publish cancelled: " + context.cancellationCause());
+        cancellation.initCause(e);
+        throw cancellation;
+      }
       throw new RuntimeException(e);
+    } finally {
+      context.removeListener(interrupter);
+      if (context.isCancelled()) {
+        // Don't leave the thread interrupted for whatever it runs next
+        Thread.interrupted();
+      }
+    }
+  }
+
+  private static void checkNotCancelled(final Context context) {
+    if (context.isCancelled()) {
+      throw new CancellationException();
     }
   }
 
   private ImmutableSet<Path> resolveDependencies(final SchemaStorage.Transaction tx,
                                                  final long snapshotVersion,
                                                  final ImmutableSet<Path> paths) {
+    return resolveDependencyGraph(tx, snapshotVersion, paths).keySet();
+  }
+
+  /**
+   * Resolves the transitive dependencies of {@code paths}. Returns the direct dependencies of
+   * each of them.
+   */
+  private ImmutableMap<Path, ImmutableSet<Path>> resolveDependencyGraph(
+      final SchemaStorage.Transaction tx,
+      final long snapshotVersion,
+      final ImmutableSet<Path> paths) {
 
-    final Set<Path> resultPaths = Sets.newHashSet();
-    final Set<Path> resolvedPaths = Sets.newHashSet();
+    final Map<Path, ImmutableSet<Path>> graph = Maps.newHashMap();
     final Queue<Path> q = new ArrayDeque<>();
     q.addAll(paths);
 
     while (!q.isEmpty()) {
       final Path path = q.poll();
-      if (resolvedPaths.add(path)) {
-        resultPaths.add(path);
+      if (!graph.containsKey(path)) {
         final ImmutableSet<Path> deps = tx.getDependencies(snapshotVersion, path)
             .collect(toImmutableSet());
+        graph.put(path, deps);
         q.addAll(deps);
         logger.debug("deps path={} deps={}", path, deps);
       }
     }
-    return ImmutableSet.copyOf(resultPaths);
+    return ImmutableMap.copyOf(graph);
   }
 
   private BuildDescriptorsResult buildDescriptorSets(final SchemaStorage.Transaction tx,
@@ -163,83 +310,340 @@ public class SchemaRegistry implements SchemaPublisher, SchemaGetter {
         .map(SchemaFile::path)
         .collect(toImmutableSet());
 
-    final ImmutableSet<Path> updatedAndDependencies = resolveDependencies(tx,
-        snapshotVersion, updatedPaths);
+    final ImmutableMap<Path, ImmutableSet<Path>> dependencyGraph =
+        resolveDependencyGraph(tx, snapshotVersion, updatedPaths);
+
+    // Seed descriptor builder with all files from registry
+    // Builder DescriptorSet for what is currently in the registry for the files being updated
+    final ImmutableMap<Path, SchemaFile> currentSchemata =
+        dependencyGraph.keySet().stream()
+            .map(path -> tx.schemaFile(snapshotVersion, path))
+            .collect(toImmutableMap(SchemaFile::path, Function.identity()));
+
+    // NOTE(staffan): As it is right now, we need compile ALL descriptors to catch breaking
+    // changes.
+    // NOTE(fredrikd): Not compiling all any more, but keeping this message until
+    // tests are added
+    //
+    // Consider the case where the following files exists in the repository:
+    //
+    // herp/derp.proto:
+    //   package herp;
+    //   message Derp {}
+    // foo/bar.proto
+    //   package foo;
+    //   import "herp/derp.proto"
+    //   message Bar {
+    //     Derp derp = 1;
+    //   }
+    //
+    // And a publish request that changes "herp/derp.proto" to:
+    //   package herp {}
+    //   message Herpaderp {} // Derp was removed/renamed!
+    //
+    //
+    // That change will break "foo/bar.proto" -- BUT protoc will succeeded if we only run it
+    // with foo/bar.proto as the input.
+    //
+    // So, we either need to either:
+    // - Run protoc will ALL files as input, or
+    // - Run protoc will ALL files that DEPEND ON a file being changed as input, or
+    // - Track dependencies are ensured that types in use are not removed
+    final ImmutableList<ImmutableSet<Path>> shards =
+        shards(dependencyGraph, updatedPaths, maxCompileShards);
+
+    // What's currently in the registry was compiled when it was published, only the files
+    // without a stored descriptor need to be compiled again
+    final Map<String, DescriptorProtos.FileDescriptorProto> storedDescriptors =
+        storedFileDescriptors(tx, snapshotVersion, dependencyGraph.keySet());
+    final ImmutableSet<Path> missingDescriptors = dependencyGraph.keySet().stream()
+        .filter(path -> !storedDescriptors.containsKey(path.toString()))
+        .collect(toImmutableSet());
 
-    try (final DescriptorBuilder descriptorBuilder =
-             descriptorBuilderFactory.newDescriptorBuilder()) {
-      // Seed descriptor builder with all files from registry
-      // Builder DescriptorSet for what is currently in the registry for the files being updated
+    final List<ShardResult> shardResults;
+    if (shards.size() == 1) {
+      shardResults = ImmutableList.of(
+          buildShard(currentSchemata, schemaFiles, shards.get(0), missingDescriptors)
+      );
+    } else {
+      shardResults =
+          buildShardsConcurrently(currentSchemata, schemaFiles, shards, missingDescriptors);
+    }
 
-      final ImmutableMap<Path, SchemaFile> currentSchemata =
-          updatedAndDependencies.stream()
-              .map(path -> tx.schemaFile(snapshotVersion, path))
-              .collect(toImmutableMap(SchemaFile::path, Function.identity()));
+    final DescriptorBuilder.Result compiledCurrent = missingDescriptors.isEmpty()
+        ? DescriptorBuilder.Result.create(DescriptorProtos.FileDescriptorSet.getDefaultInstance())
+        : mergeResults(shardResults.stream().map(ShardResult::current).filter(Objects::nonNull));
+    storeMissingFileDescriptors(tx, snapshotVersion, compiledCurrent);
+    final DescriptorBuilder.Result currentResult =
+        withStoredDescriptors(compiledCurrent, storedDescriptors);
+    @Nullable final DescriptorSet currentDs = createFilteredDescriptorSet(
+        currentResult.fileDescriptorSet(),
+        updatedPaths
+    );
 
-      for (SchemaFile file : currentSchemata.values()) {
-        descriptorBuilder.setProtoFile(file.path(), file.content());
+    final DescriptorBuilder.Result candidateResult = mergeResults(
+        shardResults.stream().map(ShardResult::candidate)
+    );
+    @Nullable final DescriptorSet candidateDs = createFilteredDescriptorSet(
+        candidateResult.fileDescriptorSet(),
+        updatedPaths
+    );
+
+    return BuildDescriptorsResult.create(
+        currentDs, candidateDs,
+        currentResult.compilationError(), candidateResult.compilationError()
+    );
+  }
+
+  private List<ShardResult> buildShardsConcurrently(
+      final ImmutableMap<Path, SchemaFile> currentSchemata,
+      final ImmutableList<SchemaFile> schemaFiles,
+      final ImmutableList<ImmutableSet<Path>> shards,
+      final ImmutableSet<Path> missingDescriptors) throws DescriptorBuilderException {
+    final Context context = Context.current();
+    final List<Callable<ShardResult>> tasks = shards.stream()
+        .map(shard -> context.wrap(
+            () -> buildShard(currentSchemata, schemaFiles, shard, missingDescriptors)))
+        .collect(Collectors.toList());
+
+    final List<ShardResult> results = new ArrayList<>(shards.size());
+    try {
+      for (final Future<ShardResult> future : compileExecutor.invokeAll(tasks)) {
+        results.add(future.get());
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), DescriptorBuilderException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    }
+    return results;
+  }
 
-      // NOTE(staffan): As it is right now, we need compile ALL descriptors to catch breaking
-      // changes.
-      // NOTE(fredrikd): Not compiling all any more, but keeping this message until
-      // tests are added
-      //
-      // Consider the case where the following files exists in the repository:
-      //
-      // herp/derp.proto:
-      //   package herp;
-      //   message Derp {}
-      // foo/bar.proto
-      //   package foo;
-      //   import "herp/derp.proto"
-      //   message Bar {
-      //     Derp derp = 1;
-      //   }
-      //
-      // And a publish request that changes "herp/derp.proto" to:
-      //   package herp {}
-      //   message Herpaderp {} // Derp was removed/renamed!
-      //
-      //
-      // That change will break "foo/bar.proto" -- BUT protoc will succeeded if we only run it
-      // with foo/bar.proto as the input.
-      //
-      // So, we either need to either:
-      // - Run protoc will ALL files as input, or
-      // - Run protoc will ALL files that DEPEND ON a file being changed as input, or
-      // - Track dependencies are ensured that types in use are not removed
-      final DescriptorBuilder.Result currentResult = descriptorBuilder.buildDescriptor(
-          currentSchemata.keySet().stream()
-      );
+  /**
+   * Builds the current descriptor sets of the files in a shard that have no stored descriptor
+   * (if any), and the candidate descriptor sets of all files in the shard. Only the files of the
+   * shard are staged at first, which is all the current files need. A candidate file may import
+   * a file outside of its shard though, so if the candidate files don't compile the remaining
+   * files are staged and they are built again.
+   */
+  private ShardResult buildShard(final ImmutableMap<Path, SchemaFile> currentSchemata,
+                                 final ImmutableList<SchemaFile> schemaFiles,
+                                 final ImmutableSet<Path> shard,
+                                 final ImmutableSet<Path> missingDescriptors)
+      throws DescriptorBuilderException {
+    try (final DescriptorBuilder descriptorBuilder =
+             descriptorBuilderFactory.newDescriptorBuilder()) {
+      for (SchemaFile file : currentSchemata.values()) {
+        if (shard.contains(file.path())) {
+          descriptorBuilder.setProtoFile(file.path(), file.content());
+        }
+      }
 
-      @Nullable final DescriptorSet currentDs = createFilteredDescriptorSet(
-          currentResult.fileDescriptorSet(),
-          updatedPaths
-      );
+      final ImmutableList<Path> missing = shard.stream()
+          .filter(missingDescriptors::contains)
+          .collect(toImmutableList());
+      final DescriptorBuilder.Result currentResult = !missing.isEmpty()
+          ? descriptorBuilder.buildDescriptor(missing.stream())
+          : null;
 
       // Build DescriptorSet for the updated files
       for (SchemaFile schemaFile : schemaFiles) {
-        descriptorBuilder.setProtoFile(schemaFile.path(), schemaFile.content());
+        if (shard.contains(schemaFile.path())) {
+          descriptorBuilder.setProtoFile(schemaFile.path(), schemaFile.content());
+        }
       }
 
-      final DescriptorBuilder.Result candidateResult = descriptorBuilder.buildDescriptor(
-          Stream.concat(
-              currentSchemata.keySet().stream(),
-              schemaFiles.stream().map(SchemaFile::path)
-          ).collect(toImmutableSet())
-              .stream()
-      );
-      @Nullable final DescriptorSet candidateDs = createFilteredDescriptorSet(
-          candidateResult.fileDescriptorSet(),
-          updatedPaths
-      );
+      DescriptorBuilder.Result candidateResult =
+          descriptorBuilder.buildDescriptor(shard.stream());
+
+      // Updated files last, they replace the current ones
+      final List<SchemaFile> outsideShard =
+          Stream.concat(currentSchemata.values().stream(), schemaFiles.stream())
+              .filter(file -> !shard.contains(file.path()))
+              .collect(Collectors.toList());
+      if (candidateResult.compilationError() != null && !outsideShard.isEmpty()) {
+        for (SchemaFile file : outsideShard) {
+          descriptorBuilder.setProtoFile(file.path(), file.content());
+        }
+        candidateResult = descriptorBuilder.buildDescriptor(shard.stream());
+      }
 
-      return BuildDescriptorsResult.create(
-          currentDs, candidateDs,
-          currentResult.compilationError(), candidateResult.compilationError()
-      );
+      return ShardResult.create(currentResult, candidateResult);
+    }
+  }
+
+  /**
+   * Reads the stored descriptors of {@code paths}, by file name. A descriptor importing a file
+   * that is not one of {@code paths} is left out, so that the file is compiled instead.
+   */
+  private static Map<String, DescriptorProtos.FileDescriptorProto> storedFileDescriptors(
+      final SchemaStorage.Transaction tx,
+      final long snapshotVersion,
+      final ImmutableSet<Path> paths) {
+    final Set<String> names = paths.stream().map(Path::toString).collect(Collectors.toSet());
+    final Map<String, DescriptorProtos.FileDescriptorProto> stored = Maps.newLinkedHashMap();
+    for (final Path path : paths) {
+      final Optional<DescriptorProtos.FileDescriptorProto> fileDescriptor =
+          tx.fileDescriptor(snapshotVersion, path);
+      if (!fileDescriptor.isPresent()) {
+        logger.debug("No stored descriptor, compiling current schema. path={}", path);
+      } else if (!names.containsAll(fileDescriptor.get().getDependencyList())) {
+        logger.debug("Stored descriptor has unknown imports, compiling current schema. path={}",
+                     path);
+      } else {
+        stored.put(path.toString(), fileDescriptor.get());
+      }
+    }
+    return stored;
+  }
+
+  /**
+   * Adds the stored descriptors to the compiled ones, ordered with dependencies first. Together
+   * they cover all current files, as the compiled files include their dependencies.
+   */
+  private static DescriptorBuilder.Result withStoredDescriptors(
+      final DescriptorBuilder.Result compiled,
+      final Map<String, DescriptorProtos.FileDescriptorProto> stored) {
+    if (compiled.compilationError() != null) {
+      return compiled;
+    }
+    final Map<String, DescriptorProtos.FileDescriptorProto> files = Maps.newLinkedHashMap();
+    compiled.fileDescriptorSet().getFileList().forEach(file -> files.put(file.getName(), file));
+    stored.forEach(files::putIfAbsent);
+
+    final Map<String, DescriptorProtos.FileDescriptorProto> ordered = Maps.newLinkedHashMap();
+    for (final DescriptorProtos.FileDescriptorProto file : files.values()) {
+      addWithDependencies(file, files, ordered);
+    }
+    return DescriptorBuilder.Result.create(
+        DescriptorProtos.FileDescriptorSet.newBuilder().addAllFile(ordered.values()).build()
+    );
+  }
+
+  private static void addWithDependencies(
+      final DescriptorProtos.FileDescriptorProto file,
+      final Map<String, DescriptorProtos.FileDescriptorProto> files,
+      final Map<String, DescriptorProtos.FileDescriptorProto> ordered) {
+    if (ordered.containsKey(file.getName())) {
+      return;
+    }
+    for (final String dependency : file.getDependencyList()) {
+      final DescriptorProtos.FileDescriptorProto dependencyFile = files.get(dependency);
+      if (dependencyFile != null) {
+        addWithDependencies(dependencyFile, files, ordered);
+      }
+    }
+    ordered.put(file.getName(), file);
+  }
+
+  /**
+   * Stores descriptors for files that were published before descriptors were stored, so that
+   * the next publish touching them doesn't need to compile them. Only committed if the publish
+   * succeeds.
+   */
+  private static void storeMissingFileDescriptors(final SchemaStorage.Transaction tx,
+                                                  final long snapshotVersion,
+                                                  final DescriptorBuilder.Result currentResult) {
+    if (currentResult.compilationError() != null) {
+      return;
+    }
+    for (final DescriptorProtos.FileDescriptorProto file :
+        currentResult.fileDescriptorSet().getFileList()) {
+      final Path path = NameTable.path(file.getName());
+      if (!tx.fileDescriptor(snapshotVersion, path).isPresent()) {
+        tx.storeFileDescriptor(path, file);
+      }
+    }
+  }
+
+  /**
+   * Splits the files into at most {@code maxShards} shards. Files that are connected in the
+   * dependency graph end up in the same shard, and shards are balanced by number of files.
+   */
+  @VisibleForTesting
+  static ImmutableList<ImmutableSet<Path>> shards(
+      final ImmutableMap<Path, ImmutableSet<Path>> dependencyGraph,
+      final ImmutableSet<Path> updatedPaths,
+      final int maxShards) {
+    // Connected components, using union-find
+    final Map<Path, Path> parents = Maps.newHashMap();
+    dependencyGraph.keySet().forEach(path -> parents.put(path, path));
+    updatedPaths.forEach(path -> parents.putIfAbsent(path, path));
+    dependencyGraph.forEach((path, dependencies) -> dependencies.forEach(dependency -> {
+      parents.putIfAbsent(dependency, dependency);
+      parents.put(root(parents, path), root(parents, dependency));
+    }));
+
+    final Map<Path, Set<Path>> components = Maps.newLinkedHashMap();
+    for (final Path path : Sets.union(dependencyGraph.keySet(), updatedPaths)) {
+      components.computeIfAbsent(root(parents, path), root -> Sets.newLinkedHashSet()).add(path);
+    }
+
+    // Largest component first, into the smallest shard
+    final List<Set<Path>> shards = new ArrayList<>();
+    components.values().stream()
+        .sorted(Comparator.comparingInt(Set<Path>::size).reversed())
+        .forEach(component -> {
+          if (shards.size() < maxShards) {
+            shards.add(Sets.newLinkedHashSet(component));
+          } else {
+            shards.stream().min(Comparator.comparingInt(Set::size)).get().addAll(component);
+          }
+        });
+
+    if (shards.isEmpty()) {
+      return ImmutableList.of(ImmutableSet.of());
+    }
+    return shards.stream().map(ImmutableSet::copyOf).collect(toImmutableList());
+  }
+
+  private static Path root(final Map<Path, Path> parents, final Path path) {
+    Path root = path;
+    while (!parents.get(root).equals(root)) {
+      root = parents.get(root);
+    }
+    // Path compression
+    Path current = path;
+    while (!current.equals(root)) {
+      final Path next = parents.get(current);
+      parents.put(current, root);
+      current = next;
+    }
+    return root;
+  }
+
+  /**
+   * Merges the results of all shards. Files that are part of several shards are only included
+   * once, which keeps dependencies before the files that depend on them. As the shards were
+   * compiled separately, symbols defined by files of different shards are checked here.
+   */
+  @VisibleForTesting
+  static DescriptorBuilder.Result mergeResults(
+      final Stream<DescriptorBuilder.Result> results) {
+    final StringBuilder errors = new StringBuilder();
+    final Map<String, DescriptorProtos.FileDescriptorProto> files = Maps.newLinkedHashMap();
+    results.forEach(result -> {
+      if (result.compilationError() != null) {
+        errors.append(result.compilationError());
+      } else {
+        result.fileDescriptorSet().getFileList()
+            .forEach(file -> files.putIfAbsent(file.getName(), file));
+      }
+    });
+
+    if (errors.length() > 0) {
+      return DescriptorBuilder.Result.error(errors.toString());
     }
+    final DescriptorProtos.FileDescriptorSet merged =
+        DescriptorProtos.FileDescriptorSet.newBuilder().addAllFile(files.values()).build();
+    final String collisions = SymbolCollisions.find(merged);
+    if (collisions != null) {
+      return DescriptorBuilder.Result.error(collisions);
+    }
+    return DescriptorBuilder.Result.create(merged);
   }
 
   /**
@@ -250,13 +654,20 @@ public class SchemaRegistry implements SchemaPublisher, SchemaGetter {
    * includedPaths} only contains a.proto then the resulting {@link DescriptorSet} will only
    * contain a.proto.
    */
-  private static @Nullable
+  private @Nullable
   DescriptorSet createFilteredDescriptorSet(
       @Nullable final DescriptorProtos.FileDescriptorSet fileDescriptorSet,
       final ImmutableSet<Path> includedPaths) {
-    return fileDescriptorSet != null
-           ? DescriptorSet.create(fileDescriptorSet, includedPaths::contains)
-           : null;
+    if (fileDescriptorSet == null) {
+      return null;
+    }
+    try {
+      return DescriptorSet.create(
+          fileDescriptorSet, includedPaths::contains, fileDescriptorCache, forkJoinPool);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
   }
 
   private ImmutableMap<String, SchemaVersionPair> updatePackageVersions(
@@ -315,8 +726,8 @@ public class SchemaRegistry implements SchemaPublisher, SchemaGetter {
           candidate.findFileByPath(schemaFile.path());
 
       return !Objects.equals(
-          currentFd.get().toProto(),
-          candidateFd.map(FileDescriptor::toProto).orElse(null)
+          currentFd.get().fingerprint(),
+          candidateFd.map(FileDescriptor::fingerprint).orElse(null)
       );
     });
   }
@@ -349,6 +760,20 @@ public class SchemaRegistry implements SchemaPublisher, SchemaGetter {
     return tx.allPackageVersions(latestSnapshotVersion).keySet().stream();
   }
 
+  @AutoValue
+  abstract static class ShardResult {
+
+    @Nullable
+    abstract DescriptorBuilder.Result current();
+
+    abstract DescriptorBuilder.Result candidate();
+
+    static ShardResult create(@Nullable final DescriptorBuilder.Result current,
+                              final DescriptorBuilder.Result candidate) {
+      return new AutoValue_SchemaRegistry_ShardResult(current, candidate);
+    }
+  }
+
   @AutoValue
   abstract static class BuildDescriptorsResult {
 
@@ -22,6 +22,7 @@ package com.spotify.protoman.registry;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
+import com.google.auto.value.AutoValue;
 import com.spotify.protoman.Error;
 import com.spotify.protoman.FilePosition;
 import com.spotify.protoman.GetSchemaRequest;
@@ -32,10 +33,14 @@ import com.spotify.protoman.PublishSchemaResponse;
 import com.spotify.protoman.PublishedPackage;
 import com.spotify.protoman.SchemaRegistryGrpc;
 import com.spotify.protoman.descriptor.GenericDescriptor;
+import com.spotify.protoman.descriptor.NameTable;
 import com.spotify.protoman.descriptor.SourceCodeInfo;
 import com.spotify.protoman.validation.ValidationViolation;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
-import java.nio.file.Paths;
+import java.util.concurrent.atomic.LongAdder;
 import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,6 +51,8 @@ public class SchemaRegistryService extends SchemaRegistryGrpc.SchemaRegistryImpl
 
   private final SchemaPublisher schemaPublisher;
   private final SchemaGetter schemaGetter;
+  private final LongAdder cancelledPublishes = new LongAdder();
+  private final LongAdder deadlineExceededPublishes = new LongAdder();
 
   private SchemaRegistryService(final SchemaPublisher schemaPublisher,
                                 final SchemaGetter schemaGetter) {
@@ -67,7 +74,7 @@ public class SchemaRegistryService extends SchemaRegistryGrpc.SchemaRegistryImpl
       final SchemaPublisher.PublishResult result = schemaPublisher.publishSchemata(
           request.getProtoFileList().stream()
               .map(protoFile -> SchemaFile.create(
-                  Paths.get(protoFile.getPath()),
+                  NameTable.path(protoFile.getPath()),
                   protoFile.getContent())
               ).collect(toImmutableList())
       );
@@ -99,6 +106,18 @@ public class SchemaRegistryService extends SchemaRegistryGrpc.SchemaRegistryImpl
       responseObserver.onNext(responseBuilder.build());
       responseObserver.onCompleted();
     } catch (Exception e) {
+      @Nullable final Status cancelled = Contexts.statusFromCancelled(Context.current());
+      if (cancelled != null) {
+        // The client is gone (or about to be), so this is expected under load
+        if (cancelled.getCode() == Status.Code.DEADLINE_EXCEEDED) {
+          deadlineExceededPublishes.increment();
+        } else {
+          cancelledPublishes.increment();
+        }
+        logger.info("publishSchema: {}", cancelled);
+        responseObserver.onError(cancelled.asRuntimeException());
+        return;
+      }
       logger.error("publishSchema: {}", e.toString(), e);
       // TODO(staffan): Return errors in some sane way?
       // We encountered an unexpected error. E.g. we couldn't run protoc at all because we're out
@@ -107,6 +126,10 @@ public class SchemaRegistryService extends SchemaRegistryGrpc.SchemaRegistryImpl
     }
   }
 
+  public Stats stats() {
+    return Stats.create(cancelledPublishes.sum(), deadlineExceededPublishes.sum());
+  }
+
   @Override
   public void getSchema(final GetSchemaRequest request,
                         final StreamObserver<GetSchemaResponse> responseObserver) {
@@ -176,4 +199,21 @@ public class SchemaRegistryService extends SchemaRegistryGrpc.SchemaRegistryImpl
         .setContent(schemaFile.content())
         .build();
   }
+
+  /**
+   * Publishes abandoned because the client cancelled the call or its deadline passed.
+   */
+  @AutoValue
+  public abstract static class Stats {
+
+    public abstract long cancelledPublishes();
+
+    public abstract long deadlineExceededPublishes();
+
+    static Stats create(final long cancelledPublishes, final long deadlineExceededPublishes) {
+      return new AutoValue_SchemaRegistryService_Stats(
+          cancelledPublishes, deadlineExceededPublishes
+      );
+    }
+  }
 }
@@ -28,6 +28,10 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.spotify.protoman.descriptor.NameTable;
 import com.spotify.protoman.registry.SchemaFile;
 import com.spotify.protoman.registry.SchemaVersion;
 import java.nio.file.Path;
@@ -47,6 +51,7 @@ public class GcsSchemaStorage implements SchemaStorage {
   private static final String INDEX_BLOB_NAME = "index.pb";
 
   private final ContentAddressedBlobStorage protoStorage;
+  private final ContentAddressedBlobStorage descriptorStorage;
   private final GcsGenerationalFile indexFile;
 
   private enum TxState {OPEN, COMMITTED, CLOSED}
@@ -61,6 +66,15 @@ public class GcsSchemaStorage implements SchemaStorage {
             "protos",
             "proto"
         ));
+    descriptorStorage = CachingContentAddressedBlobStorage.create(
+        GcsContentAddressedBlobStorage.create(
+            storage,
+            bucket,
+            "descriptors",
+            "pb",
+            "application/octet-stream",
+            Hashing.sha256()
+        ));
 
     indexFile = GcsGenerationalFile.create(
         storage,
@@ -100,7 +114,7 @@ public class GcsSchemaStorage implements SchemaStorage {
         Preconditions.checkState(state.get() == TxState.OPEN);
         ProtoIndex currentProtoIndex = protoIndex(snapshotVersion);
         return currentProtoIndex.getProtoLocations().entrySet().stream()
-            .map(e -> schemaFile(Paths.get(e.getKey()), e.getValue()));
+            .map(e -> schemaFile(NameTable.path(e.getKey()), e.getValue()));
       }
 
       @Override
@@ -115,12 +129,22 @@ public class GcsSchemaStorage implements SchemaStorage {
         protoIndex.updateProtoDependencies(path, paths);
       }
 
+      @Override
+      public void storeFileDescriptor(final Path path, final FileDescriptorProto fileDescriptor) {
+        Preconditions.checkState(state.get() == TxState.OPEN);
+        Preconditions.checkState(protoIndex.hasProtoLocation(path.toString()),
+            "File not stored: %s", path);
+        final HashCode hash = descriptorStorage.put(fileDescriptor.toByteArray());
+        protoIndex.updateDescriptorLocation(path.toString(), hash.toString());
+        logger.debug("Stored descriptor. path={} descriptor={}", path, hash.toString());
+      }
+
       @Override
       public Optional<SchemaVersion> getPackageVersion(final long snapshotVersion,
                                                        final String protoPackage) {
         Preconditions.checkState(state.get() == TxState.OPEN);
         final SchemaVersion schemaVersion = protoIndex(snapshotVersion)
-            .getPackageVersions().get(protoPackage);
+            .getPackageVersion(protoPackage);
         return Optional.ofNullable(schemaVersion);
       }
 
@@ -129,7 +153,7 @@ public class GcsSchemaStorage implements SchemaStorage {
         Preconditions.checkState(state.get() == TxState.OPEN);
         ProtoIndex currentProtoIndex = protoIndex(snapshotVersion);
         return currentProtoIndex.getProtoLocations().keySet().stream()
-            .map(Paths::get)
+            .map(NameTable::path)
             .filter(packageFilter(pkgName));
       }
 
@@ -137,7 +161,7 @@ public class GcsSchemaStorage implements SchemaStorage {
       public Stream<Path> getDependencies(final long snapshotVersion, final Path path) {
         Preconditions.checkState(state.get() == TxState.OPEN);
         ProtoIndex currentProtoIndex = protoIndex(snapshotVersion);
-        return currentProtoIndex.getProtoDependencies().get(path).stream();
+        return currentProtoIndex.getProtoDependencies(path).stream();
       }
 
       @Override
@@ -147,6 +171,24 @@ public class GcsSchemaStorage implements SchemaStorage {
         return SchemaFile.create(path, fileContents(currentProtoIndex, path));
       }
 
+      @Override
+      public Optional<FileDescriptorProto> fileDescriptor(final long snapshotVersion,
+                                                          final Path path) {
+        Preconditions.checkState(state.get() == TxState.OPEN);
+        final String location =
+            protoIndex(snapshotVersion).getDescriptorLocation(path.toString());
+        if (location == null) {
+          return Optional.empty();
+        }
+        final byte[] bytes = descriptorStorage.get(HashCode.fromString(location)).orElseThrow(
+            () -> new IllegalStateException("Location found. Missing descriptor: " + path));
+        try {
+          return Optional.of(FileDescriptorProto.parseFrom(bytes));
+        } catch (InvalidProtocolBufferException e) {
+          throw new RuntimeException("Error parsing descriptor: " + path, e);
+        }
+      }
+
       @Override
       public ImmutableMap<String, SchemaVersion> allPackageVersions(final long snapshotVersion) {
         Preconditions.checkState(state.get() == TxState.OPEN);
@@ -200,7 +242,7 @@ public class GcsSchemaStorage implements SchemaStorage {
       private String fileContents(final ProtoIndex protoIndex, final Path path) {
         Objects.requireNonNull(protoIndex);
         Objects.requireNonNull(path);
-        final String location = protoIndex.getProtoLocations().get(path.toString());
+        final String location = protoIndex.getProtoLocation(path.toString());
         if (location == null) {
           throw new RuntimeException("Location not found: " + path);
         }
@@ -24,22 +24,27 @@ package com.spotify.protoman.registry.storage;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
+import com.google.common.collect.Sets;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import com.spotify.protoman.Index;
 import com.spotify.protoman.ProtoDependency;
 import com.spotify.protoman.Version;
+import com.spotify.protoman.descriptor.NameTable;
 import com.spotify.protoman.registry.SchemaVersion;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
 public class ProtoIndex {
 
@@ -48,6 +53,9 @@ public class ProtoIndex {
   private final Map<String, String> protoLocations; // TODO(fredrikd): <Path, HashCode> ?
   private final Map<String, SchemaVersion> packageVersions;
   private final Multimap<Path, Path> protoDependencies;
+  // The inverse of protoDependencies, not serialized
+  private final Multimap<Path, Path> protoDependents;
+  private final Map<String, String> descriptorLocations;
 
   public static ProtoIndex empty() {
     return parse(EMPTY_INDEX);
@@ -70,15 +78,25 @@ public class ProtoIndex {
 
     protoDependencies = index.getProtoDependeciesList().stream()
         .collect(Multimaps.toMultimap(
-            protoDependency -> Paths.get(protoDependency.getProtoPath()),
-            protoDependency -> Paths.get(protoDependency.getDependencyPath()),
+            protoDependency -> NameTable.path(protoDependency.getProtoPath()),
+            protoDependency -> NameTable.path(protoDependency.getDependencyPath()),
             HashMultimap::create));
+    protoDependents = Multimaps.invertFrom(protoDependencies, HashMultimap.create());
+
+    descriptorLocations = Maps.newHashMap(index.getDescriptorLocationsMap());
   }
 
+  /**
+   * Updates the location of a proto's content. If the content changed, the descriptors of the
+   * proto and of all protos that depend on it, directly or indirectly, are removed, since they
+   * were built from the previous content.
+   */
   public void updateProtoLocation(final String src, final String dest) {
     Objects.requireNonNull(src);
     Objects.requireNonNull(dest);
-    protoLocations.put(src, dest);
+    if (!dest.equals(protoLocations.put(src, dest))) {
+      removeDescriptorLocationsDependingOn(src);
+    }
   }
 
   public void updatePackageVersion(final String pkg, final SchemaVersion version) {
@@ -88,16 +106,62 @@ public class ProtoIndex {
   }
 
   public void updateProtoDependencies(final Path proto, final Set<Path> paths) {
-    protoDependencies.replaceValues(proto, paths);
+    for (final Path dependency : protoDependencies.replaceValues(proto, paths)) {
+      protoDependents.remove(dependency, proto);
+    }
+    for (final Path dependency : paths) {
+      protoDependents.put(dependency, proto);
+    }
   }
 
   public ImmutableSetMultimap<Path, Path> getProtoDependencies() {
     return ImmutableSetMultimap.copyOf(protoDependencies);
   }
 
+  public ImmutableSet<Path> getProtoDependencies(final Path proto) {
+    return ImmutableSet.copyOf(protoDependencies.get(proto));
+  }
+
+  /**
+   * Removes the location of a proto, and the descriptors of the proto and of all protos that
+   * depend on it.
+   */
   public boolean removeProtoLocation(final String pkg) {
     Objects.requireNonNull(pkg);
-    return protoLocations.remove(pkg) != null;
+    if (protoLocations.remove(pkg) == null) {
+      return false;
+    }
+    removeDescriptorLocationsDependingOn(pkg);
+    return true;
+  }
+
+  @Nullable
+  public String getProtoLocation(final String src) {
+    return protoLocations.get(src);
+  }
+
+  public boolean hasProtoLocation(final String src) {
+    return protoLocations.containsKey(src);
+  }
+
+  public void updateDescriptorLocation(final String src, final String dest) {
+    Objects.requireNonNull(src);
+    Objects.requireNonNull(dest);
+    descriptorLocations.put(src, dest);
+  }
+
+  public boolean removeDescriptorLocation(final String src) {
+    Objects.requireNonNull(src);
+    return descriptorLocations.remove(src) != null;
+  }
+
+  @Nullable
+  public String getDescriptorLocation(final String src) {
+    return descriptorLocations.get(src);
+  }
+
+  public Map<String, String> getDescriptorLocations() {
+    return ImmutableMap.copyOf(descriptorLocations);
   }
 
   public Map<String, String> getProtoLocations() {
@@ -108,6 +172,11 @@ public class ProtoIndex {
     return ImmutableMap.copyOf(packageVersions);
   }
 
+  @Nullable
+  public SchemaVersion getPackageVersion(final String pkg) {
+    return packageVersions.get(pkg);
+  }
+
   public String toProtoString() {
     return TextFormat.printToString(toProto());
   }
@@ -118,6 +187,7 @@ public class ProtoIndex {
         .add("protoLocations", protoLocations)
         .add("packageVersions", packageVersions)
         .add("protoDependencies", protoDependencies)
+        .add("descriptorLocations", descriptorLocations)
         .toString();
   }
 
@@ -139,6 +209,8 @@ public class ProtoIndex {
             .setDependencyPath(e.getValue().toString())
             .build())
     );
+
+    builder.putAllDescriptorLocations(descriptorLocations);
     return builder.build();
   }
 
@@ -146,6 +218,19 @@ public class ProtoIndex {
     return toProto().toByteArray();
   }
 
+  private void removeDescriptorLocationsDependingOn(final String src) {
+    final Set<Path> visited = Sets.newHashSet();
+    final Queue<Path> q = new ArrayDeque<>();
+    q.add(NameTable.path(src));
+    while (!q.isEmpty()) {
+      final Path path = q.poll();
+      if (visited.add(path)) {
+        descriptorLocations.remove(path.toString());
+        q.addAll(protoDependents.get(path));
+      }
+    }
+  }
+
   private static SchemaVersion toSchemaVersion(final Version version) {
     return SchemaVersion.create(
         version.getMajor(),
@@ -21,6 +21,7 @@
 package com.spotify.protoman.registry.storage;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
 import com.spotify.protoman.registry.SchemaFile;
 import com.spotify.protoman.registry.SchemaVersion;
 import java.nio.file.Path;
@@ -35,6 +36,10 @@ public interface SchemaStorage {
 
   interface Transaction extends AutoCloseable {
 
+    /**
+     * Stores the content of a file. If the content changed, the descriptors stored for the file
+     * and for all files that depend on it, directly or indirectly, are dropped.
+     */
     void storeFile(SchemaFile file);
 
     Stream<SchemaFile> fetchAllFiles(long snapshotVersion);
@@ -43,6 +48,13 @@ public interface SchemaStorage {
 
     void storeProtoDependencies(Path path, Set<Path> paths);
 
+    /**
+     * Stores the compiled descriptor of a file. Must be called after {@link #storeFile} has been
+     * called for the file and for all of its changed dependencies, since that drops descriptors
+     * built from their previous content.
+     */
+    void storeFileDescriptor(Path path, FileDescriptorProto fileDescriptor);
+
     Optional<SchemaVersion> getPackageVersion(long snapshotVersion, String protoPackage);
 
     Stream<Path> getDependencies(long snapshotVersion, Path path);
@@ -51,6 +63,12 @@ public interface SchemaStorage {
 
     SchemaFile schemaFile(long snapshotVersion, Path path);
 
+    /**
+     * Returns the compiled descriptor of a file, or empty if none was stored for its current
+     * content and the current content of its dependencies.
+     */
+    Optional<FileDescriptorProto> fileDescriptor(long snapshotVersion, Path path);
+
     ImmutableMap<String, SchemaVersion> allPackageVersions(long snapshotVersion);
 
     long commit();
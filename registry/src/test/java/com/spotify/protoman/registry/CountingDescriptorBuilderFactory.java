@@ -0,0 +1,97 @@
+/*-
+ * -\-\-
+ * protoman-registry
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.registry;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.collect.ImmutableList;
+import com.spotify.protoman.descriptor.DescriptorBuilder;
+import com.spotify.protoman.descriptor.DescriptorBuilderException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Counts the builders created by, and the descriptors built by, another factory. The paths of
+ * each build are recorded as well.
+ */
+class CountingDescriptorBuilderFactory implements DescriptorBuilder.Factory {
+
+  private final DescriptorBuilder.Factory delegate;
+  private final AtomicInteger builders = new AtomicInteger();
+  private final AtomicInteger builds = new AtomicInteger();
+  private final List<ImmutableList<Path>> builtPaths = new CopyOnWriteArrayList<>();
+
+  private CountingDescriptorBuilderFactory(final DescriptorBuilder.Factory delegate) {
+    this.delegate = delegate;
+  }
+
+  static CountingDescriptorBuilderFactory create(final DescriptorBuilder.Factory delegate) {
+    return new CountingDescriptorBuilderFactory(delegate);
+  }
+
+  int builders() {
+    return builders.get();
+  }
+
+  int builds() {
+    return builds.get();
+  }
+
+  ImmutableList<ImmutableList<Path>> builtPaths() {
+    return ImmutableList.copyOf(builtPaths);
+  }
+
+  void reset() {
+    builders.set(0);
+    builds.set(0);
+    builtPaths.clear();
+  }
+
+  @Override
+  public DescriptorBuilder newDescriptorBuilder() {
+    final DescriptorBuilder builder = delegate.newDescriptorBuilder();
+    builders.incrementAndGet();
+    return new DescriptorBuilder() {
+      @Override
+      public DescriptorBuilder setProtoFile(final Path path, final String content)
+          throws DescriptorBuilderException {
+        builder.setProtoFile(path, content);
+        return this;
+      }
+
+      @Override
+      public Result buildDescriptor(final Stream<Path> paths) throws DescriptorBuilderException {
+        builds.incrementAndGet();
+        final ImmutableList<Path> pathsList = paths.collect(toImmutableList());
+        builtPaths.add(pathsList);
+        return builder.buildDescriptor(pathsList.stream());
+      }
+
+      @Override
+      public void close() {
+        builder.close();
+      }
+    };
+  }
+}
@@ -0,0 +1,213 @@
+/*-
+ * -\-\-
+ * protoman-registry
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.registry;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.spotify.protoman.descriptor.NameTable;
+import com.spotify.protoman.registry.storage.ProtoIndex;
+import com.spotify.protoman.registry.storage.SchemaStorage;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * A {@link SchemaStorage} that keeps everything in memory, indexed the same way as
+ * {@link com.spotify.protoman.registry.storage.GcsSchemaStorage}. Every commit adds a snapshot.
+ */
+class InMemorySchemaStorage implements SchemaStorage {
+
+  private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+  private final List<byte[]> snapshots = new CopyOnWriteArrayList<>();
+
+  private InMemorySchemaStorage() {
+    snapshots.add(ProtoIndex.empty().toByteArray());
+  }
+
+  static InMemorySchemaStorage create() {
+    return new InMemorySchemaStorage();
+  }
+
+  /**
+   * Drops the stored descriptor of a file from the latest snapshot, as if the file was published
+   * before descriptors were stored.
+   */
+  synchronized void removeFileDescriptor(final Path path) {
+    final ProtoIndex protoIndex = ProtoIndex.parse(snapshots.get(snapshots.size() - 1));
+    protoIndex.removeDescriptorLocation(path.toString());
+    snapshots.add(protoIndex.toByteArray());
+  }
+
+  @Override
+  public Transaction open() {
+    final long indexGeneration = snapshots.size() - 1;
+    final ProtoIndex protoIndex = ProtoIndex.parse(snapshots.get((int) indexGeneration));
+
+    return new Transaction() {
+      boolean open = true;
+
+      @Override
+      public void storeFile(final SchemaFile file) {
+        Preconditions.checkState(open);
+        protoIndex.updateProtoLocation(file.path().toString(), put(file.content().getBytes(UTF_8)));
+      }
+
+      @Override
+      public Stream<SchemaFile> fetchAllFiles(final long snapshotVersion) {
+        Preconditions.checkState(open);
+        return protoIndex(snapshotVersion).getProtoLocations().keySet().stream()
+            .map(path -> schemaFile(snapshotVersion, NameTable.path(path)));
+      }
+
+      @Override
+      public void storePackageVersion(final String protoPackage, final SchemaVersion version) {
+        Preconditions.checkState(open);
+        protoIndex.updatePackageVersion(protoPackage, version);
+      }
+
+      @Override
+      public void storeProtoDependencies(final Path path, final Set<Path> paths) {
+        Preconditions.checkState(open);
+        protoIndex.updateProtoDependencies(path, paths);
+      }
+
+      @Override
+      public void storeFileDescriptor(final Path path, final FileDescriptorProto fileDescriptor) {
+        Preconditions.checkState(open);
+        Preconditions.checkState(protoIndex.hasProtoLocation(path.toString()),
+            "File not stored: %s", path);
+        protoIndex.updateDescriptorLocation(path.toString(), put(fileDescriptor.toByteArray()));
+      }
+
+      @Override
+      public Optional<SchemaVersion> getPackageVersion(final long snapshotVersion,
+                                                       final String protoPackage) {
+        Preconditions.checkState(open);
+        return Optional.ofNullable(protoIndex(snapshotVersion).getPackageVersion(protoPackage));
+      }
+
+      @Override
+      public Stream<Path> getDependencies(final long snapshotVersion, final Path path) {
+        Preconditions.checkState(open);
+        return protoIndex(snapshotVersion).getProtoDependencies(path).stream();
+      }
+
+      @Override
+      public Stream<Path> protosForPackage(final long snapshotVersion, final String pkgName) {
+        Preconditions.checkState(open);
+        final Path pkgPath = Paths.get(pkgName.replaceAll("\\.", "/"));
+        return protoIndex(snapshotVersion).getProtoLocations().keySet().stream()
+            .map(NameTable::path)
+            .filter(path -> path.getParent().equals(pkgPath));
+      }
+
+      @Override
+      public SchemaFile schemaFile(final long snapshotVersion, final Path path) {
+        Preconditions.checkState(open);
+        final String location = protoIndex(snapshotVersion).getProtoLocation(path.toString());
+        if (location == null) {
+          throw new RuntimeException("Location not found: " + path);
+        }
+        return SchemaFile.create(path, new String(blobs.get(location), UTF_8));
+      }
+
+      @Override
+      public Optional<FileDescriptorProto> fileDescriptor(final long snapshotVersion,
+                                                          final Path path) {
+        Preconditions.checkState(open);
+        final String location = protoIndex(snapshotVersion).getDescriptorLocation(path.toString());
+        if (location == null) {
+          return Optional.empty();
+        }
+        try {
+          return Optional.of(FileDescriptorProto.parseFrom(blobs.get(location)));
+        } catch (InvalidProtocolBufferException e) {
+          throw new RuntimeException("Error parsing descriptor: " + path, e);
+        }
+      }
+
+      @Override
+      public ImmutableMap<String, SchemaVersion> allPackageVersions(final long snapshotVersion) {
+        Preconditions.checkState(open);
+        return ImmutableMap.copyOf(protoIndex(snapshotVersion).getPackageVersions());
+      }
+
+      @Override
+      public long commit() {
+        Preconditions.checkState(open);
+        synchronized (InMemorySchemaStorage.this) {
+          snapshots.add(protoIndex.toByteArray());
+          return snapshots.size() - 1;
+        }
+      }
+
+      @Override
+      public long getLatestSnapshotVersion() {
+        Preconditions.checkState(open);
+        return snapshots.size() - 1;
+      }
+
+      @Override
+      public Stream<Long> getSnapshotVersions() {
+        Preconditions.checkState(open);
+        return LongStream.range(0, snapshots.size()).boxed();
+      }
+
+      @Override
+      public void deleteFile(final Path path) {
+        Preconditions.checkState(open);
+        if (!protoIndex.removeProtoLocation(path.toString())) {
+          throw new RuntimeException("Not found: " + path);
+        }
+      }
+
+      @Override
+      public void close() {
+        open = false;
+      }
+
+      private ProtoIndex protoIndex(final long snapshotVersion) {
+        if (snapshotVersion != indexGeneration) {
+          return ProtoIndex.parse(snapshots.get((int) snapshotVersion));
+        }
+        return protoIndex;
+      }
+    };
+  }
+
+  private String put(final byte[] bytes) {
+    final String hash = Hashing.sha256().hashBytes(bytes).toString();
+    blobs.put(hash, bytes);
+    return hash;
+  }
+}
@@ -0,0 +1,404 @@
+/*-
+ * -\-\-
+ * protoman-registry
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.protoman.registry;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.spotify.protoman.descriptor.DescriptorBuilder;
+import com.spotify.protoman.descriptor.PooledDescriptorBuilderFactory;
+import com.spotify.protoman.descriptor.ProtocDescriptorBuilder;
+import com.spotify.protoman.registry.SchemaPublisher.PublishResult;
+import com.spotify.protoman.registry.storage.SchemaStorage;
+import com.spotify.protoman.validation.DefaultSchemaValidator;
+import io.grpc.Context;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Test;
+
+public class SchemaRegistryTest {
+
+  private static final Path FOO = Paths.get("foo/foo.proto");
+  private static final Path BAR = Paths.get("bar/bar.proto");
+  private static final Path COMMON = Paths.get("common/common.proto");
+
+  private static final String COMMON_PROTO =
+      "syntax = 'proto3'; package common; message Common {}";
+  private static final String FOO_IMPORTING_COMMON =
+      "syntax = 'proto3'; package foo; import 'common/common.proto'; "
+      + "message Foo { common.Common common = 1; %s }";
+
+  private final InMemorySchemaStorage schemaStorage = InMemorySchemaStorage.create();
+  private final CountingDescriptorBuilderFactory descriptorBuilderFactory =
+      CountingDescriptorBuilderFactory.create(ProtocDescriptorBuilder.factoryBuilder().build());
+  private final ExecutorService compileExecutor = Executors.newFixedThreadPool(2);
+
+  @After
+  public void tearDown() {
+    compileExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testShards_connectedFilesInSameShard() {
+    final ImmutableList<ImmutableSet<Path>> shards = SchemaRegistry.shards(
+        ImmutableMap.of(
+            path("a"), ImmutableSet.of(path("b")),
+            path("b"), ImmutableSet.of(),
+            path("c"), ImmutableSet.of(path("b")),
+            path("d"), ImmutableSet.of(path("e")),
+            path("e"), ImmutableSet.of()
+        ),
+        ImmutableSet.of(path("a"), path("c"), path("d")),
+        4
+    );
+
+    assertThat(shards, containsInAnyOrder(
+        ImmutableSet.of(path("a"), path("b"), path("c")),
+        ImmutableSet.of(path("d"), path("e"))
+    ));
+  }
+
+  @Test
+  public void testShards_atMostMaxShards() {
+    final ImmutableMap<Path, ImmutableSet<Path>> dependencyGraph = ImmutableMap.of(
+        path("a"), ImmutableSet.of(path("b")),
+        path("b"), ImmutableSet.of(),
+        path("c"), ImmutableSet.of(),
+        path("d"), ImmutableSet.of(),
+        path("e"), ImmutableSet.of()
+    );
+
+    final ImmutableList<ImmutableSet<Path>> shards = SchemaRegistry.shards(
+        dependencyGraph, dependencyGraph.keySet(), 2);
+
+    assertThat(shards, hasSize(2));
+    assertThat(
+        shards.stream().flatMap(Set::stream).collect(toImmutableList()),
+        containsInAnyOrder(dependencyGraph.keySet().toArray())
+    );
+    assertThat(shards.get(0).size() + shards.get(1).size(), is(5));
+    assertThat(Math.abs(shards.get(0).size() - shards.get(1).size()), is(1));
+    assertThat(
+        shards.stream().anyMatch(shard -> shard.containsAll(ImmutableSet.of(path("a"), path("b")))),
+        is(true)
+    );
+  }
+
+  @Test
+  public void testShards_noFiles() {
+    assertThat(
+        SchemaRegistry.shards(ImmutableMap.of(), ImmutableSet.of(), 4),
+        contains(ImmutableSet.<Path>of())
+    );
+  }
+
+  @Test
+  public void testMergeResults_firstOccurrenceInOrder() {
+    final FileDescriptorProto a = file("a.proto", "first");
+    final FileDescriptorProto b = file("b.proto", "first");
+    final FileDescriptorProto c = file("c.proto", "second");
+
+    final DescriptorBuilder.Result merged = SchemaRegistry.mergeResults(Stream.of(
+        DescriptorBuilder.Result.create(descriptorSet(a, b)),
+        DescriptorBuilder.Result.create(descriptorSet(file("a.proto", "second"), c))
+    ));
+
+    assertThat(merged.compilationError(), is((String) null));
+    assertThat(merged.fileDescriptorSet().getFileList(), contains(a, b, c));
+  }
+
+  @Test
+  public void testMergeResults_errors() {
+    final DescriptorBuilder.Result merged = SchemaRegistry.mergeResults(Stream.of(
+        DescriptorBuilder.Result.error("first\n"),
+        DescriptorBuilder.Result.create(descriptorSet(file("a.proto", "first"))),
+        DescriptorBuilder.Result.error("second\n")
+    ));
+
+    assertThat(merged.fileDescriptorSet(), is((FileDescriptorSet) null));
+    assertThat(merged.compilationError(), equalTo("first\nsecond\n"));
+  }
+
+  @Test
+  public void testPublish_unrelatedPackagesInSeparateShards() {
+    store(
+        SchemaFile.create(FOO, "syntax = 'proto3'; package foo; message Foo {}"),
+        SchemaFile.create(BAR, "syntax = 'proto3'; package bar; message Bar {}")
+    );
+    final SchemaRegistry sut = shardedRegistry();
+
+    final PublishResult result = sut.publishSchemata(ImmutableList.of(
+        SchemaFile.create(FOO, "syntax = 'proto3'; package foo; message Foo { int32 a = 1; }"),
+        SchemaFile.create(BAR, "syntax = 'proto3'; package bar; message Bar { int32 b = 1; }")
+    ));
+
+    assertThat(result.error(), equalTo(Optional.empty()));
+    assertThat(result.publishedPackages().keySet(), containsInAnyOrder("foo", "bar"));
+    // One builder per shard
+    assertThat(descriptorBuilderFactory.builders(), is(2));
+    assertThat(
+        sut.getSchemataForPackages(ImmutableList.of("foo", "bar"))
+            .map(SchemaFile::content)
+            .collect(toImmutableList()),
+        containsInAnyOrder(
+            "syntax = 'proto3'; package foo; message Foo { int32 a = 1; }",
+            "syntax = 'proto3'; package bar; message Bar { int32 b = 1; }"
+        )
+    );
+  }
+
+  @Test
+  public void testPublish_symbolDefinedInSeparateShards() {
+    store(
+        SchemaFile.create(FOO, "syntax = 'proto3'; package foo; message Foo {}"),
+        SchemaFile.create(BAR, "syntax = 'proto3'; package bar; message Bar {}")
+    );
+
+    final PublishResult result = shardedRegistry().publishSchemata(ImmutableList.of(
+        SchemaFile.create(FOO, "syntax = 'proto3'; package shared; message Same {}"),
+        SchemaFile.create(BAR, "syntax = 'proto3'; package shared; message Same {}")
+    ));
+
+    assertThat(descriptorBuilderFactory.builders(), is(2));
+    assertThat(result.error().get(), containsString("\"shared.Same\" is already defined"));
+  }
+
+  @Test
+  public void testPublish_importOutsideShard() {
+    store(
+        SchemaFile.create(FOO, "syntax = 'proto3'; package foo; message Foo {}"),
+        SchemaFile.create(BAR, "syntax = 'proto3'; package bar; message Bar {}")
+    );
+
+    final PublishResult result = shardedRegistry().publishSchemata(ImmutableList.of(
+        SchemaFile.create(FOO, "syntax = 'proto3'; package foo; import 'bar/bar.proto'; "
+                               + "message Foo { bar.Bar bar = 1; }"),
+        SchemaFile.create(BAR, "syntax = 'proto3'; package bar; message Bar { int32 b = 1; }")
+    ));
+
+    assertThat(result.error(), equalTo(Optional.empty()));
+  }
+
+  @Test
+  public void testPublish_cancelWhileWaitingForBuilder() throws Exception {
+    store(SchemaFile.create(FOO, "syntax = 'proto3'; package foo; message Foo {}"));
+    try (final PooledDescriptorBuilderFactory pooledFactory =
+             ProtocDescriptorBuilder.factoryBuilder().buildPooled(1)) {
+      final SchemaRegistry sut = SchemaRegistry.create(
+          schemaStorage,
+          DefaultSchemaValidator.builder().addDefaultRules().build(),
+          SemverSchemaVersioner.create(),
+          pooledFactory
+      );
+      final Context.CancellableContext context = Context.current().withCancellation();
+
+      try (final DescriptorBuilder busy = pooledFactory.newDescriptorBuilder()) {
+        final Future<PublishResult> publish = compileExecutor.submit(context.wrap(
+            () -> sut.publishSchemata(ImmutableList.of(SchemaFile.create(
+                FOO, "syntax = 'proto3'; package foo; message Foo { int32 a = 1; }"
+            )))
+        ));
+
+        while (pooledFactory.stats().waiting() == 0) {
+          Thread.sleep(10);
+        }
+        context.cancel(null);
+
+        try {
+          // Must not wait for the busy builder to be closed
+          publish.get(10, TimeUnit.SECONDS);
+          throw new AssertionError("Expected publish to be cancelled");
+        } catch (ExecutionException e) {
+          assertThat(e.getCause(), instanceOf(CancellationException.class));
+        }
+      }
+
+      assertThat(pooledFactory.stats().inUse(), is(0));
+    }
+    // Nothing was committed after the files were stored
+    try (final SchemaStorage.Transaction tx = schemaStorage.open()) {
+      assertThat(tx.getLatestSnapshotVersion(), is(1L));
+    }
+  }
+
+  @Test
+  public void testPublish_storesMissingDescriptors() {
+    storeFooImportingCommon();
+
+    final PublishResult result = registry().publishSchemata(ImmutableList.of(
+        SchemaFile.create(FOO, String.format(FOO_IMPORTING_COMMON, "int32 a = 2;"))
+    ));
+
+    assertThat(result.error(), equalTo(Optional.empty()));
+    // Current and candidate
+    assertThat(descriptorBuilderFactory.builds(), is(2));
+    assertThat(storedDescriptor(COMMON).isPresent(), is(true));
+    assertThat(storedDescriptor(FOO).get().getMessageType(0).getFieldCount(), is(2));
+  }
+
+  @Test
+  public void testPublish_reusesStoredDescriptors() {
+    storeFooImportingCommon();
+    final SchemaRegistry sut = registry();
+    sut.publishSchemata(ImmutableList.of(
+        SchemaFile.create(FOO, String.format(FOO_IMPORTING_COMMON, "int32 a = 2;"))
+    ));
+    descriptorBuilderFactory.reset();
+
+    final PublishResult result = sut.publishSchemata(ImmutableList.of(
+        SchemaFile.create(FOO, String.format(FOO_IMPORTING_COMMON, "int32 a = 2; int32 b = 3;"))
+    ));
+
+    assertThat(result.error(), equalTo(Optional.empty()));
+    // Only the candidate
+    assertThat(descriptorBuilderFactory.builds(), is(1));
+  }
+
+  @Test
+  public void testPublish_compilesOnlyMissingDescriptors() {
+    storeFooImportingCommon();
+    final SchemaRegistry sut = registry();
+    sut.publishSchemata(ImmutableList.of(
+        SchemaFile.create(FOO, String.format(FOO_IMPORTING_COMMON, "int32 a = 2;"))
+    ));
+    schemaStorage.removeFileDescriptor(COMMON);
+    descriptorBuilderFactory.reset();
+
+    final PublishResult result = sut.publishSchemata(ImmutableList.of(
+        SchemaFile.create(FOO, String.format(FOO_IMPORTING_COMMON, "int32 a = 2; int32 b = 3;"))
+    ));
+
+    assertThat(result.error(), equalTo(Optional.empty()));
+    assertThat(descriptorBuilderFactory.builds(), is(2));
+    // foo.proto's stored descriptor is used for the current side
+    assertThat(descriptorBuilderFactory.builtPaths().get(0), contains(COMMON));
+    assertThat(storedDescriptor(COMMON).isPresent(), is(true));
+  }
+
+  @Test
+  public void testPublish_dropsDescriptorsOfDependents() {
+    storeFooImportingCommon();
+    final SchemaRegistry sut = registry();
+    sut.publishSchemata(ImmutableList.of(
+        SchemaFile.create(FOO, String.format(FOO_IMPORTING_COMMON, "int32 a = 2;"))
+    ));
+
+    final PublishResult result = sut.publishSchemata(ImmutableList.of(
+        SchemaFile.create(COMMON, "syntax = 'proto3'; package common; message Common { }")
+    ));
+
+    // foo.proto was built from the previous common.proto
+    assertThat(result.error(), equalTo(Optional.empty()));
+    assertThat(storedDescriptor(COMMON).isPresent(), is(true));
+    assertThat(storedDescriptor(FOO).isPresent(), is(false));
+
+    descriptorBuilderFactory.reset();
+    sut.publishSchemata(ImmutableList.of(
+        SchemaFile.create(FOO, String.format(FOO_IMPORTING_COMMON, "int32 a = 2; int32 b = 3;"))
+    ));
+    assertThat(descriptorBuilderFactory.builds(), is(2));
+  }
+
+  private SchemaRegistry registry() {
+    return SchemaRegistry.create(
+        schemaStorage,
+        DefaultSchemaValidator.builder().addDefaultRules().build(),
+        SemverSchemaVersioner.create(),
+        descriptorBuilderFactory
+    );
+  }
+
+  private SchemaRegistry shardedRegistry() {
+    return SchemaRegistry.create(
+        schemaStorage,
+        DefaultSchemaValidator.builder().addDefaultRules().build(),
+        SemverSchemaVersioner.create(),
+        descriptorBuilderFactory,
+        compileExecutor,
+        2
+    );
+  }
+
+  private void storeFooImportingCommon() {
+    store(
+        SchemaFile.create(COMMON, COMMON_PROTO),
+        SchemaFile.create(FOO, String.format(FOO_IMPORTING_COMMON, ""))
+    );
+    try (final SchemaStorage.Transaction tx = schemaStorage.open()) {
+      tx.storeProtoDependencies(FOO, ImmutableSet.of(COMMON));
+      tx.commit();
+    }
+  }
+
+  private Optional<FileDescriptorProto> storedDescriptor(final Path path) {
+    try (final SchemaStorage.Transaction tx = schemaStorage.open()) {
+      return tx.fileDescriptor(tx.getLatestSnapshotVersion(), path);
+    }
+  }
+
+  /**
+   * Stores files directly in the storage, without descriptors, as if they were published before
+   * descriptors were stored.
+   */
+  private void store(final SchemaFile... files) {
+    try (final SchemaStorage.Transaction tx = schemaStorage.open()) {
+      for (final SchemaFile file : files) {
+        tx.storeFile(file);
+        tx.storeProtoDependencies(file.path(), ImmutableSet.of());
+      }
+      tx.commit();
+    }
+  }
+
+  private static Path path(final String name) {
+    return Paths.get(name + ".proto");
+  }
+
+  private static FileDescriptorProto file(final String name, final String pkg) {
+    return FileDescriptorProto.newBuilder().setName(name).setPackage(pkg).build();
+  }
+
+  private static FileDescriptorSet descriptorSet(final FileDescriptorProto... files) {
+    return FileDescriptorSet.newBuilder().addAllFile(ImmutableList.copyOf(files)).build();
+  }
+}
@@ -22,8 +22,11 @@ package com.spotify.protoman.registry.storage;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
@@ -77,6 +80,20 @@ public class ProtoIndexTest {
     assertThat(after.getProtoLocations(), equalTo(ImmutableMap.of()));
   }
 
+  @Test
+  public void updateDescriptorLocation() {
+    final ProtoIndex protoIndex = ProtoIndex.empty();
+    protoIndex.updateDescriptorLocation("/pkg1/protofile.proto", "dest1");
+    protoIndex.updateDescriptorLocation("/pkg2/protofile.proto", "dest2");
+    protoIndex.removeDescriptorLocation("/pkg2/protofile.proto");
+
+    final ProtoIndex after = ProtoIndex.parse(protoIndex.toByteArray());
+
+    assertThat(after.getDescriptorLocations(), equalTo(ImmutableMap.of(
+        "/pkg1/protofile.proto", "dest1"
+    )));
+  }
+
   @Test
   public void updatePackageVersion() {
     final ProtoIndex protoIndex = ProtoIndex.empty();
@@ -108,6 +125,70 @@ public class ProtoIndexTest {
     )));
   }
 
+  @Test
+  public void updateProtoLocation_removesDescriptorsOfDependents() {
+    final ProtoIndex protoIndex = ProtoIndex.parse(indexWithDescriptors().toByteArray());
+
+    protoIndex.updateProtoLocation("pkg/c.proto", "new-c");
+
+    assertThat(protoIndex.getDescriptorLocations(), equalTo(ImmutableMap.of(
+        "pkg/d.proto", "descriptor-d"
+    )));
+  }
+
+  @Test
+  public void updateProtoLocation_unchangedKeepsDescriptors() {
+    final ProtoIndex protoIndex = indexWithDescriptors();
+
+    protoIndex.updateProtoLocation("pkg/c.proto", "c");
+
+    assertThat(protoIndex.getDescriptorLocations().keySet(), hasSize(4));
+  }
+
+  @Test
+  public void updateProtoDependencies_updatesDependents() {
+    final ProtoIndex protoIndex = indexWithDescriptors();
+    protoIndex.updateProtoDependencies(Paths.get("pkg/a.proto"),
+        ImmutableSet.of(Paths.get("pkg/d.proto")));
+
+    protoIndex.updateProtoLocation("pkg/b.proto", "new-b");
+    assertThat(protoIndex.getDescriptorLocation("pkg/a.proto"), equalTo("descriptor-a"));
+
+    protoIndex.updateProtoLocation("pkg/d.proto", "new-d");
+    assertThat(protoIndex.getDescriptorLocation("pkg/a.proto"), is(nullValue()));
+  }
+
+  @Test
+  public void removeProtoLocation_removesDescriptorsOfDependents() {
+    final ProtoIndex protoIndex = indexWithDescriptors();
+
+    protoIndex.removeProtoLocation("pkg/b.proto");
+
+    assertThat(protoIndex.getDescriptorLocations(), equalTo(ImmutableMap.of(
+        "pkg/c.proto", "descriptor-c",
+        "pkg/d.proto", "descriptor-d"
+    )));
+  }
+
+  @Test
+  public void singleKeyAccessors() {
+    final ProtoIndex protoIndex = indexWithDescriptors();
+    protoIndex.updatePackageVersion("pkg", SchemaVersion.create("1", 2, 3));
+
+    assertThat(protoIndex.getProtoLocation("pkg/a.proto"), equalTo("a"));
+    assertThat(protoIndex.getProtoLocation("pkg/e.proto"), is(nullValue()));
+    assertThat(protoIndex.hasProtoLocation("pkg/a.proto"), is(true));
+    assertThat(protoIndex.hasProtoLocation("pkg/e.proto"), is(false));
+    assertThat(protoIndex.getDescriptorLocation("pkg/a.proto"), equalTo("descriptor-a"));
+    assertThat(protoIndex.getDescriptorLocation("pkg/e.proto"), is(nullValue()));
+    assertThat(protoIndex.getPackageVersion("pkg"), equalTo(SchemaVersion.create("1", 2, 3)));
+    assertThat(protoIndex.getPackageVersion("other"), is(nullValue()));
+    assertThat(protoIndex.getProtoDependencies(Paths.get("pkg/a.proto")),
+        equalTo(ImmutableSet.of(Paths.get("pkg/b.proto"))));
+    assertThat(protoIndex.getProtoDependencies(Paths.get("pkg/e.proto")),
+        equalTo(ImmutableSet.of()));
+  }
+
   @Test(expected = NullPointerException.class)
   public void updatePackageVersion_nullValueNotAllowed() {
     ProtoIndex.empty().updatePackageVersion("pkg1", null);
@@ -119,4 +200,21 @@ public class ProtoIndexTest {
         SchemaVersion.create("1",0,0));
   }
 
+  /**
+   * pkg/a.proto imports pkg/b.proto, which imports pkg/c.proto. pkg/d.proto is independent. All
+   * of them have descriptors.
+   */
+  private static ProtoIndex indexWithDescriptors() {
+    final ProtoIndex protoIndex = ProtoIndex.empty();
+    for (final String name : ImmutableList.of("a", "b", "c", "d")) {
+      protoIndex.updateProtoLocation("pkg/" + name + ".proto", name);
+      protoIndex.updateDescriptorLocation("pkg/" + name + ".proto", "descriptor-" + name);
+    }
+    protoIndex.updateProtoDependencies(Paths.get("pkg/a.proto"),
+        ImmutableSet.of(Paths.get("pkg/b.proto")));
+    protoIndex.updateProtoDependencies(Paths.get("pkg/b.proto"),
+        ImmutableSet.of(Paths.get("pkg/c.proto")));
+    return protoIndex;
+  }
+
 }
\ No newline at end of file
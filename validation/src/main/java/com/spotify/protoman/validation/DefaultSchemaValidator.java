@@ -21,7 +21,6 @@
 package com.spotify.protoman.validation;
 
 import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.collect.ImmutableList;
 import com.spotify.protoman.descriptor.DescriptorSet;
@@ -34,6 +33,7 @@ import com.spotify.protoman.descriptor.MessageDescriptor;
 import com.spotify.protoman.descriptor.MethodDescriptor;
 import com.spotify.protoman.descriptor.OneofDescriptor;
 import com.spotify.protoman.descriptor.ServiceDescriptor;
+import com.spotify.protoman.validation.RuleDispatchTable.Kind;
 import com.spotify.protoman.validation.rules.EnumDefaultValueRule;
 import com.spotify.protoman.validation.rules.EnumNamingRule;
 import com.spotify.protoman.validation.rules.EnumValueNameChangeRule;
@@ -61,19 +61,28 @@ import com.spotify.protoman.validation.rules.ServiceNamingRule;
 import com.spotify.protoman.validation.rules.ServiceRemovalRule;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 import javax.annotation.Nullable;
 
 public class DefaultSchemaValidator implements SchemaValidator {
 
-  private final ImmutableList<ComparingValidationRule> rules;
+  private final RuleDispatchTable rules;
+  @Nullable private final ForkJoinPool forkJoinPool;
 
-  private DefaultSchemaValidator(final Stream<ComparingValidationRule> ruleStream) {
-    this.rules = ruleStream.collect(ImmutableList.toImmutableList());
+  private DefaultSchemaValidator(final Stream<ComparingValidationRule> ruleStream,
+                                 @Nullable final ForkJoinPool forkJoinPool) {
+    this.rules = RuleDispatchTable.create(ruleStream.collect(ImmutableList.toImmutableList()));
+    this.forkJoinPool = forkJoinPool;
   }
 
   public static DefaultSchemaValidator create(final Stream<ComparingValidationRule> ruleStream) {
-    return new DefaultSchemaValidator(ruleStream);
+    return new DefaultSchemaValidator(ruleStream, null);
   }
 
   public static DefaultSchemaValidator withDefaultRules() {
@@ -86,19 +95,97 @@ public class DefaultSchemaValidator implements SchemaValidator {
     return new Builder();
   }
 
+  /**
+   * Validates the changes between two descriptor sets. Descriptors that are structurally
+   * unchanged are skipped, along with everything nested in them. Throws {@link
+   * CancellationException} if the calling thread is interrupted while validating.
+   */
   @Override
   public ImmutableList<ValidationViolation> validate(final DescriptorSet current,
                                                      final DescriptorSet candidate) {
-    final ImmutableList.Builder<ValidationViolation> violations = ImmutableList.builder();
-    final ContextImpl ctx = new ContextImpl(violations);
-    final ValidationVisitor visitor = new ValidationVisitor(ctx);
-    DescriptorSet.compare(visitor, current, candidate);
-    return violations.build();
+    return validate(current, candidate, ValidationPolicy.exhaustive()).violations();
+  }
+
+  /**
+   * Like {@link #validate(DescriptorSet, DescriptorSet)}, but stops traversing as soon as {@code
+   * policy} refuses a violation or its time budget is spent. When validating in parallel, which
+   * violations are reported before stopping depends on timing.
+   */
+  @Override
+  public ValidationResult validate(final DescriptorSet current,
+                                   final DescriptorSet candidate,
+                                   final ValidationPolicy policy) {
+    // Each context gets its own buffer, and buffers are concatenated in the order the contexts
+    // were created, which is the order of sequential validation
+    final Run run = new Run(policy, Thread.currentThread());
+    final List<ImmutableList.Builder<ValidationViolation>> buffers = new ArrayList<>();
+    traverse(run, current, candidate, () -> {
+      final ImmutableList.Builder<ValidationViolation> buffer = ImmutableList.builder();
+      buffers.add(buffer);
+      return new ContextImpl(run, buffer::add);
+    });
+    return ValidationResult.create(
+        buffers.stream()
+            .flatMap(buffer -> buffer.build().stream())
+            .collect(ImmutableList.toImmutableList()),
+        run.stopped
+    );
+  }
+
+  /**
+   * Like {@link #validate(DescriptorSet, DescriptorSet, ValidationPolicy)}, but pushes violations
+   * to {@code sink} as they are found. When validating in parallel they are pushed from the
+   * worker threads, one at a time and in no particular order.
+   */
+  @Override
+  public boolean validate(final DescriptorSet current,
+                          final DescriptorSet candidate,
+                          final ValidationPolicy policy,
+                          final ViolationSink sink) {
+    final Run run = new Run(policy, Thread.currentThread());
+    final ViolationSink contextSink;
+    if (forkJoinPool == null) {
+      contextSink = sink;
+    } else {
+      final Object lock = new Object();
+      contextSink = violation -> {
+        synchronized (lock) {
+          sink.accept(violation);
+        }
+      };
+    }
+    traverse(run, current, candidate, () -> new ContextImpl(run, contextSink));
+    return run.stopped;
+  }
+
+  /**
+   * Compares the descriptor sets with a visitor per context from {@code contexts}, which is
+   * called on this thread before any validation starts.
+   */
+  private void traverse(final Run run,
+                        final DescriptorSet current,
+                        final DescriptorSet candidate,
+                        final Supplier<ContextImpl> contexts) {
+    try {
+      if (forkJoinPool == null) {
+        DescriptorSet.compareChanges(new ValidationVisitor(contexts.get()), current, candidate);
+      } else {
+        // Workers check whether this thread is interrupted
+        DescriptorSet.compareChanges(
+            () -> new ValidationVisitor(contexts.get()), current, candidate, forkJoinPool);
+      }
+    } catch (InterruptedException e) {
+      run.thread.interrupt();
+      throw new CancellationException("Validation interrupted");
+    } catch (ValidationStopped e) {
+      // Report what was found until the policy was exhausted
+    }
   }
 
   public static class Builder {
 
     private final List<ComparingValidationRule> rules = new ArrayList<>();
+    @Nullable private ForkJoinPool forkJoinPool;
 
     private Builder() {
     }
@@ -145,8 +232,18 @@ public class DefaultSchemaValidator implements SchemaValidator {
       return this;
     }
 
+    /**
+     * Validate files and top-level types in parallel on {@code forkJoinPool}. Each worker
+     * reports into its own context, and violations are returned in the same order as when
+     * validating sequentially. Rules must be thread-safe.
+     */
+    public Builder forkJoinPool(final ForkJoinPool forkJoinPool) {
+      this.forkJoinPool = forkJoinPool;
+      return this;
+    }
+
     public DefaultSchemaValidator build() {
-      return create(rules.stream());
+      return new DefaultSchemaValidator(rules.stream(), forkJoinPool);
     }
   }
 
@@ -160,23 +257,32 @@ public class DefaultSchemaValidator implements SchemaValidator {
 
     /**
      * Helper for choosing the right callback to call depending on whether a "thing" was removed,
-     * added or changed.
+     * added or changed. The descriptors are classified once, and then only the rules that
+     * implement the callback are called.
      */
     private <T extends GenericDescriptor> void dispatch(
         @Nullable final T current,
         @Nullable final T candidate,
+        final Kind kind,
         final AdditionCallback<T> added,
         final RemovalCallback<T> removed,
         final ChangeCallback<T> changed) {
       checkArgument(current != null || candidate != null);
+      checkNotStopped();
       ctx.setDescriptors(current, candidate);
       if (candidate == null) {
-        removed.accept(ctx, current);
+        for (final ComparingValidationRule rule : rules.removed(kind)) {
+          removed.accept(rule, ctx, current);
+        }
       } else if (current == null) {
-        added.accept(ctx, candidate);
-      } else if (!current.toProto().equals(candidate.toProto())) {
+        for (final ComparingValidationRule rule : rules.added(kind)) {
+          added.accept(rule, ctx, candidate);
+        }
+      } else if (!current.structuralFingerprint().equals(candidate.structuralFingerprint())) {
         // Run change validation only if the descriptors differ
-        changed.accept(ctx, current, candidate);
+        for (final ComparingValidationRule rule : rules.changed(kind)) {
+          changed.accept(rule, ctx, current, candidate);
+        }
       }
     }
 
@@ -186,35 +292,37 @@ public class DefaultSchemaValidator implements SchemaValidator {
                       @Nullable final MessageDescriptor currentContainingMessage,
                       @Nullable final MessageDescriptor candidateContainingMessage) {
       checkArgument(current != null || candidate != null);
+      checkNotStopped();
       ctx.setDescriptors(current, candidate);
       if (candidate == null) {
         if (candidateContainingMessage != null) {
-          rules.forEach(rule -> rule.fieldRemoved(
-              ctx, current, checkNotNull(candidateContainingMessage)));
+          for (final ComparingValidationRule rule : rules.removed(Kind.FIELD)) {
+            rule.fieldRemoved(ctx, current, candidateContainingMessage);
+          }
         }
       } else if (current == null) {
-        rules.forEach(rule -> rule.fieldAdded(ctx, candidate));
-      } else if (!current.toProto().equals(candidate.toProto())) {
-        rules.forEach(rule -> rule.fieldChanged(ctx, current, candidate));
+        for (final ComparingValidationRule rule : rules.added(Kind.FIELD)) {
+          rule.fieldAdded(ctx, candidate);
+        }
+      } else if (!current.structuralFingerprint().equals(candidate.structuralFingerprint())) {
+        for (final ComparingValidationRule rule : rules.changed(Kind.FIELD)) {
+          rule.fieldChanged(ctx, current, candidate);
+        }
       }
     }
 
     @Override
     public void visit(@Nullable final MessageDescriptor current,
                       @Nullable final MessageDescriptor candidate) {
-      rules.forEach(rule ->
-          dispatch(current, candidate, rule::messageAdded,
-              rule::messageRemoved, rule::messageChanged)
-      );
+      dispatch(current, candidate, Kind.MESSAGE, ComparingValidationRule::messageAdded,
+          ComparingValidationRule::messageRemoved, ComparingValidationRule::messageChanged);
     }
 
     @Override
     public void visit(@Nullable final EnumDescriptor current,
                       @Nullable final EnumDescriptor candidate) {
-      rules.forEach(rule ->
-          dispatch(current, candidate, rule::enumAdded,
-              rule::enumRemoved, rule::enumChanged)
-      );
+      dispatch(current, candidate, Kind.ENUM, ComparingValidationRule::enumAdded,
+          ComparingValidationRule::enumRemoved, ComparingValidationRule::enumChanged);
     }
 
     @Override
@@ -223,53 +331,62 @@ public class DefaultSchemaValidator implements SchemaValidator {
                       @Nullable final EnumDescriptor currentContainingEnum,
                       @Nullable final EnumDescriptor candidateContainingEnum) {
       checkArgument(current != null || candidate != null);
+      checkNotStopped();
       ctx.setDescriptors(current, candidate);
       if (candidate == null) {
         if (candidateContainingEnum != null) {
-          rules.forEach(rule -> rule.enumValueRemoved(
-              ctx, current, checkNotNull(candidateContainingEnum)));
+          for (final ComparingValidationRule rule : rules.removed(Kind.ENUM_VALUE)) {
+            rule.enumValueRemoved(ctx, current, candidateContainingEnum);
+          }
         }
       } else if (current == null) {
-        rules.forEach(rule -> rule.enumValueAdded(ctx, candidate));
-      } else if (!current.toProto().equals(candidate.toProto())) {
-        rules.forEach(rule -> rule.enumValueChanged(ctx, current, candidate));
+        for (final ComparingValidationRule rule : rules.added(Kind.ENUM_VALUE)) {
+          rule.enumValueAdded(ctx, candidate);
+        }
+      } else if (!current.structuralFingerprint().equals(candidate.structuralFingerprint())) {
+        for (final ComparingValidationRule rule : rules.changed(Kind.ENUM_VALUE)) {
+          rule.enumValueChanged(ctx, current, candidate);
+        }
       }
     }
 
     @Override
     public void visit(@Nullable final ServiceDescriptor current,
                       @Nullable final ServiceDescriptor candidate) {
-      rules.forEach(rule ->
-          dispatch(current, candidate, rule::serviceAdded,
-              rule::serviceRemoved, rule::serviceChanged)
-      );
+      dispatch(current, candidate, Kind.SERVICE, ComparingValidationRule::serviceAdded,
+          ComparingValidationRule::serviceRemoved, ComparingValidationRule::serviceChanged);
     }
 
     @Override
     public void visit(@Nullable final MethodDescriptor current,
                       @Nullable final MethodDescriptor candidate) {
-      rules.forEach(rule ->
-          dispatch(current, candidate, rule::methodAdded,
-              rule::methodRemoved, rule::methodChanged)
-      );
+      dispatch(current, candidate, Kind.METHOD, ComparingValidationRule::methodAdded,
+          ComparingValidationRule::methodRemoved, ComparingValidationRule::methodChanged);
     }
 
     @Override
     public void visit(@Nullable final OneofDescriptor current,
                       @Nullable final OneofDescriptor candidate) {
-      rules.forEach(rule ->
-          dispatch(current, candidate, rule::oneofAdded,
-              rule::oneofRemoved, rule::oneofChanged)
-      );
+      dispatch(current, candidate, Kind.ONEOF, ComparingValidationRule::oneofAdded,
+          ComparingValidationRule::oneofRemoved, ComparingValidationRule::oneofChanged);
     }
 
     @Override
     public void visit(@Nullable final FileDescriptor current,
                       @Nullable final FileDescriptor candidate) {
-      rules.forEach(rule ->
-          dispatch(current, candidate, rule::fileAdded,
-              rule::fileRemoved, rule::fileChanged)
-      );
+      dispatch(current, candidate, Kind.FILE, ComparingValidationRule::fileAdded,
+          ComparingValidationRule::fileRemoved, ComparingValidationRule::fileChanged);
+    }
+
+    /**
+     * Called for every visited node, so that a large enum or message stops the traversal as
+     * early as a large file does.
+     */
+    private void checkNotStopped() {
+      if (ctx.run.thread.isInterrupted()) {
+        throw new CancellationException("Validation interrupted");
+      }
+      ctx.run.checkWithinPolicy();
     }
 
 
@@ -322,27 +439,86 @@ public class DefaultSchemaValidator implements SchemaValidator {
 
   @FunctionalInterface
   private interface AdditionCallback<T> {
-    void accept(ValidationContext ctx, T candidate);
+    void accept(ComparingValidationRule rule, ValidationContext ctx, T candidate);
   }
 
   @FunctionalInterface
   private interface RemovalCallback<T> {
-    void accept(ValidationContext ctx, T current);
+    void accept(ComparingValidationRule rule, ValidationContext ctx, T current);
   }
 
   @FunctionalInterface
   private interface ChangeCallback<T> {
-    void accept(ValidationContext ctx, T current, T candidate);
+    void accept(ComparingValidationRule rule, ValidationContext ctx, T current, T candidate);
+  }
+
+  /**
+   * Thrown to end the traversal early when the validation policy is exhausted.
+   */
+  private static class ValidationStopped extends RuntimeException {
+
+    private ValidationStopped() {
+      super("Validation policy exhausted", null, false, false);
+    }
+  }
+
+  /**
+   * State shared by all contexts of a single validation run.
+   */
+  private static class Run {
+
+    private final Map<RunLocal<?>, Object> runLocals = new ConcurrentHashMap<>();
+    private final AtomicInteger reported = new AtomicInteger();
+    private final int maxViolations;
+    private final long deadlineNanos;
+    private final boolean hasDeadline;
+    // The thread doing the validation, which may be interrupted to abort it
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    private Run(final ValidationPolicy policy, final Thread thread) {
+      this.maxViolations = policy.maxViolations();
+      this.hasDeadline = policy.timeBudget() != null;
+      this.deadlineNanos = hasDeadline ? System.nanoTime() + policy.timeBudget().toNanos() : 0;
+      this.thread = thread;
+    }
+
+    /**
+     * Claims room for one more violation, returning false if the policy does not allow it.
+     */
+    private boolean tryReport() {
+      if (reported.incrementAndGet() > maxViolations) {
+        stopped = true;
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Throws if validation should stop: a violation was refused, or the time budget is spent.
+     * Reaching the maximum number of violations doesn't stop it, so that the result is only
+     * truncated if there actually are more violations.
+     */
+    private void checkWithinPolicy() {
+      if (!stopped && hasDeadline && System.nanoTime() - deadlineNanos >= 0) {
+        stopped = true;
+      }
+      if (stopped) {
+        throw new ValidationStopped();
+      }
+    }
   }
 
   private static class ContextImpl implements ValidationContext {
 
-    private final ImmutableList.Builder<ValidationViolation> violations;
+    private final Run run;
+    private final ViolationSink sink;
     @Nullable private GenericDescriptor current;
     @Nullable private GenericDescriptor candidate;
 
-    private ContextImpl(final ImmutableList.Builder<ValidationViolation> violations) {
-      this.violations = violations;
+    private ContextImpl(final Run run, final ViolationSink sink) {
+      this.run = run;
+      this.sink = sink;
     }
 
     private void setDescriptors(@Nullable final GenericDescriptor current,
@@ -366,8 +542,17 @@ public class DefaultSchemaValidator implements SchemaValidator {
         builder.setCandidate(candidate);
       }
 
+      if (!run.tryReport()) {
+        throw new ValidationStopped();
+      }
       final ValidationViolation violation = builder.build();
-      violations.add(violation);
+      sink.accept(violation);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(final RunLocal<T> local) {
+      return (T) run.runLocals.computeIfAbsent(local, key -> key.initialValue());
     }
   }
 
@@ -28,6 +28,7 @@ import com.spotify.protoman.descriptor.MessageDescriptor;
 import com.spotify.protoman.descriptor.MethodDescriptor;
 import com.spotify.protoman.descriptor.OneofDescriptor;
 import com.spotify.protoman.descriptor.ServiceDescriptor;
+import java.lang.reflect.Method;
 
 class RuleAdapter implements ComparingValidationRule {
 
@@ -41,6 +42,26 @@ class RuleAdapter implements ComparingValidationRule {
     return new RuleAdapter(rule);
   }
 
+  /**
+   * Returns whether {@code callback} forwards to a method the adapted rule implements. Removals
+   * are never forwarded.
+   */
+  boolean forwards(final Method callback) {
+    final String name = callback.getName();
+    final String kind;
+    if (name.endsWith("Added")) {
+      kind = name.substring(0, name.length() - "Added".length());
+    } else if (name.endsWith("Changed")) {
+      kind = name.substring(0, name.length() - "Changed".length());
+    } else {
+      return false;
+    }
+    final String validateName =
+        "validate" + Character.toUpperCase(kind.charAt(0)) + kind.substring(1);
+    final Method validate = RuleDispatchTable.method(ValidationRule.class, validateName);
+    return RuleDispatchTable.overrides(adaptee.getClass(), validate);
+  }
+
   @Override
   public void messageAdded(final ValidationContext ctx, final MessageDescriptor candidate) {
     adaptee.validateMessage(ctx, candidate);
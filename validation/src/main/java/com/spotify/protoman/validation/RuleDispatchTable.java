@@ -0,0 +1,129 @@
+/*-
+ * -\-\-
+ * protoman-validation
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.validation;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The rules to call for each {@link ComparingValidationRule} callback, built once per validator.
+ * Only rules that override a callback are called for it, which skips the empty default methods
+ * most rules inherit.
+ */
+final class RuleDispatchTable {
+
+  enum Kind {
+    MESSAGE("message"),
+    FIELD("field"),
+    ENUM("enum"),
+    ENUM_VALUE("enumValue"),
+    ONEOF("oneof"),
+    SERVICE("service"),
+    METHOD("method"),
+    FILE("file");
+
+    private final String callbackPrefix;
+
+    Kind(final String callbackPrefix) {
+      this.callbackPrefix = callbackPrefix;
+    }
+  }
+
+  private static final String[] CHANGES = {"Added", "Removed", "Changed"};
+  private static final int ADDED = 0;
+  private static final int REMOVED = 1;
+  private static final int CHANGED = 2;
+
+  // Indexed by kind ordinal and change
+  private final ComparingValidationRule[][][] rules;
+
+  private RuleDispatchTable(final ComparingValidationRule[][][] rules) {
+    this.rules = rules;
+  }
+
+  static RuleDispatchTable create(final List<ComparingValidationRule> rules) {
+    final Kind[] kinds = Kind.values();
+    final ComparingValidationRule[][][] table = new ComparingValidationRule[kinds.length][][];
+    for (final Kind kind : kinds) {
+      table[kind.ordinal()] = new ComparingValidationRule[CHANGES.length][];
+      for (int change = 0; change < CHANGES.length; change++) {
+        final Method callback = callback(kind.callbackPrefix + CHANGES[change]);
+        final List<ComparingValidationRule> implementing = new ArrayList<>();
+        for (final ComparingValidationRule rule : rules) {
+          if (implementsCallback(rule, callback)) {
+            implementing.add(rule);
+          }
+        }
+        table[kind.ordinal()][change] =
+            implementing.toArray(new ComparingValidationRule[implementing.size()]);
+      }
+    }
+    return new RuleDispatchTable(table);
+  }
+
+  ComparingValidationRule[] added(final Kind kind) {
+    return rules[kind.ordinal()][ADDED];
+  }
+
+  ComparingValidationRule[] removed(final Kind kind) {
+    return rules[kind.ordinal()][REMOVED];
+  }
+
+  ComparingValidationRule[] changed(final Kind kind) {
+    return rules[kind.ordinal()][CHANGED];
+  }
+
+  /**
+   * Returns whether {@code rule} overrides {@code callback}. Rules adapted from a {@link
+   * ValidationRule} declare which callbacks they forward themselves.
+   */
+  private static boolean implementsCallback(final ComparingValidationRule rule,
+                                            final Method callback) {
+    if (rule instanceof RuleAdapter) {
+      return ((RuleAdapter) rule).forwards(callback);
+    }
+    return overrides(rule.getClass(), callback);
+  }
+
+  static boolean overrides(final Class<?> implementation, final Method method) {
+    try {
+      return implementation.getMethod(method.getName(), method.getParameterTypes())
+                 .getDeclaringClass() != method.getDeclaringClass();
+    } catch (NoSuchMethodException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static Method callback(final String name) {
+    return method(ComparingValidationRule.class, name);
+  }
+
+  static Method method(final Class<?> type, final String name) {
+    for (final Method method : type.getMethods()) {
+      if (method.getName().equals(name)) {
+        return method;
+      }
+    }
+    throw new IllegalArgumentException("No method " + name + " in " + type);
+  }
+}
@@ -0,0 +1,49 @@
+/*-
+ * -\-\-
+ * protoman-validation
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.validation;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.function.Supplier;
+
+/**
+ * A value that is shared by all rules for the duration of one validation run, similar to a
+ * {@link ThreadLocal} scoped to a run instead of a thread. Rules use it to keep state, such as
+ * memoized results, that must not outlive the descriptor sets being compared. Values must be
+ * thread-safe, since rules may be evaluated in parallel.
+ */
+public final class RunLocal<T> {
+
+  private final Supplier<? extends T> initialValue;
+
+  private RunLocal(final Supplier<? extends T> initialValue) {
+    this.initialValue = requireNonNull(initialValue);
+  }
+
+  public static <T> RunLocal<T> withInitial(final Supplier<? extends T> initialValue) {
+    return new RunLocal<>(initialValue);
+  }
+
+  T initialValue() {
+    return requireNonNull(initialValue.get());
+  }
+}
@@ -26,4 +26,35 @@ import com.spotify.protoman.descriptor.DescriptorSet;
 public interface SchemaValidator {
 
   ImmutableList<ValidationViolation> validate(DescriptorSet current, DescriptorSet candidate);
+
+  /**
+   * Like {@link #validate(DescriptorSet, DescriptorSet)}, but stops as soon as {@code policy}
+   * allows. The default implementation validates everything and then truncates the violations.
+   */
+  default ValidationResult validate(final DescriptorSet current,
+                                    final DescriptorSet candidate,
+                                    final ValidationPolicy policy) {
+    final ImmutableList<ValidationViolation> violations = validate(current, candidate);
+    if (violations.size() > policy.maxViolations()) {
+      return ValidationResult.create(violations.subList(0, policy.maxViolations()), true);
+    }
+    return ValidationResult.create(violations, false);
+  }
+
+  /**
+   * Like {@link #validate(DescriptorSet, DescriptorSet, ValidationPolicy)}, but pushes violations
+   * to {@code sink} instead of collecting them. The sink is called by one thread at a time, and
+   * never after this returns or throws.
+   *
+   * @return Whether violations were left out because of {@code policy}, as in
+   *     {@link ValidationResult#truncated()}.
+   */
+  default boolean validate(final DescriptorSet current,
+                           final DescriptorSet candidate,
+                           final ValidationPolicy policy,
+                           final ViolationSink sink) {
+    final ValidationResult result = validate(current, candidate, policy);
+    result.violations().forEach(sink::accept);
+    return result.truncated();
+  }
 }
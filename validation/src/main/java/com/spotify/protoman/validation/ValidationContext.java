@@ -23,4 +23,12 @@ package com.spotify.protoman.validation;
 public interface ValidationContext {
 
   void report(ViolationType type, String description);
+
+  /**
+   * Returns the value of {@code local} for the current validation run, creating it on first use.
+   * Contexts that do not track runs return a fresh value on every call.
+   */
+  default <T> T get(final RunLocal<T> local) {
+    return local.initialValue();
+  }
 }
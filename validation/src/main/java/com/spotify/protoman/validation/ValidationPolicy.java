@@ -0,0 +1,88 @@
+/*-
+ * -\-\-
+ * protoman-validation
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.validation;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.auto.value.AutoValue;
+import java.time.Duration;
+import javax.annotation.Nullable;
+
+/**
+ * Decides when {@link SchemaValidator#validate(com.spotify.protoman.descriptor.DescriptorSet,
+ * com.spotify.protoman.descriptor.DescriptorSet, ValidationPolicy)} may stop before all changes
+ * have been validated.
+ */
+@AutoValue
+public abstract class ValidationPolicy {
+
+  private static final ValidationPolicy EXHAUSTIVE = create(Integer.MAX_VALUE, null);
+
+  /**
+   * The most violations that are reported. Validation stops when one more is found.
+   */
+  public abstract int maxViolations();
+
+  /**
+   * How long validation may run before it stops, or null if there is no time limit.
+   */
+  @Nullable public abstract Duration timeBudget();
+
+  /**
+   * Validate everything and report every violation.
+   */
+  public static ValidationPolicy exhaustive() {
+    return EXHAUSTIVE;
+  }
+
+  /**
+   * Report only the first violation, and stop as soon as there is another one. Every violation
+   * type fails a publish, so this is the first fatal one.
+   */
+  public static ValidationPolicy failFast() {
+    return maxViolations(1);
+  }
+
+  public static ValidationPolicy maxViolations(final int maxViolations) {
+    return create(maxViolations, null);
+  }
+
+  public static ValidationPolicy timeBudget(final Duration timeBudget) {
+    return create(Integer.MAX_VALUE, timeBudget);
+  }
+
+  /**
+   * Stop after {@code maxViolations} violations or when {@code timeBudget} has passed, whichever
+   * comes first.
+   */
+  public static ValidationPolicy budget(final int maxViolations, final Duration timeBudget) {
+    return create(maxViolations, timeBudget);
+  }
+
+  private static ValidationPolicy create(final int maxViolations,
+                                         @Nullable final Duration timeBudget) {
+    checkArgument(maxViolations > 0, "maxViolations must be positive");
+    checkArgument(timeBudget == null || !timeBudget.isNegative(),
+                  "timeBudget must not be negative");
+    return new AutoValue_ValidationPolicy(maxViolations, timeBudget);
+  }
+}
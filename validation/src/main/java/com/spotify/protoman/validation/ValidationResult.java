@@ -0,0 +1,42 @@
+/*-
+ * -\-\-
+ * protoman-validation
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.validation;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+
+@AutoValue
+public abstract class ValidationResult {
+
+  public abstract ImmutableList<ValidationViolation> violations();
+
+  /**
+   * Whether violations were left out because of the {@link ValidationPolicy}: more violations
+   * than it allows were found, or its time budget ran out before everything was validated.
+   */
+  public abstract boolean truncated();
+
+  public static ValidationResult create(final ImmutableList<ValidationViolation> violations,
+                                        final boolean truncated) {
+    return new AutoValue_ValidationResult(violations, truncated);
+  }
+}
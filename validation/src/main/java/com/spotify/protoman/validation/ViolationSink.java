@@ -0,0 +1,33 @@
+/*-
+ * -\-\-
+ * protoman-validation
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.validation;
+
+/**
+ * Receives violations as they are found, see {@link SchemaValidator#validate(
+ * com.spotify.protoman.descriptor.DescriptorSet, com.spotify.protoman.descriptor.DescriptorSet,
+ * ValidationPolicy, ViolationSink)}.
+ */
+@FunctionalInterface
+public interface ViolationSink {
+
+  void accept(ValidationViolation violation);
+}
@@ -35,7 +35,7 @@ public class FieldTypeCompatibilityRule implements ComparingValidationRule {
   @FunctionalInterface
   interface FieldCompatibilityChecker {
     Optional<TypeCompatibility.TypeIncompatibility> checkFieldCompatibility(
-        FieldDescriptor current, FieldDescriptor candidate);
+        ValidationContext ctx, FieldDescriptor current, FieldDescriptor candidate);
   }
 
   private FieldTypeCompatibilityRule(final FieldCompatibilityChecker checker) {
@@ -43,7 +43,8 @@ public class FieldTypeCompatibilityRule implements ComparingValidationRule {
   }
 
   public static FieldTypeCompatibilityRule create() {
-    return create(TypeCompatibility::checkFieldTypeCompatibility);
+    return create((ctx, current, candidate) ->
+        TypeCompatibility.forRun(ctx).checkFieldTypeCompatibility(current, candidate));
   }
 
   static FieldTypeCompatibilityRule create(final FieldCompatibilityChecker checker) {
@@ -55,7 +56,7 @@ public class FieldTypeCompatibilityRule implements ComparingValidationRule {
                            final FieldDescriptor current,
                            final FieldDescriptor candidate) {
     final Optional<TypeCompatibility.TypeIncompatibility> typeIncompatibility =
-        checker.checkFieldCompatibility(current, candidate);
+        checker.checkFieldCompatibility(ctx, current, candidate);
     // Is the new and old field type wire compatible?
     if (typeIncompatibility.isPresent()) {
       ctx.report(
@@ -35,7 +35,7 @@ public class MethodInputTypeCompatibilityRule implements ComparingValidationRule
   @FunctionalInterface
   interface TypeCompatibilityChecker {
     Optional<TypeCompatibility.TypeIncompatibility> checkTypeCompatibility(
-        MessageDescriptor current, MessageDescriptor candidate);
+        ValidationContext ctx, MessageDescriptor current, MessageDescriptor candidate);
   }
 
   private MethodInputTypeCompatibilityRule(final TypeCompatibilityChecker checker) {
@@ -43,7 +43,8 @@ public class MethodInputTypeCompatibilityRule implements ComparingValidationRule
   }
 
   public static MethodInputTypeCompatibilityRule create() {
-    return create(TypeCompatibility::checkMessageTypeCompatibility);
+    return create((ctx, current, candidate) ->
+        TypeCompatibility.forRun(ctx).checkMessageTypeCompatibility(current, candidate));
   }
 
   static MethodInputTypeCompatibilityRule create(final TypeCompatibilityChecker checker) {
@@ -55,7 +56,7 @@ public class MethodInputTypeCompatibilityRule implements ComparingValidationRule
                             final MethodDescriptor current,
                             final MethodDescriptor candidate) {
     final Optional<TypeCompatibility.TypeIncompatibility> incompatibility =
-        checker.checkTypeCompatibility(current.inputType(), candidate.inputType());
+        checker.checkTypeCompatibility(ctx, current.inputType(), candidate.inputType());
 
     if (incompatibility.isPresent()) {
       incompatibility.ifPresent(typeIncompatibility -> ctx.report(
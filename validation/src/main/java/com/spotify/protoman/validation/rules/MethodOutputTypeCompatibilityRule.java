@@ -35,7 +35,7 @@ public class MethodOutputTypeCompatibilityRule implements ComparingValidationRul
   @FunctionalInterface
   interface TypeCompatibilityChecker {
     Optional<TypeCompatibility.TypeIncompatibility> checkTypeCompatibility(
-        MessageDescriptor current, MessageDescriptor candidate);
+        ValidationContext ctx, MessageDescriptor current, MessageDescriptor candidate);
   }
 
   private MethodOutputTypeCompatibilityRule(final TypeCompatibilityChecker checker) {
@@ -43,7 +43,8 @@ public class MethodOutputTypeCompatibilityRule implements ComparingValidationRul
   }
 
   public static MethodOutputTypeCompatibilityRule create() {
-    return create(TypeCompatibility::checkMessageTypeCompatibility);
+    return create((ctx, current, candidate) ->
+        TypeCompatibility.forRun(ctx).checkMessageTypeCompatibility(current, candidate));
   }
 
   static MethodOutputTypeCompatibilityRule create(final TypeCompatibilityChecker checker) {
@@ -55,7 +56,7 @@ public class MethodOutputTypeCompatibilityRule implements ComparingValidationRul
                             final MethodDescriptor current,
                             final MethodDescriptor candidate) {
     final Optional<TypeCompatibility.TypeIncompatibility> incompatibility =
-        checker.checkTypeCompatibility(current.outputType(), candidate.outputType());
+        checker.checkTypeCompatibility(ctx, current.outputType(), candidate.outputType());
 
     if (incompatibility.isPresent()) {
       incompatibility.ifPresent(typeIncompatibility -> ctx.report(
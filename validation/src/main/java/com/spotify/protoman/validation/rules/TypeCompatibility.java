@@ -26,70 +26,53 @@ import com.spotify.protoman.descriptor.EnumValueDescriptor;
 import com.spotify.protoman.descriptor.FieldDescriptor;
 import com.spotify.protoman.descriptor.FieldType;
 import com.spotify.protoman.descriptor.MessageDescriptor;
+import com.spotify.protoman.validation.RunLocal;
+import com.spotify.protoman.validation.ValidationContext;
 import com.spotify.protoman.validation.ViolationType;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Checks whether one type can replace another. Results are memoized per (current, candidate)
+ * message type pair for the lifetime of an instance, which is a single validation run (see
+ * {@link #forRun(ValidationContext)}). Recursive types are handled coinductively: a pair that is
+ * already being checked further up is assumed to be compatible.
+ */
 class TypeCompatibility {
-  private TypeCompatibility() {
-    // Prevent instantiation
-  }
-
-  static Optional<TypeIncompatibility> checkMessageTypeCompatibility(
-      final MessageDescriptor current,
-      final MessageDescriptor candidate) {
-    if (Objects.equals(current.fullName(), candidate.fullName())) {
-      // Message type is the same for current and candidate -- any incompatible changes to the
-      // message type will be caught elsewhere.
-      return Optional.empty();
-    }
 
-    for (final FieldDescriptor currentField : current.fields()) {
-      final FieldDescriptor candidateField = candidate.findFieldByNumber(currentField.number());
+  private static final RunLocal<TypeCompatibility> RUN_LOCAL =
+      RunLocal.withInitial(TypeCompatibility::new);
 
-      if (candidateField == null) {
-        // Field with the same number is not present in the type replacing the current message ->
-        // consider it incompatible
-        return Optional.of(TypeIncompatibility.create(
-            String.format(
-                "message types %s and %s are not interchangable, field %s does exist in the new "
-                + "message type used",
-                current.name(), candidate.name(), currentField.name()),
-            ViolationType.WIRE_INCOMPATIBILITY_VIOLATION
-        ));
-      }
+  private final Map<TypePair, Optional<TypeIncompatibility>> messageResults =
+      new ConcurrentHashMap<>();
 
-      if (!Objects.equals(currentField.name(), candidateField.name())) {
-        return Optional.of(TypeIncompatibility.create(
-            String.format(
-                "message types %s and %s are not interchangable, field %s has different name in "
-                + "new message type used (current=%s, candidate=%s)",
-                current.name(), candidate.name(), currentField.name(),
-                currentField.name(), candidateField.name()),
-            ViolationType.FIELD_MASK_INCOMPATIBILITY
-        ));
-      }
+  private TypeCompatibility() {
+  }
 
-      final Optional<TypeIncompatibility> fieldTypeCompatibility =
-          checkFieldTypeCompatibility(currentField, candidateField);
-      if (fieldTypeCompatibility.isPresent()) {
-        // One or more fields are type-incompatible
-        return fieldTypeCompatibility;
-      }
+  /**
+   * Returns the engine shared by all rules in the validation run of {@code ctx}.
+   */
+  static TypeCompatibility forRun(final ValidationContext ctx) {
+    return ctx.get(RUN_LOCAL);
+  }
 
-      if (!Objects.equals(currentField.jsonName(), candidateField.jsonName())) {
-        return Optional.of(TypeIncompatibility.create(
-            String.format(
-                "message types %s and %s are not interchangable, field %s has different JSON "
-                + "name in new message type used (current=%s, candidate=%s)",
-                current.name(), candidate.name(), currentField.name(),
-                currentField.jsonName(), candidateField.jsonName()),
-            ViolationType.JSON_ENCODING_INCOMPATIBILITY
-        ));
-      }
-    }
+  Optional<TypeIncompatibility> checkMessageTypeCompatibility(
+      final MessageDescriptor current,
+      final MessageDescriptor candidate) {
+    final Check check = new Check();
+    return check.commit(check.message(current, candidate));
+  }
 
-    return Optional.empty();
+  Optional<TypeIncompatibility> checkFieldTypeCompatibility(
+      final FieldDescriptor current,
+      final FieldDescriptor candidate) {
+    final Check check = new Check();
+    return check.commit(check.field(current, candidate));
   }
 
   static Optional<TypeIncompatibility> checkEnumTypeCompatibility(
@@ -121,32 +104,145 @@ class TypeCompatibility {
     return Optional.empty();
   }
 
-  static Optional<TypeIncompatibility> checkFieldTypeCompatibility(
-      final FieldDescriptor current,
-      final FieldDescriptor candidate) {
-    final FieldType currentType = current.type();
-    final FieldType candidateType = candidate.type();
+  /**
+   * A single top-level check. Compatible results that depend on an assumption about a pair still
+   * in progress are kept aside until the top-level result is known: if it is compatible, every
+   * assumption held and they are committed, and otherwise they are dropped. Incompatible results
+   * never depend on assumptions and are committed immediately.
+   */
+  private class Check {
+
+    private final Set<TypePair> inProgress = new HashSet<>();
+    private final Map<TypePair, Optional<TypeIncompatibility>> provisional = new HashMap<>();
+
+    Optional<TypeIncompatibility> commit(final Optional<TypeIncompatibility> result) {
+      if (!result.isPresent()) {
+        messageResults.putAll(provisional);
+      }
+      return result;
+    }
+
+    Optional<TypeIncompatibility> message(final MessageDescriptor current,
+                                          final MessageDescriptor candidate) {
+      if (Objects.equals(current.fullName(), candidate.fullName())) {
+        // Message type is the same for current and candidate -- any incompatible changes to the
+        // message type will be caught elsewhere.
+        return Optional.empty();
+      }
+
+      final TypePair pair = TypePair.create(current, candidate);
+      final Optional<TypeIncompatibility> memoized = messageResults.get(pair);
+      if (memoized != null) {
+        return memoized;
+      }
+      final Optional<TypeIncompatibility> assumed = provisional.get(pair);
+      if (assumed != null) {
+        return assumed;
+      }
+      if (!inProgress.add(pair)) {
+        // Recursive reference back to a pair being checked
+        return Optional.empty();
+      }
 
-    if (currentType == candidateType) {
-      if (currentType == FieldType.MESSAGE) {
-        return checkMessageTypeCompatibility(current.messageType(), candidate.messageType());
+      final Optional<TypeIncompatibility> result = checkFields(current, candidate);
+      inProgress.remove(pair);
+      if (result.isPresent()) {
+        messageResults.put(pair, result);
+      } else {
+        provisional.put(pair, result);
       }
+      return result;
+    }
+
+    private Optional<TypeIncompatibility> checkFields(final MessageDescriptor current,
+                                                      final MessageDescriptor candidate) {
+      for (final FieldDescriptor currentField : current.fields()) {
+        final FieldDescriptor candidateField = candidate.findFieldByNumber(currentField.number());
+
+        if (candidateField == null) {
+          // Field with the same number is not present in the type replacing the current
+          // message -> consider it incompatible
+          return Optional.of(TypeIncompatibility.create(
+              String.format(
+                  "message types %s and %s are not interchangable, field %s does exist in the "
+                  + "new message type used",
+                  current.name(), candidate.name(), currentField.name()),
+              ViolationType.WIRE_INCOMPATIBILITY_VIOLATION
+          ));
+        }
 
-      if (currentType == FieldType.ENUM) {
-        return checkEnumTypeCompatibility(current.enumType(), candidate.enumType());
+        if (!Objects.equals(currentField.name(), candidateField.name())) {
+          return Optional.of(TypeIncompatibility.create(
+              String.format(
+                  "message types %s and %s are not interchangable, field %s has different name "
+                  + "in new message type used (current=%s, candidate=%s)",
+                  current.name(), candidate.name(), currentField.name(),
+                  currentField.name(), candidateField.name()),
+              ViolationType.FIELD_MASK_INCOMPATIBILITY
+          ));
+        }
+
+        final Optional<TypeIncompatibility> fieldTypeCompatibility =
+            field(currentField, candidateField);
+        if (fieldTypeCompatibility.isPresent()) {
+          // One or more fields are type-incompatible
+          return fieldTypeCompatibility;
+        }
+
+        if (!Objects.equals(currentField.jsonName(), candidateField.jsonName())) {
+          return Optional.of(TypeIncompatibility.create(
+              String.format(
+                  "message types %s and %s are not interchangable, field %s has different JSON "
+                  + "name in new message type used (current=%s, candidate=%s)",
+                  current.name(), candidate.name(), currentField.name(),
+                  currentField.jsonName(), candidateField.jsonName()),
+              ViolationType.JSON_ENCODING_INCOMPATIBILITY
+          ));
+        }
       }
 
       return Optional.empty();
     }
 
-    if (!FieldType.isWireCompatible(currentType, candidateType)) {
-      return Optional.of(TypeIncompatibility.create(
-          String.format("wire-incompatible field type change %s -> %s", currentType, candidateType),
-          ViolationType.WIRE_INCOMPATIBILITY_VIOLATION
-      ));
+    Optional<TypeIncompatibility> field(final FieldDescriptor current,
+                                        final FieldDescriptor candidate) {
+      final FieldType currentType = current.type();
+      final FieldType candidateType = candidate.type();
+
+      if (currentType == candidateType) {
+        if (currentType == FieldType.MESSAGE) {
+          return message(current.messageType(), candidate.messageType());
+        }
+
+        if (currentType == FieldType.ENUM) {
+          return checkEnumTypeCompatibility(current.enumType(), candidate.enumType());
+        }
+
+        return Optional.empty();
+      }
+
+      if (!FieldType.isWireCompatible(currentType, candidateType)) {
+        return Optional.of(TypeIncompatibility.create(
+            String.format(
+                "wire-incompatible field type change %s -> %s", currentType, candidateType),
+            ViolationType.WIRE_INCOMPATIBILITY_VIOLATION
+        ));
+      }
+
+      return Optional.empty();
     }
+  }
 
-    return Optional.empty();
+  @AutoValue
+  abstract static class TypePair {
+
+    abstract MessageDescriptor current();
+
+    abstract MessageDescriptor candidate();
+
+    static TypePair create(final MessageDescriptor current, final MessageDescriptor candidate) {
+      return new AutoValue_TypeCompatibility_TypePair(current, candidate);
+    }
   }
 
   @AutoValue
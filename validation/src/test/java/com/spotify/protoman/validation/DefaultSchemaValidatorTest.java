@@ -0,0 +1,189 @@
+/*-
+ * -\-\-
+ * protoman-validation
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.validation;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+import com.google.common.collect.ImmutableList;
+import com.spotify.protoman.descriptor.DescriptorSet;
+import com.spotify.protoman.testutil.DescriptorSetUtils;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+public class DefaultSchemaValidatorTest {
+
+  private static final int MESSAGES = 20;
+
+  private final DescriptorSet currentSet;
+  private final DescriptorSet candidateSet;
+
+  public DefaultSchemaValidatorTest() throws Exception {
+    final StringBuilder current = new StringBuilder("syntax = 'proto3';\npackage foo;\n");
+    final StringBuilder candidate = new StringBuilder(current);
+    for (int i = 0; i < MESSAGES; i++) {
+      current.append(String.format(
+          "message M%d {\n  int32 a = 1;\n  string b = 2;\n}\n", i));
+      candidate.append(String.format(
+          "message M%d {\n  int64 a = 1;\n  string c = 2;\n}\n", i));
+    }
+    currentSet = DescriptorSetUtils.buildDescriptorSet("foo/many.proto", current.toString());
+    candidateSet = DescriptorSetUtils.buildDescriptorSet("foo/many.proto", candidate.toString());
+  }
+
+  @Test
+  public void testExhaustive() throws Exception {
+    final ValidationResult result = DefaultSchemaValidator.withDefaultRules()
+        .validate(currentSet, candidateSet, ValidationPolicy.exhaustive());
+
+    assertThat(result.violations(), hasSize(3 * MESSAGES));
+    assertThat(result.truncated(), is(false));
+  }
+
+  @Test
+  public void testFailFast() throws Exception {
+    final ValidationResult result = DefaultSchemaValidator.withDefaultRules()
+        .validate(currentSet, candidateSet, ValidationPolicy.failFast());
+
+    assertThat(result.violations(), hasSize(1));
+    assertThat(result.truncated(), is(true));
+  }
+
+  @Test
+  public void testMaxViolations() throws Exception {
+    final ImmutableList<ValidationViolation> all =
+        DefaultSchemaValidator.withDefaultRules().validate(currentSet, candidateSet);
+
+    final ValidationResult result = DefaultSchemaValidator.withDefaultRules()
+        .validate(currentSet, candidateSet, ValidationPolicy.maxViolations(5));
+
+    assertThat(result.violations(), equalTo(all.subList(0, 5)));
+    assertThat(result.truncated(), is(true));
+  }
+
+  @Test
+  public void testMaxViolations_notExceeded() throws Exception {
+    final ImmutableList<ValidationViolation> all =
+        DefaultSchemaValidator.withDefaultRules().validate(currentSet, candidateSet);
+
+    final ValidationResult result = DefaultSchemaValidator.withDefaultRules()
+        .validate(currentSet, candidateSet, ValidationPolicy.maxViolations(3 * MESSAGES));
+
+    assertThat(result.violations(), equalTo(all));
+    assertThat(result.truncated(), is(false));
+  }
+
+  @Test
+  public void testTimeBudgetExhausted() throws Exception {
+    final ValidationResult result = DefaultSchemaValidator.withDefaultRules()
+        .validate(currentSet, candidateSet, ValidationPolicy.timeBudget(Duration.ZERO));
+
+    assertThat(result.violations(), is(empty()));
+    assertThat(result.truncated(), is(true));
+  }
+
+  @Test
+  public void testFailFast_parallel() throws Exception {
+    final ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      final ValidationResult result = DefaultSchemaValidator.builder()
+          .addDefaultRules()
+          .forkJoinPool(pool)
+          .build()
+          .validate(currentSet, candidateSet, ValidationPolicy.failFast());
+
+      assertThat(result.violations(), hasSize(1));
+      assertThat(result.truncated(), is(true));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testSink() throws Exception {
+    final SchemaValidator validator = DefaultSchemaValidator.withDefaultRules();
+    final List<ValidationViolation> pushed = new ArrayList<>();
+
+    final boolean truncated = validator.validate(
+        currentSet, candidateSet, ValidationPolicy.exhaustive(), pushed::add);
+
+    assertThat(pushed, equalTo(validator.validate(currentSet, candidateSet)));
+    assertThat(truncated, is(false));
+  }
+
+  @Test
+  public void testSink_failFast() throws Exception {
+    final List<ValidationViolation> pushed = new ArrayList<>();
+
+    final boolean truncated = DefaultSchemaValidator.withDefaultRules().validate(
+        currentSet, candidateSet, ValidationPolicy.failFast(), pushed::add);
+
+    assertThat(pushed, hasSize(1));
+    assertThat(truncated, is(true));
+  }
+
+  @Test
+  public void testSink_parallel() throws Exception {
+    final List<ValidationViolation> pushed = new ArrayList<>();
+    final ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      final boolean truncated = DefaultSchemaValidator.builder()
+          .addDefaultRules()
+          .forkJoinPool(pool)
+          .build()
+          .validate(currentSet, candidateSet, ValidationPolicy.exhaustive(), pushed::add);
+
+      assertThat(pushed, containsInAnyOrder(DefaultSchemaValidator.withDefaultRules()
+          .validate(currentSet, candidateSet).toArray()));
+      assertThat(truncated, is(false));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testParallelSameAsSequential() throws Exception {
+    final ImmutableList<ValidationViolation> sequential =
+        DefaultSchemaValidator.withDefaultRules().validate(currentSet, candidateSet);
+
+    final ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      final ImmutableList<ValidationViolation> parallel = DefaultSchemaValidator.builder()
+          .addDefaultRules()
+          .forkJoinPool(pool)
+          .build()
+          .validate(currentSet, candidateSet);
+
+      assertThat(sequential, hasSize(3 * MESSAGES));
+      assertThat(parallel, equalTo(sequential));
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
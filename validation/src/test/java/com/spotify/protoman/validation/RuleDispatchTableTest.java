@@ -0,0 +1,81 @@
+/*-
+ * -\-\-
+ * protoman-validation
+ * --
+ * Copyright (C) 2016 - 2018 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+
+package com.spotify.protoman.validation;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.emptyArray;
+
+import com.google.common.collect.ImmutableList;
+import com.spotify.protoman.descriptor.FieldDescriptor;
+import com.spotify.protoman.descriptor.MessageDescriptor;
+import com.spotify.protoman.validation.RuleDispatchTable.Kind;
+import org.junit.Test;
+
+public class RuleDispatchTableTest {
+
+  private static class FieldRule implements ComparingValidationRule {
+
+    @Override
+    public void fieldChanged(final ValidationContext ctx,
+                             final FieldDescriptor current,
+                             final FieldDescriptor candidate) {
+    }
+  }
+
+  private static class SubclassedFieldRule extends FieldRule {
+  }
+
+  private static class MessageRule implements ValidationRule {
+
+    @Override
+    public void validateMessage(final ValidationContext ctx, final MessageDescriptor candidate) {
+    }
+  }
+
+  @Test
+  public void testOnlyOverriddenCallbacks() {
+    final ComparingValidationRule fieldRule = new FieldRule();
+    final ComparingValidationRule subclassedFieldRule = new SubclassedFieldRule();
+
+    final RuleDispatchTable table =
+        RuleDispatchTable.create(ImmutableList.of(fieldRule, subclassedFieldRule));
+
+    assertThat(table.changed(Kind.FIELD), arrayContaining(fieldRule, subclassedFieldRule));
+    assertThat(table.added(Kind.FIELD), emptyArray());
+    assertThat(table.removed(Kind.FIELD), emptyArray());
+    assertThat(table.changed(Kind.MESSAGE), emptyArray());
+  }
+
+  @Test
+  public void testAdaptedRule() {
+    final ComparingValidationRule messageRule = RuleAdapter.adapt(new MessageRule());
+
+    final RuleDispatchTable table = RuleDispatchTable.create(ImmutableList.of(messageRule));
+
+    assertThat(table.added(Kind.MESSAGE), arrayContaining(messageRule));
+    assertThat(table.changed(Kind.MESSAGE), arrayContaining(messageRule));
+    assertThat(table.removed(Kind.MESSAGE), emptyArray());
+    assertThat(table.added(Kind.FIELD), emptyArray());
+    assertThat(table.added(Kind.FILE), emptyArray());
+  }
+}
@@ -103,6 +103,28 @@ public class FieldTypeCompatibilityRuleTest {
       + "  int32 b = 2;\n"
       + "  ACompatEnum c = 3;\n"
       + "}\n"
+      + "message Ping {\n"
+      + "  Pong pong = 1;\n"
+      + "  int32 value = 2;\n"
+      + "}\n"
+      + "message Pong {\n"
+      + "  Ping ping = 1;\n"
+      + "}\n"
+      + "message CompatPing {\n"
+      + "  CompatPong pong = 1;\n"
+      + "  bool value = 2;\n"
+      + "}\n"
+      + "message CompatPong {\n"
+      + "  CompatPing ping = 1;\n"
+      + "}\n"
+      + "message IncompatPing {\n"
+      + "  IncompatPong pong = 1;\n"
+      + "  int32 value = 2;\n"
+      + "}\n"
+      + "message IncompatPong {\n"
+      + "  IncompatPing ping = 1;\n"
+      + "  string extra = 2;\n"
+      + "}\n"
       ;
 
   @Parameters(method = "complexTypeChanges")
@@ -309,6 +331,18 @@ public class FieldTypeCompatibilityRuleTest {
             "message types A and WireIncompatWithA are not interchangable, field a does exist in "
             + "the new message type used"
         },
+        // Mutually recursive field types
+        new Object[]{
+            "Ping", "CompatPing",
+            ViolationType.GENERATED_SOURCE_CODE_INCOMPATIBILITY_VIOLATION,
+            "field type changed (wire-compat)"
+        },
+        new Object[]{
+            "IncompatPing", "Ping",
+            ViolationType.WIRE_INCOMPATIBILITY_VIOLATION,
+            "message types IncompatPong and Pong are not interchangable, field extra does exist in "
+            + "the new message type used"
+        },
     };
   }
 